@@ -1,20 +1,39 @@
-#version 330 core
+#version 430 core
 //glsl version
 
 const int MAX_POINT_LIGHTS = 5;
 const int MAX_SPOT_LIGHTS = 5;
 const float SPECULAR_POWER = 10;
 
+//SceneRender compiles a variant per number of active lights (packed first in the Lights block) and
+//with NORMAL_MAP defined for the materials that have one, without the defines every light is visited
+#ifndef NUM_POINT_LIGHTS
+#define NUM_POINT_LIGHTS MAX_POINT_LIGHTS
+#endif
+#ifndef NUM_SPOT_LIGHTS
+#define NUM_SPOT_LIGHTS MAX_SPOT_LIGHTS
+#endif
+
 in vec3 outPosition;
 in vec3 outNormal;
 in vec3 outTangent;
 in vec3 outBitangent;
 in vec2 outTextCoord;
+flat in int outSelected;
+flat in int outTextureLayer;
+#ifdef SHADOWS
+in vec3 outWorldPosition;
+#endif
+#ifdef LIGHTMAPS
+in vec2 outLightmapCoord;
+flat in int outLightmapLayer;
+#endif
 
 out vec4 fragColor;
 
 
 
+//light structs follow the std140 layout written by SceneRender, members are ordered to avoid padding
 struct Attenuation
 {
     float constant;
@@ -22,26 +41,29 @@ struct Attenuation
     float exponent;
 };
 
+//std430 layout written by MaterialCache
 struct Material
 {
     vec4 ambient;
     vec4 diffuse;
     vec4 specular;
     float reflectance;
-    int hasNormalMap;
 };
 
 struct AmbientLight
 {
-    float factor;
     vec3 color;
+    float factor;
 };
 
+//position is in world space, it is moved to view space when shading
+//baked is 1 when the light is part of the lightmaps, it fills the padding after the color
 struct PointLight
 {
     vec3 position;
-    vec3 color;
     float intensity;
+    vec3 color;
+    int baked;
     Attenuation att;
 };
 
@@ -52,39 +74,147 @@ struct SpotLight
     float cutoff;
 };
 
+//direction (towards the light) in world space like the cone direction, both are moved to view space when shading
 struct DirLight
 {
     vec3 color;
-    vec3 direction;
     float intensity;
+    vec3 direction;
 };
 
 //use the text coords in order to set the pixel colors by sampling a texture
 //thru this sampler2d uniform
 uniform sampler2D txtSampler;
 uniform sampler2D normalSampler;
-uniform Material material;
 
-uniform int selected;
+//parameters of every material of the scene, the one of the draw is picked by materialIndex
+layout (std430, binding = 0) readonly buffer Materials
+{
+    Material materials[];
+};
+uniform int materialIndex;
+Material material;
+
+#ifdef CLUSTERED_LIGHTING
+//std430 layouts written by ClusteredLighting, lights are in world space like the ones of the Lights block
+struct ClusterLight
+{
+    vec3 position;
+    float intensity;
+    vec3 color;
+    float cutoff;
+    vec3 attenuation;
+    int flags;          //bit 0: spot light, bit 1: baked light
+    vec3 conedir;
+    int shadowSlot;     //-1 when the light has no shadow map
+};
+
+layout (std430, binding = 1) readonly buffer ClusterLights
+{
+    ClusterLight clusterLights[];
+};
+
+//offset and count in clusterLightIndices of every cluster
+layout (std430, binding = 2) readonly buffer Clusters
+{
+    uvec2 clusters[];
+};
+
+layout (std430, binding = 3) readonly buffer ClusterLightIndices
+{
+    uint clusterLightIndices[];
+};
+#endif
+
+//small textures are packed in texture arrays, the layer is -1 when the texture is a plain one
+//the entity layer (outTextureLayer) replaces the material one when it is set, see Entity.setTextureLayer
+uniform sampler2DArray txtArraySampler;
+uniform sampler2DArray normalArraySampler;
+uniform int textureLayer;
+uniform int normalMapLayer;
+
+//same block as in scene.vert, needed here to move the lights to view space
+layout (std140) uniform Matrices
+{
+    mat4 projectionMatrix;
+    mat4 viewMatrix;
+};
+
+//only re-uploaded by SceneRender when a light changes
+layout (std140) uniform Lights
+{
+    AmbientLight ambientLight;
+    DirLight dirLight;
+    PointLight pointLights[MAX_POINT_LIGHTS];
+    SpotLight spotLights[MAX_SPOT_LIGHTS];
+};
+
+#ifdef SHADOWS
+//written by ShadowRender, layer 0 of the maps is the directional light, layer 1 + i the spot light with slot i
+layout (std140) uniform Shadows
+{
+    mat4 dirLightMatrix;
+    mat4 spotLightMatrices[MAX_SHADOW_SPOT_LIGHTS];
+    int numSpotShadows;
+};
 
-uniform AmbientLight ambientLight;
-uniform PointLight pointLights[MAX_POINT_LIGHTS];
-uniform SpotLight spotLights[MAX_SPOT_LIGHTS];
-uniform DirLight dirLight;
+//static casters and dynamic ones (see Entity.setDynamic) are kept in separate maps
+uniform sampler2DArrayShadow staticShadowSampler;
+uniform sampler2DArrayShadow dynamicShadowSampler;
+
+//1 when lit, 0 when in shadow, the hardware comparison filters the 4 closest texels, outside the map is lit
+float calcShadow(int layer, mat4 lightMatrix){
+
+    vec4 lightPosition = lightMatrix * vec4(outWorldPosition, 1.0);
+    if (lightPosition.w <= 0.0){
+        return 1.0;
+    }
+
+    vec3 coords = lightPosition.xyz / lightPosition.w * 0.5 + 0.5;
+    if (any(lessThan(coords, vec3(0.0))) || any(greaterThan(coords, vec3(1.0)))){
+        return 1.0;
+    }
+
+    float staticLit = texture(staticShadowSampler, vec4(coords.xy, layer, coords.z));
+    float dynamicLit = texture(dynamicShadowSampler, vec4(coords.xy, layer, coords.z));
+    return min(staticLit, dynamicLit);
+}
+
+float calcSpotShadow(int slot){
+    return slot >= 0 && slot < numSpotShadows ? calcShadow(1 + slot, spotLightMatrices[slot]) : 1.0;
+}
+#endif
+
+#ifdef LIGHTMAPS
+//written by LightmapBakerTool, one layer per static entity, see Lightmaps
+uniform sampler2DArray lightmapSampler;
+#endif
+
+//lightmapped fragments already have the baked lights in their lightmap
+bool skipBakedLight(int baked){
+#ifdef LIGHTMAPS
+    return baked != 0 && outLightmapLayer >= 0;
+#else
+    return false;
+#endif
+}
 
 //modulate the ambient light color by a factor which is applied to material ambient color
 vec4 calcAmbient(AmbientLight ambientLight, vec4 ambient){
     return vec4(ambientLight.factor * ambientLight.color, 1) * ambient;
 }
 
+#ifdef NORMAL_MAP
 //function that updates the normal based on normal map texture
 vec3 calcNormal(vec3 normal, vec3 tangent, vec3 bitangent, vec2 textCoords) {
     mat3 TBN = mat3(tangent, bitangent, normal);
-    vec3 newNormal = texture(normalSampler, textCoords).rgb;
+    vec3 newNormal = normalMapLayer >= 0 ? texture(normalArraySampler, vec3(textCoords, normalMapLayer)).rgb
+            : texture(normalSampler, textCoords).rgb;
     newNormal = normalize(newNormal * 2.0 - 1.0);
     newNormal = normalize(TBN * newNormal);
     return newNormal;
 }
+#endif
 
 //function for defining how color light is calculated for all types of lights
 vec4 calcLightColor(vec4 diffuse, vec4 specular, vec3 lightColor, float light_intensity, vec3 position, vec3 to_light_dir, vec3 normal){
@@ -111,7 +241,8 @@ vec4 calcLightColor(vec4 diffuse, vec4 specular, vec3 lightColor, float light_in
 
 vec4 calcPointLight(vec4 diffuse, vec4 specular, PointLight light, vec3 position, vec3 normal) {
     
-    vec3 light_direction = light.position - position;
+    vec3 light_position = (viewMatrix * vec4(light.position, 1.0)).xyz;
+    vec3 light_direction = light_position - position;
     vec3 to_light_dir  = normalize(light_direction);
     
     vec4 light_color = calcLightColor(diffuse, specular, light.color, light.intensity, position, to_light_dir, normal);
@@ -126,11 +257,11 @@ vec4 calcPointLight(vec4 diffuse, vec4 specular, PointLight light, vec3 position
 
 vec4 calcSpotLight(vec4 diffuse, vec4 specular, SpotLight light, vec3 position, vec3 normal) {
     
-    vec3 light_direction = light.pl.position - position;
+    vec3 light_direction = (viewMatrix * vec4(light.pl.position, 1.0)).xyz - position;
     vec3 to_light_dir  = normalize(light_direction);
     vec3 from_light_dir  = -to_light_dir;
     
-    float spot_alfa = dot(from_light_dir, normalize(light.conedir));
+    float spot_alfa = dot(from_light_dir, normalize(mat3(viewMatrix) * light.conedir));
 
     vec4 color = vec4(0, 0, 0, 0);
 
@@ -144,38 +275,114 @@ vec4 calcSpotLight(vec4 diffuse, vec4 specular, SpotLight light, vec3 position,
 }
 
 vec4 calcDirLight(vec4 diffuse, vec4 specular, DirLight light, vec3 position, vec3 normal) {
-    return calcLightColor(diffuse, specular, light.color, light.intensity, position, normalize(light.direction), normal);
+    return calcLightColor(diffuse, specular, light.color, light.intensity, position, normalize(mat3(viewMatrix) * light.direction), normal);
+}
+
+#ifdef CLUSTERED_LIGHTING
+//same cluster numbering as LightClusters: NDC tiles and exponential depth slices
+uint calcCluster(vec3 position){
+    vec4 clipPosition = projectionMatrix * vec4(position, 1.0);
+    vec2 ndc = clipPosition.xy / clipPosition.w;
+    ivec2 tile = clamp(ivec2(floor((ndc * 0.5 + 0.5) * vec2(CLUSTER_GRID_X, CLUSTER_GRID_Y))),
+            ivec2(0), ivec2(CLUSTER_GRID_X - 1, CLUSTER_GRID_Y - 1));
+
+    float depth = max(-position.z, CLUSTER_Z_NEAR);
+    int slice = int(log(depth / CLUSTER_Z_NEAR) / log(CLUSTER_Z_FAR / CLUSTER_Z_NEAR) * CLUSTER_GRID_Z);
+    slice = clamp(slice, 0, CLUSTER_GRID_Z - 1);
+
+    return uint((slice * CLUSTER_GRID_Y + tile.y) * CLUSTER_GRID_X + tile.x);
 }
 
+vec4 calcClusterLights(vec4 diffuse, vec4 specular, vec3 position, vec3 normal){
+
+    vec4 color = vec4(0, 0, 0, 0);
+    uvec2 cluster = clusters[calcCluster(position)];
+
+    for (uint i = 0; i < cluster.y; i++){
+        ClusterLight light = clusterLights[clusterLightIndices[cluster.x + i]];
+        int baked = (light.flags & 2) != 0 ? 1 : 0;
+
+        if (skipBakedLight(baked)){
+            continue;
+        }
+
+        PointLight pointLight = PointLight(light.position, light.intensity, light.color, baked,
+                Attenuation(light.attenuation.x, light.attenuation.y, light.attenuation.z));
+
+        if ((light.flags & 1) != 0){
+            vec4 spotColor = calcSpotLight(diffuse, specular, SpotLight(pointLight, light.conedir, light.cutoff), position, normal);
+#ifdef SHADOWS
+            spotColor *= calcSpotShadow(light.shadowSlot);
+#endif
+            color += spotColor;
+        }
+        else {
+            color += calcPointLight(diffuse, specular, pointLight, position, normal);
+        }
+    }
+
+    return color;
+}
+#endif
+
 void main()
 {
-    vec4 text_color = texture(txtSampler, outTextCoord);
+    material = materials[materialIndex];
+
+    vec4 text_color;
+    if (textureLayer >= 0){
+        int layer = outTextureLayer >= 0 ? outTextureLayer : textureLayer;
+        text_color = texture(txtArraySampler, vec3(outTextCoord, layer));
+    }
+    else {
+        text_color = texture(txtSampler, outTextCoord);
+    }
     vec4 ambient = calcAmbient(ambientLight, text_color + material.ambient);
     vec4 diffuse = text_color + material.diffuse;
     vec4 specular = text_color + material.specular;
 
+#ifdef NORMAL_MAP
+    vec3 normal = calcNormal(outNormal, outTangent, outBitangent, outTextCoord);
+#else
     vec3 normal = outNormal;
-    if (material.hasNormalMap > 0){
-        normal = calcNormal(outNormal, outTangent, outBitangent, outTextCoord);
-    }
+#endif
 
     vec4 diffuseSpecularComp = calcDirLight(diffuse, specular, dirLight, outPosition, normal);
-
-    for (int i = 0; i < MAX_POINT_LIGHTS; i++){    
-        if (pointLights[i].intensity > 0){
+#ifdef SHADOWS
+    diffuseSpecularComp *= calcShadow(0, dirLightMatrix);
+#endif
+
+#ifdef CLUSTERED_LIGHTING
+    diffuseSpecularComp += calcClusterLights(diffuse, specular, outPosition, normal);
+#else
+    for (int i = 0; i < NUM_POINT_LIGHTS; i++){
+        if (!skipBakedLight(pointLights[i].baked)){
             diffuseSpecularComp += calcPointLight(diffuse, specular, pointLights[i], outPosition, normal);
         }
     }
 
-    for (int i = 0; i < MAX_SPOT_LIGHTS; i++){    
-        if (spotLights[i].pl.intensity > 0){
-            diffuseSpecularComp += calcSpotLight(diffuse, specular, spotLights[i], outPosition, normal);
+    for (int i = 0; i < NUM_SPOT_LIGHTS; i++){
+        if (skipBakedLight(spotLights[i].pl.baked)){
+            continue;
         }
+#ifdef SHADOWS
+        diffuseSpecularComp += calcSpotLight(diffuse, specular, spotLights[i], outPosition, normal) * calcSpotShadow(i);
+#else
+        diffuseSpecularComp += calcSpotLight(diffuse, specular, spotLights[i], outPosition, normal);
+#endif
+    }
+#endif
+
+#ifdef LIGHTMAPS
+    //light of the baked lights reaching the texel, direct and bounced, it only scales the diffuse color
+    if (outLightmapLayer >= 0){
+        diffuseSpecularComp += diffuse * vec4(texture(lightmapSampler, vec3(outLightmapCoord, outLightmapLayer)).rgb, 0.0);
     }
+#endif
 
     fragColor = ambient + diffuseSpecularComp;
 
-    if (selected > 0){
+    if (outSelected > 0){
         fragColor = vec4(fragColor.x, fragColor.y, 1, 1);
     }
 }
\ No newline at end of file
@@ -1,34 +1,74 @@
-#version 330 core
+#version 430 core
 //glsl version
 
 //specify input format, in this case: 
 //starting from position 0, we expect to receive a vector of 3 attributes (xyz)
 layout (location=0) in vec3 position;
 layout (location=1) in vec3 normal;
-layout (location=2) in vec3 tangent;
-layout (location=3) in vec3 bitangent;
+layout (location=2) in vec4 tangent;     //w holds the bitangent sign for compact meshes, 1 otherwise
+layout (location=3) in vec3 bitangent;   //not enabled for compact meshes, reads (0, 0, 0)
 layout (location=4) in vec2 texCoord;
+layout (location=11) in vec2 lightmapCoord;    //second UV set, (0, 0) for meshes without one
+
+//per instance attributes, filled from the model instance buffer (see InstanceBuffer)
+layout (location=5) in mat4 instanceModelMatrix;
+layout (location=9) in float instanceSelected;
+layout (location=10) in float instanceTextureLayer;     //-1 keeps the material layer
+layout (location=12) in float instanceLightmapLayer;    //-1 when the entity is not lightmapped
 
 out vec3 outPosition;
 out vec3 outNormal;
 out vec3 outTangent;
 out vec3 outBitangent;
 out vec2 outTextCoord;
+flat out int outSelected;
+flat out int outTextureLayer;
+#ifdef SHADOWS
+out vec3 outWorldPosition;      //projected with the light matrices in scene.frag
+#endif
+#ifdef LIGHTMAPS
+out vec2 outLightmapCoord;
+flat out int outLightmapLayer;
+#endif
+
+//per frame data, shared with scene.frag and filled by SceneRender through a uniform buffer
+layout (std140) uniform Matrices
+{
+    mat4 projectionMatrix;
+    mat4 viewMatrix;
+};
 
-uniform mat4 projectionMatrix;
-uniform mat4 viewMatrix;
 uniform mat4 modelMatrix;
+uniform int selected;
+uniform int entityTextureLayer;
+uniform int entityLightmapLayer;
+uniform int instanced;
 
 void main()
 {
-    mat4 modelViewMatrix = viewMatrix * modelMatrix;
+    //instanced draws take the entity data from the attributes, single draws from the uniforms
+    mat4 entityModelMatrix = instanced > 0 ? instanceModelMatrix : modelMatrix;
+    outSelected = instanced > 0 ? int(instanceSelected) : selected;
+    outTextureLayer = instanced > 0 ? int(instanceTextureLayer) : entityTextureLayer;
+#ifdef LIGHTMAPS
+    outLightmapLayer = instanced > 0 ? int(instanceLightmapLayer) : entityLightmapLayer;
+    outLightmapCoord = lightmapCoord;
+#endif
+
+    mat4 modelViewMatrix = viewMatrix * entityModelMatrix;
+#ifdef SHADOWS
+    outWorldPosition = (entityModelMatrix * vec4(position, 1.0)).xyz;
+#endif
     vec4 mvPosition = modelViewMatrix * vec4(position, 1.0);
 
-    gl_Position = projectionMatrix * modelViewMatrix * mvPosition;        //return received pos in an output variable, if wondering about why vec4, check documentation of lwjgl book
+    gl_Position = projectionMatrix * mvPosition;        //return received pos in an output variable, if wondering about why vec4, check documentation of lwjgl book
     
     outPosition = mvPosition.xyz;
     outNormal = normalize(modelViewMatrix * vec4(normal, 0.0)).xyz;
-    outTangent = normalize(modelViewMatrix * vec4(tangent, 0)).xyz;
-    outBitangent = normalize(modelViewMatrix * vec4(bitangent, 0)).xyz;
+    //compact meshes do not store the bitangent, rebuild it from the normal and the tangent
+    vec3 meshBitangent = dot(bitangent, bitangent) > 0.0 ? bitangent : cross(normal, tangent.xyz) * tangent.w;
+
+    outTangent = normalize(modelViewMatrix * vec4(tangent.xyz, 0)).xyz;
+    outBitangent = normalize(modelViewMatrix * vec4(meshBitangent, 0)).xyz;
     outTextCoord = texCoord;
 }
\ No newline at end of file
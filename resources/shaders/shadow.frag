@@ -0,0 +1,7 @@
+#version 430 core
+//glsl version
+
+//nothing to write, the depth of the fragment is all the shadow maps keep
+void main()
+{
+}
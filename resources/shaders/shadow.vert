@@ -0,0 +1,13 @@
+#version 430 core
+//glsl version
+
+//depth only pass of ShadowRender, only the positions of the meshes are read
+layout (location=0) in vec3 position;
+
+uniform mat4 lightMatrix;
+uniform mat4 modelMatrix;
+
+void main()
+{
+    gl_Position = lightMatrix * modelMatrix * vec4(position, 1.0);
+}
@@ -0,0 +1,93 @@
+package blackjack.engine;
+
+import java.lang.management.ManagementFactory;
+
+import org.tinylog.Logger;
+
+/*
+ * Measures the heap bytes allocated by the current thread between begin() and end()
+ * It is used to check that the render path does not create garbage once the game is running,
+ * per frame garbage ends up in GC pauses that show as frame time spikes
+ * The first frames are ignored since buffers are still growing and the JIT is still warming up
+ */
+
+public class AllocationMonitor {
+
+    private final com.sun.management.ThreadMXBean threadMXBean;
+    private final String name;
+    private final int warmupFrames;
+
+    private long startBytes;
+    private long lastFrameBytes;
+    private long totalBytes;
+    private int frames;
+    private int framesWithAllocations;
+
+    public AllocationMonitor(String name, int warmupFrames){
+        this.name = name;
+        this.warmupFrames = warmupFrames;
+
+        //the allocated bytes counter is a HotSpot extension of the standard bean
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean
+                && bean.isThreadAllocatedMemorySupported()){
+            bean.setThreadAllocatedMemoryEnabled(true);
+            threadMXBean = bean;
+        }
+        else {
+            Logger.warn("Thread allocation counters not supported, [{}] will not be monitored", name);
+            threadMXBean = null;
+        }
+    }
+
+    public void begin(){
+        if (threadMXBean != null){
+            startBytes = threadMXBean.getCurrentThreadAllocatedBytes();
+        }
+    }
+
+    //returns the bytes allocated since begin()
+    public long end(){
+
+        if (threadMXBean == null){
+            return 0;
+        }
+
+        lastFrameBytes = threadMXBean.getCurrentThreadAllocatedBytes() - startBytes;
+        frames++;
+
+        if (frames <= warmupFrames){
+            return lastFrameBytes;
+        }
+
+        totalBytes += lastFrameBytes;
+
+        if (lastFrameBytes > 0){
+            framesWithAllocations++;
+            Logger.warn("[{}] allocated {} bytes in frame {}", name, lastFrameBytes, frames);
+        }
+
+        return lastFrameBytes;
+    }
+
+    //getters
+    public long getLastFrameBytes() {
+        return lastFrameBytes;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public int getFrames() {
+        return frames;
+    }
+
+    public int getFramesWithAllocations() {
+        return framesWithAllocations;
+    }
+
+    public boolean isSupported() {
+        return threadMXBean != null;
+    }
+
+}
@@ -1,5 +1,6 @@
 package blackjack.engine;
 
+import org.joml.Vector3f;
 import org.joml.Vector4f;
 
 public class Consts {
@@ -7,6 +8,23 @@ public class Consts {
 
     /*~~~ ENGINE/WINDOW RELATED ~~~*/
     public static final int TARGET_UPS = 60;
+    //0 leaves the frame rate to v-sync, otherwise FramePacer sleeps (then spins) between frames
+    public static final int TARGET_FPS = 0;
+    //bounds of the time spun before a deadline instead of sleeping, and frames averaged by the pacing stats
+    public static final long FRAME_PACER_MIN_SPIN_NANOS = 200_000L;
+    public static final long FRAME_PACER_MAX_SPIN_NANOS = 4_000_000L;
+    public static final int FRAME_PACER_STATS_FRAMES = 120;
+    //most fixed updates run for one frame, time past that is dropped so a hitch cannot snowball (spiral of death)
+    public static final int MAX_UPDATES_PER_FRAME = 5;
+    //frames are only drawn when the input, the scene or the app logic changed something, the loop waits for
+    //events otherwise, and frames drawn after every change so the GUI settles (see Engine.run)
+    public static final boolean RENDER_ON_DEMAND = true;
+    public static final int RENDER_ON_DEMAND_FRAMES = 3;
+    //loop iterations per second while the window is in the background, the pending updates run in each of them
+    //(an unfocused window still renders at that rate, a minimized one does not render)
+    public static final boolean BACKGROUND_THROTTLING = true;
+    public static final int UNFOCUSED_FPS = 15;
+    public static final int ICONIFIED_FPS = 4;
     public static final int WIDTH = 900;
     public static final int HEIGHT = 600;
 
@@ -15,14 +33,108 @@ public class Consts {
     public static final float Z_NEAR = 0.01f;
     public static final float Z_FAR = 1000.f;
 
+    /*~~~ RENDER RELATED ~~~*/
+    public static final boolean INSTANCED_RENDERING = true;
+    public static final boolean FRUSTUM_CULLING = true;
+    //entity count from which the frustum tests are split across threads, and entities per task
+    public static final int CULLING_PARALLEL_THRESHOLD = 2048;
+    public static final int CULLING_TASK_SIZE = 512;
+    //debug check, logs a warning for every frame in which the render path allocates heap memory (GUI drawing
+    //included, the application code building the GUI windows is not)
+    //test/blackjack/engine/graph/RenderAllocationTest checks the same without a window, through a stubbed GL
+    public static final boolean MONITOR_RENDER_ALLOCATIONS = false;
+    public static final int ALLOCATION_MONITOR_WARMUP_FRAMES = 300;
+    //largest half float rounding error allowed for compact meshes, relative to the mesh size
+    public static final float HALF_POSITION_MAX_ERROR = 1.0f / 2048.0f;
+    //initial size of the vertex and index buffers of each GeometryArena pool, they grow when full
+    public static final int GEOMETRY_ARENA_VERTEX_BYTES = 8 * 1024 * 1024;
+    public static final int GEOMETRY_ARENA_INDEX_BYTES = 4 * 1024 * 1024;
+    //linked shader programs are saved here and loaded back on later runs, see ProgramBinaryCache
+    public static final boolean SHADER_CACHE = true;
+    public static final String SHADER_CACHE_DIR = "cache/shaders";
+
+    /*~~~ MESH RELATED ~~~*/
+    //meshoptimizer import stage, see MeshOptimization
+    public static final boolean MESH_OPTIMIZATION = true;
+    //levels of detail per mesh (full mesh included), triangle ratio between levels and max simplification error
+    public static final int MESH_LODS = 3;
+    public static final float MESH_LOD_REDUCTION = 0.5f;
+    public static final float MESH_LOD_TARGET_ERROR = 0.02f;
+    //a level is dropped if it keeps more than this ratio of the triangles of the previous one
+    public static final float MESH_LOD_MIN_GAIN = 0.9f;
+    //projected size (fraction of the half screen height) under which each simplified level is used
+    public static final float[] LOD_SCREEN_SIZES = {0.25f, 0.08f};
+    //cooked models are written here on first import and memory mapped on later runs, see ModelCache
+    public static final boolean MODEL_CACHE = true;
+    public static final String MODEL_CACHE_DIR = "cache/models";
+    //worker threads importing models and decoding their textures, see ModelImportPipeline
+    public static final int MODEL_IMPORT_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /*~~~ PICKING RELATED ~~~*/
+    //test the mesh triangles of the candidates, nearest box first, instead of stopping at their bounding boxes
+    public static final boolean PICKING_TRIANGLE_TEST = true;
+
     /*~~~ TEXTURE RELATED ~~~*/
     public static final String DEFAULT_TEXTURE = "resources/models/default/stonewall.png";
     public static final Vector4f DEFAULT_COLOR = new Vector4f(0.0f, 0.0f, 0.0f, 1.0f);
+    //read the .ktx2 file next to an image when there is one, see TextureData and tools/TextureConverter
+    public static final boolean KTX_TEXTURES = true;
+    //unreferenced textures are evicted (least recently used first) while the resident ones take more than this, see TextureCache
+    public static final long TEXTURE_VRAM_BUDGET = 512L * 1024 * 1024;
+    //images up to this size are packed as layers of texture arrays (same size images share one), see TextureArray
+    public static final boolean TEXTURE_ARRAYS = true;
+    public static final int TEXTURE_ARRAY_MAX_SIZE = 512;
+    //arrays start with a few layers and grow up to this many
+    public static final int TEXTURE_ARRAY_LAYERS = 64;
+    //decode textures on worker threads and upload them through PBOs over several frames, see TextureStreamer
+    public static final boolean TEXTURE_STREAMING = true;
+    public static final int TEXTURE_STREAM_THREADS = 2;
+    public static final int TEXTURE_STREAM_PBOS = 3;
+    public static final int TEXTURE_STREAM_PBO_BYTES = 4 * 1024 * 1024;
+    public static final long TEXTURE_STREAM_FRAME_BUDGET = 8 * 1024 * 1024;
     
     /*~~~ LIGHT RELATED ~~~*/
     public static final int MAX_POINT_LIGHTS = 5;
     public static final int MAX_SPOT_LIGHTS = 5;
-    
+    //point and spot lights are assigned to clusters of the view frustum and every fragment only shades the
+    //lights of its cluster, the caps above do not apply then, see ClusteredLighting
+    public static final boolean CLUSTERED_LIGHTING = true;
+    public static final int CLUSTER_GRID_X = 16;
+    public static final int CLUSTER_GRID_Y = 9;
+    public static final int CLUSTER_GRID_Z = 24;
+    public static final int MAX_LIGHTS_PER_CLUSTER = 128;
+    //light count from which the assignment is split across threads, one depth slice per task
+    public static final int CLUSTER_PARALLEL_THRESHOLD = 64;
+    //a light stops reaching a cluster where its attenuated intensity falls below this
+    public static final float LIGHT_INFLUENCE_THRESHOLD = 1.0f / 256.0f;
+    //shadow maps of the directional light and the first spot lights, only redrawn when a light or a caster changes,
+    //entities marked dynamic go to a smaller map redrawn on their own, see ShadowRender
+    public static final boolean SHADOWS = true;
+    public static final int MAX_SHADOW_SPOT_LIGHTS = 2;
+    public static final int SHADOW_MAP_SIZE = 2048;
+    public static final int DYNAMIC_SHADOW_MAP_SIZE = 1024;
+    //box covered by the directional light map, it does not follow the camera so the map can be kept
+    public static final Vector3f SHADOW_SCENE_CENTER = new Vector3f(0.0f, 0.0f, 0.0f);
+    public static final float SHADOW_SCENE_RADIUS = 20.0f;
+    public static final float SHADOW_SPOT_MAX_FOV = (float) Math.toRadians(120.0f);
+    public static final float SHADOW_SPOT_NEAR = 0.05f;
+    public static final float SHADOW_SPOT_FAR = 100.0f;
+    //depth offset applied while drawing the maps, avoids shadow acne
+    public static final float SHADOW_SLOPE_BIAS = 2.0f;
+    public static final float SHADOW_CONSTANT_BIAS = 4.0f;
+    //second UV set generated at import and lighting of the baked point lights read from lightmaps on the static
+    //entities, see LightmapUnwrap, LightmapBaker and tools/LightmapBakerTool
+    public static final boolean LIGHTMAPS = true;
+    public static final int LIGHTMAP_SIZE = 512;
+    public static final int LIGHTMAP_PADDING = 2;
+    public static final int MAX_LIGHTMAPS = 16;
+    public static final String LIGHTMAP_DIR = "resources/lightmaps";
+    //baker settings: hemisphere samples per texel, bounces of the indirect light, albedo used for textured materials
+    public static final int LIGHTMAP_SAMPLES = 128;
+    public static final int LIGHTMAP_BOUNCES = 2;
+    public static final float LIGHTMAP_TEXTURED_ALBEDO = 0.5f;
+    public static final int LIGHTMAP_BAKE_THREADS = Runtime.getRuntime().availableProcessors();
+
     /*~~~ MOUSE RELATED ~~~ */
     public static final float MOUSE_SENS = 0.05f;
     public static final float MOVEMENT_SPEED = 0.001f;
@@ -5,6 +5,9 @@ import blackjack.engine.scene.Scene;
 
 public class Engine {
 
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private static final long NANOS_PER_MILLI = 1_000_000L;
+
     private final IAppLogic appLogic;
     private final Window window;
     private Render render;
@@ -57,61 +60,132 @@ public class Engine {
         render.resize(width, height);
     }
 
-    //game loop is defined in this function
+    /*
+     * game loop: fixed timestep updates, free running renders
+     * the elapsed time (System.nanoTime) fills an accumulator, and every whole update step in it runs one
+     * appLogic.update, as many as needed to catch up after a slow frame
+     * at most Consts.MAX_UPDATES_PER_FRAME steps are kept, the rest is dropped (spiral of death clamp)
+     * renders happen every targetFps period (every iteration when it is 0, vsync paces the loop then) and get
+     * what is left in the accumulator as alpha, entities are drawn that far between their last two update states
+     * with a target fps the loop waits in the FramePacer for the next render or update instead of spinning
+     *
+     * with Consts.RENDER_ON_DEMAND a due frame is only drawn when something changed since the last one: an input
+     * or window event, a held key or button, a new scene version, entities between two updates, textures still
+     * streaming or an animating app logic, the loop then sleeps in glfwWaitEventsTimeout until the next update
+     * with Consts.BACKGROUND_THROTTLING an unfocused window runs Consts.UNFOCUSED_FPS iterations per second and a
+     * minimized one Consts.ICONIFIED_FPS without rendering, the updates catch up in them (within the clamp)
+     */
     private void run(){
 
-        long initialTime = System.currentTimeMillis();
+        long updateStep = NANOS_PER_SECOND / (targetUps > 0 ? targetUps : Consts.TARGET_UPS);
+        long renderPeriod = targetFps > 0 ? NANOS_PER_SECOND / targetFps : 0;
+        long unfocusedPeriod = NANOS_PER_SECOND / Consts.UNFOCUSED_FPS;
+        long iconifiedPeriod = NANOS_PER_SECOND / Consts.ICONIFIED_FPS;
+        long maxAccumulated = updateStep * Consts.MAX_UPDATES_PER_FRAME;
 
-        // parameters that control the maximum elapsed time between updates (timeU) and render calls (timeR) in ms
-        float timeU = 1000.0f / targetUps;
-        float timeR = targetFps > 0 ? 1000.0f / targetFps : 0;
-        
-        float deltaUpdate = 0;
-        float deltaFps = 0;
+        long previousTime = System.nanoTime();
+        long lastRenderTime = previousTime - NANOS_PER_SECOND;
+        long accumulator = 0;
+
+        //time not yet handed to the app logic as whole milliseconds, so nothing is lost to the rounding
+        //input time only runs while input is polled and is clamped like the accumulator, a frame after an idle,
+        //unfocused or minimized stretch does not get the whole stretch as its input time
+        long inputRemainder = 0;
+        long updateRemainder = 0;
 
-        long updateTime = initialTime;
+        //scene version of the last frame and frames still to draw after the last change, the first one is owed
+        long renderedVersion = scene.getVersion();
+        int owedFrames = 1;
 
         IGuiInstance iGuiInstance = scene.getGuiInstance();
+        FramePacer framePacer = window.getFramePacer();
+        scene.storePreviousTransforms();
 
         while (running && !window.windowShouldClose()){
             
             window.pollEvents();    //start by polling events on the window
 
-            long now = System.currentTimeMillis();  // get current time in ms duh
-            
-            deltaUpdate += (now - initialTime) / timeU; //get elapsed time between update and render calls
-            deltaFps += (now - initialTime) / timeR;
+            long now = System.nanoTime();
+            long frameTime = now - previousTime;
+            previousTime = now;
+
+            accumulator = Math.min(accumulator + frameTime, maxAccumulated);
+            inputRemainder = Math.min(inputRemainder + frameTime, maxAccumulated);
+
+            boolean iconified = Consts.BACKGROUND_THROTTLING && window.isIconified();
+            boolean background = iconified || Consts.BACKGROUND_THROTTLING && !window.isFocused();
+            long period = background && !iconified ? Math.max(renderPeriod, unfocusedPeriod) : renderPeriod;
+            boolean renderDue = period == 0 || now - lastRenderTime >= period;
+
+            //the GUI takes a few frames to settle after an input, a held key moves the camera on every frame
+            if (window.consumeEvents() || window.isInputHeld()){
+                owedFrames = Consts.RENDER_ON_DEMAND_FRAMES;
+            }
+            boolean renderWanted = !Consts.RENDER_ON_DEMAND || owedFrames > 0;
+
+            //input once per rendered frame, with the time since the previous one
+            if (renderDue && renderWanted && !iconified){
+
+                long inputMillis = inputRemainder / NANOS_PER_MILLI;
+                inputRemainder -= inputMillis * NANOS_PER_MILLI;
 
-            //if max elapsed time for render, process user input
-            if (targetFps <= 0 || deltaFps >= 1){
-                
                 window.getMouseInput().input();
                 boolean inputConsumed = iGuiInstance != null && iGuiInstance.handleGuiInput(scene, window); 
-                appLogic.input(window, scene, now - initialTime, inputConsumed);
-
+                appLogic.input(window, scene, inputMillis, inputConsumed);
             }
+            else if (renderDue || iconified){
+                inputRemainder = 0;
+            }
+
+            //every whole step in the accumulator is an update, always with the same duration
+            while (accumulator >= updateStep){
+
+                updateRemainder += updateStep;
+                long updateMillis = updateRemainder / NANOS_PER_MILLI;
+                updateRemainder -= updateMillis * NANOS_PER_MILLI;
 
-            //if timeU period is consumed, update game
-            if (deltaUpdate >= 1){
-                long diffTimeMillis = now - updateTime;
-               
-                appLogic.update(window, scene, diffTimeMillis);
-               
-                updateTime = now;
-                deltaUpdate--;
+                scene.storePreviousTransforms();
+                appLogic.update(window, scene, updateMillis);
+                accumulator -= updateStep;
             }
 
-            //if timeR period is consumed, render game
-            //if the targe FPS is 0, rely on vsync
-            if (targetFps <= 0 || deltaFps >= 1){
-                render.render(window, scene);
-                
-                deltaFps--;
-                
+            renderWanted |= scene.getVersion() != renderedVersion || scene.isInterpolating() || appLogic.isAnimating()
+                    || scene.getTextureCache().getStreamingQueueDepth() > 0;
+
+            if (renderDue && renderWanted && !iconified){
+
+                render.render(window, scene, (float) accumulator / updateStep);
                 window.update();
+                framePacer.frameRendered();
+
+                //taken after the render, the interpolation of the frame is part of it
+                renderedVersion = scene.getVersion();
+                owedFrames = Math.max(owedFrames - 1, 0);
+
+                //keep the cadence of the target fps, start over after falling more than a period behind
+                lastRenderTime = period > 0 && now - lastRenderTime < 2 * period ? lastRenderTime + period : now;
+            }
+            else if (renderDue){
+                framePacer.frameSkipped();
+                lastRenderTime = now;
             }
 
-            initialTime = now;
+            //next render or next update, whichever comes first, the accumulator was measured at now
+            //in the background the next iteration is a whole throttled period away
+            long nextUpdate = now + updateStep - accumulator;
+            if (background){
+                window.waitEvents((double) (iconified ? iconifiedPeriod : unfocusedPeriod) / NANOS_PER_SECOND);
+            }
+            else if (renderWanted && renderPeriod > 0){
+                framePacer.waitUntil(Math.min(lastRenderTime + renderPeriod, nextUpdate));
+            }
+            else if (!renderWanted){
+                //idle, any event wakes the loop before the next update
+                long timeout = nextUpdate - System.nanoTime();
+                if (timeout > 0){
+                    window.waitEvents((double) timeout / NANOS_PER_SECOND);
+                }
+            }
         }
 
         cleanup();  //free resources
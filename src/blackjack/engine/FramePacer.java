@@ -0,0 +1,204 @@
+package blackjack.engine;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.locks.LockSupport;
+
+import org.tinylog.Logger;
+
+/*
+ * Waits for the next frame or update of the game loop without burning a core, and measures the pacing
+ *
+ * waitUntil() parks the thread until the deadline is closer than the spin threshold and spins the rest,
+ * parkNanos alone wakes up late (timer resolution, scheduler) and a pure spin keeps the core busy
+ * the threshold starts from a short calibration and follows the oversleep measured on every park:
+ * it jumps up when a park overshoots it and slowly decays towards the usual overshoot
+ *
+ * frameRendered() records the wall time between frames and the CPU time the loop thread used in it, over the
+ * last Consts.FRAME_PACER_STATS_FRAMES frames: mean frame time, jitter (standard deviation of the frame time)
+ * and CPU time per frame, which is close to the frame time when the loop spins and small when it sleeps
+ * frameSkipped() counts the frames that were due but not drawn because nothing changed (render on demand)
+ * or the window was minimized
+ */
+
+public class FramePacer {
+
+    private static final int CALIBRATION_PARKS = 10;
+    private static final long CALIBRATION_PARK_NANOS = 1_000_000L;
+
+    private final ThreadMXBean threadMXBean;
+    private long spinThreshold;
+
+    //ring of the last frames, wall and CPU time in ns
+    private final long[] frameNanos;
+    private final long[] cpuNanos;
+    private int numFrames;
+    private int nextFrame;
+    private long lastFrameTime;
+    private long lastCpuTime;
+
+    //time spent parked and spinning since the start, in ns
+    private long parkedNanos;
+    private long spunNanos;
+
+    //frames drawn and frames skipped since the start
+    private long framesRendered;
+    private long framesSkipped;
+
+    public FramePacer(){
+
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        threadMXBean = bean.isCurrentThreadCpuTimeSupported() ? bean : null;
+        if (threadMXBean == null){
+            Logger.warn("Thread CPU time not supported, the frame pacer will not report it");
+        }
+
+        frameNanos = new long[Consts.FRAME_PACER_STATS_FRAMES];
+        cpuNanos = new long[Consts.FRAME_PACER_STATS_FRAMES];
+        spinThreshold = Consts.FRAME_PACER_MIN_SPIN_NANOS;
+    }
+
+    //a few short parks to learn how late this machine wakes up, only worth it when the loop is paced
+    public void calibrate(){
+
+        for (int i = 0; i < CALIBRATION_PARKS; i++){
+            long start = System.nanoTime();
+            LockSupport.parkNanos(CALIBRATION_PARK_NANOS);
+            adaptThreshold(System.nanoTime() - start - CALIBRATION_PARK_NANOS);
+        }
+
+        Logger.info("FRAME PACER spin threshold {} us", spinThreshold / 1000);
+    }
+
+    //blocks until System.nanoTime() reaches the deadline
+    public void waitUntil(long deadline){
+
+        long now = System.nanoTime();
+
+        while (deadline - now > spinThreshold){
+            long request = deadline - now - spinThreshold;
+            LockSupport.parkNanos(request);
+            long woken = System.nanoTime();
+            adaptThreshold(woken - now - request);
+            parkedNanos += woken - now;
+            now = woken;
+        }
+
+        long spinStart = now;
+        while (deadline - now > 0){
+            Thread.onSpinWait();
+            now = System.nanoTime();
+        }
+        spunNanos += now - spinStart;
+    }
+
+    //oversleep with a quarter of margin, up at once, down by 1/64 of the gap per park
+    private void adaptThreshold(long overshoot){
+
+        long wanted = Math.max(overshoot + overshoot / 4, Consts.FRAME_PACER_MIN_SPIN_NANOS);
+
+        if (wanted > spinThreshold){
+            spinThreshold = Math.min(wanted, Consts.FRAME_PACER_MAX_SPIN_NANOS);
+        }
+        else {
+            spinThreshold -= (spinThreshold - wanted) / 64;
+        }
+    }
+
+    //called once per rendered frame
+    public void frameRendered(){
+
+        long now = System.nanoTime();
+        long cpuTime = threadMXBean != null ? threadMXBean.getCurrentThreadCpuTime() : 0;
+        framesRendered++;
+
+        if (lastFrameTime != 0){
+            frameNanos[nextFrame] = now - lastFrameTime;
+            cpuNanos[nextFrame] = cpuTime - lastCpuTime;
+            nextFrame = (nextFrame + 1) % frameNanos.length;
+            numFrames = Math.min(numFrames + 1, frameNanos.length);
+        }
+
+        lastFrameTime = now;
+        lastCpuTime = cpuTime;
+    }
+
+    //called instead of frameRendered when a due frame is not drawn
+    public void frameSkipped(){
+        framesSkipped++;
+    }
+
+    //getters, in milliseconds over the recorded frames
+    public float getFrameTimeMillis() {
+        return mean(frameNanos) / 1e6f;
+    }
+
+    public float getCpuTimeMillis() {
+        return mean(cpuNanos) / 1e6f;
+    }
+
+    public float getJitterMillis() {
+
+        if (numFrames < 2){
+            return 0.0f;
+        }
+
+        double mean = mean(frameNanos);
+        double sum = 0.0;
+        for (int i = 0; i < numFrames; i++){
+            double deviation = frameNanos[i] - mean;
+            sum += deviation * deviation;
+        }
+
+        return (float) (Math.sqrt(sum / numFrames) / 1e6);
+    }
+
+    //fraction of the wall time the loop thread was on the CPU
+    public float getCpuLoad() {
+        float frameTime = getFrameTimeMillis();
+        return frameTime > 0.0f ? getCpuTimeMillis() / frameTime : 0.0f;
+    }
+
+    public float getSpinThresholdMillis() {
+        return spinThreshold / 1e6f;
+    }
+
+    //fraction of the waiting time spent parked instead of spinning
+    public float getParkedRatio() {
+        long waited = parkedNanos + spunNanos;
+        return waited > 0 ? (float) parkedNanos / waited : 0.0f;
+    }
+
+    public long getFramesRendered() {
+        return framesRendered;
+    }
+
+    public long getFramesSkipped() {
+        return framesSkipped;
+    }
+
+    //fraction of the due frames that were skipped
+    public float getSkippedRatio() {
+        long due = framesRendered + framesSkipped;
+        return due > 0 ? (float) framesSkipped / due : 0.0f;
+    }
+
+    public boolean isCpuTimeSupported() {
+        return threadMXBean != null;
+    }
+
+    private float mean(long[] values){
+
+        if (numFrames == 0){
+            return 0.0f;
+        }
+
+        long sum = 0;
+        for (int i = 0; i < numFrames; i++){
+            sum += values[i];
+        }
+
+        return (float) sum / numFrames;
+    }
+
+}
@@ -9,8 +9,16 @@ public interface IAppLogic {
 
     void init(Window window, Scene scene, Render render);
 
+    //once per rendered frame, diffTimeMillis is the time since the previous frame
     void input(Window window, Scene scene, long diffTimeMillis, boolean inputConsumed);
 
+    //fixed timestep, called targetUps times per second whatever the frame rate (see Engine.run)
     void update(Window window, Scene scene, long diffTimeMillis);
 
+    //with Consts.RENDER_ON_DEMAND, true keeps frames coming while something moves that the scene does not track,
+    //a single change can call scene.requestRender() instead
+    default boolean isAnimating(){
+        return false;
+    }
+
 }
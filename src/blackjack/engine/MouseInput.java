@@ -12,6 +12,8 @@ public class MouseInput {
     private boolean leftButtonPressed;
     private Vector2f previousPos;
     private boolean rightButtonPressed;
+    //set by the callbacks, read and cleared by the game loop (see Window.consumeEvents)
+    private boolean eventsReceived;
 
     public MouseInput(long windowHandle) {
         previousPos = new Vector2f(-1, -1);
@@ -24,13 +26,18 @@ public class MouseInput {
         glfwSetCursorPosCallback(windowHandle, (ignore0, xpos, ypos) -> {
             currentPos.x = (float) xpos;
             currentPos.y = (float) ypos;
+            eventsReceived = true;
         });
 
-        glfwSetCursorEnterCallback(windowHandle, (ignore1, entered) -> inWindow = entered);
+        glfwSetCursorEnterCallback(windowHandle, (ignore1, entered) -> {
+            inWindow = entered;
+            eventsReceived = true;
+        });
         
         glfwSetMouseButtonCallback(windowHandle, (ignore2, button, action, ignore3) -> {
             leftButtonPressed = button == GLFW_MOUSE_BUTTON_1 && action == GLFW_PRESS;
             rightButtonPressed = button == GLFW_MOUSE_BUTTON_2 && action == GLFW_PRESS;
+            eventsReceived = true;
         });
     }
 
@@ -61,6 +68,12 @@ public class MouseInput {
         previousPos.y = currentPos.y;
     }
 
+    public boolean consumeEvents() {
+        boolean received = eventsReceived;
+        eventsReceived = false;
+        return received;
+    }
+
     public boolean isLeftButtonPressed() {
         return leftButtonPressed;
     }
@@ -1,5 +1,7 @@
 package blackjack.engine;
 
+import org.tinylog.Logger;
+
 import java.io.IOException;
 import java.nio.file.*;
 
@@ -21,4 +23,21 @@ public class Utils {
         return str;
     }
 
+    //written next to the final file and moved, a crash never leaves a truncated file behind
+    //a failure is only logged, what is written here (caches) can be rebuilt, returns whether the file was written
+    public static boolean writeFileAtomically(Path path, byte[] bytes){
+
+        try {
+            Files.createDirectories(path.getParent());
+            Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+            Files.write(tempPath, bytes);
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        }
+        catch (IOException e) {
+            Logger.warn("COULD NOT WRITE FILE [{}]: {}", path, e.getMessage());
+            return false;
+        }
+    }
+
 }
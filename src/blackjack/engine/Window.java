@@ -21,6 +21,15 @@ public class Window {
 
     private MouseInput mouseInput;
 
+    //paces the game loop when a target fps is set (v-sync off), see Engine.run
+    private final FramePacer framePacer;
+
+    //state read by the game loop to throttle or skip frames (see Engine.run), set by the callbacks
+    private boolean focused;
+    private boolean iconified;
+    private boolean eventsReceived;
+    private int keysHeld;
+
 
     public Window(String title, WindowOptions opts, Callable<Void> resizeFunc){
         
@@ -88,6 +97,20 @@ public class Window {
             keyCallBack(key, action);
         });
 
+        //glfw releases the held keys itself when the focus is lost
+        glfwSetWindowFocusCallback(windowHandle, (_, focus) -> {
+            focused = focus;
+            eventsReceived = true;
+        });
+
+        glfwSetWindowIconifyCallback(windowHandle, (_, iconify) -> {
+            iconified = iconify;
+            eventsReceived = true;
+        });
+
+        //the contents were damaged (uncovered, moved to another screen) and have to be drawn again
+        glfwSetWindowRefreshCallback(windowHandle, _ -> eventsReceived = true);
+
         glfwMakeContextCurrent(windowHandle);
         
         //swap interval 0 if we want to set a target fps and disable v-sync
@@ -99,8 +122,15 @@ public class Window {
             glfwSwapInterval(1);
         }
 
+        framePacer = new FramePacer();
+        if (opts.fps > 0){
+            framePacer.calibrate();
+        }
+
         //show the window duh
         glfwShowWindow(windowHandle);
+        focused = glfwGetWindowAttrib(windowHandle, GLFW_FOCUSED) == GLFW_TRUE;
+        eventsReceived = true;
 
         int[] arrWidth = new int[1];
         int[] arrHeight = new int[1];
@@ -123,6 +153,14 @@ public class Window {
             glfwSetWindowShouldClose(windowHandle, true);
         }
 
+        if (action == GLFW_PRESS){
+            keysHeld++;
+        }
+        else if (action == GLFW_RELEASE){
+            keysHeld = Math.max(keysHeld - 1, 0);
+        }
+        eventsReceived = true;
+
     }
     
     //resize callback
@@ -130,6 +168,7 @@ public class Window {
 
         this.width = width;
         this.height = height;
+        eventsReceived = true;
 
         try {
             resizeFunc.call();
@@ -171,6 +210,10 @@ public class Window {
         return windowHandle;
     }
 
+    public FramePacer getFramePacer() {
+        return framePacer;
+    }
+
     public MouseInput getMouseInput() {
         return mouseInput;
     }
@@ -179,10 +222,35 @@ public class Window {
         return glfwGetKey(windowHandle, keyCode) == GLFW_PRESS;
     }
 
+    public boolean isFocused() {
+        return focused;
+    }
+
+    public boolean isIconified() {
+        return iconified;
+    }
+
+    //true if a key or mouse button is held down, the app logic may act on it every frame without new events
+    public boolean isInputHeld() {
+        return keysHeld > 0 || mouseInput.isLeftButtonPressed() || mouseInput.isRightButtonPressed();
+    }
+
+    //whether any window or input event came in since the last call
+    public boolean consumeEvents() {
+        boolean received = mouseInput.consumeEvents() | eventsReceived;
+        eventsReceived = false;
+        return received;
+    }
+
     public void pollEvents(){
         glfwPollEvents();
     }
 
+    //sleeps until an event comes in or the timeout runs out, then handles the events like pollEvents
+    public void waitEvents(double timeoutSeconds){
+        glfwWaitEventsTimeout(timeoutSeconds);
+    }
+
     public boolean windowShouldClose(){
         return glfwWindowShouldClose(windowHandle);
     }
@@ -193,7 +261,7 @@ public class Window {
         public boolean compatibleProfile;   //controls wheter we want to use old functions from previous versions
         public boolean antiAliasing;        
 
-        public int fps;     //target frames per second
+        public int fps = Consts.TARGET_FPS;     //target frames per second, 0 uses v-sync
 
         //desired windows size
         // public int height = Consts.HEIGHT;  
@@ -0,0 +1,276 @@
+package blackjack.engine.graph;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.lwjgl.system.MemoryUtil;
+
+import blackjack.engine.Consts;
+import blackjack.engine.scene.Scene;
+import blackjack.engine.scene.lights.PointLight;
+import blackjack.engine.scene.lights.SceneLights;
+import blackjack.engine.scene.lights.SpotLight;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.*;
+
+import static org.lwjgl.opengl.GL43.*;
+
+/*
+ * Clustered forward lighting, point and spot lights without the MAX_POINT_LIGHTS / MAX_SPOT_LIGHTS caps
+ *
+ * every active light gets a sphere of influence (the distance at which its attenuated intensity falls below
+ * Consts.LIGHT_INFLUENCE_THRESHOLD), LightClusters assigns the spheres to the clusters of the view frustum
+ * and scene.frag (with CLUSTERED_LIGHTING defined) finds the cluster of the fragment and only shades its lights
+ * spot lights use the sphere of their point light, the cone is still tested in the shader
+ *
+ * three shader storage buffers are used: the lights (world space, only re-uploaded when a light changes),
+ * the offset and count of every cluster and the light index list (both re-uploaded when the camera,
+ * the projection or a light changes)
+ */
+
+public class ClusteredLighting {
+
+    //binding points of the blocks in scene.frag, 0 is the materials buffer (see MaterialCache)
+    public static final int LIGHTS_BINDING = 1;
+    public static final int CLUSTERS_BINDING = 2;
+    public static final int LIGHT_INDICES_BINDING = 3;
+
+    /*
+     * std430 layout of a light:
+     * vec3 position, float intensity, vec3 color, float cutoff, vec3 attenuation, int flags, vec3 coneDir, int shadowSlot
+     * flags: bit 0 set for spot lights, bit 1 for baked lights (see PointLight.setBaked)
+     */
+    private static final int LIGHT_SIZE = 64;
+    private static final int FLAG_SPOT = 1;
+    private static final int FLAG_BAKED = 2;
+
+    private final LightClusters lightClusters;
+
+    private final int lightsBufferId;
+    private final int clustersBufferId;
+    private final int lightIndicesBufferId;
+
+    //active lights of the scene, in the order of the lights buffer
+    private final List<PointLight> lights;
+    private int numSpotLights;
+    private float[] radii;
+    private float[] spheres;
+    private ByteBuffer lightData;
+
+    //upload copies of the assignment, kept between frames
+    private final IntBuffer clusterData;
+    private IntBuffer lightIndexData;
+
+    private final Vector3f viewPosition;
+
+    private long lightsVersion;
+    private boolean lightsUploaded;
+    private int cameraVersion;
+    private int projectionVersion;
+
+    public ClusteredLighting(){
+
+        lightClusters = new LightClusters(Consts.CLUSTER_GRID_X, Consts.CLUSTER_GRID_Y, Consts.CLUSTER_GRID_Z,
+                Consts.Z_NEAR, Consts.Z_FAR, Consts.MAX_LIGHTS_PER_CLUSTER, Consts.CLUSTER_PARALLEL_THRESHOLD);
+
+        lightsBufferId = glGenBuffers();
+        clustersBufferId = glGenBuffers();
+        lightIndicesBufferId = glGenBuffers();
+
+        lights = new ArrayList<>();
+        radii = new float[64];
+        spheres = new float[64 * 4];
+        lightData = MemoryUtil.memCalloc(64 * LIGHT_SIZE);
+        clusterData = MemoryUtil.memAllocInt(lightClusters.getNumClusters() * 2);
+        lightIndexData = MemoryUtil.memAllocInt(1024);
+        viewPosition = new Vector3f();
+
+        cameraVersion = -1;
+        projectionVersion = -1;
+    }
+
+    //refresh the buffers that changed since the last frame, returns the number of buffers uploaded
+    public int update(Scene scene){
+
+        SceneLights sceneLights = scene.getSceneLights();
+        long version = sceneLights.getVersion();
+        boolean lightsChanged = !lightsUploaded || version != lightsVersion;
+
+        int uploads = 0;
+
+        if (lightsChanged){
+            uploadLights(sceneLights);
+            lightsVersion = version;
+            lightsUploaded = true;
+            uploads++;
+        }
+
+        if (!lightsChanged && scene.getCamera().getVersion() == cameraVersion
+                && scene.getProjection().getVersion() == projectionVersion){
+            return uploads;
+        }
+
+        Matrix4f projMatrix = scene.getProjection().getProjMatrix();
+        Matrix4f viewMatrix = scene.getCamera().getViewMatrix();
+        lightClusters.setProjection(projMatrix.m00(), projMatrix.m11());
+
+        int numLights = lights.size();
+        for (int i = 0; i < numLights; i++){
+            viewMatrix.transformPosition(lights.get(i).getPosition(), viewPosition);
+            spheres[i * 4] = viewPosition.x;
+            spheres[i * 4 + 1] = viewPosition.y;
+            spheres[i * 4 + 2] = viewPosition.z;
+            spheres[i * 4 + 3] = radii[i];
+        }
+
+        lightClusters.assign(spheres, numLights);
+
+        int numLightIndices = lightClusters.getNumLightIndices();
+        if (lightIndexData.capacity() < numLightIndices){
+            lightIndexData = MemoryUtil.memRealloc(lightIndexData, numLightIndices * 2);
+        }
+
+        clusterData.clear().put(lightClusters.getClusterData()).flip();
+        lightIndexData.clear().put(lightClusters.getLightIndices(), 0, numLightIndices).flip();
+
+        //an empty list still needs a buffer with storage behind the binding
+        if (numLightIndices == 0){
+            lightIndexData.limit(1);
+        }
+
+        //whole buffers are replaced every time, orphaning avoids waiting for the frame still reading them
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, clustersBufferId);
+        glBufferData(GL_SHADER_STORAGE_BUFFER, clusterData, GL_STREAM_DRAW);
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, lightIndicesBufferId);
+        glBufferData(GL_SHADER_STORAGE_BUFFER, lightIndexData, GL_STREAM_DRAW);
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+
+        cameraVersion = scene.getCamera().getVersion();
+        projectionVersion = scene.getProjection().getVersion();
+
+        return uploads + 2;
+    }
+
+    //lights with no intensity are left out, spot lights follow the point lights
+    private void uploadLights(SceneLights sceneLights){
+
+        lights.clear();
+        numSpotLights = 0;
+
+        List<PointLight> pointLights = sceneLights.getPointLights();
+        List<SpotLight> spotLights = sceneLights.getSpotLights();
+        int capacity = pointLights.size() + spotLights.size();
+
+        if (radii.length < capacity){
+            radii = new float[capacity * 2];
+            spheres = new float[capacity * 2 * 4];
+            lightData = MemoryUtil.memRealloc(lightData, capacity * 2 * LIGHT_SIZE);
+        }
+
+        for (int i = 0; i < pointLights.size(); i++){
+            PointLight pointLight = pointLights.get(i);
+            if (pointLight.getIntensity() > 0.0f){
+                putLight(pointLight, null);
+            }
+        }
+
+        for (int i = 0; i < spotLights.size(); i++){
+            SpotLight spotLight = spotLights.get(i);
+            if (spotLight.getPointLight().getIntensity() > 0.0f){
+                putLight(spotLight.getPointLight(), spotLight);
+            }
+        }
+
+        //by address, a slice of lightData would be a new buffer object every time a light changes
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, lightsBufferId);
+        nglBufferData(GL_SHADER_STORAGE_BUFFER, (long) Math.max(lights.size(), 1) * LIGHT_SIZE,
+                MemoryUtil.memAddress(lightData, 0), GL_DYNAMIC_DRAW);
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+    }
+
+    private void putLight(PointLight pointLight, SpotLight spotLight){
+
+        int index = lights.size();
+        int offset = index * LIGHT_SIZE;
+        PointLight.Attenuation attenuation = pointLight.getAttenuation();
+
+        pointLight.getPosition().get(offset, lightData);
+        lightData.putFloat(offset + 12, pointLight.getIntensity());
+        pointLight.getColor().get(offset + 16, lightData);
+        lightData.putFloat(offset + 28, spotLight != null ? spotLight.getCutOff() : 0.0f);
+        lightData.putFloat(offset + 32, attenuation.getConstant());
+        lightData.putFloat(offset + 36, attenuation.getLinear());
+        lightData.putFloat(offset + 40, attenuation.getExponent());
+        lightData.putInt(offset + 44, (spotLight != null ? FLAG_SPOT : 0) | (pointLight.isBaked() ? FLAG_BAKED : 0));
+
+        if (spotLight != null){
+            spotLight.getConeDirection().get(offset + 48, lightData);
+            //same slots as ShadowRender, the first active spot lights have a shadow map
+            int slot = numSpotLights++;
+            lightData.putInt(offset + 60, Consts.SHADOWS && slot < Consts.MAX_SHADOW_SPOT_LIGHTS ? slot : -1);
+        }
+        else {
+            lightData.putFloat(offset + 48, 0.0f).putFloat(offset + 52, 0.0f).putFloat(offset + 56, 0.0f);
+            lightData.putInt(offset + 60, -1);
+        }
+
+        lights.add(pointLight);
+        radii[index] = getRadius(pointLight);
+    }
+
+    /*
+     * distance at which intensity * color / (constant + linear * d + exponent * d^2) drops below the threshold,
+     * a light that never fades (no linear nor exponent term) reaches every cluster
+     */
+    static float getRadius(PointLight pointLight){
+
+        PointLight.Attenuation attenuation = pointLight.getAttenuation();
+        Vector3f color = pointLight.getColor();
+
+        float brightness = pointLight.getIntensity() * Math.max(color.x, Math.max(color.y, color.z));
+        float constant = attenuation.getConstant() - brightness / Consts.LIGHT_INFLUENCE_THRESHOLD;
+        float linear = attenuation.getLinear();
+        float exponent = attenuation.getExponent();
+
+        if (constant >= 0.0f){
+            return 0.0f;
+        }
+        if (exponent > 0.0f){
+            return (float) ((-linear + Math.sqrt(linear * linear - 4.0f * exponent * constant)) / (2.0f * exponent));
+        }
+        if (linear > 0.0f){
+            return -constant / linear;
+        }
+
+        return Float.MAX_VALUE;
+    }
+
+    //attach the buffers to their binding points
+    public void bind(){
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, LIGHTS_BINDING, lightsBufferId);
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, CLUSTERS_BINDING, clustersBufferId);
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, LIGHT_INDICES_BINDING, lightIndicesBufferId);
+    }
+
+    //free resources
+    public void cleanup(){
+        glDeleteBuffers(lightsBufferId);
+        glDeleteBuffers(clustersBufferId);
+        glDeleteBuffers(lightIndicesBufferId);
+        MemoryUtil.memFree(lightData);
+        MemoryUtil.memFree(clusterData);
+        MemoryUtil.memFree(lightIndexData);
+    }
+
+    //getters
+    public int getNumLights() {
+        return lights.size();
+    }
+
+    //light references stored in all the clusters
+    public int getNumLightIndices() {
+        return lightClusters.getNumLightIndices();
+    }
+
+}
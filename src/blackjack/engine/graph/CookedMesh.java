@@ -0,0 +1,348 @@
+package blackjack.engine.graph;
+
+import org.joml.Vector3f;
+import org.lwjgl.system.MemoryUtil;
+
+import blackjack.engine.Consts;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.opengl.GL11.GL_UNSIGNED_INT;
+import static org.lwjgl.opengl.GL11.GL_UNSIGNED_SHORT;
+
+/*
+ * Mesh data in its final GPU layout (see VertexFormat), ready to be copied into the GeometryArena
+ *
+ * it is built from a MeshData by cook() or read back from the model cache, in which case the
+ * vertex and index buffers are slices of the memory mapped cache file and are not freed here
+ * positions and indices (level 0) are kept as arrays for the picking triangle test
+ */
+
+public class CookedMesh {
+
+    private final int materialIdx;
+    private final int layout;
+    private final int vertexCount;
+    private final int indexType;
+    private final ByteBuffer vertexData;
+    private final ByteBuffer indexData;
+    private final boolean ownsBuffers;
+
+    //byte offset (inside indexData) and index count of every level of detail
+    private final long[] lodIndexOffsets;
+    private final int[] lodIndexCounts;
+
+    private final float[] positions;
+    private final int[] indices;
+    private final Vector3f aabbMin;
+    private final Vector3f aabbMax;
+
+    public CookedMesh(int materialIdx, int layout, int vertexCount, int indexType, ByteBuffer vertexData, ByteBuffer indexData,
+            boolean ownsBuffers, long[] lodIndexOffsets, int[] lodIndexCounts, float[] positions, int[] indices,
+            Vector3f aabbMin, Vector3f aabbMax){
+
+        this.materialIdx = materialIdx;
+        this.layout = layout;
+        this.vertexCount = vertexCount;
+        this.indexType = indexType;
+        this.vertexData = vertexData;
+        this.indexData = indexData;
+        this.ownsBuffers = ownsBuffers;
+        this.lodIndexOffsets = lodIndexOffsets;
+        this.lodIndexCounts = lodIndexCounts;
+        this.positions = positions;
+        this.indices = indices;
+        this.aabbMin = aabbMin;
+        this.aabbMax = aabbMax;
+    }
+
+    public static CookedMesh cook(MeshData meshData, int materialIdx, VertexFormat vertexFormat){
+
+        float[] positions = meshData.getPositions();
+        Vector3f aabbMin = meshData.getAabbMin();
+        Vector3f aabbMax = meshData.getAabbMax();
+        int vertexCount = meshData.getVertexCount();
+
+        ByteBuffer vertexData;
+        int layout;
+
+        if (vertexFormat == VertexFormat.COMPACT){
+            boolean halfPositions = fitsHalfPrecision(positions, aabbMin, aabbMax);
+            layout = GeometryArena.getLayout(vertexFormat, halfPositions);
+            vertexData = createCompactVertices(meshData, halfPositions, GeometryArena.getStride(layout));
+        }
+        else {
+            layout = GeometryArena.LAYOUT_STANDARD;
+            vertexData = createStandardVertices(meshData);
+        }
+
+        //16 bit indices when the compact layout allows it
+        int[][] lodIndices = meshData.getLodIndices();
+        boolean shortIndices = vertexFormat == VertexFormat.COMPACT && vertexCount <= VertexFormat.MAX_SHORT_INDEX_VERTICES;
+        int indexSize = shortIndices ? Short.BYTES : Integer.BYTES;
+
+        //every LOD index list goes in the same buffer, one after the other (4 byte aligned)
+        long[] lodIndexOffsets = new long[lodIndices.length];
+        int[] lodIndexCounts = new int[lodIndices.length];
+
+        int indexBytes = 0;
+        for (int i = 0; i < lodIndices.length; i++){
+            lodIndexOffsets[i] = indexBytes;
+            lodIndexCounts[i] = lodIndices[i].length;
+            indexBytes += (lodIndices[i].length * indexSize + 3) & ~3;
+        }
+
+        ByteBuffer indexData = MemoryUtil.memCalloc(indexBytes);
+
+        for (int i = 0; i < lodIndices.length; i++){
+
+            int offset = (int) lodIndexOffsets[i];
+            int[] lod = lodIndices[i];
+
+            for (int j = 0; j < lod.length; j++){
+                if (shortIndices){
+                    indexData.putShort(offset + j * Short.BYTES, (short) lod[j]);
+                }
+                else {
+                    indexData.putInt(offset + j * Integer.BYTES, lod[j]);
+                }
+            }
+        }
+
+        return new CookedMesh(materialIdx, layout, vertexCount, shortIndices ? GL_UNSIGNED_SHORT : GL_UNSIGNED_INT,
+                vertexData, indexData, true, lodIndexOffsets, lodIndexCounts, positions, meshData.getIndices(),
+                aabbMin, aabbMax);
+    }
+
+    //interleaved floats: position, normal, tangent, bitangent, texture coords, lightmap coords
+    private static ByteBuffer createStandardVertices(MeshData meshData){
+
+        float[] positions = meshData.getPositions();
+        float[] normals = meshData.getNormals();
+        float[] tangents = meshData.getTangents();
+        float[] bitangents = meshData.getBitangents();
+        float[] textCoords = meshData.getTextCoords();
+        float[] lightmapCoords = meshData.getLightmapCoords();
+
+        int vertexCount = meshData.getVertexCount();
+        ByteBuffer buffer = MemoryUtil.memAlloc(vertexCount * VertexFormat.STANDARD_VERTEX_SIZE);
+
+        for (int i = 0; i < vertexCount; i++){
+
+            int offset = i * VertexFormat.STANDARD_VERTEX_SIZE;
+            int v = i * 3;
+
+            for (int k = 0; k < 3; k++){
+                buffer.putFloat(offset + k * 4, positions[v + k]);
+                buffer.putFloat(offset + 12 + k * 4, normals[v + k]);
+                buffer.putFloat(offset + 24 + k * 4, tangents[v + k]);
+                buffer.putFloat(offset + 36 + k * 4, bitangents[v + k]);
+            }
+
+            buffer.putFloat(offset + 48, textCoords[i * 2]);
+            buffer.putFloat(offset + 52, textCoords[i * 2 + 1]);
+            buffer.putFloat(offset + 56, lightmapCoords != null ? lightmapCoords[i * 2] : 0.0f);
+            buffer.putFloat(offset + 60, lightmapCoords != null ? lightmapCoords[i * 2 + 1] : 0.0f);
+        }
+
+        return buffer;
+    }
+
+    /*
+     * see VertexFormat for the layout
+     * the bitangent is not stored, the shader rebuilds it from the normal, the tangent
+     * and the sign stored in the tangent w
+     */
+    private static ByteBuffer createCompactVertices(MeshData meshData, boolean halfPositions, int stride){
+
+        float[] positions = meshData.getPositions();
+        float[] normals = meshData.getNormals();
+        float[] tangents = meshData.getTangents();
+        float[] bitangents = meshData.getBitangents();
+        float[] textCoords = meshData.getTextCoords();
+        float[] lightmapCoords = meshData.getLightmapCoords();
+
+        int vertexCount = meshData.getVertexCount();
+        int positionSize = halfPositions ? VertexFormat.HALF_POSITION_SIZE : VertexFormat.FLOAT_POSITION_SIZE;
+        int normalOffset = positionSize;
+        int tangentOffset = normalOffset + Integer.BYTES;
+        int textCoordOffset = tangentOffset + Integer.BYTES;
+        int lightmapCoordOffset = textCoordOffset + 2 * Short.BYTES;
+
+        ByteBuffer buffer = MemoryUtil.memAlloc(vertexCount * stride);
+
+        for (int i = 0; i < vertexCount; i++){
+
+            int offset = i * stride;
+            int v = i * 3;
+
+            if (halfPositions){
+                buffer.putShort(offset, VertexFormat.toHalf(positions[v]));
+                buffer.putShort(offset + 2, VertexFormat.toHalf(positions[v + 1]));
+                buffer.putShort(offset + 4, VertexFormat.toHalf(positions[v + 2]));
+                buffer.putShort(offset + 6, (short) 0);
+            }
+            else {
+                buffer.putFloat(offset, positions[v]);
+                buffer.putFloat(offset + 4, positions[v + 1]);
+                buffer.putFloat(offset + 8, positions[v + 2]);
+            }
+
+            float nx = normals[v], ny = normals[v + 1], nz = normals[v + 2];
+            float tx = tangents[v], ty = tangents[v + 1], tz = tangents[v + 2];
+
+            //which way the bitangent points relative to cross(normal, tangent)
+            float cx = ny * tz - nz * ty;
+            float cy = nz * tx - nx * tz;
+            float cz = nx * ty - ny * tx;
+            float sign = cx * bitangents[v] + cy * bitangents[v + 1] + cz * bitangents[v + 2] < 0.0f ? -1.0f : 1.0f;
+
+            buffer.putInt(offset + normalOffset, VertexFormat.packSnorm1010102(nx, ny, nz, 0.0f));
+            buffer.putInt(offset + tangentOffset, VertexFormat.packSnorm1010102(tx, ty, tz, sign));
+
+            int t = i * 2;
+            buffer.putShort(offset + textCoordOffset, VertexFormat.toHalf(textCoords[t]));
+            buffer.putShort(offset + textCoordOffset + 2, VertexFormat.toHalf(textCoords[t + 1]));
+            buffer.putShort(offset + lightmapCoordOffset, lightmapCoords != null ? VertexFormat.packUnorm16(lightmapCoords[t]) : 0);
+            buffer.putShort(offset + lightmapCoordOffset + 2,
+                    lightmapCoords != null ? VertexFormat.packUnorm16(lightmapCoords[t + 1]) : 0);
+        }
+
+        return buffer;
+    }
+
+    /*
+     * half floats keep 11 bits of mantissa, far from the origin or on large meshes the error shows up
+     * as visible cracks, so positions are only stored as halves if the worst rounding error stays
+     * below Consts.HALF_POSITION_MAX_ERROR of the mesh size
+     */
+    private static boolean fitsHalfPrecision(float[] positions, Vector3f aabbMin, Vector3f aabbMax){
+
+        float extent = Math.max(aabbMax.x - aabbMin.x, Math.max(aabbMax.y - aabbMin.y, aabbMax.z - aabbMin.z));
+        float maxError = 0.0f;
+
+        for (float position : positions){
+            float error = Math.abs(VertexFormat.fromHalf(VertexFormat.toHalf(position)) - position);
+            if (Float.isNaN(error) || Float.isInfinite(error)){
+                return false;
+            }
+            maxError = Math.max(maxError, error);
+        }
+
+        return maxError <= extent * Consts.HALF_POSITION_MAX_ERROR;
+    }
+
+    /*
+     * normals and lightmap coords read back from the vertex data, for the CPU users of the cooked meshes
+     * (the lightmap baker), the render path never needs them
+     */
+    public float[] decodeNormals(){
+
+        float[] normals = new float[vertexCount * 3];
+        int stride = GeometryArena.getStride(layout);
+
+        for (int i = 0; i < vertexCount; i++){
+
+            int offset = i * stride;
+
+            if (layout == GeometryArena.LAYOUT_STANDARD){
+                normals[i * 3] = vertexData.getFloat(offset + 12);
+                normals[i * 3 + 1] = vertexData.getFloat(offset + 16);
+                normals[i * 3 + 2] = vertexData.getFloat(offset + 20);
+                continue;
+            }
+
+            int packed = vertexData.getInt(offset + getCompactPositionSize());
+            for (int k = 0; k < 3; k++){
+                normals[i * 3 + k] = VertexFormat.unpackSnorm1010102(packed, k);
+            }
+        }
+
+        return normals;
+    }
+
+    public float[] decodeLightmapCoords(){
+
+        float[] lightmapCoords = new float[vertexCount * 2];
+        int stride = GeometryArena.getStride(layout);
+
+        for (int i = 0; i < vertexCount; i++){
+
+            int offset = i * stride;
+
+            if (layout == GeometryArena.LAYOUT_STANDARD){
+                lightmapCoords[i * 2] = vertexData.getFloat(offset + 56);
+                lightmapCoords[i * 2 + 1] = vertexData.getFloat(offset + 60);
+                continue;
+            }
+
+            int lightmapCoordOffset = offset + getCompactPositionSize() + 2 * Integer.BYTES + 2 * Short.BYTES;
+            lightmapCoords[i * 2] = VertexFormat.unpackUnorm16(vertexData.getShort(lightmapCoordOffset));
+            lightmapCoords[i * 2 + 1] = VertexFormat.unpackUnorm16(vertexData.getShort(lightmapCoordOffset + 2));
+        }
+
+        return lightmapCoords;
+    }
+
+    private int getCompactPositionSize(){
+        return layout == GeometryArena.LAYOUT_COMPACT_HALF ? VertexFormat.HALF_POSITION_SIZE : VertexFormat.FLOAT_POSITION_SIZE;
+    }
+
+    //frees the buffers built by cook(), mapped buffers are released with their file
+    public void free(){
+        if (ownsBuffers){
+            MemoryUtil.memFree(vertexData);
+            MemoryUtil.memFree(indexData);
+        }
+    }
+
+    //getters
+    public int getMaterialIdx() {
+        return materialIdx;
+    }
+
+    public int getLayout() {
+        return layout;
+    }
+
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    public int getIndexType() {
+        return indexType;
+    }
+
+    public ByteBuffer getVertexData() {
+        return vertexData;
+    }
+
+    public ByteBuffer getIndexData() {
+        return indexData;
+    }
+
+    public long[] getLodIndexOffsets() {
+        return lodIndexOffsets;
+    }
+
+    public int[] getLodIndexCounts() {
+        return lodIndexCounts;
+    }
+
+    public float[] getPositions() {
+        return positions;
+    }
+
+    public int[] getIndices() {
+        return indices;
+    }
+
+    public Vector3f getAabbMin() {
+        return aabbMin;
+    }
+
+    public Vector3f getAabbMax() {
+        return aabbMax;
+    }
+
+}
@@ -0,0 +1,257 @@
+package blackjack.engine.graph;
+
+import org.joml.FrustumIntersection;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import blackjack.engine.Consts;
+import blackjack.engine.scene.Entity;
+import blackjack.engine.scene.Scene;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * View frustum culling, decides which entities (and which meshes of their models) are inside the camera view
+ *
+ * the AABB of each entity (union of the mesh AABBs generated by Assimp) is transformed by the full model matrix,
+ * rotation included, and tested against the six planes of the view-projection frustum
+ * meshes are then tested one by one for the visible entities, a mesh is culled when it is outside
+ * the frustum for every entity of its model
+ *
+ * results are stored in flat arrays, entities and meshes are numbered following scene.getModelList() order,
+ * use getEntityOffset / getMeshOffset to find where a model starts
+ * above Consts.CULLING_PARALLEL_THRESHOLD entities the tests are split across the common ForkJoin pool
+ */
+
+public class FrustumCuller {
+
+    private final FrustumIntersection frustum;
+    private final Matrix4f projViewMatrix;
+
+    //scratch vectors for the single threaded path, parallel tasks use their own
+    private final Vector3f worldMin;
+    private final Vector3f worldMax;
+
+    private Entity[] entities;
+    private Model[] entityModels;
+    private int[] entityMeshOffsets;
+    private boolean[] entityVisible;
+    private boolean[] meshVisible;
+
+    private int[] entityOffsets;
+    private int[] meshOffsets;
+
+    private int numEntities;
+    private int numMeshes;
+    private int culledEntities;
+    private int culledMeshes;
+
+    public FrustumCuller(){
+        frustum = new FrustumIntersection();
+        projViewMatrix = new Matrix4f();
+        worldMin = new Vector3f();
+        worldMax = new Vector3f();
+
+        entities = new Entity[64];
+        entityModels = new Model[64];
+        entityMeshOffsets = new int[64];
+        entityVisible = new boolean[64];
+        meshVisible = new boolean[64];
+        entityOffsets = new int[16];
+        meshOffsets = new int[16];
+    }
+
+    public void cull(Scene scene){
+
+        scene.getProjection().getProjMatrix().mul(scene.getCamera().getViewMatrix(), projViewMatrix);
+        frustum.set(projViewMatrix);
+
+        List<Model> models = scene.getModelList();
+        flatten(models);
+
+        Arrays.fill(meshVisible, 0, numMeshes, false);
+
+        if (numEntities >= Consts.CULLING_PARALLEL_THRESHOLD){
+            ForkJoinPool.commonPool().invoke(new CullTask(0, numEntities));
+        }
+        else {
+            cullRange(0, numEntities, worldMin, worldMax);
+        }
+
+        culledEntities = 0;
+        for (int i = 0; i < numEntities; i++){
+            if (!entityVisible[i]){
+                culledEntities++;
+            }
+        }
+
+        //meshes of models without entities are not drawn anyway, they do not count as culled
+        culledMeshes = 0;
+        for (int i = 0; i < models.size(); i++){
+
+            Model model = models.get(i);
+
+            if (model.getEntitiesList().isEmpty()){
+                continue;
+            }
+
+            for (int j = meshOffsets[i]; j < meshOffsets[i] + model.getNumMeshes(); j++){
+                if (!meshVisible[j]){
+                    culledMeshes++;
+                }
+            }
+        }
+    }
+
+    //lay the entities of every model in flat arrays so the work can be split by index
+    private void flatten(List<Model> models){
+
+        int numModels = models.size();
+
+        if (entityOffsets.length < numModels){
+            entityOffsets = new int[numModels * 2];
+            meshOffsets = new int[numModels * 2];
+        }
+
+        numEntities = 0;
+        numMeshes = 0;
+
+        for (int i = 0; i < numModels; i++){
+
+            Model model = models.get(i);
+            List<Entity> modelEntities = model.getEntitiesList();
+
+            entityOffsets[i] = numEntities;
+            meshOffsets[i] = numMeshes;
+
+            ensureEntityCapacity(numEntities + modelEntities.size());
+
+            for (int j = 0; j < modelEntities.size(); j++){
+                entities[numEntities] = modelEntities.get(j);
+                entityModels[numEntities] = model;
+                entityMeshOffsets[numEntities] = numMeshes;
+                numEntities++;
+            }
+
+            numMeshes += model.getNumMeshes();
+        }
+
+        if (meshVisible.length < numMeshes){
+            meshVisible = new boolean[numMeshes * 2];
+        }
+    }
+
+    private void ensureEntityCapacity(int capacity){
+
+        if (entities.length >= capacity){
+            return;
+        }
+
+        int newCapacity = Math.max(capacity, entities.length * 2);
+        entities = Arrays.copyOf(entities, newCapacity);
+        entityModels = Arrays.copyOf(entityModels, newCapacity);
+        entityMeshOffsets = Arrays.copyOf(entityMeshOffsets, newCapacity);
+        entityVisible = Arrays.copyOf(entityVisible, newCapacity);
+    }
+
+    /*
+     * tests the entities in [start, end), the mesh flags are only ever set to true
+     * so concurrent tasks writing the same flag do not need any synchronization
+     */
+    private void cullRange(int start, int end, Vector3f min, Vector3f max){
+
+        for (int i = start; i < end; i++){
+
+            Entity entity = entities[i];
+            Model model = entityModels[i];
+            Matrix4f modelMatrix = entity.getModelMatrix();
+
+            modelMatrix.transformAab(model.getAabbMin(), model.getAabbMax(), min, max);
+            boolean visible = frustum.testAab(min, max);
+            entityVisible[i] = visible;
+
+            if (!visible){
+                continue;
+            }
+
+            int meshIndex = entityMeshOffsets[i];
+            List<Material> materials = model.getMaterialList();
+
+            for (int j = 0; j < materials.size(); j++){
+
+                List<Mesh> meshes = materials.get(j).getMeshList();
+
+                for (int k = 0; k < meshes.size(); k++, meshIndex++){
+
+                    if (meshVisible[meshIndex]){
+                        continue;
+                    }
+
+                    Mesh mesh = meshes.get(k);
+                    modelMatrix.transformAab(mesh.getAabbMin(), mesh.getAabbMax(), min, max);
+
+                    if (frustum.testAab(min, max)){
+                        meshVisible[meshIndex] = true;
+                    }
+                }
+            }
+        }
+    }
+
+    //getters, indices are the flat ones described at the top of the class
+    public int getEntityOffset(int modelIndex) {
+        return entityOffsets[modelIndex];
+    }
+
+    public int getMeshOffset(int modelIndex) {
+        return meshOffsets[modelIndex];
+    }
+
+    public boolean[] getEntityVisibility() {
+        return entityVisible;
+    }
+
+    public boolean isEntityVisible(int entityIndex) {
+        return entityVisible[entityIndex];
+    }
+
+    public boolean isMeshVisible(int meshIndex) {
+        return meshVisible[meshIndex];
+    }
+
+    public int getCulledEntities() {
+        return culledEntities;
+    }
+
+    public int getCulledMeshes() {
+        return culledMeshes;
+    }
+
+    //splits the entity range in halves until it is small enough to be tested by a single thread
+    @SuppressWarnings("serial")
+    private class CullTask extends RecursiveAction {
+
+        private final int start;
+        private final int end;
+
+        CullTask(int start, int end){
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (end - start <= Consts.CULLING_TASK_SIZE){
+                cullRange(start, end, new Vector3f(), new Vector3f());
+                return;
+            }
+
+            int middle = (start + end) >>> 1;
+            invokeAll(new CullTask(start, middle), new CullTask(middle, end));
+        }
+    }
+
+}
@@ -0,0 +1,386 @@
+package blackjack.engine.graph;
+
+import org.tinylog.Logger;
+
+import blackjack.engine.Consts;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.lwjgl.opengl.GL11.GL_FLOAT;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.glEnableVertexAttribArray;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.GL_COPY_READ_BUFFER;
+import static org.lwjgl.opengl.GL31.GL_COPY_WRITE_BUFFER;
+import static org.lwjgl.opengl.GL31.glCopyBufferSubData;
+import static org.lwjgl.opengl.GL33.GL_INT_2_10_10_10_REV;
+import static org.lwjgl.opengl.GL43.*;
+
+/*
+ * Holds the static vertex and index data of every mesh in a few big buffers instead of one VAO and
+ * a set of buffers per mesh
+ *
+ * there is one pool per vertex layout (standard, compact with half or float positions), each pool has
+ * one vertex buffer, one index buffer and one VAO shared by all its meshes, so drawing meshes of the
+ * same layout never binds another VAO, meshes are drawn with the base vertex variants of glDrawElements
+ *
+ * the VAO uses separate attribute formats (GL 4.3): binding 0 is the pool vertex buffer and binding 1
+ * is the instance buffer of the model being drawn, see SceneRender
+ *
+ * space is handed out by a free list allocator (vertices in units of a vertex, indices in 4 byte words),
+ * buffers grow by copying into a bigger one when they are full, and defragment() packs the live
+ * allocations again once models have been unloaded
+ * the arena is owned by the Scene, like the TextureCache
+ */
+
+public class GeometryArena {
+
+    public static final int LAYOUT_STANDARD = 0;
+    public static final int LAYOUT_COMPACT_HALF = 1;
+    public static final int LAYOUT_COMPACT_FLOAT = 2;
+    private static final int NUM_LAYOUTS = 3;
+
+    public static final int VERTEX_BINDING = 0;
+    public static final int INSTANCE_BINDING = 1;
+
+    //the second UV set comes after the instanced attributes (see InstanceBuffer), locations 5-10 are taken
+    public static final int LIGHTMAP_COORD_LOCATION = 11;
+
+    private static final int INDEX_UNIT = Integer.BYTES;
+
+    private final Pool[] pools;
+
+    public GeometryArena(){
+        pools = new Pool[NUM_LAYOUTS];
+    }
+
+    public static int getLayout(VertexFormat vertexFormat, boolean halfPositions){
+        if (vertexFormat == VertexFormat.STANDARD){
+            return LAYOUT_STANDARD;
+        }
+        return halfPositions ? LAYOUT_COMPACT_HALF : LAYOUT_COMPACT_FLOAT;
+    }
+
+    public static int getStride(int layout){
+        return switch (layout) {
+            case LAYOUT_STANDARD -> VertexFormat.STANDARD_VERTEX_SIZE;
+            case LAYOUT_COMPACT_HALF -> VertexFormat.HALF_POSITION_SIZE + VertexFormat.COMPACT_ATTRIBUTES_SIZE;
+            default -> VertexFormat.FLOAT_POSITION_SIZE + VertexFormat.COMPACT_ATTRIBUTES_SIZE;
+        };
+    }
+
+    //copies the vertex and index data of a mesh into the pool of its layout
+    public Allocation allocate(int layout, ByteBuffer vertexData, int vertexCount, ByteBuffer indexData){
+
+        Pool pool = pools[layout];
+
+        if (pool == null){
+            pool = new Pool(layout);
+            pools[layout] = pool;
+        }
+
+        return pool.allocate(vertexData, vertexCount, indexData);
+    }
+
+    public void free(Allocation allocation){
+        allocation.pool.free(allocation);
+    }
+
+    //closes the holes left by unloaded meshes, the offsets of the live allocations are updated in place
+    public void defragment(){
+        for (Pool pool : pools){
+            if (pool != null){
+                pool.defragment();
+            }
+        }
+    }
+
+    //free resources
+    public void cleanup(){
+        for (int i = 0; i < pools.length; i++){
+            if (pools[i] != null){
+                pools[i].cleanup();
+                pools[i] = null;
+            }
+        }
+    }
+
+    //bytes reserved on the GPU by all the pools, and the part of them used by meshes
+    public long getCapacityBytes(){
+        long bytes = 0;
+        for (Pool pool : pools){
+            if (pool != null){
+                bytes += (long) pool.vertexAllocator.getCapacity() * pool.stride
+                        + (long) pool.indexAllocator.getCapacity() * INDEX_UNIT;
+            }
+        }
+        return bytes;
+    }
+
+    public long getUsedBytes(){
+        long bytes = 0;
+        for (Pool pool : pools){
+            if (pool != null){
+                bytes += (long) pool.vertexAllocator.getUsedUnits() * pool.stride
+                        + (long) pool.indexAllocator.getUsedUnits() * INDEX_UNIT;
+            }
+        }
+        return bytes;
+    }
+
+    //part of a pool used by one mesh
+    public static class Allocation {
+
+        private final Pool pool;
+        private int vertexOffset;
+        private final int vertexCount;
+        private int indexOffset;
+        private final int indexUnits;
+
+        private Allocation(Pool pool, int vertexOffset, int vertexCount, int indexOffset, int indexUnits){
+            this.pool = pool;
+            this.vertexOffset = vertexOffset;
+            this.vertexCount = vertexCount;
+            this.indexOffset = indexOffset;
+            this.indexUnits = indexUnits;
+        }
+
+        //getters
+        public int getVaoId() {
+            return pool.vaoId;
+        }
+
+        //value added to every index of the mesh when drawing
+        public int getBaseVertex() {
+            return vertexOffset;
+        }
+
+        public int getVertexCount() {
+            return vertexCount;
+        }
+
+        //offset in bytes of the first index in the pool index buffer
+        public long getIndexByteOffset() {
+            return (long) indexOffset * INDEX_UNIT;
+        }
+    }
+
+    private static class Pool {
+
+        private final int layout;
+        private final int stride;
+        private final int vaoId;
+        private int vboId;
+        private int iboId;
+        private final RangeAllocator vertexAllocator;
+        private final RangeAllocator indexAllocator;
+        private final List<Allocation> allocations;
+
+        Pool(int layout){
+
+            this.layout = layout;
+            stride = getStride(layout);
+            allocations = new ArrayList<>();
+
+            int vertexCapacity = Math.max(1, Consts.GEOMETRY_ARENA_VERTEX_BYTES / stride);
+            int indexCapacity = Math.max(1, Consts.GEOMETRY_ARENA_INDEX_BYTES / INDEX_UNIT);
+            vertexAllocator = new RangeAllocator(vertexCapacity);
+            indexAllocator = new RangeAllocator(indexCapacity);
+
+            vboId = createBuffer((long) vertexCapacity * stride);
+            iboId = createBuffer((long) indexCapacity * INDEX_UNIT);
+
+            vaoId = glGenVertexArrays();
+            glBindVertexArray(vaoId);
+            setupAttributes();
+            glBindVertexBuffer(VERTEX_BINDING, vboId, 0, stride);
+            glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, iboId);
+            glBindVertexArray(0);
+        }
+
+        //vertex attributes 0-4 and the lightmap coords read the pool buffer, see VertexFormat for the layouts
+        private void setupAttributes(){
+
+            if (layout == LAYOUT_STANDARD){
+                setupAttribute(0, 3, GL_FLOAT, false, 0);
+                setupAttribute(1, 3, GL_FLOAT, false, 12);
+                setupAttribute(2, 3, GL_FLOAT, false, 24);
+                setupAttribute(3, 3, GL_FLOAT, false, 36);
+                setupAttribute(4, 2, GL_FLOAT, false, 48);
+                setupAttribute(LIGHTMAP_COORD_LOCATION, 2, GL_FLOAT, false, 56);
+            }
+            else {
+                //the bitangent (3) stays disabled, scene.vert rebuilds it from the tangent sign
+                int positionSize = layout == LAYOUT_COMPACT_HALF ? VertexFormat.HALF_POSITION_SIZE : VertexFormat.FLOAT_POSITION_SIZE;
+                setupAttribute(0, 3, layout == LAYOUT_COMPACT_HALF ? GL_HALF_FLOAT : GL_FLOAT, false, 0);
+                setupAttribute(1, 4, GL_INT_2_10_10_10_REV, true, positionSize);
+                setupAttribute(2, 4, GL_INT_2_10_10_10_REV, true, positionSize + 4);
+                setupAttribute(4, 2, GL_HALF_FLOAT, false, positionSize + 8);
+                setupAttribute(LIGHTMAP_COORD_LOCATION, 2, GL_UNSIGNED_SHORT, true, positionSize + 12);
+            }
+
+            //per instance attributes, a mat4 takes four consecutive locations
+            for (int i = 0; i < 4; i++){
+                int location = InstanceBuffer.MODEL_MATRIX_LOCATION + i;
+                glEnableVertexAttribArray(location);
+                glVertexAttribFormat(location, 4, GL_FLOAT, false, i * 4 * Float.BYTES);
+                glVertexAttribBinding(location, INSTANCE_BINDING);
+            }
+
+            glEnableVertexAttribArray(InstanceBuffer.SELECTED_LOCATION);
+            glVertexAttribFormat(InstanceBuffer.SELECTED_LOCATION, 1, GL_FLOAT, false, 16 * Float.BYTES);
+            glVertexAttribBinding(InstanceBuffer.SELECTED_LOCATION, INSTANCE_BINDING);
+            glEnableVertexAttribArray(InstanceBuffer.TEXTURE_LAYER_LOCATION);
+            glVertexAttribFormat(InstanceBuffer.TEXTURE_LAYER_LOCATION, 1, GL_FLOAT, false, 17 * Float.BYTES);
+            glVertexAttribBinding(InstanceBuffer.TEXTURE_LAYER_LOCATION, INSTANCE_BINDING);
+            glEnableVertexAttribArray(InstanceBuffer.LIGHTMAP_LAYER_LOCATION);
+            glVertexAttribFormat(InstanceBuffer.LIGHTMAP_LAYER_LOCATION, 1, GL_FLOAT, false, 18 * Float.BYTES);
+            glVertexAttribBinding(InstanceBuffer.LIGHTMAP_LAYER_LOCATION, INSTANCE_BINDING);
+            glVertexBindingDivisor(INSTANCE_BINDING, 1);
+        }
+
+        private void setupAttribute(int location, int size, int type, boolean normalized, int offset){
+            glEnableVertexAttribArray(location);
+            glVertexAttribFormat(location, size, type, normalized, offset);
+            glVertexAttribBinding(location, VERTEX_BINDING);
+        }
+
+        Allocation allocate(ByteBuffer vertexData, int vertexCount, ByteBuffer indexData){
+
+            int indexUnits = (indexData.remaining() + INDEX_UNIT - 1) / INDEX_UNIT;
+
+            int vertexOffset = vertexAllocator.allocate(vertexCount);
+            if (vertexOffset < 0){
+                growVertices(vertexCount);
+                vertexOffset = vertexAllocator.allocate(vertexCount);
+            }
+
+            int indexOffset = indexAllocator.allocate(indexUnits);
+            if (indexOffset < 0){
+                growIndices(indexUnits);
+                indexOffset = indexAllocator.allocate(indexUnits);
+            }
+
+            //the copy targets do not touch the VAO state, unlike GL_ELEMENT_ARRAY_BUFFER
+            glBindBuffer(GL_COPY_WRITE_BUFFER, vboId);
+            glBufferSubData(GL_COPY_WRITE_BUFFER, (long) vertexOffset * stride, vertexData);
+            glBindBuffer(GL_COPY_WRITE_BUFFER, iboId);
+            glBufferSubData(GL_COPY_WRITE_BUFFER, (long) indexOffset * INDEX_UNIT, indexData);
+            glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+
+            Allocation allocation = new Allocation(this, vertexOffset, vertexCount, indexOffset, indexUnits);
+            allocations.add(allocation);
+
+            return allocation;
+        }
+
+        void free(Allocation allocation){
+            if (allocations.remove(allocation)){
+                vertexAllocator.free(allocation.vertexOffset, allocation.vertexCount);
+                indexAllocator.free(allocation.indexOffset, allocation.indexUnits);
+            }
+        }
+
+        private void growVertices(int needed){
+            int oldCapacity = vertexAllocator.getCapacity();
+            int newCapacity = Math.max(oldCapacity * 2, oldCapacity + needed);
+            vboId = copyBuffer(vboId, (long) oldCapacity * stride, (long) newCapacity * stride);
+            vertexAllocator.grow(newCapacity);
+            attachBuffers();
+        }
+
+        private void growIndices(int needed){
+            int oldCapacity = indexAllocator.getCapacity();
+            int newCapacity = Math.max(oldCapacity * 2, oldCapacity + needed);
+            iboId = copyBuffer(iboId, (long) oldCapacity * INDEX_UNIT, (long) newCapacity * INDEX_UNIT);
+            indexAllocator.grow(newCapacity);
+            attachBuffers();
+        }
+
+        //creates a bigger buffer with the content of the old one and deletes the old one
+        private static int copyBuffer(int oldBuffer, long oldSize, long newSize){
+
+            int newBuffer = createBuffer(newSize);
+
+            glBindBuffer(GL_COPY_READ_BUFFER, oldBuffer);
+            glBindBuffer(GL_COPY_WRITE_BUFFER, newBuffer);
+            glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, 0, 0, oldSize);
+            glBindBuffer(GL_COPY_READ_BUFFER, 0);
+            glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+
+            glDeleteBuffers(oldBuffer);
+            return newBuffer;
+        }
+
+        private static int createBuffer(long size){
+            int buffer = glGenBuffers();
+            glBindBuffer(GL_COPY_WRITE_BUFFER, buffer);
+            glBufferData(GL_COPY_WRITE_BUFFER, size, GL_STATIC_DRAW);
+            glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+            return buffer;
+        }
+
+        private void attachBuffers(){
+            glBindVertexArray(vaoId);
+            glBindVertexBuffer(VERTEX_BINDING, vboId, 0, stride);
+            glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, iboId);
+            glBindVertexArray(0);
+        }
+
+        /*
+         * copies every live allocation, in offset order, to the start of new buffers of the same size
+         * copying into new buffers avoids overlapping source and destination ranges
+         */
+        void defragment(){
+
+            if (!vertexAllocator.isFragmented() && !indexAllocator.isFragmented()){
+                return;
+            }
+
+            int newVboId = createBuffer((long) vertexAllocator.getCapacity() * stride);
+            int newIboId = createBuffer((long) indexAllocator.getCapacity() * INDEX_UNIT);
+
+            vertexAllocator.reset();
+            indexAllocator.reset();
+
+            allocations.sort(Comparator.comparingInt(allocation -> allocation.vertexOffset));
+            glBindBuffer(GL_COPY_READ_BUFFER, vboId);
+            glBindBuffer(GL_COPY_WRITE_BUFFER, newVboId);
+            for (Allocation allocation : allocations){
+                int newOffset = vertexAllocator.allocate(allocation.vertexCount);
+                glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, (long) allocation.vertexOffset * stride,
+                        (long) newOffset * stride, (long) allocation.vertexCount * stride);
+                allocation.vertexOffset = newOffset;
+            }
+
+            allocations.sort(Comparator.comparingInt(allocation -> allocation.indexOffset));
+            glBindBuffer(GL_COPY_READ_BUFFER, iboId);
+            glBindBuffer(GL_COPY_WRITE_BUFFER, newIboId);
+            for (Allocation allocation : allocations){
+                int newOffset = indexAllocator.allocate(allocation.indexUnits);
+                glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, (long) allocation.indexOffset * INDEX_UNIT,
+                        (long) newOffset * INDEX_UNIT, (long) allocation.indexUnits * INDEX_UNIT);
+                allocation.indexOffset = newOffset;
+            }
+
+            glBindBuffer(GL_COPY_READ_BUFFER, 0);
+            glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+
+            glDeleteBuffers(vboId);
+            glDeleteBuffers(iboId);
+            vboId = newVboId;
+            iboId = newIboId;
+            attachBuffers();
+
+            Logger.info("GEOMETRY ARENA layout {} defragmented, {} meshes packed", layout, allocations.size());
+        }
+
+        void cleanup(){
+            glDeleteVertexArrays(vaoId);
+            glDeleteBuffers(vboId);
+            glDeleteBuffers(iboId);
+        }
+    }
+
+}
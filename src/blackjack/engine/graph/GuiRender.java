@@ -28,8 +28,15 @@ public class GuiRender {
     private ShaderProgram shaderProgram;
     private Texture texture;
     private UniformsMap uniformsMap;
+    private int scaleUniform;
 
     public GuiRender(Window window){
+        this(window.getWidth(), window.getHeight());
+        setupKeyCallBack(window);
+    }
+
+    //without the key callbacks, for a GUI that is not attached to a window (see RenderAllocationTest)
+    GuiRender(int width, int height){
 
         List<ShaderProgram.ShaderModuleData> shaderModuleDataList = new ArrayList<>();
 
@@ -39,20 +46,26 @@ public class GuiRender {
         shaderProgram = new ShaderProgram(shaderModuleDataList);
 
         createUniforms();
-        createUIResources(window);
-        setupKeyCallBack(window);
+        createUIResources(width, height);
 
     }
 
-    public void render(Scene scene){
+    //the GUI instance builds its windows for this frame, application code kept apart from render (see Render.render)
+    public void buildGui(Scene scene){
 
         IGuiInstance guiInstance = scene.getGuiInstance();
-        
-        if (guiInstance == null){
-            return;
+
+        if (guiInstance != null){
+            guiInstance.drawGui();
         }
+    }
 
-        guiInstance.drawGui();
+    //draws what the last buildGui produced
+    public void render(Scene scene){
+
+        if (scene.getGuiInstance() == null){
+            return;
+        }
 
         shaderProgram.bind();
 
@@ -70,11 +83,15 @@ public class GuiRender {
         ImGuiIO io = ImGui.getIO();
         scale.x = 2.0f / io.getDisplaySizeX();
         scale.y = -2.0f / io.getDisplaySizeY();
-        uniformsMap.setUniform("scale", scale);
+        uniformsMap.setUniform(scaleUniform, scale);
 
         ImDrawData drawData = ImGui.getDrawData();
         int numLists = drawData.getCmdListsCount();
 
+        //the font atlas is the only texture used by the GUI, bind it once for all the commands
+        glActiveTexture(GL_TEXTURE0);
+        texture.bind();
+
         for (int i = 0; i < numLists; i++){
             glBufferData(GL_ARRAY_BUFFER, drawData.getCmdListVtxBufferData(i), GL_STREAM_DRAW);
             glBufferData(GL_ELEMENT_ARRAY_BUFFER, drawData.getCmdListIdxBufferData(i), GL_STREAM_DRAW);
@@ -86,7 +103,6 @@ public class GuiRender {
                 final int idxBufferOffset = drawData.getCmdListCmdBufferIdxOffset(i, j);
                 final int indices = idxBufferOffset * ImDrawData.sizeOfImDrawIdx();
 
-                texture.bind();
                 glDrawElements(GL_TRIANGLES, elemCount, GL_UNSIGNED_SHORT, indices);
             }
         }
@@ -102,19 +118,19 @@ public class GuiRender {
         imGuiIO.setDisplaySize(width, height);
     }
 
-    private void createUIResources(Window window){
+    private void createUIResources(int width, int height){
 
         ImGui.createContext();
         
         ImGuiIO imGuiIO = ImGui.getIO();
         imGuiIO.setIniFilename(null);
-        imGuiIO.setDisplaySize(window.getWidth(), window.getHeight());
+        imGuiIO.setDisplaySize(width, height);
 
         ImFontAtlas fontAtlas = ImGui.getIO().getFonts();
-        ImInt width = new ImInt();
-        ImInt height = new ImInt();
-        ByteBuffer buf = fontAtlas.getTexDataAsRGBA32(width, height);
-        texture = new Texture(width.get(), height.get(), buf);
+        ImInt atlasWidth = new ImInt();
+        ImInt atlasHeight = new ImInt();
+        ByteBuffer buf = fontAtlas.getTexDataAsRGBA32(atlasWidth, atlasHeight);
+        texture = new Texture(atlasWidth.get(), atlasHeight.get(), buf);
 
         guiMesh = new GuiMesh();
 
@@ -124,7 +140,7 @@ public class GuiRender {
 
         uniformsMap = new UniformsMap(shaderProgram.getProgramId());
 
-        uniformsMap.createUniform("scale");
+        scaleUniform = uniformsMap.createUniform("scale");
 
         scale = new Vector2f();
 
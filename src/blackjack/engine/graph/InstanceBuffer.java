@@ -0,0 +1,190 @@
+package blackjack.engine.graph;
+
+import org.lwjgl.system.MemoryUtil;
+
+import blackjack.engine.Consts;
+import blackjack.engine.scene.Entity;
+
+import java.nio.FloatBuffer;
+import java.util.*;
+
+import static org.lwjgl.opengl.GL15.*;
+
+/*
+ * Per model buffer that holds the data of every entity using the model (model matrix + selected flag + texture layer
+ * + lightmap layer)
+ * The data is read by the vertex shader as instanced attributes (divisor 1), so all the entities
+ * of a model can be drawn with a single glDrawElementsInstanced call per mesh, culled entities are left out
+ * The attribute formats live in the GeometryArena VAOs, the buffer is attached to their instance binding
+ * before drawing the meshes of the model
+ * The buffer is only rebuilt when the entities change (new transform, added entity, selection, visibility or LOD change)
+ * Instances are grouped by level of detail, each group is drawn with its own base instance
+ */
+
+public class InstanceBuffer {
+
+    //mat4 model matrix (4 vec4 attributes) + selected flag + texture layer + lightmap layer
+    public static final int INSTANCE_FLOATS = 19;
+    public static final int INSTANCE_STRIDE = INSTANCE_FLOATS * Float.BYTES;
+
+    //attribute locations 0-4 are used by the mesh, instanced attributes start right after
+    public static final int MODEL_MATRIX_LOCATION = 5;
+    public static final int SELECTED_LOCATION = 9;
+    public static final int TEXTURE_LAYER_LOCATION = 10;
+    public static final int LIGHTMAP_LAYER_LOCATION = 12;
+
+    private int vboId;
+    private FloatBuffer instanceData;
+    private int capacity;
+    private int numInstances;
+
+    private boolean dirty;
+    private long fingerprint;
+
+    //first instance and number of instances of every level of detail
+    private final int[] lodOffsets;
+    private final int[] lodCounts;
+
+    public InstanceBuffer(){
+
+        //start with room for one instance so the attributes always point to valid storage
+        capacity = 1;
+        instanceData = MemoryUtil.memAllocFloat(capacity * INSTANCE_FLOATS);
+        dirty = true;
+        lodOffsets = new int[Consts.MESH_LODS];
+        lodCounts = new int[Consts.MESH_LODS];
+
+        vboId = glGenBuffers();
+        glBindBuffer(GL_ARRAY_BUFFER, vboId);
+        glBufferData(GL_ARRAY_BUFFER, (long) capacity * INSTANCE_STRIDE, GL_DYNAMIC_DRAW);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+    }
+
+    /*
+     * rebuilds the buffer if any entity changed since the last call, returns the number of instances to draw
+     * visible holds the culling result of each entity starting at visibleOffset, or null to draw all of them
+     * lods holds the level of detail of each entity (same order as entities)
+     */
+    public int update(List<Entity> entities, boolean[] visible, int visibleOffset, int[] lods, Entity selectedEntity){
+
+        int numEntities = entities.size();
+        long newFingerprint = computeFingerprint(entities, visible, visibleOffset, lods, selectedEntity);
+
+        if (!dirty && newFingerprint == fingerprint){
+            return numInstances;
+        }
+
+        if (numEntities > capacity){
+            capacity = Math.max(numEntities, capacity * 2);
+            MemoryUtil.memFree(instanceData);
+            instanceData = MemoryUtil.memAllocFloat(capacity * INSTANCE_FLOATS);
+        }
+
+        //the absolute puts below are checked against the limit left by the previous update
+        instanceData.clear();
+
+        //counting sort by level of detail, each level gets a contiguous range of instances
+        Arrays.fill(lodCounts, 0);
+        for (int i = 0; i < numEntities; i++){
+            if (visible == null || visible[visibleOffset + i]){
+                lodCounts[lods[i]]++;
+            }
+        }
+
+        int newNumInstances = 0;
+        for (int i = 0; i < lodCounts.length; i++){
+            lodOffsets[i] = newNumInstances;
+            newNumInstances += lodCounts[i];
+        }
+
+        for (int lod = 0; lod < lodCounts.length; lod++){
+
+            if (lodCounts[lod] == 0){
+                continue;
+            }
+
+            int position = lodOffsets[lod] * INSTANCE_FLOATS;
+
+            for (int i = 0; i < numEntities; i++){
+
+                if ((visible != null && !visible[visibleOffset + i]) || lods[i] != lod){
+                    continue;
+                }
+
+                Entity entity = entities.get(i);
+                entity.getModelMatrix().get(position, instanceData);
+                instanceData.put(position + 16, isSelected(entity, selectedEntity) ? 1.0f : 0.0f);
+                instanceData.put(position + 17, entity.getTextureLayer());
+                instanceData.put(position + 18, entity.getLightmapLayer());
+                position += INSTANCE_FLOATS;
+            }
+        }
+
+        instanceData.position(0);
+        instanceData.limit(newNumInstances * INSTANCE_FLOATS);
+
+        //orphan the previous storage so the driver does not have to wait for pending draws
+        glBindBuffer(GL_ARRAY_BUFFER, vboId);
+        glBufferData(GL_ARRAY_BUFFER, (long) capacity * INSTANCE_STRIDE, GL_DYNAMIC_DRAW);
+        glBufferSubData(GL_ARRAY_BUFFER, 0, instanceData);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+
+        numInstances = newNumInstances;
+        fingerprint = newFingerprint;
+        dirty = false;
+
+        return numInstances;
+    }
+
+    //cheap summary of the entities state, any transform update, new entity, selection or visibility change alters it
+    private static long computeFingerprint(List<Entity> entities, boolean[] visible, int visibleOffset, int[] lods,
+            Entity selectedEntity){
+
+        int numEntities = entities.size();
+        long hash = numEntities;
+
+        for (int i = 0; i < numEntities; i++){
+            Entity entity = entities.get(i);
+            hash = 31 * hash + System.identityHashCode(entity);
+            hash = 31 * hash + entity.getVersion();
+            hash = 31 * hash + (isSelected(entity, selectedEntity) ? 1 : 0);
+            hash = 31 * hash + (visible == null || visible[visibleOffset + i] ? 1 : 0);
+            hash = 31 * hash + lods[i];
+        }
+
+        return hash;
+    }
+
+    private static boolean isSelected(Entity entity, Entity selectedEntity){
+        return selectedEntity != null && selectedEntity.getId().equals(entity.getId());
+    }
+
+    //force a rebuild on the next update
+    public void markDirty(){
+        dirty = true;
+    }
+
+    //free resources
+    public void cleanup(){
+        glDeleteBuffers(vboId);
+        MemoryUtil.memFree(instanceData);
+    }
+
+    //getters
+    public int getNumInstances() {
+        return numInstances;
+    }
+
+    public int getVboId() {
+        return vboId;
+    }
+
+    public int getLodInstanceOffset(int lod) {
+        return lodOffsets[lod];
+    }
+
+    public int getLodInstanceCount(int lod) {
+        return lodCounts[lod];
+    }
+
+}
@@ -0,0 +1,281 @@
+package blackjack.engine.graph;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * CPU side of the clustered lighting, assigns light spheres to a 3D grid of clusters splitting the view frustum
+ *
+ * the grid has gridX x gridY tiles in normalized device coordinates and gridZ depth slices, the slices grow
+ * exponentially with the distance (depth = zNear * (zFar / zNear) ^ (slice / gridZ)) so near clusters are small
+ * cluster (x, y, z) has index (z * gridY + y) * gridX + x, x and y grow right and up as in NDC
+ *
+ * every light covers a sphere in view space, it is added to the clusters whose view space AABB the sphere
+ * touches, the result is a compact list of light indices and, for each cluster, its offset and count in it
+ * clusters hold at most maxLightsPerCluster lights, the ones past that are dropped (in light order)
+ *
+ * nothing here touches OpenGL so the assignment can be checked on its own, ClusteredLighting feeds it
+ * and uploads the result, from parallelThreshold lights the depth slices are split across the common ForkJoin pool
+ */
+
+public class LightClusters {
+
+    private final int gridX;
+    private final int gridY;
+    private final int gridZ;
+    private final int numClusters;
+    private final float zNear;
+    private final float zFar;
+    private final int maxLightsPerCluster;
+    private final int parallelThreshold;
+
+    //slice boundaries (positive depths), gridZ + 1 values
+    private final float[] sliceDepths;
+
+    //view space AABB of every cluster: minX, minY, minZ, maxX, maxY, maxZ
+    private final float[] clusterBounds;
+    private float projScaleX;
+    private float projScaleY;
+
+    //lights of every cluster before compaction, maxLightsPerCluster slots each
+    private final int[] clusterLights;
+    private final int[] clusterCounts;
+
+    //compacted result: offset and count per cluster, then the light indices
+    private final int[] clusterData;
+    private int[] lightIndices;
+    private int numLightIndices;
+
+    //spheres of the lights being assigned: x, y, z, radius in view space
+    private float[] spheres;
+    private int numLights;
+
+    public LightClusters(int gridX, int gridY, int gridZ, float zNear, float zFar, int maxLightsPerCluster,
+            int parallelThreshold){
+
+        this.gridX = gridX;
+        this.gridY = gridY;
+        this.gridZ = gridZ;
+        this.zNear = zNear;
+        this.zFar = zFar;
+        this.maxLightsPerCluster = maxLightsPerCluster;
+        this.parallelThreshold = parallelThreshold;
+
+        numClusters = gridX * gridY * gridZ;
+        sliceDepths = new float[gridZ + 1];
+        for (int z = 0; z <= gridZ; z++){
+            sliceDepths[z] = zNear * (float) Math.pow(zFar / zNear, (double) z / gridZ);
+        }
+
+        clusterBounds = new float[numClusters * 6];
+        clusterLights = new int[numClusters * maxLightsPerCluster];
+        clusterCounts = new int[numClusters];
+        clusterData = new int[numClusters * 2];
+        lightIndices = new int[1024];
+    }
+
+    /*
+     * scaleX and scaleY are the (0, 0) and (1, 1) entries of the perspective matrix, 1 / (tan(fov / 2) * aspect)
+     * and 1 / tan(fov / 2), the cluster bounds are only computed again when they change
+     */
+    public void setProjection(float scaleX, float scaleY){
+
+        if (scaleX == projScaleX && scaleY == projScaleY){
+            return;
+        }
+
+        projScaleX = scaleX;
+        projScaleY = scaleY;
+
+        for (int z = 0; z < gridZ; z++){
+
+            float near = sliceDepths[z];
+            float far = sliceDepths[z + 1];
+
+            for (int y = 0; y < gridY; y++){
+
+                float ndcMinY = -1.0f + 2.0f * y / gridY;
+                float ndcMaxY = -1.0f + 2.0f * (y + 1) / gridY;
+
+                for (int x = 0; x < gridX; x++){
+
+                    float ndcMinX = -1.0f + 2.0f * x / gridX;
+                    float ndcMaxX = -1.0f + 2.0f * (x + 1) / gridX;
+
+                    //the tile edges open up with the depth, the box spans both ends of the slice
+                    int offset = getClusterIndex(x, y, z) * 6;
+                    clusterBounds[offset] = Math.min(ndcMinX * near, ndcMinX * far) / scaleX;
+                    clusterBounds[offset + 1] = Math.min(ndcMinY * near, ndcMinY * far) / scaleY;
+                    clusterBounds[offset + 2] = -far;
+                    clusterBounds[offset + 3] = Math.max(ndcMaxX * near, ndcMaxX * far) / scaleX;
+                    clusterBounds[offset + 4] = Math.max(ndcMaxY * near, ndcMaxY * far) / scaleY;
+                    clusterBounds[offset + 5] = -near;
+                }
+            }
+        }
+    }
+
+    //spheres holds x, y, z and radius in view space for each light, the light index is its position in the array
+    public void assign(float[] spheres, int numLights){
+
+        this.spheres = spheres;
+        this.numLights = numLights;
+
+        if (numLights >= parallelThreshold){
+            ForkJoinPool.commonPool().invoke(new AssignTask(0, gridZ));
+        }
+        else {
+            assignSlices(0, gridZ);
+        }
+
+        //compaction, clusters are laid one after the other in index order
+        numLightIndices = 0;
+        for (int cluster = 0; cluster < numClusters; cluster++){
+            numLightIndices += clusterCounts[cluster];
+        }
+
+        if (lightIndices.length < numLightIndices){
+            lightIndices = new int[Math.max(numLightIndices, lightIndices.length * 2)];
+        }
+
+        int offset = 0;
+        for (int cluster = 0; cluster < numClusters; cluster++){
+            int count = clusterCounts[cluster];
+            System.arraycopy(clusterLights, cluster * maxLightsPerCluster, lightIndices, offset, count);
+            clusterData[cluster * 2] = offset;
+            clusterData[cluster * 2 + 1] = count;
+            offset += count;
+        }
+    }
+
+    //every slice only writes its own clusters, so slices can run at the same time
+    private void assignSlices(int startSlice, int endSlice){
+
+        Arrays.fill(clusterCounts, startSlice * gridX * gridY, endSlice * gridX * gridY, 0);
+
+        for (int light = 0; light < numLights; light++){
+
+            float x = spheres[light * 4];
+            float y = spheres[light * 4 + 1];
+            float depth = -spheres[light * 4 + 2];
+            float radius = spheres[light * 4 + 3];
+
+            float minDepth = Math.max(depth - radius, sliceDepths[startSlice]);
+            float maxDepth = Math.min(depth + radius, sliceDepths[endSlice]);
+
+            if (minDepth > maxDepth || radius <= 0.0f){
+                continue;
+            }
+
+            int firstSlice = Math.max(getSlice(minDepth), startSlice);
+            int lastSlice = Math.min(getSlice(maxDepth), endSlice - 1);
+
+            for (int z = firstSlice; z <= lastSlice; z++){
+
+                //part of the sphere box inside the slice, its projection gives the tiles to test
+                float near = Math.max(minDepth, sliceDepths[z]);
+                float far = Math.min(maxDepth, sliceDepths[z + 1]);
+
+                int firstX = getTile(Math.min((x - radius) / near, (x - radius) / far) * projScaleX, gridX);
+                int lastX = getTile(Math.max((x + radius) / near, (x + radius) / far) * projScaleX, gridX);
+                int firstY = getTile(Math.min((y - radius) / near, (y - radius) / far) * projScaleY, gridY);
+                int lastY = getTile(Math.max((y + radius) / near, (y + radius) / far) * projScaleY, gridY);
+
+                for (int tileY = firstY; tileY <= lastY; tileY++){
+                    for (int tileX = firstX; tileX <= lastX; tileX++){
+
+                        int cluster = getClusterIndex(tileX, tileY, z);
+                        int count = clusterCounts[cluster];
+
+                        if (count < maxLightsPerCluster && intersects(cluster, x, y, -depth, radius)){
+                            clusterLights[cluster * maxLightsPerCluster + count] = light;
+                            clusterCounts[cluster] = count + 1;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    //sphere against the AABB of the cluster, distance from the center to the closest point of the box
+    private boolean intersects(int cluster, float x, float y, float z, float radius){
+
+        int offset = cluster * 6;
+
+        float dx = Math.max(Math.max(clusterBounds[offset] - x, 0.0f), x - clusterBounds[offset + 3]);
+        float dy = Math.max(Math.max(clusterBounds[offset + 1] - y, 0.0f), y - clusterBounds[offset + 4]);
+        float dz = Math.max(Math.max(clusterBounds[offset + 2] - z, 0.0f), z - clusterBounds[offset + 5]);
+
+        return dx * dx + dy * dy + dz * dz <= radius * radius;
+    }
+
+    //slice of a positive depth, clamped to the grid
+    public int getSlice(float depth){
+        if (depth <= zNear){
+            return 0;
+        }
+        int slice = (int) (Math.log(depth / zNear) / Math.log(zFar / zNear) * gridZ);
+        return Math.min(slice, gridZ - 1);
+    }
+
+    private static int getTile(float ndc, int tiles){
+        int tile = (int) Math.floor((ndc + 1.0f) * 0.5f * tiles);
+        return Math.min(Math.max(tile, 0), tiles - 1);
+    }
+
+    public int getClusterIndex(int x, int y, int z){
+        return (z * gridY + y) * gridX + x;
+    }
+
+    //getters
+    public int getNumClusters() {
+        return numClusters;
+    }
+
+    public int getClusterOffset(int cluster) {
+        return clusterData[cluster * 2];
+    }
+
+    public int getClusterCount(int cluster) {
+        return clusterData[cluster * 2 + 1];
+    }
+
+    //offset and count of every cluster, in cluster index order
+    public int[] getClusterData() {
+        return clusterData;
+    }
+
+    public int[] getLightIndices() {
+        return lightIndices;
+    }
+
+    public int getNumLightIndices() {
+        return numLightIndices;
+    }
+
+    @SuppressWarnings("serial")
+    private class AssignTask extends RecursiveAction {
+
+        private final int start;
+        private final int end;
+
+        AssignTask(int start, int end){
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (end - start <= 1){
+                assignSlices(start, end);
+                return;
+            }
+
+            int middle = (start + end) >>> 1;
+            invokeAll(new AssignTask(start, middle), new AssignTask(middle, end));
+        }
+    }
+
+}
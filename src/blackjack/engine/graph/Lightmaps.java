@@ -0,0 +1,141 @@
+package blackjack.engine.graph;
+
+import org.lwjgl.system.MemoryStack;
+import org.tinylog.Logger;
+
+import blackjack.engine.Consts;
+import blackjack.engine.scene.Entity;
+
+import java.io.File;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.*;
+
+import static org.lwjgl.opengl.GL43.*;
+import static org.lwjgl.stb.STBImage.*;
+
+/*
+ * Baked lighting of the static entities, one layer of a texture array per entity
+ *
+ * the lightmaps are written by tools/LightmapBakerTool as Radiance .hdr files named after the entity
+ * (Consts.LIGHTMAP_DIR/<entity id>.hdr) and hold the light reaching every texel (baked lights, direct
+ * and bounced), scene.frag multiplies it by the diffuse color of the lightmapped entities and only
+ * evaluates the lights that are not baked for them
+ * an entity without a lightmap file (or a file of another size) keeps the dynamic lighting
+ * the array is owned by the Scene and created with the first lightmap, Consts.MAX_LIGHTMAPS layers
+ */
+
+public class Lightmaps {
+
+    //after the texture units of SceneRender and ShadowRender
+    public static final int LIGHTMAP_UNIT = 6;
+
+    private static final String EXTENSION = ".hdr";
+
+    private final Map<String, Integer> layers;
+    private int textureId;
+
+    public Lightmaps(){
+        layers = new HashMap<>();
+    }
+
+    //gives the entity the layer of its lightmap, returns false when it has none
+    public boolean load(Entity entity){
+
+        Integer existing = layers.get(entity.getId());
+
+        if (existing != null){
+            entity.setLightmapLayer(existing);
+            return true;
+        }
+
+        String path = getPath(entity.getId());
+
+        if (!new File(path).exists()){
+            return false;
+        }
+
+        if (layers.size() == Consts.MAX_LIGHTMAPS){
+            Logger.warn("NO LIGHTMAP LAYER LEFT FOR ENTITY [{}]", entity.getId());
+            return false;
+        }
+
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+
+            IntBuffer w = stack.mallocInt(1);
+            IntBuffer h = stack.mallocInt(1);
+            IntBuffer channels = stack.mallocInt(1);
+
+            FloatBuffer texels = stbi_loadf(path, w, h, channels, 3);
+            if (texels == null){
+                Logger.warn("LIGHTMAP FILE [{}] NOT LOADED: {}", path, stbi_failure_reason());
+                return false;
+            }
+
+            //baked with another atlas size, the lightmap coords of the model do not match it anymore
+            if (w.get(0) != Consts.LIGHTMAP_SIZE || h.get(0) != Consts.LIGHTMAP_SIZE){
+                Logger.warn("IGNORING LIGHTMAP FILE [{}], {}x{} instead of {}", path, w.get(0), h.get(0),
+                        Consts.LIGHTMAP_SIZE);
+                stbi_image_free(texels);
+                return false;
+            }
+
+            if (textureId == 0){
+                createArray();
+            }
+
+            int layer = layers.size();
+            glBindTexture(GL_TEXTURE_2D_ARRAY, textureId);
+            glPixelStorei(GL_UNPACK_ALIGNMENT, 4);
+            glTexSubImage3D(GL_TEXTURE_2D_ARRAY, 0, 0, 0, layer, Consts.LIGHTMAP_SIZE, Consts.LIGHTMAP_SIZE, 1,
+                    GL_RGB, GL_FLOAT, texels);
+            glBindTexture(GL_TEXTURE_2D_ARRAY, 0);
+            stbi_image_free(texels);
+
+            layers.put(entity.getId(), layer);
+            entity.setLightmapLayer(layer);
+        }
+
+        return true;
+    }
+
+    //half floats keep the range of the bake, linear filtering without mipmaps (the padding covers the chart edges)
+    private void createArray(){
+        textureId = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D_ARRAY, textureId);
+        glTexStorage3D(GL_TEXTURE_2D_ARRAY, 1, GL_RGB16F, Consts.LIGHTMAP_SIZE, Consts.LIGHTMAP_SIZE, Consts.MAX_LIGHTMAPS);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+        glBindTexture(GL_TEXTURE_2D_ARRAY, 0);
+    }
+
+    //attach the array to its unit, nothing to bind before the first lightmap
+    public void bind(){
+        if (textureId != 0){
+            glActiveTexture(GL_TEXTURE0 + LIGHTMAP_UNIT);
+            glBindTexture(GL_TEXTURE_2D_ARRAY, textureId);
+            glActiveTexture(GL_TEXTURE0);
+        }
+    }
+
+    //free resources
+    public void cleanup(){
+        if (textureId != 0){
+            glDeleteTextures(textureId);
+            textureId = 0;
+        }
+        layers.clear();
+    }
+
+    public static String getPath(String entityId){
+        return Consts.LIGHTMAP_DIR + File.separator + entityId + EXTENSION;
+    }
+
+    //getters
+    public int getNumLightmaps() {
+        return layers.size();
+    }
+
+}
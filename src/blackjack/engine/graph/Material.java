@@ -18,7 +18,9 @@ public class Material {
     private String normalMapPath;
 
     private float reflectance;
-    
+
+    //interned id in the MaterialCache, -1 until the model is uploaded
+    private int materialId = -1;
 
 
     public Material(){
@@ -85,5 +87,13 @@ public class Material {
     public void setNormalMapPath(String normalMapPath) {
         this.normalMapPath = normalMapPath;
     }
+
+    public int getMaterialId() {
+        return materialId;
+    }
+
+    public void setMaterialId(int materialId) {
+        this.materialId = materialId;
+    }
     
 }
@@ -1,5 +1,210 @@
 package blackjack.engine.graph;
 
+import org.joml.Vector4f;
+import org.lwjgl.system.MemoryUtil;
+
+import blackjack.engine.Consts;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.lwjgl.opengl.GL43.*;
+
+/*
+ * Interned materials, every distinct set of parameters (colors, reflectance and texture paths) gets a
+ * dense integer id, materials of different models with the same content share it
+ *
+ * the parameters of all the materials live in a single shader storage buffer indexed by id (the
+ * Materials block of scene.frag), so switching material while drawing is one integer uniform
+ * the textures are resolved once when the id is created, the render loop reads them by id and
+ * never looks a texture up by its path
+ *
+ * ids are reference counted like the textures, acquire on model upload and release when the Scene
+ * removes the model, an id without references gives its textures back and is reused
+ */
+
 public class MaterialCache {
 
+    //binding point of the Materials block
+    public static final int MATERIALS_BINDING = 0;
+
+    //std430 layout of a material: vec4 ambient, vec4 diffuse, vec4 specular, float reflectance (padded to 16)
+    private static final int MATERIAL_SIZE = 64;
+    private static final int AMBIENT_OFFSET = 0;
+    private static final int DIFFUSE_OFFSET = 16;
+    private static final int SPECULAR_OFFSET = 32;
+    private static final int REFLECTANCE_OFFSET = 48;
+
+    private final TextureCache textureCache;
+    private final Texture defaultTexture;
+
+    private final Map<MaterialKey, Integer> idMap;
+
+    //indexed by material id
+    private MaterialKey[] keys;
+    private Texture[] textures;
+    private Texture[] normalMaps;
+    private int[] refCounts;
+
+    //ids given back, reused before growing
+    private int[] freeIds;
+    private int numFreeIds;
+    private int numIds;
+
+    //CPU copy of the buffer, sent again when a material is added
+    private ByteBuffer data;
+    private final int bufferId;
+    private int bufferCapacity;
+    private boolean dirty;
+
+    public MaterialCache(TextureCache textureCache){
+
+        this.textureCache = textureCache;
+        defaultTexture = textureCache.getTexture(Consts.DEFAULT_TEXTURE);
+        idMap = new HashMap<>();
+
+        int capacity = 16;
+        keys = new MaterialKey[capacity];
+        textures = new Texture[capacity];
+        normalMaps = new Texture[capacity];
+        refCounts = new int[capacity];
+        freeIds = new int[capacity];
+        data = MemoryUtil.memCalloc(capacity * MATERIAL_SIZE);
+
+        bufferId = glGenBuffers();
+    }
+
+    //id of the material, created with its textures on the first use, the material gets it too
+    public int acquire(Material material){
+
+        MaterialKey key = new MaterialKey(new Vector4f(material.getAmbientColor()),
+                new Vector4f(material.getDiffusecolor()), new Vector4f(material.getSpecularColor()),
+                material.getReflectance(), material.getTexturePath(), material.getNormalMapPath());
+
+        Integer existing = idMap.get(key);
+        int id;
+
+        if (existing != null){
+            id = existing;
+        }
+        else {
+            id = numFreeIds > 0 ? freeIds[--numFreeIds] : nextId();
+            idMap.put(key, id);
+            keys[id] = key;
+            textures[id] = key.texturePath != null ? acquireTexture(key.texturePath) : defaultTexture;
+            normalMaps[id] = key.normalMapPath != null ? acquireTexture(key.normalMapPath) : null;
+            put(id, key);
+        }
+
+        refCounts[id]++;
+        material.setMaterialId(id);
+        return id;
+    }
+
+    //the id and its textures are freed with the last reference
+    public void release(int id){
+
+        if (id < 0 || id >= numIds || refCounts[id] == 0 || --refCounts[id] > 0){
+            return;
+        }
+
+        MaterialKey key = keys[id];
+        idMap.remove(key);
+        textureCache.release(key.texturePath);
+        textureCache.release(key.normalMapPath);
+
+        keys[id] = null;
+        textures[id] = null;
+        normalMaps[id] = null;
+        freeIds[numFreeIds++] = id;
+    }
+
+    //with streaming the material is drawn with the default texture until its own one is uploaded
+    private Texture acquireTexture(String texturePath){
+        return Consts.TEXTURE_STREAMING ? textureCache.streamTexture(texturePath, null)
+                : textureCache.createTexture(texturePath);
+    }
+
+    private int nextId(){
+
+        if (numIds == keys.length){
+            int capacity = keys.length * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            textures = Arrays.copyOf(textures, capacity);
+            normalMaps = Arrays.copyOf(normalMaps, capacity);
+            refCounts = Arrays.copyOf(refCounts, capacity);
+            freeIds = Arrays.copyOf(freeIds, capacity);
+            data = MemoryUtil.memRealloc(data, capacity * MATERIAL_SIZE);
+        }
+
+        return numIds++;
+    }
+
+    private void put(int id, MaterialKey key){
+        int offset = id * MATERIAL_SIZE;
+        key.ambient.get(offset + AMBIENT_OFFSET, data);
+        key.diffuse.get(offset + DIFFUSE_OFFSET, data);
+        key.specular.get(offset + SPECULAR_OFFSET, data);
+        data.putFloat(offset + REFLECTANCE_OFFSET, key.reflectance);
+        dirty = true;
+    }
+
+    //sends the new materials to the GPU, the buffer is reallocated when it is too small
+    public void update(){
+
+        if (!dirty){
+            return;
+        }
+
+        int size = numIds * MATERIAL_SIZE;
+
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, bufferId);
+        if (size > bufferCapacity){
+            bufferCapacity = keys.length * MATERIAL_SIZE;
+            glBufferData(GL_SHADER_STORAGE_BUFFER, MemoryUtil.memSlice(data, 0, bufferCapacity), GL_DYNAMIC_DRAW);
+        }
+        else {
+            glBufferSubData(GL_SHADER_STORAGE_BUFFER, 0, MemoryUtil.memSlice(data, 0, size));
+        }
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+
+        dirty = false;
+    }
+
+    //attach the buffer to its binding point
+    public void bind(){
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, MATERIALS_BINDING, bufferId);
+    }
+
+    //free resources
+    public void cleanup(){
+        glDeleteBuffers(bufferId);
+        MemoryUtil.memFree(data);
+    }
+
+    //the default texture while the material one is still streaming
+    public Texture getTexture(int id){
+        Texture texture = textures[id];
+        return texture.isResident() ? texture : defaultTexture;
+    }
+
+    //null when the material has no normal map or it is still streaming
+    public Texture getNormalMap(int id){
+        Texture normalMap = normalMaps[id];
+        return normalMap != null && normalMap.isResident() ? normalMap : null;
+    }
+
+    public TextureCache getTextureCache(){
+        return textureCache;
+    }
+
+    //distinct materials in use
+    public int getNumMaterials(){
+        return idMap.size();
+    }
+
+    private record MaterialKey(Vector4f ambient, Vector4f diffuse, Vector4f specular, float reflectance,
+            String texturePath, String normalMapPath) {
+    }
+
 }
@@ -3,138 +3,73 @@
 package blackjack.engine.graph;
 
 import org.joml.Vector3f;
-import org.lwjgl.opengl.GL30;
-// import org.lwjgl.system.MemoryStack;
-import org.lwjgl.system.MemoryUtil;
-
-import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
-import java.util.*;
-
-import static org.lwjgl.opengl.GL11.GL_FLOAT;
-import static org.lwjgl.opengl.GL15.GL_ARRAY_BUFFER;
-import static org.lwjgl.opengl.GL15.GL_ELEMENT_ARRAY_BUFFER;
-import static org.lwjgl.opengl.GL15.GL_STATIC_DRAW;
-import static org.lwjgl.opengl.GL15.glBindBuffer;
-import static org.lwjgl.opengl.GL15.glBufferData;
-import static org.lwjgl.opengl.GL15.glGenBuffers;
-import static org.lwjgl.opengl.GL20.glEnableVertexAttribArray;
-import static org.lwjgl.opengl.GL20.glVertexAttribPointer;
-import static org.lwjgl.opengl.GL30.*;
+
+import java.nio.ByteBuffer;
 
 /*
  * Vertex Buffer Object (VBO) is a mem buffer stored in the GPU's memory that stores vertices
  * Vertex Array Object (VAO) is an object that contains one or more VBOs which are usually called attribute lists
  * Each attribute can hold one type of data (pos, color, texture, etc)
+ *
+ * meshes do not own any VBO or VAO, their cooked vertices and indices (see CookedMesh) are copied into the GeometryArena,
+ * which shares one VAO between all the meshes of the same layout, the mesh only keeps its allocation
+ * (base vertex and index offset) to be drawn with the base vertex draw calls
  */
 
 public class Mesh {
 
     private int numVertices;
-    private int vaoId;
-    private List<Integer> vboIdList;
+    private GeometryArena geometryArena;
+    private GeometryArena.Allocation allocation;
+
+    //layout of the vertex data on the GPU, and type of the indices to use when drawing
+    private VertexFormat vertexFormat;
+    private boolean halfPositions;
+    private int indexType;
+    private long gpuBytes;
+
+    //byte offset (inside the allocation) and index count of every level of detail, level 0 is the full mesh
+    private long[] lodIndexOffsets;
+    private int[] lodIndexCounts;
 
     private Vector3f aabbMin;
     private Vector3f aabbMax;
 
-    public Mesh(float[] positions, float[] normals, float[] tangents, float[] bitangents, float[] textCoords, int[] indices, Vector3f aabbMin, Vector3f aabbMax){
-        
-        this.aabbMin = aabbMin;
-        this.aabbMax = aabbMax;
+    //CPU side copy of the geometry, only read by the triangle test of the picking
+    private float[] positions;
+    private int[] indices;
+
+    public Mesh(CookedMesh cookedMesh, GeometryArena geometryArena){
+
+        this.aabbMin = cookedMesh.getAabbMin();
+        this.aabbMax = cookedMesh.getAabbMax();
+        this.positions = cookedMesh.getPositions();
+        this.indices = cookedMesh.getIndices();
+        this.geometryArena = geometryArena;
+
+        int layout = cookedMesh.getLayout();
+        vertexFormat = layout == GeometryArena.LAYOUT_STANDARD ? VertexFormat.STANDARD : VertexFormat.COMPACT;
+        halfPositions = layout == GeometryArena.LAYOUT_COMPACT_HALF;
+        indexType = cookedMesh.getIndexType();
+        lodIndexOffsets = cookedMesh.getLodIndexOffsets();
+        lodIndexCounts = cookedMesh.getLodIndexCounts();
 
         numVertices = indices.length;
-        vboIdList = new ArrayList<>();
-
-        vaoId = glGenVertexArrays();
-        glBindVertexArray(vaoId);
-
-        //Positions VBO (index 0 for attribs)
-        int vboId = glGenBuffers();
-        vboIdList.add(vboId);
-
-        FloatBuffer positionsBuffer = MemoryUtil.memCallocFloat(positions.length);
-        positionsBuffer.put(0, positions);
-
-        glBindBuffer(GL_ARRAY_BUFFER, vboId);
-        glBufferData(GL_ARRAY_BUFFER, positionsBuffer, GL_STATIC_DRAW);
-        
-        glEnableVertexAttribArray(0);
-        glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0);
-
-        //Normals VBO
-        vboId = glGenBuffers();
-        vboIdList.add(vboId);
-
-        FloatBuffer normalsBuffer = MemoryUtil.memCallocFloat(normals.length);
-        normalsBuffer.put(0, normals);
-
-        glBindBuffer(GL_ARRAY_BUFFER, vboId);
-        glBufferData(GL_ARRAY_BUFFER, normalsBuffer, GL_STATIC_DRAW);
-
-        glEnableVertexAttribArray(1);
-        glVertexAttribPointer(1, 3, GL_FLOAT, false, 0, 0);
-       
-        // Tangents VBO
-        vboId = glGenBuffers();
-        vboIdList.add(vboId);
-        FloatBuffer tangentsBuffer = MemoryUtil.memCallocFloat(tangents.length);
-        tangentsBuffer.put(0, tangents);
-        glBindBuffer(GL_ARRAY_BUFFER, vboId);
-        glBufferData(GL_ARRAY_BUFFER, tangentsBuffer, GL_STATIC_DRAW);
-        glEnableVertexAttribArray(2);
-        glVertexAttribPointer(2, 3, GL_FLOAT, false, 0, 0);
-
-        // Bitangents VBO
-        vboId = glGenBuffers();
-        vboIdList.add(vboId);
-        FloatBuffer bitangentsBuffer = MemoryUtil.memCallocFloat(bitangents.length);
-        bitangentsBuffer.put(0, bitangents);
-        glBindBuffer(GL_ARRAY_BUFFER, vboId);
-        glBufferData(GL_ARRAY_BUFFER, bitangentsBuffer, GL_STATIC_DRAW);
-        glEnableVertexAttribArray(3);
-        glVertexAttribPointer(3, 3, GL_FLOAT, false, 0, 0);
-       
-        //Texture coordinates VBO
-        vboId = glGenBuffers();
-        vboIdList.add(vboId);
-
-        FloatBuffer textCoordsBuffer = MemoryUtil.memCallocFloat(textCoords.length);
-        textCoordsBuffer.put(0, textCoords);
-
-        glBindBuffer(GL_ARRAY_BUFFER, vboId);
-        glBufferData(GL_ARRAY_BUFFER, textCoordsBuffer, GL_STATIC_DRAW);
-
-        glEnableVertexAttribArray(4);
-        glVertexAttribPointer(4, 2, GL_FLOAT, false, 0, 0);
-
-        //Index VBO
-        vboId = glGenBuffers();
-        vboIdList.add(vboId);
-
-        IntBuffer indicesBuffer = MemoryUtil.memCallocInt(indices.length);
-        indicesBuffer.put(0, indices);
-
-        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, vboId);
-        glBufferData(GL_ELEMENT_ARRAY_BUFFER, indicesBuffer, GL_STATIC_DRAW);
-
-        //unbind VBOs and VAO after all setup is completed
-        glBindBuffer(GL_ARRAY_BUFFER, 0);
-        glBindVertexArray(0);
-
-        //free mem resources
-        MemoryUtil.memFree(positionsBuffer);
-        MemoryUtil.memFree(normalsBuffer);
-        MemoryUtil.memFree(tangentsBuffer);
-        MemoryUtil.memFree(bitangentsBuffer);
-        MemoryUtil.memFree(textCoordsBuffer);
-        MemoryUtil.memFree(indicesBuffer);
-    }
-
-    //free resources
+
+        ByteBuffer vertexData = cookedMesh.getVertexData();
+        ByteBuffer indexData = cookedMesh.getIndexData();
+
+        gpuBytes = vertexData.remaining() + indexData.remaining();
+        allocation = geometryArena.allocate(layout, vertexData, cookedMesh.getVertexCount(), indexData);
+    }
+
+    //free resources, the space in the arena is reused by the next meshes
     public void cleanup(){
-        
-        vboIdList.forEach(GL30::glDeleteBuffers);
-        glDeleteVertexArrays(vaoId);
+
+        if (allocation != null){
+            geometryArena.free(allocation);
+            allocation = null;
+        }
 
     }
 
@@ -143,16 +78,68 @@ public class Mesh {
         return numVertices;
     }
 
+    //shared by every mesh of the same layout
     public final int getVaoId() {
-        return vaoId;
+        return allocation.getVaoId();
+    }
+
+    public int getBaseVertex() {
+        return allocation.getBaseVertex();
+    }
+
+    public long getIndexOffset() {
+        return allocation.getIndexByteOffset();
+    }
+
+    public int getNumLods() {
+        return lodIndexCounts.length;
+    }
+
+    public int getLodIndexCount(int lod) {
+        return lodIndexCounts[lod];
+    }
+
+    //offset in bytes of the first index of the level in the arena index buffer
+    public long getLodIndexOffset(int lod) {
+        return allocation.getIndexByteOffset() + lodIndexOffsets[lod];
+    }
+
+    public VertexFormat getVertexFormat() {
+        return vertexFormat;
+    }
+
+    public boolean hasHalfPositions() {
+        return halfPositions;
+    }
+
+    public int getIndexType() {
+        return indexType;
+    }
+
+    //bytes of vertex and index data uploaded to the GPU
+    public long getGpuBytes() {
+        return gpuBytes;
+    }
+
+    //what the same mesh takes with the standard layout
+    public long getStandardGpuBytes() {
+        return (long) (positions.length / 3) * VertexFormat.STANDARD_VERTEX_SIZE + (long) indices.length * Integer.BYTES;
     }
 
     public Vector3f getAabbMax() {
         return aabbMax;
     }
-    
+
     public Vector3f getAabbMin() {
         return aabbMin;
     }
 
+    public float[] getPositions() {
+        return positions;
+    }
+
+    public int[] getIndices() {
+        return indices;
+    }
+
 }
@@ -0,0 +1,107 @@
+package blackjack.engine.graph;
+
+import org.joml.Vector3f;
+
+/*
+ * CPU side geometry of a mesh, as read from Assimp and processed by the import stages,
+ * before it is uploaded to the GPU by Mesh
+ *
+ * lodIndices holds one index list per level of detail over the same vertices,
+ * level 0 is the full mesh and the following ones are simplified versions of it
+ * lightmapCoords is the second UV set (see LightmapUnwrap), null when the mesh was not unwrapped
+ */
+
+public class MeshData {
+
+    private float[] positions;
+    private float[] normals;
+    private float[] tangents;
+    private float[] bitangents;
+    private float[] textCoords;
+    private float[] lightmapCoords;
+    private int[][] lodIndices;
+
+    private Vector3f aabbMin;
+    private Vector3f aabbMax;
+
+    public MeshData(float[] positions, float[] normals, float[] tangents, float[] bitangents, float[] textCoords,
+            int[] indices, Vector3f aabbMin, Vector3f aabbMax){
+
+        this.positions = positions;
+        this.normals = normals;
+        this.tangents = tangents;
+        this.bitangents = bitangents;
+        this.textCoords = textCoords;
+        this.lodIndices = new int[][]{indices};
+        this.aabbMin = aabbMin;
+        this.aabbMax = aabbMax;
+    }
+
+    //replaces the vertex attributes, used when an import stage reorders or removes vertices
+    public void setVertices(float[] positions, float[] normals, float[] tangents, float[] bitangents, float[] textCoords){
+        this.positions = positions;
+        this.normals = normals;
+        this.tangents = tangents;
+        this.bitangents = bitangents;
+        this.textCoords = textCoords;
+    }
+
+    //getters and setters
+    public int getVertexCount() {
+        return positions.length / 3;
+    }
+
+    public float[] getPositions() {
+        return positions;
+    }
+
+    public float[] getNormals() {
+        return normals;
+    }
+
+    public float[] getTangents() {
+        return tangents;
+    }
+
+    public float[] getBitangents() {
+        return bitangents;
+    }
+
+    public float[] getTextCoords() {
+        return textCoords;
+    }
+
+    public float[] getLightmapCoords() {
+        return lightmapCoords;
+    }
+
+    //full detail indices
+    public int[] getIndices() {
+        return lodIndices[0];
+    }
+
+    public int[][] getLodIndices() {
+        return lodIndices;
+    }
+
+    public Vector3f getAabbMin() {
+        return aabbMin;
+    }
+
+    public Vector3f getAabbMax() {
+        return aabbMax;
+    }
+
+    public void setIndices(int[] indices) {
+        lodIndices[0] = indices;
+    }
+
+    public void setLodIndices(int[][] lodIndices) {
+        this.lodIndices = lodIndices;
+    }
+
+    public void setLightmapCoords(float[] lightmapCoords) {
+        this.lightmapCoords = lightmapCoords;
+    }
+
+}
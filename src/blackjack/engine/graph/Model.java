@@ -1,5 +1,7 @@
 package blackjack.engine.graph;
 
+import org.joml.Vector3f;
+
 import blackjack.engine.scene.Entity;
 
 import java.util.*;
@@ -15,17 +17,48 @@ public class Model {
     private final String id;
     private List<Entity> entitiesList;
     private List<Material> materialList;
+    private InstanceBuffer instanceBuffer;
+
+    //bounding box enclosing all the meshes, in model space
+    private Vector3f aabbMin;
+    private Vector3f aabbMax;
+    private int numMeshes;
+
+    //sphere around the AABB, used to estimate the size of the model on screen
+    private Vector3f boundsCenter;
+    private float boundsRadius;
 
     public Model(String id, List<Material> materialList){
 
         this.id = id;
         entitiesList = new ArrayList<>();
         this.materialList = materialList;
+        instanceBuffer = new InstanceBuffer();
+
+        aabbMin = new Vector3f(Float.MAX_VALUE);
+        aabbMax = new Vector3f(-Float.MAX_VALUE);
+
+        for (Material material : materialList){
+            for (Mesh mesh : material.getMeshList()){
+                aabbMin.min(mesh.getAabbMin());
+                aabbMax.max(mesh.getAabbMax());
+                numMeshes++;
+            }
+        }
+
+        if (numMeshes == 0){
+            aabbMin.zero();
+            aabbMax.zero();
+        }
+
+        boundsCenter = new Vector3f(aabbMin).add(aabbMax).mul(0.5f);
+        boundsRadius = aabbMin.distance(aabbMax) * 0.5f;
     }
 
     //free resources
     public void cleanup(){
         materialList.forEach(Material::cleanup);
+        instanceBuffer.cleanup();
     }
 
 
@@ -34,6 +67,30 @@ public class Model {
         return entitiesList;
     }
 
+    public Vector3f getAabbMin() {
+        return aabbMin;
+    }
+
+    public Vector3f getAabbMax() {
+        return aabbMax;
+    }
+
+    public Vector3f getBoundsCenter() {
+        return boundsCenter;
+    }
+
+    public float getBoundsRadius() {
+        return boundsRadius;
+    }
+
+    public int getNumMeshes() {
+        return numMeshes;
+    }
+
+    public InstanceBuffer getInstanceBuffer() {
+        return instanceBuffer;
+    }
+
     public String getId() {
         return id;
     }
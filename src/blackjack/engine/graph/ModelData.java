@@ -0,0 +1,55 @@
+package blackjack.engine.graph;
+
+import java.util.*;
+
+/*
+ * CPU side result of importing a model: its materials (without meshes yet) and its cooked meshes,
+ * each one pointing to its material by index
+ * upload() copies the meshes into the GeometryArena and builds the Model, it needs the GL context
+ */
+
+public class ModelData {
+
+    private final String modelId;
+    private final List<Material> materialList;
+    private final List<CookedMesh> meshList;
+
+    //textures of the materials decoded ahead of the upload, may be empty
+    private final List<TextureData> textureDataList;
+
+    public ModelData(String modelId, List<Material> materialList, List<CookedMesh> meshList){
+        this.modelId = modelId;
+        this.materialList = materialList;
+        this.meshList = meshList;
+        textureDataList = new ArrayList<>();
+    }
+
+    public Model upload(GeometryArena geometryArena){
+
+        for (CookedMesh cookedMesh : meshList){
+            Mesh mesh = new Mesh(cookedMesh, geometryArena);
+            materialList.get(cookedMesh.getMaterialIdx()).getMeshList().add(mesh);
+            cookedMesh.free();
+        }
+
+        return new Model(modelId, materialList);
+    }
+
+    //getters
+    public String getModelId() {
+        return modelId;
+    }
+
+    public List<Material> getMaterialList() {
+        return materialList;
+    }
+
+    public List<CookedMesh> getMeshList() {
+        return meshList;
+    }
+
+    public List<TextureData> getTextureDataList() {
+        return textureDataList;
+    }
+
+}
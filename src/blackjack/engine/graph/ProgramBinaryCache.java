@@ -0,0 +1,143 @@
+package blackjack.engine.graph;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.tinylog.Logger;
+
+import blackjack.engine.Consts;
+import blackjack.engine.Utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import static org.lwjgl.opengl.GL41.*;
+
+/*
+ * Cache of linked shader programs on disk, so the GLSL is only compiled the first time a program is built
+ *
+ * the key is a SHA-256 of the sources, the defines, the vendor, renderer and version strings of the driver
+ * and FORMAT_VERSION, a driver update gives new keys and the old files are just not read anymore
+ * the file holds the binary format followed by the blob returned by glGetProgramBinary
+ * the driver may still reject a binary (it is free to do so at any time), the file is then deleted and
+ * the program compiled from source as usual
+ */
+
+public class ProgramBinaryCache {
+
+    private static final int FORMAT_VERSION = 1;
+    private static final String EXTENSION = ".bin";
+
+    private ProgramBinaryCache(){
+
+    }
+
+    //false when the driver has no binary format, programs are always compiled then
+    public static boolean isSupported(){
+        return glGetInteger(GL_NUM_PROGRAM_BINARY_FORMATS) > 0;
+    }
+
+    public static String computeKey(List<String> sources, List<String> defines){
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+            String settings = FORMAT_VERSION + "|" + glGetString(GL_VENDOR) + "|" + glGetString(GL_RENDERER) + "|"
+                    + glGetString(GL_VERSION) + "|" + String.join(",", defines);
+            digest.update(settings.getBytes(StandardCharsets.UTF_8));
+
+            for (String source : sources){
+                digest.update(source.getBytes(StandardCharsets.UTF_8));
+            }
+
+            return HexFormat.of().formatHex(digest.digest());
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("ERROR HASHING SHADER PROGRAM", e);
+        }
+    }
+
+    //returns true when the program was linked from the cached binary
+    public static boolean read(String key, int programId){
+
+        Path path = getPath(key);
+
+        if (!Files.exists(path)){
+            return false;
+        }
+
+        ByteBuffer binary = null;
+
+        try {
+            byte[] bytes = Files.readAllBytes(path);
+
+            if (bytes.length <= Integer.BYTES){
+                throw new IOException("TRUNCATED FILE");
+            }
+
+            binary = MemoryUtil.memAlloc(bytes.length).put(bytes).flip();
+            int format = binary.getInt();
+
+            glProgramBinary(programId, format, binary);
+
+            if (glGetProgrami(programId, GL_LINK_STATUS) == 0){
+                throw new IOException("REJECTED BY THE DRIVER");
+            }
+
+            return true;
+        }
+        catch (IOException e) {
+            Logger.warn("IGNORING INVALID PROGRAM CACHE FILE [{}]: {}", path, e.getMessage());
+            try {
+                Files.deleteIfExists(path);
+            }
+            catch (IOException ignored) {
+                //written again after the compile anyway
+            }
+            return false;
+        }
+        finally {
+            MemoryUtil.memFree(binary);
+        }
+    }
+
+    //the program must be linked, with GL_PROGRAM_BINARY_RETRIEVABLE_HINT set before linking
+    public static void write(String key, int programId){
+
+        Path path = getPath(key);
+        int length = glGetProgrami(programId, GL_PROGRAM_BINARY_LENGTH);
+
+        if (length == 0){
+            return;
+        }
+
+        ByteBuffer file = MemoryUtil.memAlloc(Integer.BYTES + length);
+
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+
+            IntBuffer format = stack.mallocInt(1);
+            IntBuffer written = stack.mallocInt(1);
+
+            glGetProgramBinary(programId, written, format, MemoryUtil.memSlice(file, Integer.BYTES, length));
+            file.putInt(0, format.get(0));
+
+            byte[] bytes = new byte[Integer.BYTES + written.get(0)];
+            file.get(0, bytes);
+
+            Utils.writeFileAtomically(path, bytes);
+        }
+        finally {
+            MemoryUtil.memFree(file);
+        }
+    }
+
+    private static Path getPath(String key){
+        return Paths.get(Consts.SHADER_CACHE_DIR, key + EXTENSION);
+    }
+
+}
@@ -0,0 +1,121 @@
+package blackjack.engine.graph;
+
+import java.util.*;
+
+/*
+ * free list allocator over a range of units [0, capacity), used by GeometryArena to hand out
+ * parts of its big buffers (units are vertices for vertex buffers and 4 byte words for index buffers)
+ *
+ * free blocks are kept sorted by offset, allocation takes the first block big enough (first fit)
+ * and freeing merges the block with its free neighbours, so the free list never holds two adjacent blocks
+ */
+
+class RangeAllocator {
+
+    //offset -> size of every free block
+    private final TreeMap<Integer, Integer> freeBlocks;
+    private int capacity;
+    private int usedUnits;
+
+    RangeAllocator(int capacity){
+        this.capacity = capacity;
+        freeBlocks = new TreeMap<>();
+        if (capacity > 0){
+            freeBlocks.put(0, capacity);
+        }
+    }
+
+    //returns the offset of the allocated block or -1 if no free block is big enough
+    int allocate(int size){
+
+        for (Map.Entry<Integer, Integer> block : freeBlocks.entrySet()){
+
+            int offset = block.getKey();
+            int blockSize = block.getValue();
+
+            if (blockSize < size){
+                continue;
+            }
+
+            freeBlocks.remove(offset);
+            if (blockSize > size){
+                freeBlocks.put(offset + size, blockSize - size);
+            }
+
+            usedUnits += size;
+            return offset;
+        }
+
+        return -1;
+    }
+
+    void free(int offset, int size){
+
+        if (size == 0){
+            return;
+        }
+
+        usedUnits -= size;
+        int start = offset;
+        int end = offset + size;
+
+        //merge with the free block right before and the one right after
+        Map.Entry<Integer, Integer> previous = freeBlocks.floorEntry(offset);
+        if (previous != null && previous.getKey() + previous.getValue() == start){
+            start = previous.getKey();
+            freeBlocks.remove(start);
+        }
+
+        Integer nextSize = freeBlocks.get(end);
+        if (nextSize != null){
+            freeBlocks.remove(end);
+            end += nextSize;
+        }
+
+        freeBlocks.put(start, end - start);
+    }
+
+    //the new units are appended to the free list, merged with a free block ending at the old capacity
+    void grow(int newCapacity){
+
+        int oldCapacity = capacity;
+        capacity = newCapacity;
+        usedUnits += newCapacity - oldCapacity;
+        free(oldCapacity, newCapacity - oldCapacity);
+    }
+
+    //drop every allocation, used before the defragmentation repacks the blocks from offset 0
+    void reset(){
+        freeBlocks.clear();
+        usedUnits = 0;
+        if (capacity > 0){
+            freeBlocks.put(0, capacity);
+        }
+    }
+
+    //getters
+    int getCapacity() {
+        return capacity;
+    }
+
+    int getUsedUnits() {
+        return usedUnits;
+    }
+
+    int getNumFreeBlocks() {
+        return freeBlocks.size();
+    }
+
+    //a single free block at the end of the range means there are no holes to close
+    boolean isFragmented() {
+        if (freeBlocks.isEmpty()){
+            return false;
+        }
+        if (freeBlocks.size() > 1){
+            return true;
+        }
+        Map.Entry<Integer, Integer> block = freeBlocks.firstEntry();
+        return block.getKey() + block.getValue() != capacity;
+    }
+
+}
@@ -3,6 +3,8 @@ package blackjack.engine.graph;
 import org.lwjgl.opengl.GL;
 import org.lwjgl.opengl.GL20;
 
+import blackjack.engine.AllocationMonitor;
+import blackjack.engine.Consts;
 import blackjack.engine.Window;
 import blackjack.engine.scene.Scene;
 
@@ -13,7 +15,9 @@ import static org.lwjgl.opengl.GL11.*;
 public class Render {
 
     private SceneRender sceneRender;
+    private ShadowRender shadowRender;
     private GuiRender guiRender;
+    private AllocationMonitor allocationMonitor;
 
     public Render(Window window){
         GL.createCapabilities();
@@ -24,22 +28,70 @@ public class Render {
         glCullFace(GL_BACK);
 
         sceneRender = new SceneRender();
+        if (Consts.SHADOWS){
+            shadowRender = new ShadowRender();
+        }
         guiRender = new GuiRender(window);
+
+        if (Consts.MONITOR_RENDER_ALLOCATIONS){
+            allocationMonitor = new AllocationMonitor("render", Consts.ALLOCATION_MONITOR_WARMUP_FRAMES);
+        }
     }
 
     public void cleanup(){
         sceneRender.cleanup();
         guiRender.cleanup();
+        if (shadowRender != null){
+            shadowRender.cleanup();
+        }
     }
 
-    public void render(Window window, Scene scene){
+    //alpha is the fraction of the update step elapsed since the last update, entities are drawn blended by it
+    public void render(Window window, Scene scene, float alpha){
         
         glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
 
-        glViewport(0, 0, window.getWidth(), window.getHeight());
+        //the GUI windows are built by application code (text formatting), that part is left out of the check
+        guiRender.buildGui(scene);
 
-        sceneRender.render(scene);
+        if (allocationMonitor != null){
+            allocationMonitor.begin();
+        }
+
+        renderScene(scene, sceneRender, shadowRender, window.getWidth(), window.getHeight(), alpha);
         guiRender.render(scene);
+
+        if (allocationMonitor != null){
+            allocationMonitor.end();
+        }
+    }
+
+    //engine part of the frame without the GUI, it must not allocate once warmed up (see RenderAllocationTest in test/)
+    static void renderScene(Scene scene, SceneRender sceneRender, ShadowRender shadowRender, int width, int height,
+            float alpha){
+
+        scene.getTextureCache().update();
+        scene.interpolate(alpha);
+
+        //the shadow pass draws into its own framebuffer, the viewport is set back for the scene afterwards
+        if (shadowRender != null){
+            shadowRender.render(scene, sceneRender.getRenderStats());
+        }
+
+        glViewport(0, 0, width, height);
+        sceneRender.render(scene);
+    }
+
+    public RenderStats getRenderStats(){
+        return sceneRender.getRenderStats();
+    }
+
+    public AllocationMonitor getAllocationMonitor(){
+        return allocationMonitor;
+    }
+
+    public SceneRender getSceneRender(){
+        return sceneRender;
     }
 
     public void resize(int width, int height){
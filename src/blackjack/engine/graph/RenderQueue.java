@@ -0,0 +1,244 @@
+package blackjack.engine.graph;
+
+import blackjack.engine.Consts;
+import blackjack.engine.scene.Entity;
+
+import java.util.*;
+
+/*
+ * Render queue, collects the draw items of a frame, sorts them and hands them back in the order
+ * that needs the fewest GPU state changes when submitted
+ *
+ * every item gets a 64 bit sort key with the most expensive state in the highest bits:
+ *   | shader (4) | texture (12) | normal map (12) | VAO (16) | depth (20) |
+ * so items sharing a shader end up together, inside them the ones sharing a texture and so on,
+ * depth goes last to draw front to back among items with the same state
+ * the ids are masked to fit their fields, a clash only makes the grouping a bit worse since the
+ * submission compares the real objects before changing any state
+ *
+ * keys are sorted with an LSD radix sort (8 bits per pass) together with the item indices,
+ * all the arrays are kept between frames and only grow, so a frame does not allocate
+ */
+
+public class RenderQueue {
+
+    private static final int SHADER_SHIFT = 60;
+    private static final int TEXTURE_SHIFT = 48;
+    private static final int NORMAL_MAP_SHIFT = 36;
+    private static final int VAO_SHIFT = 20;
+
+    private static final long SHADER_MASK = 0xFL;
+    private static final long TEXTURE_MASK = 0xFFFL;
+    private static final long NORMAL_MAP_MASK = 0xFFFL;
+    private static final long VAO_MASK = 0xFFFFL;
+    private static final long DEPTH_MASK = 0xFFFFFL;
+
+    private static final int RADIX_BITS = 8;
+    private static final int RADIX_SIZE = 1 << RADIX_BITS;
+
+    private long[] keys;
+    private long[] keysScratch;
+    private int[] order;
+    private int[] orderScratch;
+    private final int[] counts;
+
+    private Model[] models;
+    private Material[] materials;
+    private Mesh[] meshes;
+    private Entity[] entities;
+    private Texture[] textures;
+    private Texture[] normalMaps;
+    private int[] shaderIds;
+    private int[] numInstances;
+    private int[] baseInstances;
+    private int[] lods;
+
+    private int size;
+
+    public RenderQueue(){
+
+        int capacity = 64;
+        counts = new int[RADIX_SIZE];
+
+        keys = new long[capacity];
+        keysScratch = new long[capacity];
+        order = new int[capacity];
+        orderScratch = new int[capacity];
+
+        models = new Model[capacity];
+        materials = new Material[capacity];
+        meshes = new Mesh[capacity];
+        entities = new Entity[capacity];
+        textures = new Texture[capacity];
+        normalMaps = new Texture[capacity];
+        shaderIds = new int[capacity];
+        numInstances = new int[capacity];
+        baseInstances = new int[capacity];
+        lods = new int[capacity];
+    }
+
+    public void clear(){
+        //drop the references so unloaded models can be collected
+        Arrays.fill(models, 0, size, null);
+        Arrays.fill(materials, 0, size, null);
+        Arrays.fill(meshes, 0, size, null);
+        Arrays.fill(entities, 0, size, null);
+        Arrays.fill(textures, 0, size, null);
+        Arrays.fill(normalMaps, 0, size, null);
+        size = 0;
+    }
+
+    /*
+     * entity is null for instanced items (instances entities of the model, starting at baseInstance, in one draw)
+     * lod is the level of detail of the mesh to draw
+     * normalMap is null when the material does not use one
+     * depth is the distance from the camera, used to sort front to back
+     */
+    public void add(int shaderId, Model model, Material material, Mesh mesh, int lod, Entity entity, int instances,
+            int baseInstance, Texture texture, Texture normalMap, float depth){
+
+        if (size == keys.length){
+            grow(size * 2);
+        }
+
+        keys[size] = createKey(shaderId, texture.getTextureId(), normalMap != null ? normalMap.getTextureId() : 0,
+                mesh.getVaoId(), depth);
+        order[size] = size;
+
+        models[size] = model;
+        materials[size] = material;
+        meshes[size] = mesh;
+        entities[size] = entity;
+        textures[size] = texture;
+        normalMaps[size] = normalMap;
+        shaderIds[size] = shaderId;
+        numInstances[size] = instances;
+        baseInstances[size] = baseInstance;
+        lods[size] = lod;
+
+        size++;
+    }
+
+    public static long createKey(int shaderId, int textureId, int normalMapId, int vaoId, float depth){
+
+        float normalizedDepth = Math.min(Math.max(depth / Consts.Z_FAR, 0.0f), 1.0f);
+        long quantizedDepth = (long) (normalizedDepth * DEPTH_MASK);
+
+        return ((shaderId & SHADER_MASK) << SHADER_SHIFT)
+                | ((textureId & TEXTURE_MASK) << TEXTURE_SHIFT)
+                | ((normalMapId & NORMAL_MAP_MASK) << NORMAL_MAP_SHIFT)
+                | ((vaoId & VAO_MASK) << VAO_SHIFT)
+                | (quantizedDepth & DEPTH_MASK);
+    }
+
+    //LSD radix sort over the keys, the item indices travel with them
+    public void sort(){
+
+        for (int shift = 0; shift < Long.SIZE; shift += RADIX_BITS){
+
+            Arrays.fill(counts, 0);
+
+            for (int i = 0; i < size; i++){
+                counts[(int) ((keys[i] >>> shift) & (RADIX_SIZE - 1))]++;
+            }
+
+            //every key has the same digit in this pass, the order would not change
+            if (size == 0 || counts[(int) ((keys[0] >>> shift) & (RADIX_SIZE - 1))] == size){
+                continue;
+            }
+
+            int total = 0;
+            for (int i = 0; i < RADIX_SIZE; i++){
+                int count = counts[i];
+                counts[i] = total;
+                total += count;
+            }
+
+            for (int i = 0; i < size; i++){
+                int digit = (int) ((keys[i] >>> shift) & (RADIX_SIZE - 1));
+                int dest = counts[digit]++;
+                keysScratch[dest] = keys[i];
+                orderScratch[dest] = order[i];
+            }
+
+            long[] auxKeys = keys;
+            keys = keysScratch;
+            keysScratch = auxKeys;
+
+            int[] auxOrder = order;
+            order = orderScratch;
+            orderScratch = auxOrder;
+        }
+    }
+
+    private void grow(int capacity){
+        keys = Arrays.copyOf(keys, capacity);
+        keysScratch = new long[capacity];
+        order = Arrays.copyOf(order, capacity);
+        orderScratch = new int[capacity];
+
+        models = Arrays.copyOf(models, capacity);
+        materials = Arrays.copyOf(materials, capacity);
+        meshes = Arrays.copyOf(meshes, capacity);
+        entities = Arrays.copyOf(entities, capacity);
+        textures = Arrays.copyOf(textures, capacity);
+        normalMaps = Arrays.copyOf(normalMaps, capacity);
+        shaderIds = Arrays.copyOf(shaderIds, capacity);
+        numInstances = Arrays.copyOf(numInstances, capacity);
+        baseInstances = Arrays.copyOf(baseInstances, capacity);
+        lods = Arrays.copyOf(lods, capacity);
+    }
+
+    /*
+     * getters, the position is the index in sorted order (0 to size - 1)
+     * they only make sense after sort() was called
+     */
+    public int size() {
+        return size;
+    }
+
+    public long getKey(int position) {
+        return keys[position];
+    }
+
+    public Model getModel(int position) {
+        return models[order[position]];
+    }
+
+    public Material getMaterial(int position) {
+        return materials[order[position]];
+    }
+
+    public Mesh getMesh(int position) {
+        return meshes[order[position]];
+    }
+
+    public Entity getEntity(int position) {
+        return entities[order[position]];
+    }
+
+    public Texture getTexture(int position) {
+        return textures[order[position]];
+    }
+
+    public Texture getNormalMap(int position) {
+        return normalMaps[order[position]];
+    }
+
+    public int getShaderId(int position) {
+        return shaderIds[order[position]];
+    }
+
+    public int getNumInstances(int position) {
+        return numInstances[order[position]];
+    }
+
+    public int getBaseInstance(int position) {
+        return baseInstances[order[position]];
+    }
+
+    public int getLod(int position) {
+        return lods[order[position]];
+    }
+
+}
@@ -0,0 +1,108 @@
+package blackjack.engine.graph;
+
+/*
+ * counters filled by the renderers during a frame so we can check
+ * how much work each frame actually sends to the GPU
+ * the values are reset at the start of every frame
+ */
+
+public class RenderStats {
+
+    private int drawCalls;
+    private int instancesDrawn;
+    private int bufferUploads;
+
+    //state changes (binds, material updates) issued and the ones skipped thanks to the sorted render queue
+    private int stateChanges;
+    private int stateChangesAvoided;
+    private long totalStateChangesAvoided;
+
+    //filled by the frustum culling stage
+    private int culledEntities;
+    private int culledMeshes;
+
+    //shadow map layers drawn this frame by ShadowRender, 0 while nothing that casts shadows changes
+    private int shadowMapRedraws;
+    private long totalShadowMapRedraws;
+
+    public void reset(){
+        drawCalls = 0;
+        instancesDrawn = 0;
+        bufferUploads = 0;
+        stateChanges = 0;
+        stateChangesAvoided = 0;
+        culledEntities = 0;
+        culledMeshes = 0;
+    }
+
+    public void addDrawCall(int instances){
+        drawCalls++;
+        instancesDrawn += instances;
+    }
+
+    public void addBufferUpload(){
+        bufferUploads++;
+    }
+
+    public void addStateChange(){
+        stateChanges++;
+    }
+
+    public void addStateChangeAvoided(){
+        stateChangesAvoided++;
+        totalStateChangesAvoided++;
+    }
+
+    public void setCulled(int culledEntities, int culledMeshes){
+        this.culledEntities = culledEntities;
+        this.culledMeshes = culledMeshes;
+    }
+
+    //set before the scene render resets the other counters, so it is not cleared by reset
+    public void setShadowMapRedraws(int shadowMapRedraws){
+        this.shadowMapRedraws = shadowMapRedraws;
+        totalShadowMapRedraws += shadowMapRedraws;
+    }
+
+    //getters
+    public int getDrawCalls() {
+        return drawCalls;
+    }
+
+    public int getInstancesDrawn() {
+        return instancesDrawn;
+    }
+
+    public int getBufferUploads() {
+        return bufferUploads;
+    }
+
+    public int getStateChanges() {
+        return stateChanges;
+    }
+
+    public int getStateChangesAvoided() {
+        return stateChangesAvoided;
+    }
+
+    public int getCulledEntities() {
+        return culledEntities;
+    }
+
+    public int getCulledMeshes() {
+        return culledMeshes;
+    }
+
+    public int getShadowMapRedraws() {
+        return shadowMapRedraws;
+    }
+
+    public long getTotalShadowMapRedraws() {
+        return totalShadowMapRedraws;
+    }
+
+    public long getTotalStateChangesAvoided() {
+        return totalStateChangesAvoided;
+    }
+
+}
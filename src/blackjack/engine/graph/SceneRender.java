@@ -1,8 +1,10 @@
 package blackjack.engine.graph;
 
 import blackjack.engine.Consts;
+import blackjack.engine.scene.Camera;
 import blackjack.engine.scene.Entity;
 // import blackjack.engine.Window;
+import blackjack.engine.scene.Projection;
 import blackjack.engine.scene.Scene;
 import blackjack.engine.scene.lights.AmbientLight;
 import blackjack.engine.scene.lights.DirLight;
@@ -12,29 +14,106 @@ import blackjack.engine.scene.lights.SpotLight;
 
 import java.util.*;
 
-import org.joml.Matrix4f;
 import org.joml.Vector3f;
-import org.joml.Vector4f;
 
-import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.*;
+import static org.lwjgl.opengl.GL32.glDrawElementsBaseVertex;
+import static org.lwjgl.opengl.GL42.glDrawElementsInstancedBaseVertexBaseInstance;
+import static org.lwjgl.opengl.GL43.glBindVertexBuffer;
 
 public class SceneRender {
 
-    private ShaderProgram shaderProgram;
-
-    private UniformsMap uniformsMap;
+    /*
+     * std140 layout of the uniform blocks declared in scene.vert/scene.frag, offsets in bytes
+     * Matrices { mat4 projectionMatrix; mat4 viewMatrix; }
+     * Lights { AmbientLight; DirLight; PointLight[MAX_POINT_LIGHTS]; SpotLight[MAX_SPOT_LIGHTS]; }
+     */
+    private static final int MATRICES_SIZE = 2 * 64;
+    private static final int PROJECTION_OFFSET = 0;
+    private static final int VIEW_OFFSET = 64;
+
+    private static final int AMBIENT_LIGHT_OFFSET = 0;
+    private static final int DIR_LIGHT_OFFSET = 16;
+    private static final int POINT_LIGHTS_OFFSET = 48;
+    private static final int POINT_LIGHT_SIZE = 48;
+    private static final int SPOT_LIGHTS_OFFSET = POINT_LIGHTS_OFFSET + Consts.MAX_POINT_LIGHTS * POINT_LIGHT_SIZE;
+    private static final int SPOT_LIGHT_SIZE = 64;
+    private static final int LIGHTS_SIZE = SPOT_LIGHTS_OFFSET + Consts.MAX_SPOT_LIGHTS * SPOT_LIGHT_SIZE;
+
+    //ids of the scene programs inside the render queue sort keys, without and with normal mapping
+    private static final int SCENE_SHADER_ID = 0;
+    private static final int SCENE_NORMAL_MAP_SHADER_ID = 1;
+
+    //one program per number of active point lights, active spot lights and normal mapping on/off
+    private static final int NUM_PERMUTATIONS = (Consts.MAX_POINT_LIGHTS + 1) * (Consts.MAX_SPOT_LIGHTS + 1) * 2;
+
+    //texture units of the plain textures and of the texture arrays (see TextureArray)
+    private static final int TEXTURE_UNIT = 0;
+    private static final int NORMAL_MAP_UNIT = 1;
+    private static final int TEXTURE_ARRAY_UNIT = 2;
+    private static final int NORMAL_MAP_ARRAY_UNIT = 3;
+
+    /*
+     * scene.frag is compiled with the light counts and the normal mapping as defines, so a fragment only
+     * loops over the lights actually present, the programs are built the first time a combination is
+     * drawn (with ProgramBinaryCache that is a quick load after the first run)
+     * with clustered lighting the counts come from the cluster of the fragment instead, see clusteredPermutations
+     */
+    private final ScenePermutation[] permutations;
+    private int numActivePointLights;
+    private int numActiveSpotLights;
+
+    //point and spot lights without caps, one program with and one without normal mapping, null when disabled
+    private final ClusteredLighting clusteredLighting;
+    private final ScenePermutation[] clusteredPermutations;
+
+    //draw items of the frame, sorted to minimize state changes before being submitted
+    private RenderQueue renderQueue;
+
+    //entities and meshes outside the camera view are not added to the render queue
+    private FrustumCuller frustumCuller;
+    private boolean frustumCulling;
+
+    //texture bound to each unit during the submission
+    private final int[] boundTextureIds = new int[4];
+
+    //per frame data (camera and projection) and light set, only re-uploaded when they change
+    private UniformBuffer matricesBuffer;
+    private UniformBuffer lightsBuffer;
+    private int cameraVersion;
+    private int projectionVersion;
+    private long lightsVersion;
+    private boolean lightsUploaded;
+
+    //level of detail of the entities of the model being collected, see selectLods
+    private int[] entityLods;
+    private final Vector3f lodCenter;
+    private final float lodTanHalfFov;
+
+    //when enabled, all the entities of a model are drawn with one instanced draw call per mesh
+    private boolean instancedRendering;
+    private RenderStats renderStats;
 
     public SceneRender(){
 
-        //create two shader module data instances (one for each shader module) and with them create a shader program
-        List<ShaderProgram.ShaderModuleData> shaderModuleDataList = new ArrayList<>();
+        permutations = new ScenePermutation[NUM_PERMUTATIONS];
+        clusteredLighting = Consts.CLUSTERED_LIGHTING ? new ClusteredLighting() : null;
+        clusteredPermutations = new ScenePermutation[2];
 
-        shaderModuleDataList.add(new ShaderProgram.ShaderModuleData("resources/shaders/scene.vert", GL_VERTEX_SHADER));
-        shaderModuleDataList.add(new ShaderProgram.ShaderModuleData("resources/shaders/scene.frag", GL_FRAGMENT_SHADER));
+        instancedRendering = Consts.INSTANCED_RENDERING;
+        renderStats = new RenderStats();
+        renderQueue = new RenderQueue();
+        frustumCuller = new FrustumCuller();
+        frustumCulling = Consts.FRUSTUM_CULLING;
 
-        shaderProgram = new ShaderProgram(shaderModuleDataList);
+        entityLods = new int[64];
+        lodCenter = new Vector3f();
+        lodTanHalfFov = (float) Math.tan(Consts.FOV * 0.5f);
 
-        createUniforms();
+        matricesBuffer = new UniformBuffer(MATRICES_SIZE, UniformBuffer.MATRICES_BINDING);
+        lightsBuffer = new UniformBuffer(LIGHTS_SIZE, UniformBuffer.LIGHTS_BINDING);
+        cameraVersion = -1;
+        projectionVersion = -1;
     }
 
 
@@ -42,227 +121,583 @@ public class SceneRender {
     //iterate over the meshes stored in the scene instance, bind them and draw the vertices of the VAO
     public void render(Scene scene){
 
-        shaderProgram.bind();
+        renderStats.reset();
+
+        updateMatrices(scene);
         updateLights(scene);
 
-        //set uniforms before drawing elements
-        uniformsMap.setUniform("projectionMatrix", scene.getProjection().getProjMatrix());
-        uniformsMap.setUniform("viewMatrix", scene.getCamera().getViewMatrix());
-        uniformsMap.setUniform("txtSampler", 0);
-        
-        Collection<Model> models = scene.getModelMap().values();
-        TextureCache textureCache = scene.getTextureCache();
+        matricesBuffer.bind();
+        lightsBuffer.bind();
+
+        MaterialCache materialCache = scene.getMaterialCache();
+        materialCache.update();
+        materialCache.bind();
+
+        if (Consts.LIGHTMAPS){
+            scene.getLightmaps().bind();
+        }
+
+        if (clusteredLighting != null){
+            for (int i = clusteredLighting.update(scene); i > 0; i--){
+                renderStats.addBufferUpload();
+            }
+            clusteredLighting.bind();
+        }
+
+        if (frustumCulling){
+            frustumCuller.cull(scene);
+            renderStats.setCulled(frustumCuller.getCulledEntities(), frustumCuller.getCulledMeshes());
+        }
+
+        collectDrawItems(scene);
+        renderQueue.sort();
+        submitDrawItems(scene.getSelectedEntity());
+
+        glBindVertexArray(0);
+        glUseProgram(0);
+
+    }
+
+    /*
+     * first stage of the frame, every (model, material, mesh) to draw becomes an item of the render queue
+     * (or one item per entity when instancing is disabled), nothing is sent to the GPU yet
+     */
+    private void collectDrawItems(Scene scene){
+
+        renderQueue.clear();
+
+        //plain indexed loops over array lists, iterators would create garbage every frame
+        List<Model> models = scene.getModelList();
+        MaterialCache materialCache = scene.getMaterialCache();
         Entity selectedEntity = scene.getSelectedEntity();
+        Vector3f cameraPosition = scene.getCamera().getPosition();
 
-        for(Model model : models){
+        boolean[] entityVisibility = frustumCulling ? frustumCuller.getEntityVisibility() : null;
 
+        for (int i = 0; i < models.size(); i++){
+
+            Model model = models.get(i);
             List<Entity> entities = model.getEntitiesList();
 
-            for(Material material : model.getMaterialList()) {
+            if (entities.isEmpty()){
+                continue;
+            }
+
+            int entityOffset = frustumCulling ? frustumCuller.getEntityOffset(i) : 0;
+            int meshIndex = frustumCulling ? frustumCuller.getMeshOffset(i) : 0;
 
-                String normalMapPath = material.getNormalMapPath();
-                boolean hasNormalMapPath = normalMapPath != null;
+            //only re-uploaded when an entity of the model changed since the last frame
+            int numInstances = 0;
+            float modelDepth = 0.0f;
 
-                uniformsMap.setUniform("material.hasNormalMap", hasNormalMapPath ? 1 : 0);
-                uniformsMap.setUniform("material.ambient", material.getAmbientColor());
-                uniformsMap.setUniform("material.diffuse", material.getDiffusecolor());
-                uniformsMap.setUniform("material.specular", material.getSpecularColor());
-                uniformsMap.setUniform("material.reflectance", material.getReflectance());
+            selectLods(model, entities, cameraPosition);
 
-                Texture texture = textureCache.getTexture(material.getTexturePath());
-                glActiveTexture(GL_TEXTURE0);
-                texture.bind();
+            if (instancedRendering){
+                numInstances = model.getInstanceBuffer().update(entities, entityVisibility, entityOffset, entityLods,
+                        selectedEntity);
+                modelDepth = closestDistance(entities, cameraPosition);
 
-                if (hasNormalMapPath) {
-                    Texture normalMapTexture = textureCache.getTexture(normalMapPath);
-                    glActiveTexture(GL_TEXTURE1);
-                    normalMapTexture.bind();
+                if (numInstances == 0){
+                    continue;
                 }
+            }
+
+            List<Material> materials = model.getMaterialList();
 
-                for (Mesh mesh : material.getMeshList()) {
+            for (int j = 0; j < materials.size(); j++) {
 
-                    glBindVertexArray(mesh.getVaoId());
+                Material material = materials.get(j);
+                int materialId = material.getMaterialId();
 
-                    for(Entity entity : entities){
-                        
-                        uniformsMap.setUniform("selected",
-                                selectedEntity != null && selectedEntity.getId().equals(entity.getId()) ? 1 : 0);
-                                
-                        uniformsMap.setUniform("modelMatrix", entity.getModelMatrix());
-                       
-                        glDrawElements(GL_TRIANGLES, mesh.getNumVertices(), GL_UNSIGNED_INT, 0);
-                    
+                Texture texture = materialCache.getTexture(materialId);
+                Texture normalMap = materialCache.getNormalMap(materialId);
+                int shaderId = normalMap != null ? SCENE_NORMAL_MAP_SHADER_ID : SCENE_SHADER_ID;
+
+                List<Mesh> meshes = material.getMeshList();
+
+                for (int k = 0; k < meshes.size(); k++, meshIndex++) {
+
+                    Mesh mesh = meshes.get(k);
+
+                    //outside the frustum for every entity of the model
+                    if (frustumCulling && !frustumCuller.isMeshVisible(meshIndex)){
+                        continue;
+                    }
+
+                    if (instancedRendering){
+                        addInstancedItems(shaderId, model, material, mesh, texture, normalMap, modelDepth);
+                        continue;
+                    }
+
+                    for (int l = 0; l < entities.size(); l++){
+
+                        if (frustumCulling && !frustumCuller.isEntityVisible(entityOffset + l)){
+                            continue;
+                        }
+
+                        Entity entity = entities.get(l);
+                        int lod = Math.min(entityLods[l], mesh.getNumLods() - 1);
+                        renderQueue.add(shaderId, model, material, mesh, lod, entity, 1, 0,
+                                texture, normalMap, entity.getPosition().distance(cameraPosition));
                     }
                 }
             }
         }
+    }
 
-        glBindVertexArray(0);
+    /*
+     * one item per group of instances sharing a level of detail, meshes with fewer levels than the
+     * entities use their last one, in that case the consecutive groups are merged into one draw
+     */
+    private void addInstancedItems(int shaderId, Model model, Material material, Mesh mesh, Texture texture,
+            Texture normalMap, float depth){
+
+        InstanceBuffer instanceBuffer = model.getInstanceBuffer();
+        int lastMeshLod = mesh.getNumLods() - 1;
+
+        for (int lod = 0; lod < Consts.MESH_LODS; lod++){
 
-        shaderProgram.unbind();
+            int count = instanceBuffer.getLodInstanceCount(lod);
 
+            if (count == 0){
+                continue;
+            }
+
+            int offset = instanceBuffer.getLodInstanceOffset(lod);
+            int meshLod = Math.min(lod, lastMeshLod);
+
+            if (meshLod == lastMeshLod){
+                count = instanceBuffer.getNumInstances() - offset;
+                renderQueue.add(shaderId, model, material, mesh, meshLod, null, count, offset,
+                        texture, normalMap, depth);
+                return;
+            }
+
+            renderQueue.add(shaderId, model, material, mesh, meshLod, null, count, offset,
+                    texture, normalMap, depth);
+        }
+    }
+
+    /*
+     * level of detail of each entity of the model from its projected size, the radius of the model bounding
+     * sphere over the distance, relative to the half height of the view (tan(fov / 2) at distance 1)
+     */
+    private void selectLods(Model model, List<Entity> entities, Vector3f cameraPosition){
+
+        int numEntities = entities.size();
+
+        if (entityLods.length < numEntities){
+            entityLods = new int[numEntities * 2];
+        }
+
+        float[] screenSizes = Consts.LOD_SCREEN_SIZES;
+
+        for (int i = 0; i < numEntities; i++){
+
+            Entity entity = entities.get(i);
+            entity.getModelMatrix().transformPosition(model.getBoundsCenter(), lodCenter);
+
+            float radius = model.getBoundsRadius() * entity.getScale();
+            float distance = lodCenter.distance(cameraPosition);
+            float screenSize = distance > radius ? radius / (distance * lodTanHalfFov) : Float.MAX_VALUE;
+
+            int lod = 0;
+            while (lod < screenSizes.length && lod < Consts.MESH_LODS - 1 && screenSize < screenSizes[lod]){
+                lod++;
+            }
+
+            entityLods[i] = lod;
+        }
+    }
+
+    //instanced items are sorted by their closest entity
+    private static float closestDistance(List<Entity> entities, Vector3f cameraPosition){
+
+        float closest = Float.MAX_VALUE;
+
+        for (int i = 0; i < entities.size(); i++){
+            closest = Math.min(closest, entities.get(i).getPosition().distanceSquared(cameraPosition));
+        }
+
+        return (float) Math.sqrt(closest);
+    }
+
+    /*
+     * last stage, walk the sorted queue and only touch GPU state when the item needs something
+     * different from the previous one, every skipped bind or material update counts as avoided
+     */
+    private void submitDrawItems(Entity selectedEntity){
+
+        ScenePermutation permutation = null;
+        int currentShaderId = -1;
+        int currentMaterialId = -1;
+        Texture currentTexture = null;
+        Texture currentNormalMap = null;
+        int currentVaoId = -1;
+        int currentInstanceVboId = -1;
+
+        //other renders may have changed the texture units since the last frame
+        Arrays.fill(boundTextureIds, -1);
+
+        for (int i = 0; i < renderQueue.size(); i++){
+
+            Material material = renderQueue.getMaterial(i);
+            Texture texture = renderQueue.getTexture(i);
+            Texture normalMap = renderQueue.getNormalMap(i);
+            Mesh mesh = renderQueue.getMesh(i);
+            int shaderId = renderQueue.getShaderId(i);
+
+            //uniform values belong to the program, everything is set again after a switch
+            if (shaderId != currentShaderId){
+                permutation = getPermutation(shaderId == SCENE_NORMAL_MAP_SHADER_ID);
+                permutation.shaderProgram.bind();
+                permutation.uniformsMap.setUniform(permutation.instancedUniform, instancedRendering ? 1 : 0);
+                currentShaderId = shaderId;
+                currentMaterialId = -1;
+                currentTexture = null;
+                currentNormalMap = null;
+                renderStats.addStateChange();
+            }
+
+            UniformsMap uniformsMap = permutation.uniformsMap;
+
+            //the parameters are in the materials buffer, identical materials of different models share the id
+            if (material.getMaterialId() != currentMaterialId){
+                uniformsMap.setUniform(permutation.materialIndexUniform, material.getMaterialId());
+                currentMaterialId = material.getMaterialId();
+                renderStats.addStateChange();
+            }
+            else {
+                renderStats.addStateChangeAvoided();
+            }
+
+            //the layer is just a uniform, textures packed in the same array share a single bind
+            if (texture != currentTexture){
+                uniformsMap.setUniform(permutation.textureLayerUniform, texture.getLayer());
+                currentTexture = texture;
+            }
+            bindTexture(texture, texture.isLayer() ? TEXTURE_ARRAY_UNIT : TEXTURE_UNIT);
+
+            if (normalMap != null){
+                if (normalMap != currentNormalMap){
+                    uniformsMap.setUniform(permutation.normalMapLayerUniform, normalMap.getLayer());
+                    currentNormalMap = normalMap;
+                }
+                bindTexture(normalMap, normalMap.isLayer() ? NORMAL_MAP_ARRAY_UNIT : NORMAL_MAP_UNIT);
+            }
+
+            //one VAO per vertex layout in the geometry arena, the instance buffer binding is part of its state
+            if (mesh.getVaoId() != currentVaoId){
+                glBindVertexArray(mesh.getVaoId());
+                currentVaoId = mesh.getVaoId();
+                currentInstanceVboId = -1;
+                renderStats.addStateChange();
+            }
+            else {
+                renderStats.addStateChangeAvoided();
+            }
+
+            int instanceVboId = renderQueue.getModel(i).getInstanceBuffer().getVboId();
+
+            if (instanceVboId != currentInstanceVboId){
+                glBindVertexBuffer(GeometryArena.INSTANCE_BINDING, instanceVboId, 0, InstanceBuffer.INSTANCE_STRIDE);
+                currentInstanceVboId = instanceVboId;
+                renderStats.addStateChange();
+            }
+            else {
+                renderStats.addStateChangeAvoided();
+            }
+
+            Entity entity = renderQueue.getEntity(i);
+            int lod = renderQueue.getLod(i);
+
+            if (entity == null){
+                int numInstances = renderQueue.getNumInstances(i);
+                glDrawElementsInstancedBaseVertexBaseInstance(GL_TRIANGLES, mesh.getLodIndexCount(lod), mesh.getIndexType(),
+                        mesh.getLodIndexOffset(lod), numInstances, mesh.getBaseVertex(), renderQueue.getBaseInstance(i));
+                renderStats.addDrawCall(numInstances);
+                continue;
+            }
+
+            uniformsMap.setUniform(permutation.selectedUniform,
+                    selectedEntity != null && selectedEntity.getId().equals(entity.getId()) ? 1 : 0);
+            uniformsMap.setUniform(permutation.modelMatrixUniform, entity.getModelMatrix());
+            uniformsMap.setUniform(permutation.entityTextureLayerUniform, entity.getTextureLayer());
+            uniformsMap.setUniform(permutation.entityLightmapLayerUniform, entity.getLightmapLayer());
+
+            glDrawElementsBaseVertex(GL_TRIANGLES, mesh.getLodIndexCount(lod), mesh.getIndexType(), mesh.getLodIndexOffset(lod),
+                    mesh.getBaseVertex());
+            renderStats.addDrawCall(1);
+        }
+    }
+
+    //binds the texture (or its whole array) to the unit unless it is already there
+    private void bindTexture(Texture texture, int unit){
+
+        if (boundTextureIds[unit] == texture.getTextureId()){
+            renderStats.addStateChangeAvoided();
+            return;
+        }
+
+        glActiveTexture(GL_TEXTURE0 + unit);
+        texture.bind();
+        boundTextureIds[unit] = texture.getTextureId();
+        renderStats.addStateChange();
+    }
+
+    //program for the active lights of the frame, built on first use
+    private ScenePermutation getPermutation(boolean normalMap){
+
+        if (clusteredLighting != null){
+            int index = normalMap ? 1 : 0;
+            if (clusteredPermutations[index] == null){
+                clusteredPermutations[index] = new ScenePermutation(0, 0, normalMap, true);
+            }
+            return clusteredPermutations[index];
+        }
+
+        int index = (numActivePointLights * (Consts.MAX_SPOT_LIGHTS + 1) + numActiveSpotLights) * 2 + (normalMap ? 1 : 0);
+        ScenePermutation permutation = permutations[index];
+
+        if (permutation == null){
+            permutation = new ScenePermutation(numActivePointLights, numActiveSpotLights, normalMap, false);
+            permutations[index] = permutation;
+        }
+
+        return permutation;
     }
 
     //free resources
     public void cleanup(){
-        shaderProgram.cleanup();
+        for (ScenePermutation permutation : permutations){
+            if (permutation != null){
+                permutation.shaderProgram.cleanup();
+            }
+        }
+        for (ScenePermutation permutation : clusteredPermutations){
+            if (permutation != null){
+                permutation.shaderProgram.cleanup();
+            }
+        }
+        if (clusteredLighting != null){
+            clusteredLighting.cleanup();
+        }
+        matricesBuffer.cleanup();
+        lightsBuffer.cleanup();
     }
 
-    public void createUniforms(){
+    //getters and setters
+    public RenderStats getRenderStats() {
+        return renderStats;
+    }
 
-        uniformsMap = new UniformsMap(shaderProgram.getProgramId());
-        
-        uniformsMap.createUniform("projectionMatrix");
-        uniformsMap.createUniform("modelMatrix");
-        uniformsMap.createUniform("txtSampler");
-        uniformsMap.createUniform("normalSampler");
-        uniformsMap.createUniform("viewMatrix");
-
-        uniformsMap.createUniform("material.ambient");
-        uniformsMap.createUniform("material.diffuse");
-        uniformsMap.createUniform("material.specular");
-        uniformsMap.createUniform("material.reflectance");
-        uniformsMap.createUniform("material.hasNormalMap");
-
-        uniformsMap.createUniform("ambientLight.factor");
-        uniformsMap.createUniform("ambientLight.color");
-
-        uniformsMap.createUniform("selected");
-
-        for (int i = 0; i < Consts.MAX_POINT_LIGHTS; i++){
-            String name = "pointLights[" + i + "]";
-            uniformsMap.createUniform(name + ".position");
-            uniformsMap.createUniform(name + ".color");
-            uniformsMap.createUniform(name + ".intensity");
-            uniformsMap.createUniform(name + ".att.constant");
-            uniformsMap.createUniform(name + ".att.linear");
-            uniformsMap.createUniform(name + ".att.exponent");
-        }
-        
-        for (int i = 0; i < Consts.MAX_SPOT_LIGHTS; i++){
-            String name = "spotLights[" + i + "]";
-            uniformsMap.createUniform(name + ".pl.position");
-            uniformsMap.createUniform(name + ".pl.color");
-            uniformsMap.createUniform(name + ".pl.intensity");
-            uniformsMap.createUniform(name + ".pl.att.constant");
-            uniformsMap.createUniform(name + ".pl.att.linear");
-            uniformsMap.createUniform(name + ".pl.att.exponent");
-            uniformsMap.createUniform(name + ".conedir");
-            uniformsMap.createUniform(name + ".cutoff");
+    public boolean isFrustumCulling() {
+        return frustumCulling;
+    }
+
+    public void setFrustumCulling(boolean frustumCulling) {
+        this.frustumCulling = frustumCulling;
+    }
+
+    public boolean isInstancedRendering() {
+        return instancedRendering;
+    }
+
+    public void setInstancedRendering(boolean instancedRendering) {
+        this.instancedRendering = instancedRendering;
+    }
+
+    //upload projection and view matrices, only when the projection or the camera changed
+    private void updateMatrices(Scene scene){
+
+        Projection projection = scene.getProjection();
+        Camera camera = scene.getCamera();
+
+        if (projection.getVersion() == projectionVersion && camera.getVersion() == cameraVersion){
+            return;
         }
 
-        uniformsMap.createUniform("dirLight.color");
-        uniformsMap.createUniform("dirLight.direction");
-        uniformsMap.createUniform("dirLight.intensity");
+        matricesBuffer.put(PROJECTION_OFFSET, projection.getProjMatrix());
+        matricesBuffer.put(VIEW_OFFSET, camera.getViewMatrix());
+        matricesBuffer.upload();
+        renderStats.addBufferUpload();
 
+        projectionVersion = projection.getVersion();
+        cameraVersion = camera.getVersion();
     }
 
-    //update the uniforms for lights for each render call
+    /*
+     * fill the lights block, only when a light changed since the last upload
+     * light positions are stored in world space and moved to view space in the shaders,
+     * that way moving the camera does not require to upload the lights again
+     */
     private void updateLights(Scene scene){
 
-        Matrix4f viewMatrix = scene.getCamera().getViewMatrix();
-    
         SceneLights sceneLights = scene.getSceneLights();
+        long version = sceneLights.getVersion();
+
+        if (lightsUploaded && version == lightsVersion){
+            return;
+        }
         
         AmbientLight ambientLight = sceneLights.getAmbientLight();
-        uniformsMap.setUniform("ambientLight.factor", ambientLight.getIntensity());
-        uniformsMap.setUniform("ambientLight.color", ambientLight.getColor());
+        lightsBuffer.put(AMBIENT_LIGHT_OFFSET, ambientLight.getColor());
+        lightsBuffer.put(AMBIENT_LIGHT_OFFSET + 12, ambientLight.getIntensity());
 
         DirLight dirLight = sceneLights.getDirLight();
-        
-        Vector4f auxDir = new Vector4f(dirLight.getDirection(), 0);
-        auxDir.mul(viewMatrix);
-    
-        uniformsMap.setUniform("dirLight.color", dirLight.getColor());
-        uniformsMap.setUniform("dirLight.direction", dirLight.getDirection());
-        uniformsMap.setUniform("dirLight.intensity", dirLight.getIntensity());
+        lightsBuffer.put(DIR_LIGHT_OFFSET, dirLight.getColor());
+        lightsBuffer.put(DIR_LIGHT_OFFSET + 12, dirLight.getIntensity());
+        lightsBuffer.put(DIR_LIGHT_OFFSET + 16, dirLight.getDirection());
     
+        //lights that are switched off are left out, the active ones are packed at the start of the arrays
         List<PointLight> pointLights = sceneLights.getPointLights();
-        int numPointLights = pointLights.size();
-        PointLight pointLight;
+        numActivePointLights = 0;
 
-        for (int i = 0; i < Consts.MAX_POINT_LIGHTS; i++){
-            if (i < numPointLights){
-                pointLight = pointLights.get(i);
-            }
-            else{
-                pointLight = null;
+        for (int i = 0; i < pointLights.size() && numActivePointLights < Consts.MAX_POINT_LIGHTS; i++){
+            PointLight pointLight = pointLights.get(i);
+            if (pointLight.getIntensity() > 0.0f){
+                putPointLight(pointLight, POINT_LIGHTS_OFFSET + numActivePointLights++ * POINT_LIGHT_SIZE);
             }
-
-            String name = "pointLights[" + i + "]";
-            updatePointLight(pointLight, name, viewMatrix);
+        }
+        for (int i = numActivePointLights; i < Consts.MAX_POINT_LIGHTS; i++){
+            putPointLight(null, POINT_LIGHTS_OFFSET + i * POINT_LIGHT_SIZE);
         }
     
         List<SpotLight> spotLights = sceneLights.getSpotLights();
-        int numSpotLights = spotLights.size();
-        SpotLight spotLight;
+        numActiveSpotLights = 0;
 
-        for (int i = 0; i < Consts.MAX_SPOT_LIGHTS; i++){
-            if (i < numSpotLights){
-                spotLight = spotLights.get(i);
+        for (int i = 0; i < spotLights.size() && numActiveSpotLights < Consts.MAX_SPOT_LIGHTS; i++){
+            SpotLight spotLight = spotLights.get(i);
+            if (spotLight.getPointLight().getIntensity() > 0.0f){
+                putSpotLight(spotLight, SPOT_LIGHTS_OFFSET + numActiveSpotLights++ * SPOT_LIGHT_SIZE);
             }
-            else{
-                spotLight = null;
-            }
-
-            String name = "spotLights[" + i + "]";
-            updateSpotLight(spotLight, name, viewMatrix);
         }
+        for (int i = numActiveSpotLights; i < Consts.MAX_SPOT_LIGHTS; i++){
+            putSpotLight(null, SPOT_LIGHTS_OFFSET + i * SPOT_LIGHT_SIZE);
+        }
+
+        lightsBuffer.upload();
+        renderStats.addBufferUpload();
 
+        lightsVersion = version;
+        lightsUploaded = true;
     }
 
-    private void updatePointLight(PointLight pointLight, String prefix, Matrix4f viewMatrix){
-        
-        Vector4f aux = new Vector4f();
-        Vector3f lightPosition = new Vector3f();
-        Vector3f color = new Vector3f();
+    //empty slots are written with zero intensity so the shader skips them
+    private void putPointLight(PointLight pointLight, int offset){
 
-        float intensity = 0.0f;
-        float constant = 0.0f;
-        float linear = 0.0f;
-        float exponent = 0.0f;
+        if (pointLight == null){
+            lightsBuffer.put(offset, 0.0f, 0.0f, 0.0f);
+            lightsBuffer.put(offset + 12, 0.0f);
+            lightsBuffer.put(offset + 16, 0.0f, 0.0f, 0.0f);
+            lightsBuffer.put(offset + 28, 0);
+            lightsBuffer.put(offset + 32, 0.0f, 0.0f, 0.0f);
+            return;
+        }
 
-        if (pointLight != null){
-            aux.set(pointLight.getPosition(), 1);
-            aux.mul(viewMatrix);
+        PointLight.Attenuation attenuation = pointLight.getAttenuation();
 
-            lightPosition.set(aux.x, aux.y, aux.z);
-            color.set(pointLight.getColor());
+        lightsBuffer.put(offset, pointLight.getPosition());
+        lightsBuffer.put(offset + 12, pointLight.getIntensity());
+        lightsBuffer.put(offset + 16, pointLight.getColor());
+        //baked lights are already in the lightmaps, lightmapped fragments skip them
+        lightsBuffer.put(offset + 28, pointLight.isBaked() ? 1 : 0);
+        lightsBuffer.put(offset + 32, attenuation.getConstant(), attenuation.getLinear(), attenuation.getExponent());
+    }
 
-            intensity = pointLight.getIntensity();
+    private void putSpotLight(SpotLight spotLight, int offset){
 
-            PointLight.Attenuation attenuation = pointLight.getAttenuation();
-            constant = attenuation.getConstant();
-            linear = attenuation.getLinear();
-            exponent = attenuation.getExponent();
+        if (spotLight == null){
+            putPointLight(null, offset);
+            lightsBuffer.put(offset + 48, 0.0f, 0.0f, 0.0f);
+            lightsBuffer.put(offset + 60, 0.0f);
+            return;
         }
 
-        uniformsMap.setUniform(prefix + ".position", lightPosition);
-        uniformsMap.setUniform(prefix + ".color", color);
-        uniformsMap.setUniform(prefix + ".intensity", intensity);
-        uniformsMap.setUniform(prefix + ".att.constant", constant);
-        uniformsMap.setUniform(prefix + ".att.linear", linear);
-        uniformsMap.setUniform(prefix + ".att.exponent", exponent);
+        Vector3f coneDirection = spotLight.getConeDirection();
+
+        putPointLight(spotLight.getPointLight(), offset);
+        lightsBuffer.put(offset + 48, coneDirection);
+        lightsBuffer.put(offset + 60, spotLight.getCutOff());
     }
 
-    private void updateSpotLight(SpotLight spotLight, String prefix, Matrix4f viewMatrix){
-        PointLight pointLight = null;
-        
-        Vector3f coneDirection = new Vector3f();
-        
-        float cutoff = 0.0f;
+    /*
+     * one compiled variant of the scene program with its uniform locations, resolved once so the render loop
+     * never looks them up by name, the samplers never change and are set here
+     * the normal map uniforms are optimized out of the variants without normal mapping, they stay at -1
+     */
+    private static class ScenePermutation {
+
+        private final ShaderProgram shaderProgram;
+        private final UniformsMap uniformsMap;
+
+        private final int modelMatrixUniform;
+        private final int materialIndexUniform;
+        private final int selectedUniform;
+        private final int instancedUniform;
+        private final int textureLayerUniform;
+        private final int normalMapLayerUniform;
+        private final int entityTextureLayerUniform;
+        private final int entityLightmapLayerUniform;
+
+        private ScenePermutation(int numPointLights, int numSpotLights, boolean normalMap, boolean clustered){
+
+            List<ShaderProgram.ShaderModuleData> shaderModuleDataList = new ArrayList<>();
+            shaderModuleDataList.add(new ShaderProgram.ShaderModuleData("resources/shaders/scene.vert", GL_VERTEX_SHADER));
+            shaderModuleDataList.add(new ShaderProgram.ShaderModuleData("resources/shaders/scene.frag", GL_FRAGMENT_SHADER));
+
+            List<String> defines = new ArrayList<>();
+            defines.add("NUM_POINT_LIGHTS " + numPointLights);
+            defines.add("NUM_SPOT_LIGHTS " + numSpotLights);
+            if (normalMap){
+                defines.add("NORMAL_MAP");
+            }
+            if (clustered){
+                defines.add("CLUSTERED_LIGHTING");
+                defines.add("CLUSTER_GRID_X " + Consts.CLUSTER_GRID_X);
+                defines.add("CLUSTER_GRID_Y " + Consts.CLUSTER_GRID_Y);
+                defines.add("CLUSTER_GRID_Z " + Consts.CLUSTER_GRID_Z);
+                defines.add("CLUSTER_Z_NEAR " + Consts.Z_NEAR);
+                defines.add("CLUSTER_Z_FAR " + Consts.Z_FAR);
+            }
 
-        if (spotLight != null){
-            coneDirection = spotLight.getConeDirection();
-            cutoff = spotLight.getCutOff();
-            pointLight = spotLight.getPointLight();
-        }
+            if (Consts.SHADOWS){
+                defines.add("SHADOWS");
+                defines.add("MAX_SHADOW_SPOT_LIGHTS " + Consts.MAX_SHADOW_SPOT_LIGHTS);
+            }
 
-        uniformsMap.setUniform(prefix + ".conedir", coneDirection);
-        uniformsMap.setUniform(prefix + ".cutoff", cutoff);
-        updatePointLight(pointLight,  prefix + ".pl", viewMatrix);
-    }
-    
+            if (Consts.LIGHTMAPS){
+                defines.add("LIGHTMAPS");
+            }
+
+            shaderProgram = new ShaderProgram(shaderModuleDataList, defines);
+            uniformsMap = new UniformsMap(shaderProgram.getProgramId());
 
+            uniformsMap.createUniformBlock("Matrices", UniformBuffer.MATRICES_BINDING);
+            uniformsMap.createUniformBlock("Lights", UniformBuffer.LIGHTS_BINDING);
+            if (Consts.SHADOWS){
+                uniformsMap.createUniformBlock("Shadows", UniformBuffer.SHADOWS_BINDING);
+            }
+
+            modelMatrixUniform = uniformsMap.createUniform("modelMatrix");
+            materialIndexUniform = uniformsMap.createUniform("materialIndex");
+            selectedUniform = uniformsMap.createUniform("selected");
+            instancedUniform = uniformsMap.createUniform("instanced");
+            textureLayerUniform = uniformsMap.createUniform("textureLayer");
+            normalMapLayerUniform = uniformsMap.createOptionalUniform("normalMapLayer");
+            entityTextureLayerUniform = uniformsMap.createUniform("entityTextureLayer");
+            entityLightmapLayerUniform = uniformsMap.createOptionalUniform("entityLightmapLayer");
+
+            shaderProgram.bind();
+            uniformsMap.setUniform(uniformsMap.createUniform("txtSampler"), TEXTURE_UNIT);
+            uniformsMap.setUniform(uniformsMap.createUniform("txtArraySampler"), TEXTURE_ARRAY_UNIT);
+            uniformsMap.setUniform(uniformsMap.createOptionalUniform("normalSampler"), NORMAL_MAP_UNIT);
+            uniformsMap.setUniform(uniformsMap.createOptionalUniform("normalArraySampler"), NORMAL_MAP_ARRAY_UNIT);
+            uniformsMap.setUniform(uniformsMap.createOptionalUniform("staticShadowSampler"), ShadowRender.STATIC_SHADOW_MAP_UNIT);
+            uniformsMap.setUniform(uniformsMap.createOptionalUniform("dynamicShadowSampler"), ShadowRender.DYNAMIC_SHADOW_MAP_UNIT);
+            uniformsMap.setUniform(uniformsMap.createOptionalUniform("lightmapSampler"), Lightmaps.LIGHTMAP_UNIT);
+            shaderProgram.unbind();
+        }
+    }
 
 }
@@ -8,23 +8,36 @@
  * 4. compile the shader
  * 5. attach the shader to a program
  * 6. link the program
+ *
+ * the linked program is saved with glGetProgramBinary and later launches load it back instead of
+ * doing steps 2 to 6, see ProgramBinaryCache
  */
 
 
  package blackjack.engine.graph;
 
 import org.lwjgl.opengl.GL30;
+import org.tinylog.Logger;
+
+import blackjack.engine.Consts;
 import blackjack.engine.Utils;
 
 import java.util.*;
 
-import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL41.*;
 
 public class ShaderProgram {
 
     private final int programId;
 
     public ShaderProgram(List<ShaderModuleData> shaderModuleDataList) {
+        this(shaderModuleDataList, List.of());
+    }
+
+    //every define ("NAME" or "NAME value") is added right after the #version line of each module
+    public ShaderProgram(List<ShaderModuleData> shaderModuleDataList, List<String> defines) {
+
+        long start = System.nanoTime();
 
         programId = glCreateProgram();
 
@@ -32,10 +45,51 @@ public class ShaderProgram {
             throw new RuntimeException("UNABLE TO CREATE A SHADER");
         }
 
+        List<String> sources = new ArrayList<>();
+        shaderModuleDataList.forEach(s -> sources.add(addDefines(Utils.readFile(s.shaderFile), defines)));
+
+        String name = shaderModuleDataList.stream().map(ShaderModuleData::shaderFile).toList() + " " + defines;
+        String cacheKey = Consts.SHADER_CACHE && ProgramBinaryCache.isSupported()
+                ? ProgramBinaryCache.computeKey(sources, defines) : null;
+
+        if (cacheKey != null && ProgramBinaryCache.read(cacheKey, programId)) {
+            Logger.info("SHADER PROGRAM {} loaded from the program cache in {} ms", name,
+                    (System.nanoTime() - start) / 1_000_000);
+            return;
+        }
+
         List<Integer> shaderModules = new ArrayList<>();
-        shaderModuleDataList.forEach(s -> shaderModules.add(createShader(Utils.readFile(s.shaderFile), s.shaderType)));
+        for (int i = 0; i < sources.size(); i++) {
+            shaderModules.add(createShader(sources.get(i), shaderModuleDataList.get(i).shaderType));
+        }
+
+        if (cacheKey != null) {
+            glProgramParameteri(programId, GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL_TRUE);
+        }
 
         link(shaderModules);
+
+        if (cacheKey != null) {
+            ProgramBinaryCache.write(cacheKey, programId);
+        }
+
+        Logger.info("SHADER PROGRAM {} compiled in {} ms{}", name, (System.nanoTime() - start) / 1_000_000,
+                cacheKey != null ? " (program cache miss)" : "");
+    }
+
+    private static String addDefines(String shaderCode, List<String> defines) {
+
+        if (defines.isEmpty()) {
+            return shaderCode;
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (String define : defines) {
+            builder.append("#define ").append(define).append('\n');
+        }
+
+        int versionEnd = shaderCode.startsWith("#version") ? shaderCode.indexOf('\n') + 1 : 0;
+        return shaderCode.substring(0, versionEnd) + builder + shaderCode.substring(versionEnd);
     }
 
     public void bind() {
@@ -0,0 +1,371 @@
+package blackjack.engine.graph;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import blackjack.engine.Consts;
+import blackjack.engine.scene.Entity;
+import blackjack.engine.scene.Scene;
+import blackjack.engine.scene.lights.DirLight;
+import blackjack.engine.scene.lights.SceneLights;
+import blackjack.engine.scene.lights.SpotLight;
+
+import java.util.*;
+
+import static org.lwjgl.opengl.GL43.*;
+
+/*
+ * Shadow maps of the directional light and of the first Consts.MAX_SHADOW_SPOT_LIGHTS active spot lights
+ *
+ * every light has a layer in two depth texture arrays: the static one (Consts.SHADOW_MAP_SIZE) holds the
+ * entities that never move and is only rendered again when its light or one of the static entities changes,
+ * the dynamic one (Consts.DYNAMIC_SHADOW_MAP_SIZE, smaller) holds the dynamic entities (see Entity.setDynamic)
+ * and is rendered again when one of them or the light changes, scene.frag takes the closest of both depths
+ * layer 0 is the directional light, layer 1 + i is the i-th active spot light (same order as the Lights block)
+ *
+ * the directional light covers a fixed box around Consts.SHADOW_SCENE_CENTER instead of following the camera,
+ * that is what allows keeping its map between frames, spot lights use a perspective matching their cone
+ * (at most Consts.SHADOW_SPOT_MAX_FOV wide, the part of wider cones outside it is left unshadowed)
+ * the number of layers drawn each frame is reported through RenderStats.setShadowMapRedraws
+ */
+
+public class ShadowRender {
+
+    //texture units of the static and dynamic maps, after the ones used by SceneRender
+    public static final int STATIC_SHADOW_MAP_UNIT = 4;
+    public static final int DYNAMIC_SHADOW_MAP_UNIT = 5;
+
+    private static final int NUM_LAYERS = 1 + Consts.MAX_SHADOW_SPOT_LIGHTS;
+
+    //std140 layout of the Shadows block: mat4 dirLightMatrix, mat4 spotLightMatrices[MAX_SHADOW_SPOT_LIGHTS], int numSpotShadows
+    private static final int DIR_LIGHT_MATRIX_OFFSET = 0;
+    private static final int SPOT_LIGHT_MATRICES_OFFSET = 64;
+    private static final int NUM_SPOT_SHADOWS_OFFSET = SPOT_LIGHT_MATRICES_OFFSET + Consts.MAX_SHADOW_SPOT_LIGHTS * 64;
+    private static final int SHADOWS_SIZE = NUM_SPOT_SHADOWS_OFFSET + 16;
+
+    private final ShaderProgram shaderProgram;
+    private final UniformsMap uniformsMap;
+    private final int lightMatrixUniform;
+    private final int modelMatrixUniform;
+
+    private final int staticMapId;
+    private final int dynamicMapId;
+    private final int staticFboId;
+    private final int dynamicFboId;
+    private final UniformBuffer shadowsBuffer;
+
+    private final Matrix4f[] lightMatrices;
+    private final long[] lightVersions;
+    private final boolean[] layerActive;
+    private final boolean[] staticDirty;
+    private final boolean[] dynamicDirty;
+
+    private long staticCastersVersion;
+    private long dynamicCastersVersion;
+    private int numSpotShadows;
+
+    //scratch
+    private final Matrix4f lightView;
+    private final Vector3f lightEye;
+    private final Vector3f lightTarget;
+    private final Vector3f lightUp;
+
+    public ShadowRender(){
+
+        List<ShaderProgram.ShaderModuleData> shaderModuleDataList = new ArrayList<>();
+        shaderModuleDataList.add(new ShaderProgram.ShaderModuleData("resources/shaders/shadow.vert", GL_VERTEX_SHADER));
+        shaderModuleDataList.add(new ShaderProgram.ShaderModuleData("resources/shaders/shadow.frag", GL_FRAGMENT_SHADER));
+        shaderProgram = new ShaderProgram(shaderModuleDataList);
+
+        uniformsMap = new UniformsMap(shaderProgram.getProgramId());
+        lightMatrixUniform = uniformsMap.createUniform("lightMatrix");
+        modelMatrixUniform = uniformsMap.createUniform("modelMatrix");
+
+        staticMapId = createDepthArray(Consts.SHADOW_MAP_SIZE);
+        dynamicMapId = createDepthArray(Consts.DYNAMIC_SHADOW_MAP_SIZE);
+        staticFboId = glGenFramebuffers();
+        dynamicFboId = glGenFramebuffers();
+
+        shadowsBuffer = new UniformBuffer(SHADOWS_SIZE, UniformBuffer.SHADOWS_BINDING);
+
+        lightMatrices = new Matrix4f[NUM_LAYERS];
+        for (int i = 0; i < NUM_LAYERS; i++){
+            lightMatrices[i] = new Matrix4f();
+        }
+        lightVersions = new long[NUM_LAYERS];
+        Arrays.fill(lightVersions, -1);
+        layerActive = new boolean[NUM_LAYERS];
+        staticDirty = new boolean[NUM_LAYERS];
+        dynamicDirty = new boolean[NUM_LAYERS];
+
+        staticCastersVersion = -1;
+        dynamicCastersVersion = -1;
+
+        lightView = new Matrix4f();
+        lightEye = new Vector3f();
+        lightTarget = new Vector3f();
+        lightUp = new Vector3f();
+    }
+
+    //hardware compared depth, linear filtering gives a 2x2 PCF, outside the map everything is lit
+    private static int createDepthArray(int size){
+
+        int textureId = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D_ARRAY, textureId);
+        glTexStorage3D(GL_TEXTURE_2D_ARRAY, 1, GL_DEPTH_COMPONENT24, size, size, NUM_LAYERS);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_BORDER);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_BORDER);
+        glTexParameterfv(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_BORDER_COLOR, new float[]{1.0f, 1.0f, 1.0f, 1.0f});
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_COMPARE_MODE, GL_COMPARE_REF_TO_TEXTURE);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_COMPARE_FUNC, GL_LEQUAL);
+        glBindTexture(GL_TEXTURE_2D_ARRAY, 0);
+
+        return textureId;
+    }
+
+    /*
+     * redraws the layers whose light or casters changed, leaves the default framebuffer bound afterwards
+     * (the caller sets the viewport back) and the maps bound to their units for the scene render
+     */
+    public void render(Scene scene, RenderStats renderStats){
+
+        updateLights(scene.getSceneLights());
+
+        long staticVersion = getCastersVersion(scene.getModelList(), false);
+        long dynamicVersion = getCastersVersion(scene.getModelList(), true);
+
+        boolean staticChanged = staticVersion != staticCastersVersion;
+        boolean dynamicChanged = dynamicVersion != dynamicCastersVersion;
+        staticCastersVersion = staticVersion;
+        dynamicCastersVersion = dynamicVersion;
+
+        int redraws = 0;
+
+        for (int layer = 0; layer < NUM_LAYERS; layer++){
+
+            staticDirty[layer] |= staticChanged;
+            dynamicDirty[layer] |= dynamicChanged;
+
+            if (staticDirty[layer]){
+                renderLayer(scene, layer, false);
+                staticDirty[layer] = false;
+                redraws++;
+            }
+
+            if (dynamicDirty[layer]){
+                renderLayer(scene, layer, true);
+                dynamicDirty[layer] = false;
+                redraws++;
+            }
+        }
+
+        if (redraws > 0){
+            glBindFramebuffer(GL_FRAMEBUFFER, 0);
+            glDisable(GL_POLYGON_OFFSET_FILL);
+            shaderProgram.unbind();
+        }
+
+        renderStats.setShadowMapRedraws(redraws);
+
+        shadowsBuffer.bind();
+        glActiveTexture(GL_TEXTURE0 + STATIC_SHADOW_MAP_UNIT);
+        glBindTexture(GL_TEXTURE_2D_ARRAY, staticMapId);
+        glActiveTexture(GL_TEXTURE0 + DYNAMIC_SHADOW_MAP_UNIT);
+        glBindTexture(GL_TEXTURE_2D_ARRAY, dynamicMapId);
+        glActiveTexture(GL_TEXTURE0);
+    }
+
+    //light matrices of the layers, the ones whose light changed are marked for both maps
+    private void updateLights(SceneLights sceneLights){
+
+        boolean changed = false;
+
+        DirLight dirLight = sceneLights.getDirLight();
+        long dirVersion = dirLight.getVersion();
+
+        if (dirVersion != lightVersions[0]){
+            setDirLightMatrix(dirLight.getDirection(), lightMatrices[0]);
+            markLayer(0, dirVersion);
+            changed = true;
+        }
+
+        //the i-th active spot light gets layer 1 + i, same packing as SceneRender and ClusteredLighting
+        List<SpotLight> spotLights = sceneLights.getSpotLights();
+        int numActive = 0;
+
+        for (int i = 0; i < spotLights.size() && numActive < Consts.MAX_SHADOW_SPOT_LIGHTS; i++){
+
+            SpotLight spotLight = spotLights.get(i);
+
+            if (spotLight.getPointLight().getIntensity() <= 0.0f){
+                continue;
+            }
+
+            int layer = 1 + numActive++;
+            long version = 31L * System.identityHashCode(spotLight) + spotLight.getVersion();
+
+            if (version != lightVersions[layer] || !layerActive[layer]){
+                setSpotLightMatrix(spotLight, lightMatrices[layer]);
+                markLayer(layer, version);
+                changed = true;
+            }
+        }
+
+        for (int layer = 1 + numActive; layer < NUM_LAYERS; layer++){
+            layerActive[layer] = false;
+        }
+
+        if (numActive != numSpotShadows){
+            numSpotShadows = numActive;
+            changed = true;
+        }
+
+        if (changed){
+            shadowsBuffer.put(DIR_LIGHT_MATRIX_OFFSET, lightMatrices[0]);
+            for (int i = 0; i < Consts.MAX_SHADOW_SPOT_LIGHTS; i++){
+                shadowsBuffer.put(SPOT_LIGHT_MATRICES_OFFSET + i * 64, lightMatrices[1 + i]);
+            }
+            shadowsBuffer.put(NUM_SPOT_SHADOWS_OFFSET, numSpotShadows);
+            shadowsBuffer.upload();
+        }
+    }
+
+    private void markLayer(int layer, long version){
+        lightVersions[layer] = version;
+        layerActive[layer] = true;
+        staticDirty[layer] = true;
+        dynamicDirty[layer] = true;
+    }
+
+    //orthographic box around the scene, seen from the side the light comes from (direction points to the light)
+    private void setDirLightMatrix(Vector3f direction, Matrix4f matrix){
+
+        float radius = Consts.SHADOW_SCENE_RADIUS;
+
+        lightTarget.set(Consts.SHADOW_SCENE_CENTER);
+        direction.normalize(lightEye).mul(radius * 2.0f).add(lightTarget);
+        setUp(direction);
+
+        lightView.setLookAt(lightEye, lightTarget, lightUp);
+        matrix.setOrtho(-radius, radius, -radius, radius, radius * 0.5f, radius * 3.5f).mul(lightView);
+    }
+
+    private void setSpotLightMatrix(SpotLight spotLight, Matrix4f matrix){
+
+        Vector3f position = spotLight.getPointLight().getPosition();
+        Vector3f coneDirection = spotLight.getConeDirection();
+
+        float fov = Math.min(2.0f * (float) Math.acos(spotLight.getCutOff()), Consts.SHADOW_SPOT_MAX_FOV);
+        float far = Math.min(ClusteredLighting.getRadius(spotLight.getPointLight()), Consts.SHADOW_SPOT_FAR);
+
+        lightEye.set(position);
+        lightTarget.set(position).add(coneDirection);
+        setUp(coneDirection);
+
+        lightView.setLookAt(lightEye, lightTarget, lightUp);
+        matrix.setPerspective(fov, 1.0f, Consts.SHADOW_SPOT_NEAR, Math.max(far, Consts.SHADOW_SPOT_NEAR * 2.0f))
+                .mul(lightView);
+    }
+
+    //any up vector not parallel to the view direction
+    private void setUp(Vector3f direction){
+        if (Math.abs(direction.y) > 0.99f * direction.length()){
+            lightUp.set(0.0f, 0.0f, 1.0f);
+        }
+        else {
+            lightUp.set(0.0f, 1.0f, 0.0f);
+        }
+    }
+
+    //summary of the entities of one kind, changes whenever one of them is added, removed or moved
+    private static long getCastersVersion(List<Model> models, boolean dynamic){
+
+        long hash = models.size();
+
+        for (int i = 0; i < models.size(); i++){
+
+            Model model = models.get(i);
+            List<Entity> entities = model.getEntitiesList();
+            hash = 31 * hash + System.identityHashCode(model);
+
+            for (int j = 0; j < entities.size(); j++){
+                Entity entity = entities.get(j);
+                if (entity.isDynamic() == dynamic){
+                    hash = 31 * hash + System.identityHashCode(entity);
+                    hash = 31 * hash + entity.getVersion();
+                }
+            }
+        }
+
+        return hash;
+    }
+
+    //clears the layer and draws the casters of one kind into it, layers of inactive lights are only cleared
+    private void renderLayer(Scene scene, int layer, boolean dynamic){
+
+        int size = dynamic ? Consts.DYNAMIC_SHADOW_MAP_SIZE : Consts.SHADOW_MAP_SIZE;
+
+        glBindFramebuffer(GL_FRAMEBUFFER, dynamic ? dynamicFboId : staticFboId);
+        glFramebufferTextureLayer(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, dynamic ? dynamicMapId : staticMapId, 0, layer);
+        glDrawBuffer(GL_NONE);
+        glReadBuffer(GL_NONE);
+        glViewport(0, 0, size, size);
+        glClear(GL_DEPTH_BUFFER_BIT);
+
+        if (!layerActive[layer]){
+            return;
+        }
+
+        shaderProgram.bind();
+        glEnable(GL_POLYGON_OFFSET_FILL);
+        glPolygonOffset(Consts.SHADOW_SLOPE_BIAS, Consts.SHADOW_CONSTANT_BIAS);
+        uniformsMap.setUniform(lightMatrixUniform, lightMatrices[layer]);
+
+        List<Model> models = scene.getModelList();
+
+        for (int i = 0; i < models.size(); i++){
+
+            Model model = models.get(i);
+            List<Entity> entities = model.getEntitiesList();
+            List<Material> materials = model.getMaterialList();
+
+            for (int j = 0; j < entities.size(); j++){
+
+                Entity entity = entities.get(j);
+
+                if (entity.isDynamic() != dynamic){
+                    continue;
+                }
+
+                uniformsMap.setUniform(modelMatrixUniform, entity.getModelMatrix());
+
+                for (int k = 0; k < materials.size(); k++){
+
+                    List<Mesh> meshes = materials.get(k).getMeshList();
+
+                    for (int l = 0; l < meshes.size(); l++){
+                        Mesh mesh = meshes.get(l);
+                        glBindVertexArray(mesh.getVaoId());
+                        glDrawElementsBaseVertex(GL_TRIANGLES, mesh.getLodIndexCount(0), mesh.getIndexType(),
+                                mesh.getLodIndexOffset(0), mesh.getBaseVertex());
+                    }
+                }
+            }
+        }
+
+        glBindVertexArray(0);
+    }
+
+    //free resources
+    public void cleanup(){
+        shaderProgram.cleanup();
+        shadowsBuffer.cleanup();
+        glDeleteFramebuffers(staticFboId);
+        glDeleteFramebuffers(dynamicFboId);
+        glDeleteTextures(staticMapId);
+        glDeleteTextures(dynamicMapId);
+    }
+
+}
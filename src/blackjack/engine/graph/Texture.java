@@ -1,67 +1,193 @@
 package blackjack.engine.graph;
 
 import org.lwjgl.system.MemoryStack;
+import org.lwjgl.util.ktx.ktxTexture;
 
 import java.nio.*;
 
 import static org.lwjgl.opengl.GL30.*;
-import static org.lwjgl.stb.STBImage.*;
+import static org.lwjgl.util.ktx.KTX.*;
 
-public class Texture {
+public final class Texture {
 
     private int textureId;
     private String texturePath;
 
+    //false while a streamed texture is still being uploaded, see TextureStreamer
+    private boolean resident;
+    private long gpuBytes;
+
+    //layer inside a TextureArray for packed textures (textureId is unused, the array has the name), -1 otherwise
+    private TextureArray textureArray;
+    private int layer = -1;
+
+    //references taken through the TextureCache, textures without any can be evicted
+    private int refCount;
+
     public Texture(int width, int height, ByteBuffer buf) {
         this.texturePath = "";
         generateTexture(width, height, buf);
+        resident = true;
     }
 
     public Texture(String texturePath) {
-        try (MemoryStack stack = MemoryStack.stackPush()) {
-            this.texturePath = texturePath;
-            IntBuffer w = stack.mallocInt(1);
-            IntBuffer h = stack.mallocInt(1);
-            IntBuffer channels = stack.mallocInt(1);
-
-            ByteBuffer buf = stbi_load(texturePath, w, h, channels, 4);
-            if (buf == null) {
-                throw new RuntimeException("IMAGE FILE [" + texturePath + "] NOT LOADED: " + stbi_failure_reason());
-            }
+        TextureData textureData = TextureData.load(texturePath);
+        this.texturePath = texturePath;
+        generateTexture(textureData);
+        textureData.free();
+        resident = true;
+    }
+
+    //from pixels already decoded (by a loading thread), the data is not freed here
+    public Texture(TextureData textureData) {
+        this.texturePath = textureData.getTexturePath();
+        generateTexture(textureData);
+        resident = true;
+    }
 
-            int width = w.get();
-            int height = h.get();
+    private Texture(String texturePath, boolean resident) {
+        this.texturePath = texturePath;
+        this.resident = resident;
+    }
 
-            generateTexture(width, height, buf);
+    //only the texture name, the storage is allocated and filled later by the TextureStreamer
+    static Texture createStreamed(String texturePath) {
+        Texture texture = new Texture(texturePath, false);
+        texture.textureId = glGenTextures();
+        return texture;
+    }
 
-            stbi_image_free(buf);
+    //a layer of a texture array, see TextureCache
+    static Texture createLayer(String texturePath, TextureArray textureArray, int layer) {
+        Texture texture = new Texture(texturePath, true);
+        texture.assignLayer(textureArray, layer);
+        return texture;
+    }
+
+    //turns the texture into a layer of the array, its own storage (if any) is released
+    void assignLayer(TextureArray textureArray, int layer) {
+        if (textureId != 0) {
+            glDeleteTextures(textureId);
+            textureId = 0;
         }
+        this.textureArray = textureArray;
+        this.layer = layer;
+        gpuBytes = textureArray.getLayerGpuBytes();
     }
 
     public void bind() {
-        glBindTexture(GL_TEXTURE_2D, textureId);
+        glBindTexture(isLayer() ? GL_TEXTURE_2D_ARRAY : GL_TEXTURE_2D, getTextureId());
     }
 
-    //free resources
+    //free resources, a packed texture only gives its layer back, texture arrays are released by the TextureCache
     public void cleanup() {
-        glDeleteTextures(textureId);
+        if (isLayer()) {
+            textureArray.freeLayer(layer);
+        }
+        else {
+            glDeleteTextures(textureId);
+        }
+    }
+
+    void acquire() {
+        refCount++;
+    }
+
+    void release() {
+        if (refCount > 0) {
+            refCount--;
+        }
     }
 
     private void generateTexture(int width, int height, ByteBuffer buf) {
         textureId = glGenTextures();
+        allocate(width, height, buf);
+        glGenerateMipmap(GL_TEXTURE_2D);
+    }
+
+    private void generateTexture(TextureData textureData) {
+        textureId = glGenTextures();
+        upload(textureData);
+    }
+
+    //whole image at once, KTX2 data comes with its mip chain, plain images get theirs generated
+    void upload(TextureData textureData) {
+
+        if (!textureData.isKtx()){
+            allocate(textureData.getWidth(), textureData.getHeight(), textureData.getPixels());
+            glGenerateMipmap(GL_TEXTURE_2D);
+            return;
+        }
 
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            IntBuffer name = stack.ints(textureId);
+            IntBuffer target = stack.mallocInt(1);
+            IntBuffer glError = stack.mallocInt(1);
+
+            int result = ktxTexture_GLUpload(ktxTexture.create(textureData.getKtxHandle()), name, target, glError);
+            if (result != KTX_SUCCESS){
+                throw new RuntimeException("KTX TEXTURE [" + texturePath + "] NOT UPLOADED: " + ktxErrorString(result)
+                        + " (GL error " + glError.get(0) + ")");
+            }
+        }
+
+        //same sampling as the plain images
+        glBindTexture(GL_TEXTURE_2D, textureId);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        gpuBytes = textureData.getGpuBytes();
+    }
+
+    //level 0 storage of the texture, filled with buf or left undefined when buf is null
+    void allocate(int width, int height, ByteBuffer buf) {
         glBindTexture(GL_TEXTURE_2D, textureId);
         glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
         glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, width, height, 0,
                 GL_RGBA, GL_UNSIGNED_BYTE, buf);
-        glGenerateMipmap(GL_TEXTURE_2D);
+
+        //mip chain included
+        gpuBytes = (long) width * height * 4 * 4 / 3;
     }
     
     //getter
 
+    //packed textures follow their array, its name changes when it grows
+    public int getTextureId() {
+        return isLayer() ? textureArray.getTextureId() : textureId;
+    }
+
     public String getTexturePath() {
         return texturePath;
     }
+
+    //approximate VRAM taken by the texture
+    public long getGpuBytes() {
+        return gpuBytes;
+    }
+
+    TextureArray getTextureArray() {
+        return textureArray;
+    }
+
+    public int getLayer() {
+        return layer;
+    }
+
+    public boolean isLayer() {
+        return layer >= 0;
+    }
+
+    public int getRefCount() {
+        return refCount;
+    }
+
+    public boolean isResident() {
+        return resident;
+    }
+
+    void setResident(boolean resident) {
+        this.resident = resident;
+    }
 }
@@ -0,0 +1,174 @@
+package blackjack.engine.graph;
+
+import static org.lwjgl.opengl.GL43.*;
+
+/*
+ * GL_TEXTURE_2D_ARRAY holding up to Consts.TEXTURE_ARRAY_LAYERS images of the same size
+ *
+ * small textures (card faces, chips...) are packed as layers of these arrays by the TextureCache, every
+ * texture of an array is bound at once, so drawing materials that only differ in their texture does not
+ * need a glBindTexture, just the layer index (see Texture.getLayer and scene.frag)
+ *
+ * the storage starts with a few layers and doubles when they are all taken, the written layers are copied
+ * into the new storage and the old one is deleted, so the texture name changes (see Texture.getTextureId)
+ */
+
+public class TextureArray {
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    private int textureId;
+    private final int width;
+    private final int height;
+    private final int levels;
+    private final int maxLayers;
+    private int capacity;
+    private int numLayers;
+
+    //layers given back by evicted textures, reused before the ones never written
+    private final int[] freeLayers;
+    private int numFreeLayers;
+    //layers of evicted textures the GPU may still read, they are given back by freeLayer
+    private int releasedLayers;
+
+    public TextureArray(int width, int height, int maxLayers){
+
+        this.width = width;
+        this.height = height;
+        this.maxLayers = maxLayers;
+        freeLayers = new int[maxLayers];
+
+        levels = 32 - Integer.numberOfLeadingZeros(Math.max(width, height));
+        capacity = Math.min(INITIAL_CAPACITY, maxLayers);
+        textureId = createStorage(capacity);
+    }
+
+    //copies the image into the next free layer and returns it, -1 when the array is full
+    public int addLayer(TextureData textureData){
+
+        if (isFull()){
+            return -1;
+        }
+
+        if (numFreeLayers == 0 && numLayers == capacity){
+            grow();
+        }
+
+        int layer = numFreeLayers > 0 ? freeLayers[--numFreeLayers] : numLayers++;
+
+        glBindTexture(GL_TEXTURE_2D_ARRAY, textureId);
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+        glTexSubImage3D(GL_TEXTURE_2D_ARRAY, 0, 0, 0, layer, width, height, 1, GL_RGBA, GL_UNSIGNED_BYTE,
+                textureData.getPixels());
+        generateMipmap(layer);
+
+        return layer;
+    }
+
+    //mip chain of one layer only, through a 2D view of it, the other layers are left untouched
+    private void generateMipmap(int layer){
+
+        int view = glGenTextures();
+        glTextureView(view, GL_TEXTURE_2D, textureId, GL_RGBA8, 0, levels, layer, 1);
+        glBindTexture(GL_TEXTURE_2D, view);
+        glGenerateMipmap(GL_TEXTURE_2D);
+        glBindTexture(GL_TEXTURE_2D, 0);
+        glDeleteTextures(view);
+    }
+
+    //twice the layers (up to maxLayers), every level of the written layers is copied over
+    private void grow(){
+
+        int newCapacity = Math.min(capacity * 2, maxLayers);
+        int newTextureId = createStorage(newCapacity);
+
+        for (int level = 0; level < levels; level++){
+            glCopyImageSubData(textureId, GL_TEXTURE_2D_ARRAY, level, 0, 0, 0,
+                    newTextureId, GL_TEXTURE_2D_ARRAY, level, 0, 0, 0,
+                    Math.max(1, width >> level), Math.max(1, height >> level), numLayers);
+        }
+
+        //draws still in flight keep the old storage alive until they are done
+        glDeleteTextures(textureId);
+        textureId = newTextureId;
+        capacity = newCapacity;
+    }
+
+    private int createStorage(int layers){
+
+        int id = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D_ARRAY, id);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        glTexStorage3D(GL_TEXTURE_2D_ARRAY, levels, GL_RGBA8, width, height, layers);
+        return id;
+    }
+
+    //true for plain (not KTX) images of the size of the array
+    public boolean accepts(TextureData textureData){
+        return !textureData.isKtx() && textureData.getWidth() == width && textureData.getHeight() == height;
+    }
+
+    public boolean isFull(){
+        return numLayers == maxLayers && numFreeLayers == 0;
+    }
+
+    //the texture of the layer was evicted, the layer stays taken until freeLayer
+    public void releaseLayer(){
+        releasedLayers++;
+    }
+
+    //the layer can be overwritten by the next addLayer
+    public void freeLayer(int layer){
+        freeLayers[numFreeLayers++] = layer;
+        if (releasedLayers > 0){
+            releasedLayers--;
+        }
+    }
+
+    //every written layer was given back, nothing reads the array anymore
+    public boolean isUnused(){
+        return numFreeLayers == numLayers;
+    }
+
+    //free resources
+    public void cleanup(){
+        glDeleteTextures(textureId);
+    }
+
+    //getters
+
+    //changes when the array grows
+    public int getTextureId() {
+        return textureId;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    //layers holding a texture that was not evicted
+    public int getNumLayers() {
+        return numLayers - numFreeLayers - releasedLayers;
+    }
+
+    //layers allocated on the GPU, written or not
+    public int getCapacity() {
+        return capacity;
+    }
+
+    //what one layer takes on the GPU, mip chain included
+    public long getLayerGpuBytes() {
+        return (long) width * height * 4 * 4 / 3;
+    }
+
+    //what the whole storage takes, the layers not written yet included
+    public long getGpuBytes() {
+        return capacity * getLayerGpuBytes();
+    }
+
+}
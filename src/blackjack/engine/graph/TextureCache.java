@@ -1,26 +1,364 @@
 package blackjack.engine.graph;
 
+import org.lwjgl.opengl.GL;
+import org.tinylog.Logger;
+
 import java.util.*;
+import java.util.function.Consumer;
 
 import blackjack.engine.Consts;
 
+import static org.lwjgl.opengl.GL32.*;
+import static org.lwjgl.util.ktx.KTX.KTX_TTF_BC7_RGBA;
+import static org.lwjgl.util.ktx.KTX.KTX_TTF_RGBA32;
+
+/*
+ * textures are reference counted: createTexture and streamTexture (by path) take a reference, release gives it back
+ * (every Material texture is taken by ModelLoader and given back when the Scene removes the model)
+ * textures without references stay loaded, so a model loaded again finds them, until the resident
+ * bytes go over Consts.TEXTURE_VRAM_BUDGET, then the least recently used ones are evicted
+ * an evicted texture is deleted once a fence placed at eviction time has signaled, so the GPU is never
+ * waited for in case a draw still in flight reads it
+ *
+ * packed textures (see TextureArray) are counted through their array: the whole storage of an array is
+ * resident, and it is only released once all of its textures are evicted
+ */
+
 public class TextureCache {
 
 
+    //in access order, the first entries are the least recently used
     private Map<String, Texture> textureMap;
 
+    //small textures are packed as layers of these, grouped by size, see TextureArray
+    private List<TextureArray> textureArrays;
+
+    //created on the first streamed texture, see TextureStreamer
+    private TextureStreamer textureStreamer;
+
+    private Deque<PendingDeletion> pendingDeletions;
+    private boolean budgetCheck;
+
+    //statistics, hits and misses count the references taken on loaded and not loaded textures
+    private long residentBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
     public TextureCache(){
-        textureMap = new HashMap<>();
-        textureMap.put(Consts.DEFAULT_TEXTURE, new Texture(Consts.DEFAULT_TEXTURE));
+
+        //BC7 keeps 1 byte per texel on the GPU, RGBA is the fallback for drivers without it
+        TextureData.setTranscodeFormat(GL.getCapabilities().GL_ARB_texture_compression_bptc
+                ? KTX_TTF_BC7_RGBA : KTX_TTF_RGBA32);
+
+        textureMap = new LinkedHashMap<>(16, 0.75f, true);
+        textureArrays = new ArrayList<>();
+        pendingDeletions = new ArrayDeque<>();
+
+        //the default texture is never evicted
+        Texture defaultTexture = new Texture(Consts.DEFAULT_TEXTURE);
+        defaultTexture.acquire();
+        textureMap.put(Consts.DEFAULT_TEXTURE, defaultTexture);
+        residentBytes = defaultTexture.getGpuBytes();
     }
 
     //free resources
     public void cleanup(){
+        if (textureStreamer != null){
+            textureStreamer.cleanup();
+        }
+        pendingDeletions.forEach(this::delete);
         textureMap.values().forEach(Texture::cleanup);
+        textureArrays.forEach(TextureArray::cleanup);
     }
 
+    //loads the texture if needed and takes a reference to it
     public Texture createTexture(String texturePath){
-        return textureMap.computeIfAbsent(texturePath, Texture::new);
+
+        Texture texture = textureMap.get(texturePath);
+
+        if (texture != null){
+            hits++;
+        }
+        else {
+            misses++;
+            long start = System.nanoTime();
+            TextureData textureData = TextureData.load(texturePath);
+            texture = create(textureData);
+            textureData.free();
+            Logger.info("TEXTURE [{}] loaded in {} ms, {} bytes on GPU{}", texturePath,
+                    (System.nanoTime() - start) / 1_000_000, texture.getGpuBytes(),
+                    texture.isLayer() ? " (texture array layer " + texture.getLayer() + ")" : "");
+        }
+
+        texture.acquire();
+        return texture;
+    }
+
+    //loads the texture from pixels already decoded, without taking a reference, the pixels are only used if the texture is new
+    public Texture createTexture(TextureData textureData){
+
+        Texture texture = textureMap.get(textureData.getTexturePath());
+
+        if (texture == null){
+            texture = create(textureData);
+        }
+
+        return texture;
+    }
+
+    private Texture create(TextureData textureData){
+
+        Texture texture;
+
+        if (fitsTextureArray(textureData)){
+            TextureArray textureArray = getTextureArray(textureData);
+            texture = Texture.createLayer(textureData.getTexturePath(), textureArray, addLayer(textureArray, textureData));
+        }
+        else {
+            texture = new Texture(textureData);
+        }
+
+        textureMap.put(textureData.getTexturePath(), texture);
+        textureResident(texture);
+
+        return texture;
+    }
+
+    //gives back a reference taken by createTexture or streamTexture, the texture may be evicted once it has none
+    public void release(String texturePath){
+
+        Texture texture = texturePath != null ? textureMap.get(texturePath) : null;
+
+        if (texture != null){
+            texture.release();
+            budgetCheck = true;
+        }
+    }
+
+    //a texture finished uploading, it now counts against the budget (packed ones already did with their array)
+    void textureResident(Texture texture){
+        if (!texture.isLayer()){
+            residentBytes += texture.getGpuBytes();
+        }
+        budgetCheck = true;
+    }
+
+    //plain images up to Consts.TEXTURE_ARRAY_MAX_SIZE go into texture arrays
+    boolean fitsTextureArray(TextureData textureData){
+        return Consts.TEXTURE_ARRAYS && !textureData.isKtx()
+                && textureData.getWidth() <= Consts.TEXTURE_ARRAY_MAX_SIZE
+                && textureData.getHeight() <= Consts.TEXTURE_ARRAY_MAX_SIZE;
+    }
+
+    //copies the image into a free layer and makes the texture point to it
+    void addToTextureArray(Texture texture, TextureData textureData){
+        TextureArray textureArray = getTextureArray(textureData);
+        texture.assignLayer(textureArray, addLayer(textureArray, textureData));
+    }
+
+    //the array may grow to take the image, the added storage counts against the budget
+    private int addLayer(TextureArray textureArray, TextureData textureData){
+        long gpuBytes = textureArray.getGpuBytes();
+        int layer = textureArray.addLayer(textureData);
+        residentBytes += textureArray.getGpuBytes() - gpuBytes;
+        return layer;
+    }
+
+    //first array of the image size with a free layer, a new one when they are all full
+    private TextureArray getTextureArray(TextureData textureData){
+
+        for (int i = 0; i < textureArrays.size(); i++){
+            TextureArray textureArray = textureArrays.get(i);
+            if (!textureArray.isFull() && textureArray.accepts(textureData)){
+                return textureArray;
+            }
+        }
+
+        TextureArray textureArray = new TextureArray(textureData.getWidth(), textureData.getHeight(),
+                Consts.TEXTURE_ARRAY_LAYERS);
+        textureArrays.add(textureArray);
+        residentBytes += textureArray.getGpuBytes();
+
+        Logger.debug("TEXTURE ARRAY {}x{} created (up to {} layers)", textureData.getWidth(), textureData.getHeight(),
+                Consts.TEXTURE_ARRAY_LAYERS);
+
+        return textureArray;
+    }
+
+    /*
+     * async version of createTexture, the image is decoded and uploaded in the background and
+     * the callback (may be null) runs on the GL thread once the texture is resident
+     * the returned texture is not usable before that, getTexture returns the default one meanwhile
+     */
+    public Texture streamTexture(String texturePath, Consumer<Texture> onResident){
+
+        Texture texture = textureMap.get(texturePath);
+
+        if (texture == null){
+            misses++;
+            texture = Texture.createStreamed(texturePath);
+            textureMap.put(texturePath, texture);
+            getTextureStreamer().request(texture, onResident);
+        }
+        else {
+            hits++;
+            onStreamed(texture, onResident);
+        }
+
+        texture.acquire();
+        return texture;
+    }
+
+    //same as above with the image already decoded and without taking a reference, the cache takes ownership of the pixels
+    public Texture streamTexture(TextureData textureData, Consumer<Texture> onResident){
+
+        Texture texture = textureMap.get(textureData.getTexturePath());
+
+        if (texture == null){
+            texture = Texture.createStreamed(textureData.getTexturePath());
+            textureMap.put(textureData.getTexturePath(), texture);
+            getTextureStreamer().request(texture, textureData, onResident);
+        }
+        else {
+            textureData.free();
+            onStreamed(texture, onResident);
+        }
+
+        return texture;
+    }
+
+    private void onStreamed(Texture texture, Consumer<Texture> onResident){
+        if (onResident == null){
+            return;
+        }
+        if (texture.isResident()){
+            onResident.accept(texture);
+        }
+        else {
+            textureStreamer.addCallback(texture, onResident);
+        }
+    }
+
+    private TextureStreamer getTextureStreamer(){
+        if (textureStreamer == null){
+            textureStreamer = new TextureStreamer(this);
+        }
+        return textureStreamer;
+    }
+
+    /*
+     * once per frame on the GL thread: uploads the next part of the streamed textures, deletes the
+     * evicted textures the GPU is done with and evicts more if the budget is exceeded
+     */
+    public void update(){
+
+        if (textureStreamer != null){
+            textureStreamer.update();
+        }
+
+        while (!pendingDeletions.isEmpty() && isSignaled(pendingDeletions.peek().fence)){
+            delete(pendingDeletions.poll());
+        }
+
+        if (budgetCheck){
+            budgetCheck = false;
+            evict();
+        }
+    }
+
+    //least recently used textures without references go first, textures still streaming are left alone
+    private void evict(){
+
+        if (residentBytes <= Consts.TEXTURE_VRAM_BUDGET){
+            return;
+        }
+
+        Iterator<Texture> iterator = textureMap.values().iterator();
+
+        while (residentBytes > Consts.TEXTURE_VRAM_BUDGET && iterator.hasNext()){
+
+            Texture texture = iterator.next();
+
+            if (texture.getRefCount() > 0 || !texture.isResident()){
+                continue;
+            }
+
+            iterator.remove();
+            evictions++;
+
+            if (texture.isLayer()){
+                releaseLayer(texture.getTextureArray());
+            }
+            else {
+                residentBytes -= texture.getGpuBytes();
+            }
+
+            pendingDeletions.add(new PendingDeletion(texture, glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0)));
+            Logger.debug("TEXTURE [{}] evicted, {} bytes resident", texture.getTexturePath(), residentBytes);
+        }
+    }
+
+    /*
+     * an array whose textures are all evicted takes no new ones and stops counting against the budget,
+     * it is deleted with the last of its layers (see delete)
+     */
+    private void releaseLayer(TextureArray textureArray){
+
+        textureArray.releaseLayer();
+
+        if (textureArray.getNumLayers() == 0){
+            textureArrays.remove(textureArray);
+            residentBytes -= textureArray.getGpuBytes();
+            Logger.debug("TEXTURE ARRAY {}x{} released", textureArray.getWidth(), textureArray.getHeight());
+        }
+    }
+
+    private void delete(PendingDeletion pendingDeletion){
+
+        glDeleteSync(pendingDeletion.fence);
+
+        Texture texture = pendingDeletion.texture;
+        texture.cleanup();
+
+        if (texture.isLayer() && texture.getTextureArray().isUnused()){
+            texture.getTextureArray().cleanup();
+        }
+    }
+
+    private static boolean isSignaled(long fence){
+        int status = glClientWaitSync(fence, 0, 0);
+        return status == GL_ALREADY_SIGNALED || status == GL_CONDITION_SATISFIED;
+    }
+
+    //VRAM taken by the resident textures
+    public long getResidentBytes(){
+        return residentBytes;
+    }
+
+    public long getHits(){
+        return hits;
+    }
+
+    public long getMisses(){
+        return misses;
+    }
+
+    public long getEvictions(){
+        return evictions;
+    }
+
+    //textures still being decoded or uploaded
+    public int getStreamingQueueDepth(){
+        return textureStreamer != null ? textureStreamer.getQueueDepth() : 0;
+    }
+
+    //null while the texture is missing or still streaming, for optional maps that must not fall back to the default
+    public Texture getResidentTexture(String texturePath){
+
+        Texture texture = texturePath != null ? textureMap.get(texturePath) : null;
+
+        return texture != null && texture.isResident() ? texture : null;
     }
 
     public Texture getTexture(String texturePath){
@@ -31,11 +369,15 @@ public class TextureCache {
             texture = textureMap.get(texturePath);
         }
 
-        if (texture == null){
+        //streamed textures show the default one until they are uploaded
+        if (texture == null || !texture.isResident()){
             texture = textureMap.get(Consts.DEFAULT_TEXTURE);
         }
 
         return texture;
     }
 
+    private record PendingDeletion(Texture texture, long fence) {
+    }
+
 }
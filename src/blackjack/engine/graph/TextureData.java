@@ -0,0 +1,154 @@
+package blackjack.engine.graph;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.util.ktx.ktxTexture;
+import org.lwjgl.util.ktx.ktxTexture2;
+
+import blackjack.engine.Consts;
+
+import java.nio.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.lwjgl.stb.STBImage.*;
+import static org.lwjgl.util.ktx.KTX.*;
+
+/*
+ * decoded RGBA pixels of an image file, it does not need the GL context so it can be
+ * loaded by worker threads and turned into a Texture later on the GL thread
+ *
+ * when a .ktx2 file with the same name sits next to the image (see tools/TextureConverter) that one is
+ * read instead, it already holds the mip chain and is transcoded to a GPU block format (or to RGBA
+ * when the driver has none), the result is kept in a native ktxTexture until the upload
+ */
+
+public class TextureData {
+
+    //basis format the KTX2 files are transcoded to, chosen by the TextureCache from the GL capabilities
+    private static volatile int transcodeFormat = KTX_TTF_RGBA32;
+
+    private final String texturePath;
+    private final int width;
+    private final int height;
+    private ByteBuffer pixels;
+    private long ktxHandle;
+
+    private TextureData(String texturePath, int width, int height, ByteBuffer pixels, long ktxHandle){
+        this.texturePath = texturePath;
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+        this.ktxHandle = ktxHandle;
+    }
+
+    public static TextureData load(String texturePath){
+
+        if (Consts.KTX_TEXTURES){
+            String ktxPath = getKtxPath(texturePath);
+            if (Files.exists(Paths.get(ktxPath))){
+                return loadKtx(texturePath, ktxPath);
+            }
+        }
+
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            IntBuffer w = stack.mallocInt(1);
+            IntBuffer h = stack.mallocInt(1);
+            IntBuffer channels = stack.mallocInt(1);
+
+            ByteBuffer buf = stbi_load(texturePath, w, h, channels, 4);
+            if (buf == null) {
+                throw new RuntimeException("IMAGE FILE [" + texturePath + "] NOT LOADED: " + stbi_failure_reason());
+            }
+
+            return new TextureData(texturePath, w.get(), h.get(), buf, 0L);
+        }
+    }
+
+    private static TextureData loadKtx(String texturePath, String ktxPath){
+
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            PointerBuffer pointer = stack.mallocPointer(1);
+
+            int result = ktxTexture2_CreateFromNamedFile(ktxPath, KTX_TEXTURE_CREATE_LOAD_IMAGE_DATA_BIT, pointer);
+            if (result != KTX_SUCCESS){
+                throw new RuntimeException("KTX FILE [" + ktxPath + "] NOT LOADED: " + ktxErrorString(result));
+            }
+
+            ktxTexture2 texture = ktxTexture2.create(pointer.get(0));
+
+            if (ktxTexture2_NeedsTranscoding(texture)){
+
+                result = ktxTexture2_TranscodeBasis(texture, transcodeFormat, 0);
+                if (result != KTX_SUCCESS && transcodeFormat != KTX_TTF_RGBA32){
+                    result = ktxTexture2_TranscodeBasis(texture, KTX_TTF_RGBA32, 0);
+                }
+
+                if (result != KTX_SUCCESS){
+                    ktxTexture_Destroy(ktxTexture.create(texture.address()));
+                    throw new RuntimeException("KTX FILE [" + ktxPath + "] NOT TRANSCODED: " + ktxErrorString(result));
+                }
+            }
+
+            return new TextureData(texturePath, texture.baseWidth(), texture.baseHeight(), null, texture.address());
+        }
+    }
+
+    //same path with the .ktx2 extension
+    public static String getKtxPath(String texturePath){
+        int dot = texturePath.lastIndexOf('.');
+        return (dot > texturePath.lastIndexOf('/') && dot > texturePath.lastIndexOf('\\')
+                ? texturePath.substring(0, dot) : texturePath) + ".ktx2";
+    }
+
+    static void setTranscodeFormat(int format){
+        transcodeFormat = format;
+    }
+
+    //free resources
+    public void free(){
+        if (pixels != null){
+            stbi_image_free(pixels);
+            pixels = null;
+        }
+        if (ktxHandle != 0L){
+            ktxTexture_Destroy(ktxTexture.create(ktxHandle));
+            ktxHandle = 0L;
+        }
+    }
+
+    public boolean isKtx(){
+        return ktxHandle != 0L;
+    }
+
+    //what the texture takes on the GPU, the mip chain included
+    public long getGpuBytes(){
+        if (isKtx()){
+            return ktxTexture_GetDataSize(ktxTexture.create(ktxHandle));
+        }
+        return (long) width * height * 4 * 4 / 3;
+    }
+
+    //getters
+    public String getTexturePath() {
+        return texturePath;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public ByteBuffer getPixels() {
+        return pixels;
+    }
+
+    //native ktxTexture, 0 for plain images
+    public long getKtxHandle() {
+        return ktxHandle;
+    }
+
+}
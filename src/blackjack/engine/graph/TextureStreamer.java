@@ -0,0 +1,315 @@
+package blackjack.engine.graph;
+
+import org.tinylog.Logger;
+
+import blackjack.engine.Consts;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.lwjgl.opengl.GL32.*;
+import static org.lwjgl.system.MemoryUtil.*;
+
+/*
+ * Uploads textures in the background so loading a model does not wait for its images
+ *
+ * images are decoded by STB (or read from their KTX2 file) on worker threads, then copied on the GL thread into a small pool of
+ * pixel buffer objects and from there into the texture with glTexSubImage2D, a few rows at a time
+ * update() runs once per frame and uploads at most Consts.TEXTURE_STREAM_FRAME_BUDGET bytes,
+ * so a big texture is spread over several frames instead of stalling one
+ *
+ * every PBO gets a fence when it is handed to the GPU and is only written again once the fence has
+ * signaled, the texture itself gets a fence after its last rows (and the mipmaps), when it signals
+ * the texture is marked resident and the callbacks run, until then the TextureCache hands out the
+ * default texture in its place
+ */
+
+class TextureStreamer {
+
+    private final TextureCache textureCache;
+    private final ExecutorService decoders;
+    private final AtomicInteger decoding;
+
+    //decoded by the workers, waiting for the GL thread
+    private final Queue<StreamRequest> decoded;
+
+    //GL thread only
+    private final Map<Texture, StreamRequest> pending;
+    private final Deque<StreamRequest> finishing;
+    private StreamRequest current;
+
+    private final int[] pboIds;
+    private final long[] pboFences;
+    private int nextPbo;
+
+    TextureStreamer(TextureCache textureCache){
+
+        this.textureCache = textureCache;
+        decoding = new AtomicInteger();
+        decoded = new ConcurrentLinkedQueue<>();
+        pending = new HashMap<>();
+        finishing = new ArrayDeque<>();
+
+        AtomicInteger threadCount = new AtomicInteger();
+        decoders = Executors.newFixedThreadPool(Consts.TEXTURE_STREAM_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "texture-decode-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        pboIds = new int[Consts.TEXTURE_STREAM_PBOS];
+        pboFences = new long[Consts.TEXTURE_STREAM_PBOS];
+
+        for (int i = 0; i < pboIds.length; i++){
+            pboIds[i] = glGenBuffers();
+            glBindBuffer(GL_PIXEL_UNPACK_BUFFER, pboIds[i]);
+            glBufferData(GL_PIXEL_UNPACK_BUFFER, Consts.TEXTURE_STREAM_PBO_BYTES, GL_STREAM_DRAW);
+        }
+        glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+    }
+
+    //decodes the image on a worker
+    void request(Texture texture, Consumer<Texture> callback){
+
+        StreamRequest request = createRequest(texture, callback);
+        decoding.incrementAndGet();
+
+        decoders.execute(() -> {
+            try {
+                request.textureData = TextureData.load(texture.getTexturePath());
+            }
+            //errors too (missing natives, out of memory), the request must still reach update or it stays pending
+            catch (Throwable t) {
+                Logger.error(t, "COULD NOT STREAM TEXTURE [{}]", texture.getTexturePath());
+            }
+            finally {
+                decoded.add(request);
+                decoding.decrementAndGet();
+            }
+        });
+    }
+
+    //the image is already decoded, the streamer frees it once uploaded
+    void request(Texture texture, TextureData textureData, Consumer<Texture> callback){
+        StreamRequest request = createRequest(texture, callback);
+        request.textureData = textureData;
+        decoded.add(request);
+    }
+
+    //for a texture already being streamed
+    void addCallback(Texture texture, Consumer<Texture> callback){
+        StreamRequest request = pending.get(texture);
+        if (request != null && callback != null){
+            request.callbacks.add(callback);
+        }
+    }
+
+    private StreamRequest createRequest(Texture texture, Consumer<Texture> callback){
+        StreamRequest request = new StreamRequest(texture);
+        if (callback != null){
+            request.callbacks.add(callback);
+        }
+        pending.put(texture, request);
+        return request;
+    }
+
+    //GL thread, once per frame
+    void update(){
+
+        finishUploads();
+
+        long budget = Consts.TEXTURE_STREAM_FRAME_BUDGET;
+        boolean uploaded = false;
+
+        while (budget > 0){
+
+            if (current == null){
+                current = decoded.poll();
+                if (current == null){
+                    break;
+                }
+                if (current.textureData == null){
+                    pending.remove(current.texture);
+                    current = null;
+                    continue;
+                }
+                if (!current.textureData.isKtx() && !textureCache.fitsTextureArray(current.textureData)){
+                    current.texture.allocate(current.textureData.getWidth(), current.textureData.getHeight(), null);
+                }
+            }
+
+            TextureData textureData = current.textureData;
+
+            //small images become a layer of a texture array, they are copied in one go
+            if (textureCache.fitsTextureArray(textureData)){
+                textureCache.addToTextureArray(current.texture, textureData);
+                budget -= (long) textureData.getWidth() * textureData.getHeight() * 4;
+                uploaded = true;
+                finishUpload();
+                continue;
+            }
+
+            //KTX2 data is block compressed and already has its mips, it goes up in a single call
+            if (textureData.isKtx()){
+                if (uploaded && textureData.getGpuBytes() > budget){
+                    break;
+                }
+                current.texture.upload(textureData);
+                budget -= textureData.getGpuBytes();
+                uploaded = true;
+                finishUpload();
+                continue;
+            }
+
+            int width = textureData.getWidth();
+            int height = textureData.getHeight();
+            long rowBytes = (long) width * 4;
+
+            //as many rows as fit in a PBO and in what is left of the budget, at least one per frame
+            int rows = (int) Math.min(height - current.nextRow,
+                    Math.min(Consts.TEXTURE_STREAM_PBO_BYTES, budget) / rowBytes);
+
+            if (rows == 0){
+                if (uploaded){
+                    break;
+                }
+                rows = 1;
+            }
+
+            long bytes = rows * rowBytes;
+            long source = memAddress(textureData.getPixels()) + current.nextRow * rowBytes;
+
+            current.texture.bind();
+            glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+
+            if (bytes > Consts.TEXTURE_STREAM_PBO_BYTES){
+                //a single row larger than a PBO, straight from client memory
+                glTexSubImage2D(GL_TEXTURE_2D, 0, 0, current.nextRow, width, rows, GL_RGBA, GL_UNSIGNED_BYTE,
+                        memByteBuffer(source, (int) bytes));
+            }
+            else {
+                int pbo = nextPbo;
+                if (!isSignaled(pboFences[pbo])){
+                    break;
+                }
+
+                glBindBuffer(GL_PIXEL_UNPACK_BUFFER, pboIds[pbo]);
+                ByteBuffer mapped = glMapBufferRange(GL_PIXEL_UNPACK_BUFFER, 0, bytes,
+                        GL_MAP_WRITE_BIT | GL_MAP_INVALIDATE_BUFFER_BIT | GL_MAP_UNSYNCHRONIZED_BIT);
+
+                if (mapped == null){
+                    glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+                    break;
+                }
+
+                memCopy(source, memAddress(mapped), bytes);
+                glUnmapBuffer(GL_PIXEL_UNPACK_BUFFER);
+                glTexSubImage2D(GL_TEXTURE_2D, 0, 0, current.nextRow, width, rows, GL_RGBA, GL_UNSIGNED_BYTE, 0L);
+
+                //sync texture uploads would read from the PBO if it stayed bound
+                glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+
+                deleteFence(pboFences[pbo]);
+                pboFences[pbo] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+                nextPbo = (pbo + 1) % pboIds.length;
+            }
+
+            current.nextRow += rows;
+            budget -= bytes;
+            uploaded = true;
+
+            if (current.nextRow == height){
+                glGenerateMipmap(GL_TEXTURE_2D);
+                finishUpload();
+            }
+        }
+    }
+
+    //the texture becomes resident once the GPU is past this point
+    private void finishUpload(){
+        current.fence = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        finishing.add(current);
+        current = null;
+    }
+
+    //textures whose last upload has completed on the GPU become resident
+    private void finishUploads(){
+
+        while (!finishing.isEmpty() && isSignaled(finishing.peek().fence)){
+
+            StreamRequest request = finishing.poll();
+            deleteFence(request.fence);
+            request.textureData.free();
+            request.texture.setResident(true);
+            textureCache.textureResident(request.texture);
+            pending.remove(request.texture);
+
+            Logger.info("TEXTURE [{}] streamed in {} ms, {} bytes on GPU", request.texture.getTexturePath(),
+                    (System.nanoTime() - request.startTime) / 1_000_000, request.texture.getGpuBytes());
+
+            for (Consumer<Texture> callback : request.callbacks){
+                callback.accept(request.texture);
+            }
+        }
+    }
+
+    private static boolean isSignaled(long fence){
+        if (fence == NULL){
+            return true;
+        }
+        int status = glClientWaitSync(fence, 0, 0);
+        return status == GL_ALREADY_SIGNALED || status == GL_CONDITION_SATISFIED;
+    }
+
+    private static void deleteFence(long fence){
+        if (fence != NULL){
+            glDeleteSync(fence);
+        }
+    }
+
+    //images still waiting to be decoded or uploaded, plus uploads waiting for the GPU
+    int getQueueDepth(){
+        return decoding.get() + decoded.size() + (current != null ? 1 : 0) + finishing.size();
+    }
+
+    //free resources, textures not resident yet stay that way
+    void cleanup(){
+
+        decoders.shutdownNow();
+
+        for (StreamRequest request : pending.values()){
+            if (request.textureData != null){
+                request.textureData.free();
+            }
+            deleteFence(request.fence);
+        }
+        pending.clear();
+
+        for (int i = 0; i < pboIds.length; i++){
+            deleteFence(pboFences[i]);
+            glDeleteBuffers(pboIds[i]);
+        }
+    }
+
+    private static class StreamRequest {
+
+        private final Texture texture;
+        private final List<Consumer<Texture>> callbacks;
+
+        //written by the decoding worker, read on the GL thread after the hand off through the queue
+        private volatile TextureData textureData;
+        private int nextRow;
+        private long fence;
+        private final long startTime;
+
+        private StreamRequest(Texture texture){
+            this.texture = texture;
+            startTime = System.nanoTime();
+            callbacks = new ArrayList<>();
+        }
+    }
+
+}
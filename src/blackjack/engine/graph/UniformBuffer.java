@@ -0,0 +1,93 @@
+package blackjack.engine.graph;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.glBindBufferBase;
+import static org.lwjgl.opengl.GL31.GL_UNIFORM_BUFFER;
+
+/*
+ * Uniform Buffer Object (UBO), a GPU buffer that backs a whole uniform block of a shader
+ * Unlike the plain uniforms of UniformsMap, the data is written into a CPU side copy following
+ * the std140 layout rules and sent to the GPU in a single call, only when it actually changes
+ * The buffer is attached to a binding point, every program that links its block to that
+ * binding point (see UniformsMap.createUniformBlock) reads the same data
+ */
+
+public class UniformBuffer {
+
+    //binding points shared by all the shader programs
+    public static final int MATRICES_BINDING = 0;
+    public static final int LIGHTS_BINDING = 1;
+    public static final int SHADOWS_BINDING = 2;
+
+    private final int bindingPoint;
+    private final int bufferId;
+    private final ByteBuffer data;
+
+    public UniformBuffer(int size, int bindingPoint){
+
+        this.bindingPoint = bindingPoint;
+        data = MemoryUtil.memCalloc(size);
+
+        bufferId = glGenBuffers();
+        glBindBuffer(GL_UNIFORM_BUFFER, bufferId);
+        glBufferData(GL_UNIFORM_BUFFER, size, GL_DYNAMIC_DRAW);
+        glBindBuffer(GL_UNIFORM_BUFFER, 0);
+    }
+
+    //attach the buffer to its binding point
+    public void bind(){
+        glBindBufferBase(GL_UNIFORM_BUFFER, bindingPoint, bufferId);
+    }
+
+    //send the CPU side copy to the GPU
+    public void upload(){
+        glBindBuffer(GL_UNIFORM_BUFFER, bufferId);
+        glBufferSubData(GL_UNIFORM_BUFFER, 0, data);
+        glBindBuffer(GL_UNIFORM_BUFFER, 0);
+    }
+
+    //std140 writers, offsets are in bytes from the start of the block
+    public void put(int offset, Matrix4f value){
+        value.get(offset, data);
+    }
+
+    public void put(int offset, Vector3f value){
+        value.get(offset, data);
+    }
+
+    public void put(int offset, float x, float y, float z){
+        data.putFloat(offset, x);
+        data.putFloat(offset + 4, y);
+        data.putFloat(offset + 8, z);
+    }
+
+    public void put(int offset, float value){
+        data.putFloat(offset, value);
+    }
+
+    public void put(int offset, int value){
+        data.putInt(offset, value);
+    }
+
+    //free resources
+    public void cleanup(){
+        glDeleteBuffers(bufferId);
+        MemoryUtil.memFree(data);
+    }
+
+    //getters
+    public int getBindingPoint() {
+        return bindingPoint;
+    }
+
+    public int getBufferId() {
+        return bufferId;
+    }
+
+}
@@ -9,6 +9,9 @@ import org.lwjgl.system.MemoryStack;
 import java.util.*;
 
 import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL31.GL_INVALID_INDEX;
+import static org.lwjgl.opengl.GL31.glGetUniformBlockIndex;
+import static org.lwjgl.opengl.GL31.glUniformBlockBinding;
 
 //Uniforms are global GLSL variables that shaders can use and that we will employ to pass data that is common to all elements or to a model
 
@@ -25,7 +28,8 @@ public class UniformsMap {
     }
 
 
-    public void createUniform(String uniformName){
+    //returns the location so hot paths can keep it and skip the name lookup when setting the value
+    public int createUniform(String uniformName){
 
         int uniformLocation = glGetUniformLocation(programID, uniformName);
 
@@ -34,43 +38,95 @@ public class UniformsMap {
         }
 
         uniforms.put(uniformName, uniformLocation);
+
+        return uniformLocation;
     }
 
-//uniform creation is independent on the data type associated to it that is the reason of why there are many functions but receive different types of values
+    //same as above for uniforms some variants of a program do not use, -1 then (setting it does nothing)
+    public int createOptionalUniform(String uniformName){
 
-    public void setUniform(String uniformName, Matrix4f value){
+        int uniformLocation = glGetUniformLocation(programID, uniformName);
 
-        try (MemoryStack stack = MemoryStack.stackPush()) {
+        if (uniformLocation >= 0){
+            uniforms.put(uniformName, uniformLocation);
+        }
+
+        return uniformLocation;
+    }
+
+    //uniform blocks are not set from here, they just get linked to the binding point of the UniformBuffer that feeds them
+    public void createUniformBlock(String blockName, int bindingPoint){
 
-            glUniformMatrix4fv(getUniformLocation(uniformName), false, value.get(stack.mallocFloat(16)));
+        int blockIndex = glGetUniformBlockIndex(programID, blockName);
 
+        if (blockIndex == GL_INVALID_INDEX){
+            throw new RuntimeException("COULD NOT FIND UNIFORM BLOCK: [" + blockName + "] in shader program [" + programID + "]");
         }
 
+        glUniformBlockBinding(programID, blockIndex, bindingPoint);
+    }
+
+//uniform creation is independent on the data type associated to it that is the reason of why there are many functions but receive different types of values
+
+    public void setUniform(String uniformName, Matrix4f value){
+        setUniform(getUniformLocation(uniformName), value);
     }
     
     public void setUniform(String uniformName, Vector2f value){
-        glUniform2f(getUniformLocation(uniformName), value.x, value.y);
+        setUniform(getUniformLocation(uniformName), value);
     }
      
     public void setUniform(String uniformName, Vector3f value){
-        glUniform3f(getUniformLocation(uniformName), value.x, value.y, value.z);
+        setUniform(getUniformLocation(uniformName), value);
     }
 
     public void setUniform(String uniformName, Vector4f value){
-        glUniform4f(getUniformLocation(uniformName), value.x, value.y, value.z, value.w);
+        setUniform(getUniformLocation(uniformName), value);
     }
 
     public void setUniform(String uniformName, int value){
-        glUniform1i(getUniformLocation(uniformName), value);
+        setUniform(getUniformLocation(uniformName), value);
     }
 
     public void setUniform(String uniformName, float value){
-        glUniform1f(getUniformLocation(uniformName), value);
+        setUniform(getUniformLocation(uniformName), value);
     }
 
+//same setters but taking the location returned by createUniform, these do not allocate nor hash anything
+
+    public void setUniform(int location, Matrix4f value){
+
+        //raw stack address, a FloatBuffer view would be a heap object per call (see RenderAllocationTest)
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+
+            long address = stack.nmalloc(Float.BYTES, 16 * Float.BYTES);
+            value.getToAddress(address);
+            nglUniformMatrix4fv(location, 1, false, address);
+
+        }
+
+    }
+
+    public void setUniform(int location, Vector2f value){
+        glUniform2f(location, value.x, value.y);
+    }
+
+    public void setUniform(int location, Vector3f value){
+        glUniform3f(location, value.x, value.y, value.z);
+    }
+
+    public void setUniform(int location, Vector4f value){
+        glUniform4f(location, value.x, value.y, value.z, value.w);
+    }
+
+    public void setUniform(int location, int value){
+        glUniform1i(location, value);
+    }
+
+    public void setUniform(int location, float value){
+        glUniform1f(location, value);
+    }
 
-    
-    
     private int getUniformLocation(String uniformName){
 
         Integer location = uniforms.get(uniformName);
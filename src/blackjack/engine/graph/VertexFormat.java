@@ -0,0 +1,123 @@
+package blackjack.engine.graph;
+
+/*
+ * Layouts a Mesh can use for its vertex data in GPU memory
+ *
+ * both are stored interleaved in the GeometryArena
+ *
+ * STANDARD: floats for position, normal, tangent, bitangent, texture coords and lightmap coords
+ *     64 bytes per vertex and 32 bit indices
+ * COMPACT:
+ *     position as half floats (xyz + padding, 8 bytes), falls back to floats (12 bytes) for meshes
+ *     where half precision is not enough, see Mesh
+ *     normal and tangent packed as signed normalized 10-10-10-2 ints (4 bytes each),
+ *     the 2 bit w of the tangent holds the bitangent sign, the bitangent is rebuilt in scene.vert
+ *     texture coords as half floats (4 bytes)
+ *     lightmap coords as unsigned normalized shorts (4 bytes), halves lose texels on big lightmaps
+ *     16 bit indices when the mesh has 65536 vertices or less
+ */
+
+public enum VertexFormat {
+
+    STANDARD,
+    COMPACT;
+
+    //bytes per vertex of the standard layout: 3 + 3 + 3 + 3 + 2 + 2 floats
+    public static final int STANDARD_VERTEX_SIZE = 16 * Float.BYTES;
+
+    //half float position + padding, or float position, then normal, tangent, texture coords and lightmap coords
+    public static final int HALF_POSITION_SIZE = 4 * Short.BYTES;
+    public static final int FLOAT_POSITION_SIZE = 3 * Float.BYTES;
+    public static final int COMPACT_ATTRIBUTES_SIZE = Integer.BYTES + Integer.BYTES + 2 * Short.BYTES + 2 * Short.BYTES;
+
+    //largest vertex count that can be addressed with 16 bit indices
+    public static final int MAX_SHORT_INDEX_VERTICES = 1 << 16;
+
+    //IEEE 754 half float conversion, rounds to nearest
+    public static short toHalf(float value){
+
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = ((bits >>> 23) & 0xFF) - 127 + 15;
+        int mantissa = bits & 0x7FFFFF;
+
+        //NaN stays NaN, infinities and overflows become infinity
+        if (((bits >>> 23) & 0xFF) == 0xFF){
+            return (short) (sign | 0x7C00 | (mantissa != 0 ? 0x200 : 0));
+        }
+        if (exponent >= 0x1F){
+            return (short) (sign | 0x7C00);
+        }
+
+        //too small for a normal half, store it as a subnormal (or zero)
+        if (exponent <= 0){
+            if (exponent < -10){
+                return (short) sign;
+            }
+            mantissa |= 0x800000;
+            int shift = 14 - exponent;
+            int half = mantissa >> shift;
+            int roundBit = 1 << (shift - 1);
+            if ((mantissa & roundBit) != 0 && ((mantissa & (roundBit - 1)) != 0 || (half & 1) != 0)){
+                half++;
+            }
+            return (short) (sign | half);
+        }
+
+        int half = sign | (exponent << 10) | (mantissa >> 13);
+
+        //round to nearest even, a carry into the exponent is still the right result
+        if ((mantissa & 0x1000) != 0 && ((mantissa & 0x2FFF) != 0)){
+            half++;
+        }
+
+        return (short) half;
+    }
+
+    public static float fromHalf(short value){
+
+        int half = value & 0xFFFF;
+        int sign = (half & 0x8000) << 16;
+        int exponent = (half >>> 10) & 0x1F;
+        int mantissa = half & 0x3FF;
+
+        if (exponent == 0){
+            //zero or subnormal
+            float result = mantissa * (1.0f / (1 << 24));
+            return sign != 0 ? -result : result;
+        }
+        if (exponent == 0x1F){
+            return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+        }
+
+        return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+    }
+
+    //signed normalized 10-10-10-2, layout of GL_INT_2_10_10_10_REV (x in the lowest bits)
+    public static int packSnorm1010102(float x, float y, float z, float w){
+        return (packSnorm(x, 511.0f) & 0x3FF)
+                | ((packSnorm(y, 511.0f) & 0x3FF) << 10)
+                | ((packSnorm(z, 511.0f) & 0x3FF) << 20)
+                | ((packSnorm(w, 1.0f) & 0x3) << 30);
+    }
+
+    private static int packSnorm(float value, float scale){
+        return Math.round(Math.min(Math.max(value, -1.0f), 1.0f) * scale);
+    }
+
+    //component 0-2 of a value packed by packSnorm1010102
+    public static float unpackSnorm1010102(int packed, int component){
+        int value = (packed << (22 - component * 10)) >> 22;
+        return Math.max(value / 511.0f, -1.0f);
+    }
+
+    //unsigned normalized 16 bit, read back as a float in [0, 1] by GL_UNSIGNED_SHORT normalized attributes
+    public static short packUnorm16(float value){
+        return (short) Math.round(Math.min(Math.max(value, 0.0f), 1.0f) * 65535.0f);
+    }
+
+    public static float unpackUnorm16(short value){
+        return (value & 0xFFFF) / 65535.0f;
+    }
+
+}
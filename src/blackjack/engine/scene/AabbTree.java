@@ -0,0 +1,215 @@
+package blackjack.engine.scene;
+
+/*
+ * Bounding volume hierarchy over axis aligned boxes, 6 floats per item (min x, y, z then max x, y, z)
+ * it only builds and refits the nodes, the ray queries are written by its users (EntityBVH over the
+ * entity boxes, LightmapBaker over the triangle boxes) since each needs a different one
+ *
+ * nodes are split at the middle of the largest axis of the box centers, and live in flat arrays:
+ * per node its bounds (6 floats), left child or first leaf item, right child, item count (0 for inner nodes)
+ * children always have a higher index than their parent, so walking the nodes backwards refits the whole tree
+ * in one pass, and a query stack of 2 * MAX_DEPTH entries is always enough
+ */
+
+class AabbTree {
+
+    static final int MAX_LEAF_SIZE = 4;
+    static final int MAX_DEPTH = 64;
+
+    //item boxes of the last build or refit, owned by the caller
+    private float[] itemBounds;
+
+    private float[] nodeBounds;
+    private int[] nodeFirst;
+    private int[] nodeRight;
+    private int[] nodeCount;
+    private int numNodes;
+    private int[] leafItems;
+
+    AabbTree(){
+        nodeBounds = new float[0];
+        nodeFirst = new int[0];
+        nodeRight = new int[0];
+        nodeCount = new int[0];
+        leafItems = new int[0];
+    }
+
+    //new topology for the first numItems boxes, the arrays are only reallocated when they grow
+    void build(float[] itemBounds, int numItems){
+
+        this.itemBounds = itemBounds;
+
+        //a binary tree with leaves of at least one item has less than 2n nodes
+        int maxNodes = Math.max(1, 2 * numItems);
+        if (nodeFirst.length < maxNodes){
+            nodeBounds = new float[maxNodes * 6];
+            nodeFirst = new int[maxNodes];
+            nodeRight = new int[maxNodes];
+            nodeCount = new int[maxNodes];
+        }
+        if (leafItems.length < numItems){
+            leafItems = new int[numItems];
+        }
+
+        for (int i = 0; i < numItems; i++){
+            leafItems[i] = i;
+        }
+
+        numNodes = 0;
+
+        if (numItems > 0){
+            buildNode(0, numItems, 0);
+        }
+    }
+
+    //recompute every box bottom-up after the items moved, same topology
+    void refit(float[] itemBounds){
+
+        this.itemBounds = itemBounds;
+
+        for (int node = numNodes - 1; node >= 0; node--){
+
+            int count = nodeCount[node];
+
+            if (count > 0){
+                setNodeBounds(node, nodeFirst[node], nodeFirst[node] + count);
+                continue;
+            }
+
+            int nodeOffset = node * 6;
+            int leftOffset = nodeFirst[node] * 6;
+            int rightOffset = nodeRight[node] * 6;
+
+            for (int k = 0; k < 3; k++){
+                nodeBounds[nodeOffset + k] = Math.min(nodeBounds[leftOffset + k], nodeBounds[rightOffset + k]);
+                nodeBounds[nodeOffset + 3 + k] = Math.max(nodeBounds[leftOffset + 3 + k], nodeBounds[rightOffset + 3 + k]);
+            }
+        }
+    }
+
+    private int buildNode(int start, int end, int depth){
+
+        int node = numNodes++;
+        setNodeBounds(node, start, end);
+
+        int count = end - start;
+
+        if (count <= MAX_LEAF_SIZE || depth >= MAX_DEPTH - 1){
+            nodeFirst[node] = start;
+            nodeCount[node] = count;
+            return node;
+        }
+
+        //centers are kept doubled (min + max), halving them would not move the split
+        float minC0 = Float.MAX_VALUE, minC1 = Float.MAX_VALUE, minC2 = Float.MAX_VALUE;
+        float maxC0 = -Float.MAX_VALUE, maxC1 = -Float.MAX_VALUE, maxC2 = -Float.MAX_VALUE;
+
+        for (int i = start; i < end; i++){
+            int offset = leafItems[i] * 6;
+            float c0 = itemBounds[offset] + itemBounds[offset + 3];
+            float c1 = itemBounds[offset + 1] + itemBounds[offset + 4];
+            float c2 = itemBounds[offset + 2] + itemBounds[offset + 5];
+            minC0 = Math.min(minC0, c0); maxC0 = Math.max(maxC0, c0);
+            minC1 = Math.min(minC1, c1); maxC1 = Math.max(maxC1, c1);
+            minC2 = Math.min(minC2, c2); maxC2 = Math.max(maxC2, c2);
+        }
+
+        float extent0 = maxC0 - minC0;
+        float extent1 = maxC1 - minC1;
+        float extent2 = maxC2 - minC2;
+
+        int axis = 0;
+        float splitValue = minC0 + extent0 * 0.5f;
+
+        if (extent1 > extent0 && extent1 >= extent2){
+            axis = 1;
+            splitValue = minC1 + extent1 * 0.5f;
+        }
+        else if (extent2 > extent0 && extent2 > extent1){
+            axis = 2;
+            splitValue = minC2 + extent2 * 0.5f;
+        }
+
+        int middle = partition(start, end, axis, splitValue);
+
+        //all the centers on one side (stacked items), fall back to an even split
+        if (middle == start || middle == end){
+            middle = (start + end) >>> 1;
+        }
+
+        nodeCount[node] = 0;
+        int left = buildNode(start, middle, depth + 1);
+        int right = buildNode(middle, end, depth + 1);
+
+        nodeFirst[node] = left;
+        nodeRight[node] = right;
+
+        return node;
+    }
+
+    private int partition(int start, int end, int axis, float splitValue){
+
+        int i = start;
+        int j = end - 1;
+
+        while (i <= j){
+            int offset = leafItems[i] * 6;
+            float center = itemBounds[offset + axis] + itemBounds[offset + axis + 3];
+
+            if (center < splitValue){
+                i++;
+            }
+            else {
+                int aux = leafItems[i];
+                leafItems[i] = leafItems[j];
+                leafItems[j] = aux;
+                j--;
+            }
+        }
+
+        return i;
+    }
+
+    private void setNodeBounds(int node, int start, int end){
+
+        int nodeOffset = node * 6;
+        for (int k = 0; k < 3; k++){
+            nodeBounds[nodeOffset + k] = Float.MAX_VALUE;
+            nodeBounds[nodeOffset + 3 + k] = -Float.MAX_VALUE;
+        }
+
+        for (int i = start; i < end; i++){
+            int offset = leafItems[i] * 6;
+            for (int k = 0; k < 3; k++){
+                nodeBounds[nodeOffset + k] = Math.min(nodeBounds[nodeOffset + k], itemBounds[offset + k]);
+                nodeBounds[nodeOffset + 3 + k] = Math.max(nodeBounds[nodeOffset + 3 + k], itemBounds[offset + 3 + k]);
+            }
+        }
+    }
+
+    //getters, the arrays are replaced by a build that needs more room
+    int getNumNodes() {
+        return numNodes;
+    }
+
+    float[] getNodeBounds() {
+        return nodeBounds;
+    }
+
+    int[] getNodeFirst() {
+        return nodeFirst;
+    }
+
+    int[] getNodeRight() {
+        return nodeRight;
+    }
+
+    int[] getNodeCount() {
+        return nodeCount;
+    }
+
+    int[] getLeafItems() {
+        return leafItems;
+    }
+
+}
@@ -14,6 +14,9 @@ public class Camera {
     private Matrix4f viewMatrix;
     private Matrix4f invViewMatrix;
 
+    //incremented each time the view matrix changes
+    private int version;
+
     public Camera(){
         direction = new Vector3f();
         position = new Vector3f();
@@ -96,6 +99,7 @@ public class Camera {
                     .translate(-position.x, -position.y, -position.z);
 
         invViewMatrix.set(viewMatrix).invert();
+        version++;
     }
 
     //getters and setters
@@ -111,6 +115,10 @@ public class Camera {
         return invViewMatrix;
     }
 
+    public int getVersion() {
+        return version;
+    }
+
     public void setPosition(float x, float y, float z) {
         position.set(x, y, z);
         recalculate();
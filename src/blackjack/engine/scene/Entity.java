@@ -14,6 +14,27 @@ public class Entity {
     private Quaternionf rotation;
     private float scale;
 
+    //incremented each time the model matrix is rebuilt, lets renderers know the entity changed
+    private int version;
+
+    //layer of the material texture array drawn on this entity instead of the material one, -1 keeps the material one
+    private int textureLayer;
+
+    //entities expected to move every now and then, their shadows are kept apart from the static ones (see ShadowRender)
+    private boolean dynamic;
+
+    //layer of the lightmap texture array baked for this entity, -1 while it has none (see Lightmaps)
+    private int lightmapLayer;
+
+    //transform at the start of the current fixed update, the model matrix blends it with the current one
+    //between updates (see interpolate), renderPosition and renderRotation are scratch for the blend
+    private final Vector3f previousPosition;
+    private final Quaternionf previousRotation;
+    private float previousScale;
+    private final Vector3f renderPosition;
+    private final Quaternionf renderRotation;
+    private boolean interpolated;
+
 
     public Entity(String id, String modelID, boolean isSelectable){
         this.id = id;
@@ -25,6 +46,14 @@ public class Entity {
         rotation = new Quaternionf();
 
         scale = 1;
+        textureLayer = -1;
+        lightmapLayer = -1;
+
+        previousPosition = new Vector3f();
+        previousRotation = new Quaternionf();
+        previousScale = 1;
+        renderPosition = new Vector3f();
+        renderRotation = new Quaternionf();
     }
 
 
@@ -58,6 +87,22 @@ public class Entity {
         return scale;
     }
 
+    public int getVersion() {
+        return version;
+    }
+
+    public int getTextureLayer() {
+        return textureLayer;
+    }
+
+    public int getLightmapLayer() {
+        return lightmapLayer;
+    }
+
+    public boolean isDynamic() {
+        return dynamic;
+    }
+
     //setters
     public void setPosition(float x, float y, float z) {
         
@@ -77,7 +122,55 @@ public class Entity {
         this.scale = scale;
     }
 
+    //only used when the material texture is packed in a texture array, e.g. one card model for every card face
+    public void setTextureLayer(int textureLayer) {
+        this.textureLayer = textureLayer;
+        version++;
+    }
+
+    public void setLightmapLayer(int lightmapLayer) {
+        this.lightmapLayer = lightmapLayer;
+        version++;
+    }
+
+    public void setDynamic(boolean dynamic) {
+        this.dynamic = dynamic;
+        version++;
+    }
+
     public void updateModelMatrix(){
         modelMatrix.translationRotateScale(position, rotation, scale);
+        version++;
+    }
+
+    //called by the engine before every fixed update, see Scene.storePreviousTransforms
+    public void storePreviousTransform(){
+        previousPosition.set(position);
+        previousRotation.set(rotation);
+        previousScale = scale;
+    }
+
+    /*
+     * model matrix alpha of the way from the previous update to the current one (0 to 1), so the entity
+     * moves smoothly when there are more frames than updates, entities that did not move are left alone
+     * returns whether the entity is between two different states, later frames draw it somewhere else
+     */
+    public boolean interpolate(float alpha){
+
+        if (previousPosition.equals(position) && previousRotation.equals(rotation) && previousScale == scale){
+            //the last blend stopped short of the current transform, finish it once
+            if (interpolated){
+                interpolated = false;
+                updateModelMatrix();
+            }
+            return false;
+        }
+
+        previousPosition.lerp(position, alpha, renderPosition);
+        previousRotation.slerp(rotation, alpha, renderRotation);
+        modelMatrix.translationRotateScale(renderPosition, renderRotation, previousScale + (scale - previousScale) * alpha);
+        interpolated = true;
+        version++;
+        return true;
     }
 }
@@ -0,0 +1,357 @@
+package blackjack.engine.scene;
+
+import org.joml.Intersectionf;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
+
+import blackjack.engine.graph.Material;
+import blackjack.engine.graph.Mesh;
+import blackjack.engine.graph.Model;
+
+import java.util.*;
+
+/*
+ * Bounding volume hierarchy (BVH) over the selectable entities of the scene, used for mouse picking
+ *
+ * every entity is a leaf holding its world space AABB (model AABB transformed by the full model matrix,
+ * so rotated entities are handled), inner nodes hold the box enclosing their children
+ * a ray query walks down only the nodes the ray hits, O(log n) instead of testing every entity
+ *
+ * the tree is refit (boxes recomputed bottom-up, same topology) when entities move, and rebuilt
+ * from scratch when entities are added or when most of them moved
+ * optionally the nearest candidates are then tested against the actual triangles of their meshes,
+ * using the CPU side copy of the positions kept by each Mesh
+ * the nodes are built and refit by AabbTree over the entity boxes
+ */
+
+public class EntityBVH {
+
+    private final List<Entity> entities;
+    private final List<Model> entityModels;
+    private int[] entityVersions;
+    private float[] entityBounds;
+
+    private final AabbTree tree;
+
+    private boolean needsRebuild;
+
+    //query scratch, kept so queries do not allocate
+    private final int[] stack;
+    private float entryDistance;
+    private int[] candidates;
+    private float[] candidateDistances;
+    private final Matrix4f invModelMatrix;
+    private final Vector3f localOrigin;
+    private final Vector3f localDir;
+    private final Vector3f v0;
+    private final Vector3f v1;
+    private final Vector3f v2;
+
+    private long lastQueryNanos;
+
+    public EntityBVH(){
+        entities = new ArrayList<>();
+        entityModels = new ArrayList<>();
+        entityVersions = new int[16];
+        entityBounds = new float[16 * 6];
+
+        tree = new AabbTree();
+
+        stack = new int[AabbTree.MAX_DEPTH * 2];
+        candidates = new int[16];
+        candidateDistances = new float[16];
+        invModelMatrix = new Matrix4f();
+        localOrigin = new Vector3f();
+        localDir = new Vector3f();
+        v0 = new Vector3f();
+        v1 = new Vector3f();
+        v2 = new Vector3f();
+    }
+
+    public void add(Entity entity, Model model){
+
+        int index = entities.size();
+        entities.add(entity);
+        entityModels.add(model);
+
+        if (entityVersions.length <= index){
+            entityVersions = Arrays.copyOf(entityVersions, entityVersions.length * 2);
+            entityBounds = Arrays.copyOf(entityBounds, entityBounds.length * 2);
+        }
+
+        entityVersions[index] = entity.getVersion() - 1;
+        needsRebuild = true;
+    }
+
+    public void remove(Entity entity){
+
+        int index = entities.indexOf(entity);
+
+        if (index < 0){
+            return;
+        }
+
+        //keep the per entity arrays aligned with the lists
+        int last = entities.size() - 1;
+        entities.set(index, entities.get(last));
+        entityModels.set(index, entityModels.get(last));
+        entityVersions[index] = entityVersions[last];
+        System.arraycopy(entityBounds, last * 6, entityBounds, index * 6, 6);
+        entities.remove(last);
+        entityModels.remove(last);
+        needsRebuild = true;
+    }
+
+    //bring the tree up to date with the entity transforms
+    public void update(){
+
+        int numEntities = entities.size();
+        int changed = 0;
+
+        for (int i = 0; i < numEntities; i++){
+            Entity entity = entities.get(i);
+            if (entity.getVersion() != entityVersions[i]){
+                computeEntityBounds(i);
+                entityVersions[i] = entity.getVersion();
+                changed++;
+            }
+        }
+
+        //a refit keeps the topology, once most entities moved a fresh build gives a tighter tree
+        if (needsRebuild || changed > numEntities / 2){
+            tree.build(entityBounds, numEntities);
+            needsRebuild = false;
+        }
+        else if (changed > 0){
+            tree.refit(entityBounds);
+        }
+    }
+
+    private void computeEntityBounds(int index){
+
+        Model model = entityModels.get(index);
+        Matrix4f modelMatrix = entities.get(index).getModelMatrix();
+        Vector3fc aabbMin = model.getAabbMin();
+        Vector3fc aabbMax = model.getAabbMax();
+
+        modelMatrix.transformAab(aabbMin.x(), aabbMin.y(), aabbMin.z(), aabbMax.x(), aabbMax.y(), aabbMax.z(),
+                v0, v1);
+
+        int offset = index * 6;
+        entityBounds[offset] = v0.x;
+        entityBounds[offset + 1] = v0.y;
+        entityBounds[offset + 2] = v0.z;
+        entityBounds[offset + 3] = v1.x;
+        entityBounds[offset + 4] = v1.y;
+        entityBounds[offset + 5] = v1.z;
+    }
+
+    /*
+     * returns the closest entity hit by the ray, or null
+     * with triangleTest the candidates are checked against their mesh triangles, nearest box first,
+     * stopping as soon as the next box starts further than the closest triangle found
+     */
+    public Entity pick(Vector3fc origin, Vector3fc dir, boolean triangleTest){
+
+        long start = System.nanoTime();
+        update();
+
+        int numCandidates = collectCandidates(origin, dir);
+        sortCandidates(numCandidates);
+
+        Entity selected = null;
+
+        if (!triangleTest){
+            selected = numCandidates > 0 ? entities.get(candidates[0]) : null;
+        }
+        else {
+            float closest = Float.POSITIVE_INFINITY;
+
+            //no cap on the candidates tested, the ray can cross many boxes (stacked cards, chips) before a triangle
+            for (int i = 0; i < numCandidates; i++){
+
+                if (candidateDistances[i] > closest){
+                    break;
+                }
+
+                int entityIndex = candidates[i];
+                float distance = intersectTriangles(entityIndex, origin, dir);
+
+                if (distance < closest){
+                    closest = distance;
+                    selected = entities.get(entityIndex);
+                }
+            }
+        }
+
+        lastQueryNanos = System.nanoTime() - start;
+
+        return selected;
+    }
+
+    //walks the tree and stores every entity whose box is hit, with the distance at which the ray enters it
+    private int collectCandidates(Vector3fc origin, Vector3fc dir){
+
+        if (tree.getNumNodes() == 0){
+            return 0;
+        }
+
+        float[] nodeBounds = tree.getNodeBounds();
+        int[] nodeFirst = tree.getNodeFirst();
+        int[] nodeRight = tree.getNodeRight();
+        int[] nodeCount = tree.getNodeCount();
+        int[] leafItems = tree.getLeafItems();
+
+        float invDirX = 1.0f / dir.x();
+        float invDirY = 1.0f / dir.y();
+        float invDirZ = 1.0f / dir.z();
+
+        int numCandidates = 0;
+        int stackSize = 0;
+        stack[stackSize++] = 0;
+
+        while (stackSize > 0){
+
+            int node = stack[--stackSize];
+
+            if (!intersectBox(nodeBounds, node * 6, origin, invDirX, invDirY, invDirZ)){
+                continue;
+            }
+
+            int count = nodeCount[node];
+
+            if (count == 0){
+                stack[stackSize++] = nodeRight[node];
+                stack[stackSize++] = nodeFirst[node];
+                continue;
+            }
+
+            for (int i = nodeFirst[node]; i < nodeFirst[node] + count; i++){
+
+                int entityIndex = leafItems[i];
+
+                if (!intersectBox(entityBounds, entityIndex * 6, origin, invDirX, invDirY, invDirZ)){
+                    continue;
+                }
+
+                if (numCandidates == candidates.length){
+                    candidates = Arrays.copyOf(candidates, numCandidates * 2);
+                    candidateDistances = Arrays.copyOf(candidateDistances, numCandidates * 2);
+                }
+
+                candidates[numCandidates] = entityIndex;
+                candidateDistances[numCandidates] = entryDistance;
+                numCandidates++;
+            }
+        }
+
+        return numCandidates;
+    }
+
+    //slab test, leaves the distance at which the ray enters the box in entryDistance
+    private boolean intersectBox(float[] bounds, int offset, Vector3fc origin, float invDirX, float invDirY, float invDirZ){
+
+        float t1 = (bounds[offset] - origin.x()) * invDirX;
+        float t2 = (bounds[offset + 3] - origin.x()) * invDirX;
+        float tMin = Math.min(t1, t2);
+        float tMax = Math.max(t1, t2);
+
+        t1 = (bounds[offset + 1] - origin.y()) * invDirY;
+        t2 = (bounds[offset + 4] - origin.y()) * invDirY;
+        tMin = Math.max(tMin, Math.min(t1, t2));
+        tMax = Math.min(tMax, Math.max(t1, t2));
+
+        t1 = (bounds[offset + 2] - origin.z()) * invDirZ;
+        t2 = (bounds[offset + 5] - origin.z()) * invDirZ;
+        tMin = Math.max(tMin, Math.min(t1, t2));
+        tMax = Math.min(tMax, Math.max(t1, t2));
+
+        entryDistance = Math.max(tMin, 0.0f);
+
+        return tMax >= entryDistance;
+    }
+
+    //insertion sort, the number of boxes hit by a single ray is small
+    private void sortCandidates(int numCandidates){
+
+        for (int i = 1; i < numCandidates; i++){
+
+            int candidate = candidates[i];
+            float distance = candidateDistances[i];
+            int j = i - 1;
+
+            while (j >= 0 && candidateDistances[j] > distance){
+                candidates[j + 1] = candidates[j];
+                candidateDistances[j + 1] = candidateDistances[j];
+                j--;
+            }
+
+            candidates[j + 1] = candidate;
+            candidateDistances[j + 1] = distance;
+        }
+    }
+
+    //ray against the triangles of every mesh of the entity model, in model space
+    private float intersectTriangles(int entityIndex, Vector3fc origin, Vector3fc dir){
+
+        Entity entity = entities.get(entityIndex);
+        Model model = entityModels.get(entityIndex);
+
+        //with an affine transform the ray parameter is the same in world and model space
+        entity.getModelMatrix().invertAffine(invModelMatrix);
+        invModelMatrix.transformPosition(origin, localOrigin);
+        invModelMatrix.transformDirection(dir, localDir);
+
+        float closest = Float.POSITIVE_INFINITY;
+        List<Material> materials = model.getMaterialList();
+
+        for (int i = 0; i < materials.size(); i++){
+
+            List<Mesh> meshes = materials.get(i).getMeshList();
+
+            for (int j = 0; j < meshes.size(); j++){
+
+                Mesh mesh = meshes.get(j);
+                float[] positions = mesh.getPositions();
+                int[] indices = mesh.getIndices();
+
+                if (positions == null || indices == null){
+                    continue;
+                }
+
+                for (int k = 0; k + 2 < indices.length; k += 3){
+
+                    int i0 = indices[k] * 3;
+                    int i1 = indices[k + 1] * 3;
+                    int i2 = indices[k + 2] * 3;
+                    v0.set(positions[i0], positions[i0 + 1], positions[i0 + 2]);
+                    v1.set(positions[i1], positions[i1 + 1], positions[i1 + 2]);
+                    v2.set(positions[i2], positions[i2 + 1], positions[i2 + 2]);
+
+                    float t = Intersectionf.intersectRayTriangle(localOrigin, localDir, v0, v1, v2, 1e-7f);
+
+                    if (t >= 0.0f && t < closest){
+                        closest = t;
+                    }
+                }
+            }
+        }
+
+        return closest;
+    }
+
+    //getters
+    public int getNumEntities() {
+        return entities.size();
+    }
+
+    public int getNumNodes() {
+        return tree.getNumNodes();
+    }
+
+    public long getLastQueryNanos() {
+        return lastQueryNanos;
+    }
+
+}
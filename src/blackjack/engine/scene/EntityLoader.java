@@ -1,46 +1,69 @@
 package blackjack.engine.scene;
 
-import java.util.Collection;
-import java.util.List;
-
-import org.joml.Intersectionf;
 import org.joml.Matrix4f;
 import org.joml.Vector2f;
 import org.joml.Vector3f;
 import org.joml.Vector4f;
+import org.tinylog.Logger;
 
+import blackjack.engine.Consts;
 import blackjack.engine.Window;
-import blackjack.engine.graph.Material;
-import blackjack.engine.graph.Mesh;
 import blackjack.engine.graph.Model;
+import blackjack.engine.graph.VertexFormat;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public class EntityLoader {
 
+    //models and placement of the static entities, tools/LightmapBakerTool bakes their lightmaps from the same data
+    public static final String CHAIR_MODEL_ID = "chair-model";
+    public static final String CHAIR_MODEL_PATH = "resources/models/wooden_chair/Wooden_Chair.obj";
+    public static final String TABLE_MODEL_ID = "table-model";
+    public static final String TABLE_MODEL_PATH = "resources/models/table/blackjack_table.obj";
+    public static final VertexFormat STATIC_VERTEX_FORMAT = VertexFormat.COMPACT;
+
     private Entity cubeEntity;
     private Entity chairEntity;
     private Entity tableEntity;
 
+    //picking scratch, selectEntity runs every frame the left button is held
+    private final Vector4f mouseDir = new Vector4f();
+    private final Vector3f rayDir = new Vector3f();
+
     public void loadEntities(Scene scene){
 
-        // define models to be rendered
-        Model cubeModel = ModelLoader.loadModel(
+        // define models to be rendered, imported in parallel and uploaded here as they finish
+        long startTime = System.currentTimeMillis();
+        ModelImportPipeline pipeline = new ModelImportPipeline(scene.getMaterialCache(), scene.getGeometryArena());
+
+        CompletableFuture<Model> cubeFuture = pipeline.submit(
             "cube-model",
             "resources/models/cube/cube.obj",
-            scene.getTextureCache()
+            VertexFormat.COMPACT
         );
 
-        Model chairModel = ModelLoader.loadModel(
-            "chair-model",
-            "resources/models/wooden_chair/Wooden_Chair.obj",
-            scene.getTextureCache()
+        CompletableFuture<Model> chairFuture = pipeline.submit(
+            CHAIR_MODEL_ID,
+            CHAIR_MODEL_PATH,
+            STATIC_VERTEX_FORMAT
         );
 
-        Model tableModel = ModelLoader.loadModel(
-            "table-model",
-            "resources/models/table/blackjack_table.obj",
-            scene.getTextureCache()
+        CompletableFuture<Model> tableFuture = pipeline.submit(
+            TABLE_MODEL_ID,
+            TABLE_MODEL_PATH,
+            STATIC_VERTEX_FORMAT
         );
 
+        pipeline.waitFor(List.of(cubeFuture, chairFuture, tableFuture));
+        pipeline.shutdown();
+
+        Model cubeModel = cubeFuture.join();
+        Model chairModel = chairFuture.join();
+        Model tableModel = tableFuture.join();
+
+        Logger.info("MODELS LOADED IN {} ms", System.currentTimeMillis() - startTime);
+
         //render the model in the scene
 
         scene.addModel(cubeModel);
@@ -49,11 +72,11 @@ public class EntityLoader {
         
         cubeEntity = new Entity("cube-entity", cubeModel.getId(), true);
         cubeEntity.setPosition(0.0f, 0.0f, -2.0f);
+        //the cube is the one meant to move, its shadow is redrawn on its own
+        cubeEntity.setDynamic(true);
         
-        chairEntity = new Entity("chair-entity", chairModel.getId(), true);
-        chairEntity.setPosition(0.0f, 0.0f, -2.0f);
-        
-        tableEntity = new Entity("table-entity", tableModel.getId(), false);
+        chairEntity = createChairEntity();
+        tableEntity = createTableEntity();
 
         scene.addEntity(cubeEntity);
         scene.addEntity(chairEntity);
@@ -64,8 +87,29 @@ public class EntityLoader {
         chairEntity.updateModelMatrix();
         tableEntity.updateModelMatrix();
 
+        //static entities with a baked lightmap skip the baked lights at runtime
+        if (Consts.LIGHTMAPS){
+            scene.getLightmaps().load(chairEntity);
+            scene.getLightmaps().load(tableEntity);
+            Logger.info("{} LIGHTMAPS LOADED", scene.getLightmaps().getNumLightmaps());
+        }
+
+    }
+
+    public static Entity createChairEntity(){
+        Entity entity = new Entity("chair-entity", CHAIR_MODEL_ID, true);
+        entity.setPosition(0.0f, 0.0f, -2.0f);
+        return entity;
     }
 
+    public static Entity createTableEntity(){
+        return new Entity("table-entity", TABLE_MODEL_ID, false);
+    }
+
+    /*
+     * casts a ray from the camera through the mouse position and selects the closest selectable entity
+     * the search goes through the scene BVH, which uses the full model matrix (rotation included)
+     */
     public void selectEntity(Window window, Scene scene, Vector2f mousePos){
         int wdwWidth = window.getWidth();
         int wdwHeight = window.getHeight();
@@ -75,7 +119,7 @@ public class EntityLoader {
         float z = -1.0f;
 
         Matrix4f invProjMatrix = scene.getProjection().getInvProjMatrix();
-        Vector4f mouseDir = new Vector4f(x, y, z, 1.0f);
+        mouseDir.set(x, y, z, 1.0f);
 
         mouseDir.mul(invProjMatrix);
         mouseDir.z = -1.0f;
@@ -83,51 +127,14 @@ public class EntityLoader {
 
         Matrix4f invViewMatrix = scene.getCamera().getInvViewMatrix();
         mouseDir.mul(invViewMatrix);
+        rayDir.set(mouseDir.x, mouseDir.y, mouseDir.z);
+
+        Entity selectedEntity = scene.getEntityBVH().pick(scene.getCamera().getPosition(), rayDir,
+                Consts.PICKING_TRIANGLE_TEST);
 
-        Vector4f min = new Vector4f(0.0f, 0.0f, 0.0f, 1.0f);
-        Vector4f max = new Vector4f(0.0f, 0.0f, 0.0f, 1.0f);
-        Vector2f nearFar = new Vector2f();
-
-        Entity selectedEntity = null;
-        float closestDistance = Float.POSITIVE_INFINITY;
-        Vector3f center = scene.getCamera().getPosition();
-
-        Collection<Model> models = scene.getModelMap().values();
-        Matrix4f modelMatrix = new Matrix4f();
-
-        for (Model model : models){
-            List<Entity> entities = model.getEntitiesList();
-
-            for (Entity entity : entities){
-
-                if (!entity.isSelectable()){
-                    continue;
-                }
-                modelMatrix.translate(entity.getPosition()).scale(entity.getScale());
-                
-                for (Material material : model.getMaterialList()){
-                    for (Mesh mesh : material.getMeshList()){
-                        
-                        Vector3f aabbMin = mesh.getAabbMin();
-                        min.set(aabbMin.x, aabbMin.y, aabbMin.z, 1.0f);
-                        min.mul(modelMatrix);
-
-                        Vector3f aabbMax = mesh.getAabbMax();
-                        max.set(aabbMax.x, aabbMax.y, aabbMax.z, 1.0f);
-                        max.mul(modelMatrix);
-
-                        if (Intersectionf.intersectRayAab(center.x, center.y, center.z, mouseDir.x, mouseDir.y, mouseDir.z,
-                                min.x, min.y, min.z, max.x, max.y, max.z, nearFar) && nearFar.x < closestDistance) {
-                            closestDistance = nearFar.x;
-                            selectedEntity = entity;
-                        }
-                    }
-                }
-                modelMatrix.identity();
-            }
-        }
         scene.setSelectedEntity(selectedEntity);
     }
+
     // getters for entities in case some class needs them for updating
     public Entity getChairEntity() {
         return chairEntity;
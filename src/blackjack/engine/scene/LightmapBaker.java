@@ -0,0 +1,813 @@
+package blackjack.engine.scene;
+
+import org.joml.Matrix3f;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.joml.Vector4f;
+import org.lwjgl.system.MemoryUtil;
+import org.tinylog.Logger;
+
+import blackjack.engine.Consts;
+import blackjack.engine.graph.CookedMesh;
+import blackjack.engine.graph.Lightmaps;
+import blackjack.engine.graph.Material;
+import blackjack.engine.graph.ModelData;
+import blackjack.engine.scene.lights.PointLight;
+import blackjack.engine.scene.lights.SceneLights;
+import blackjack.engine.scene.lights.SpotLight;
+
+import java.io.File;
+import java.nio.FloatBuffer;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static org.lwjgl.stb.STBImageWrite.stbi_write_hdr;
+
+/*
+ * Offline CPU path tracer writing the lightmaps of the static entities (see Lightmaps), no GL needed
+ *
+ * every instance added becomes world space triangles of the scene, the lightmapped ones also get their
+ * texels rasterized in lightmap space (using the second UV set of LightmapUnwrap), each covered texel
+ * keeping its world position and normal
+ * for every texel the bake adds:
+ *  - direct light of the baked point and spot lights, with a shadow ray per light
+ *  - indirect light, Consts.LIGHTMAP_SAMPLES cosine weighted paths of up to Consts.LIGHTMAP_BOUNCES bounces,
+ *    every bounce adds the direct light of the hit point (next event estimation) times the albedos so far
+ * values use the units of scene.frag (intensity * color * cos / attenuation, no 1 / pi), so the shader
+ * only multiplies the texel by the diffuse color, the ambient light is left to the shader
+ *
+ * rays go through a BVH over all the triangles, built once, texel rows are split across a ForkJoin pool
+ * of the given size and every row seeds its own random generator, so the result does not depend on
+ * the number of threads
+ * the albedo of a triangle is the diffuse color of its material, Consts.LIGHTMAP_TEXTURED_ALBEDO for
+ * textured ones since the baker does not read the textures
+ */
+
+public class LightmapBaker {
+
+    private static final int ROWS_PER_TASK = 4;
+    private static final float MAX_ALBEDO = 0.95f;
+
+    //offset of the ray origins along the normal, relative to the size of the scene
+    private static final float RAY_OFFSET = 1e-4f;
+
+    //floats per baked light
+    private static final int LIGHT_FLOATS = 13;
+
+    private final int numThreads;
+    private final int size;
+
+    //baked lights: position, color * intensity, attenuation, cone direction (from the light) and cutoff (-2 for point lights)
+    private float[] lights;
+    private int numLights;
+
+    //scene triangles in world space: 3 vertices, geometric normal and albedo
+    private float[] triangleVertices;
+    private float[] triangleNormals;
+    private float[] triangleAlbedos;
+    private int numTriangles;
+
+    //hierarchy over the triangle boxes, built on the first bake after the instances are added
+    private final AabbTree tree;
+    private boolean built;
+    private float rayOffset;
+
+    private final List<Target> targets;
+
+    public LightmapBaker(SceneLights sceneLights, int numThreads){
+
+        this.numThreads = Math.max(1, numThreads);
+        size = Consts.LIGHTMAP_SIZE;
+
+        triangleVertices = new float[1024 * 9];
+        triangleNormals = new float[1024 * 3];
+        triangleAlbedos = new float[1024 * 3];
+        targets = new ArrayList<>();
+        tree = new AabbTree();
+
+        addLights(sceneLights);
+    }
+
+    //only the baked lights that are switched on
+    private void addLights(SceneLights sceneLights){
+
+        List<PointLight> pointLights = sceneLights.getPointLights();
+        List<SpotLight> spotLights = sceneLights.getSpotLights();
+        lights = new float[(pointLights.size() + spotLights.size()) * LIGHT_FLOATS];
+
+        for (PointLight pointLight : pointLights){
+            if (pointLight.isBaked() && pointLight.getIntensity() > 0.0f){
+                putLight(pointLight, null);
+            }
+        }
+
+        for (SpotLight spotLight : spotLights){
+            PointLight pointLight = spotLight.getPointLight();
+            if (pointLight.isBaked() && pointLight.getIntensity() > 0.0f){
+                putLight(pointLight, spotLight);
+            }
+        }
+    }
+
+    private void putLight(PointLight pointLight, SpotLight spotLight){
+
+        int offset = numLights++ * LIGHT_FLOATS;
+        Vector3f position = pointLight.getPosition();
+        Vector3f color = pointLight.getColor();
+        PointLight.Attenuation attenuation = pointLight.getAttenuation();
+        float intensity = pointLight.getIntensity();
+
+        lights[offset] = position.x;
+        lights[offset + 1] = position.y;
+        lights[offset + 2] = position.z;
+        lights[offset + 3] = color.x * intensity;
+        lights[offset + 4] = color.y * intensity;
+        lights[offset + 5] = color.z * intensity;
+        lights[offset + 6] = attenuation.getConstant();
+        lights[offset + 7] = attenuation.getLinear();
+        lights[offset + 8] = attenuation.getExponent();
+
+        if (spotLight != null){
+            Vector3f coneDirection = new Vector3f(spotLight.getConeDirection()).normalize();
+            lights[offset + 9] = coneDirection.x;
+            lights[offset + 10] = coneDirection.y;
+            lights[offset + 11] = coneDirection.z;
+            lights[offset + 12] = spotLight.getCutOff();
+        }
+        else {
+            lights[offset + 12] = -2.0f;
+        }
+    }
+
+    /*
+     * adds the meshes of a model placed with the model matrix, every instance blocks and bounces light,
+     * the lightmapped ones also get a lightmap named after the entity, returns false when the model has no
+     * lightmap coordinates (the instance still takes part in the bake)
+     */
+    public boolean addInstance(String entityId, ModelData modelData, Matrix4f modelMatrix, boolean lightmapped){
+
+        Target target = lightmapped ? new Target(entityId, size) : null;
+        Matrix3f normalMatrix = modelMatrix.normal(new Matrix3f());
+        Vector3f position = new Vector3f();
+        Vector3f normal = new Vector3f();
+        boolean hasLightmapCoords = false;
+
+        for (CookedMesh mesh : modelData.getMeshList()){
+
+            float[] positions = mesh.getPositions();
+            int[] indices = mesh.getIndices();
+
+            if (positions == null || indices == null){
+                continue;
+            }
+
+            float[] worldPositions = new float[positions.length];
+            for (int i = 0; i < positions.length; i += 3){
+                modelMatrix.transformPosition(positions[i], positions[i + 1], positions[i + 2], position);
+                worldPositions[i] = position.x;
+                worldPositions[i + 1] = position.y;
+                worldPositions[i + 2] = position.z;
+            }
+
+            float[] albedo = getAlbedo(modelData.getMaterialList().get(mesh.getMaterialIdx()));
+
+            for (int i = 0; i + 2 < indices.length; i += 3){
+                addTriangle(worldPositions, indices[i], indices[i + 1], indices[i + 2], albedo);
+            }
+
+            if (target == null){
+                continue;
+            }
+
+            float[] normals = mesh.decodeNormals();
+            float[] lightmapCoords = mesh.decodeLightmapCoords();
+
+            for (int i = 0; i < normals.length; i += 3){
+                normalMatrix.transform(normal.set(normals[i], normals[i + 1], normals[i + 2])).normalize();
+                normals[i] = normal.x;
+                normals[i + 1] = normal.y;
+                normals[i + 2] = normal.z;
+            }
+
+            for (float coord : lightmapCoords){
+                if (coord != 0.0f){
+                    hasLightmapCoords = true;
+                    break;
+                }
+            }
+
+            for (int i = 0; i + 2 < indices.length; i += 3){
+                target.rasterize(worldPositions, normals, lightmapCoords, indices[i], indices[i + 1], indices[i + 2]);
+            }
+        }
+
+        //the cached model was imported with Consts.LIGHTMAPS off or the unwrap failed
+        if (target != null && !hasLightmapCoords){
+            Logger.warn("MODEL [{}] OF ENTITY [{}] HAS NO LIGHTMAP COORDINATES, NOT BAKED", modelData.getModelId(), entityId);
+            return false;
+        }
+
+        if (target != null){
+            targets.add(target);
+        }
+
+        built = false;
+
+        return true;
+    }
+
+    private static float[] getAlbedo(Material material){
+
+        if (material.getTexturePath() != null){
+            float albedo = Consts.LIGHTMAP_TEXTURED_ALBEDO;
+            return new float[]{albedo, albedo, albedo};
+        }
+
+        Vector4f diffuse = material.getDiffusecolor();
+        return new float[]{Math.min(diffuse.x, MAX_ALBEDO), Math.min(diffuse.y, MAX_ALBEDO), Math.min(diffuse.z, MAX_ALBEDO)};
+    }
+
+    private void addTriangle(float[] positions, int i0, int i1, int i2, float[] albedo){
+
+        if (numTriangles * 9 == triangleVertices.length){
+            triangleVertices = Arrays.copyOf(triangleVertices, triangleVertices.length * 2);
+            triangleNormals = Arrays.copyOf(triangleNormals, triangleNormals.length * 2);
+            triangleAlbedos = Arrays.copyOf(triangleAlbedos, triangleAlbedos.length * 2);
+        }
+
+        int offset = numTriangles * 9;
+        System.arraycopy(positions, i0 * 3, triangleVertices, offset, 3);
+        System.arraycopy(positions, i1 * 3, triangleVertices, offset + 3, 3);
+        System.arraycopy(positions, i2 * 3, triangleVertices, offset + 6, 3);
+
+        float e1x = triangleVertices[offset + 3] - triangleVertices[offset];
+        float e1y = triangleVertices[offset + 4] - triangleVertices[offset + 1];
+        float e1z = triangleVertices[offset + 5] - triangleVertices[offset + 2];
+        float e2x = triangleVertices[offset + 6] - triangleVertices[offset];
+        float e2y = triangleVertices[offset + 7] - triangleVertices[offset + 1];
+        float e2z = triangleVertices[offset + 8] - triangleVertices[offset + 2];
+
+        float nx = e1y * e2z - e1z * e2y;
+        float ny = e1z * e2x - e1x * e2z;
+        float nz = e1x * e2y - e1y * e2x;
+        float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+        float invLength = length > 0.0f ? 1.0f / length : 0.0f;
+
+        triangleNormals[numTriangles * 3] = nx * invLength;
+        triangleNormals[numTriangles * 3 + 1] = ny * invLength;
+        triangleNormals[numTriangles * 3 + 2] = nz * invLength;
+        System.arraycopy(albedo, 0, triangleAlbedos, numTriangles * 3, 3);
+
+        numTriangles++;
+    }
+
+    //bakes every lightmapped instance and writes its lightmap to Consts.LIGHTMAP_DIR, returns the number written
+    public int bake(){
+
+        if (!built){
+            build();
+        }
+
+        new File(Consts.LIGHTMAP_DIR).mkdirs();
+
+        int written = 0;
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+
+        try {
+            for (Target target : targets){
+
+                long start = System.nanoTime();
+                pool.invoke(new BakeTask(target, 0, size));
+                target.dilate();
+
+                double seconds = (System.nanoTime() - start) / 1e9;
+                Logger.info("LIGHTMAP [{}] {} texels in {} s on {} threads, {} texels/s", target.entityId,
+                        target.numTexels, String.format("%.2f", seconds), numThreads,
+                        String.format("%.0f", target.numTexels / Math.max(seconds, 1e-9)));
+
+                if (write(target)){
+                    written++;
+                }
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+
+        return written;
+    }
+
+    private boolean write(Target target){
+
+        String path = Lightmaps.getPath(target.entityId);
+        FloatBuffer buffer = MemoryUtil.memAllocFloat(target.radiance.length);
+
+        try {
+            buffer.put(target.radiance).flip();
+
+            if (!stbi_write_hdr(path, size, size, 3, buffer)){
+                Logger.error("LIGHTMAP FILE [{}] NOT WRITTEN", path);
+                return false;
+            }
+        }
+        finally {
+            MemoryUtil.memFree(buffer);
+        }
+
+        return true;
+    }
+
+    /*
+     * direct and indirect light of a texel into its radiance, the random generator, the stack and the hit and
+     * indirect scratch belong to the calling task
+     */
+    private void bakeTexel(Target target, int texel, SplittableRandom random, int[] stack, float[] hit, float[] indirect){
+
+        int offset = texel * 3;
+        float px = target.positions[offset], py = target.positions[offset + 1], pz = target.positions[offset + 2];
+        float nx = target.normals[offset], ny = target.normals[offset + 1], nz = target.normals[offset + 2];
+
+        float[] radiance = target.radiance;
+        addDirectLight(px, py, pz, nx, ny, nz, 1.0f, 1.0f, 1.0f, radiance, offset, stack);
+
+        float indirectR = 0.0f, indirectG = 0.0f, indirectB = 0.0f;
+
+        for (int sample = 0; sample < Consts.LIGHTMAP_SAMPLES; sample++){
+
+            float ox = px, oy = py, oz = pz;
+            float onx = nx, ony = ny, onz = nz;
+            float weightR = 1.0f, weightG = 1.0f, weightB = 1.0f;
+            indirect[0] = indirect[1] = indirect[2] = 0.0f;
+
+            for (int bounce = 0; bounce < Consts.LIGHTMAP_BOUNCES; bounce++){
+
+                //cosine weighted direction around the normal, with the basis of Duff et al.
+                double phi = 2.0 * Math.PI * random.nextDouble();
+                float r2 = (float) random.nextDouble();
+                float r = (float) Math.sqrt(r2);
+                float lx = r * (float) Math.cos(phi);
+                float ly = r * (float) Math.sin(phi);
+                float lz = (float) Math.sqrt(Math.max(0.0f, 1.0f - r2));
+
+                float sign = Math.copySign(1.0f, onz);
+                float a = -1.0f / (sign + onz);
+                float b = onx * ony * a;
+                float dx = (1.0f + sign * onx * onx * a) * lx + b * ly + onx * lz;
+                float dy = sign * b * lx + (sign + ony * ony * a) * ly + ony * lz;
+                float dz = -sign * onx * lx - ony * ly + onz * lz;
+
+                int triangle = closestHit(ox + onx * rayOffset, oy + ony * rayOffset, oz + onz * rayOffset,
+                        dx, dy, dz, stack, hit);
+
+                if (triangle < 0){
+                    break;
+                }
+
+                ox += onx * rayOffset + dx * hit[0];
+                oy += ony * rayOffset + dy * hit[0];
+                oz += onz * rayOffset + dz * hit[0];
+
+                //one sided meshes are lit on the side the ray comes from
+                onx = triangleNormals[triangle * 3];
+                ony = triangleNormals[triangle * 3 + 1];
+                onz = triangleNormals[triangle * 3 + 2];
+                if (onx * dx + ony * dy + onz * dz > 0.0f){
+                    onx = -onx;
+                    ony = -ony;
+                    onz = -onz;
+                }
+
+                weightR *= triangleAlbedos[triangle * 3];
+                weightG *= triangleAlbedos[triangle * 3 + 1];
+                weightB *= triangleAlbedos[triangle * 3 + 2];
+
+                addDirectLight(ox, oy, oz, onx, ony, onz, weightR, weightG, weightB, indirect, 0, stack);
+            }
+
+            indirectR += indirect[0];
+            indirectG += indirect[1];
+            indirectB += indirect[2];
+        }
+
+        //cosine sampling cancels the cosine and the 1 / pi, the estimate is the mean of the paths
+        radiance[offset] += indirectR / Consts.LIGHTMAP_SAMPLES;
+        radiance[offset + 1] += indirectG / Consts.LIGHTMAP_SAMPLES;
+        radiance[offset + 2] += indirectB / Consts.LIGHTMAP_SAMPLES;
+    }
+
+    //same terms as calcPointLight / calcSpotLight in scene.frag (diffuse part only), times the weight
+    private void addDirectLight(float px, float py, float pz, float nx, float ny, float nz,
+            float weightR, float weightG, float weightB, float[] result, int resultOffset, int[] stack){
+
+        float ox = px + nx * rayOffset, oy = py + ny * rayOffset, oz = pz + nz * rayOffset;
+
+        for (int i = 0; i < numLights; i++){
+
+            int offset = i * LIGHT_FLOATS;
+            float lx = lights[offset] - px, ly = lights[offset + 1] - py, lz = lights[offset + 2] - pz;
+            float distance = (float) Math.sqrt(lx * lx + ly * ly + lz * lz);
+
+            if (distance <= 0.0f){
+                continue;
+            }
+
+            lx /= distance;
+            ly /= distance;
+            lz /= distance;
+
+            float cos = nx * lx + ny * ly + nz * lz;
+            if (cos <= 0.0f){
+                continue;
+            }
+
+            float factor = cos;
+            float cutoff = lights[offset + 12];
+
+            if (cutoff > -2.0f){
+                float spotAlfa = -(lx * lights[offset + 9] + ly * lights[offset + 10] + lz * lights[offset + 11]);
+                if (spotAlfa <= cutoff){
+                    continue;
+                }
+                factor *= 1.0f - (1.0f - spotAlfa) / (1.0f - cutoff);
+            }
+
+            float attenuation = lights[offset + 6] + lights[offset + 7] * distance + lights[offset + 8] * distance * distance;
+            if (attenuation <= 0.0f){
+                continue;
+            }
+
+            if (anyHit(ox, oy, oz, lx, ly, lz, distance - rayOffset, stack)){
+                continue;
+            }
+
+            factor /= attenuation;
+            result[resultOffset] += weightR * lights[offset + 3] * factor;
+            result[resultOffset + 1] += weightG * lights[offset + 4] * factor;
+            result[resultOffset + 2] += weightB * lights[offset + 5] * factor;
+        }
+    }
+
+    private void build(){
+
+        float[] triangleBounds = new float[numTriangles * 6];
+
+        for (int i = 0; i < numTriangles; i++){
+            int offset = i * 9;
+            for (int k = 0; k < 3; k++){
+                float a = triangleVertices[offset + k], b = triangleVertices[offset + 3 + k], c = triangleVertices[offset + 6 + k];
+                triangleBounds[i * 6 + k] = Math.min(a, Math.min(b, c));
+                triangleBounds[i * 6 + 3 + k] = Math.max(a, Math.max(b, c));
+            }
+        }
+
+        tree.build(triangleBounds, numTriangles);
+        built = true;
+        rayOffset = RAY_OFFSET;
+
+        if (numTriangles == 0){
+            return;
+        }
+
+        float[] rootBounds = tree.getNodeBounds();
+        float dx = rootBounds[3] - rootBounds[0];
+        float dy = rootBounds[4] - rootBounds[1];
+        float dz = rootBounds[5] - rootBounds[2];
+        rayOffset *= (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+        Logger.info("LIGHTMAP BAKER {} triangles, {} BVH nodes, {} baked lights", numTriangles, tree.getNumNodes(), numLights);
+    }
+
+    //closest triangle hit by the ray, its distance is left in hit[0], -1 when nothing is hit
+    private int closestHit(float ox, float oy, float oz, float dx, float dy, float dz, int[] stack, float[] hit){
+
+        float invDirX = 1.0f / dx, invDirY = 1.0f / dy, invDirZ = 1.0f / dz;
+        float closest = Float.POSITIVE_INFINITY;
+        int closestTriangle = -1;
+
+        if (tree.getNumNodes() == 0){
+            return -1;
+        }
+
+        float[] nodeBounds = tree.getNodeBounds();
+        int[] nodeFirst = tree.getNodeFirst();
+        int[] nodeRight = tree.getNodeRight();
+        int[] nodeCount = tree.getNodeCount();
+        int[] leafItems = tree.getLeafItems();
+
+        int stackSize = 0;
+        stack[stackSize++] = 0;
+
+        while (stackSize > 0){
+
+            int node = stack[--stackSize];
+
+            if (!intersectBox(nodeBounds, node * 6, ox, oy, oz, invDirX, invDirY, invDirZ, closest)){
+                continue;
+            }
+
+            int count = nodeCount[node];
+
+            if (count == 0){
+                stack[stackSize++] = nodeRight[node];
+                stack[stackSize++] = nodeFirst[node];
+                continue;
+            }
+
+            for (int i = nodeFirst[node]; i < nodeFirst[node] + count; i++){
+                float t = intersectTriangle(leafItems[i], ox, oy, oz, dx, dy, dz);
+                if (t > 0.0f && t < closest){
+                    closest = t;
+                    closestTriangle = leafItems[i];
+                }
+            }
+        }
+
+        hit[0] = closest;
+
+        return closestTriangle;
+    }
+
+    //shadow rays, stops at the first triangle closer than maxDistance
+    private boolean anyHit(float ox, float oy, float oz, float dx, float dy, float dz, float maxDistance, int[] stack){
+
+        float invDirX = 1.0f / dx, invDirY = 1.0f / dy, invDirZ = 1.0f / dz;
+
+        if (tree.getNumNodes() == 0){
+            return false;
+        }
+
+        float[] nodeBounds = tree.getNodeBounds();
+        int[] nodeFirst = tree.getNodeFirst();
+        int[] nodeRight = tree.getNodeRight();
+        int[] nodeCount = tree.getNodeCount();
+        int[] leafItems = tree.getLeafItems();
+
+        int stackSize = 0;
+        stack[stackSize++] = 0;
+
+        while (stackSize > 0){
+
+            int node = stack[--stackSize];
+
+            if (!intersectBox(nodeBounds, node * 6, ox, oy, oz, invDirX, invDirY, invDirZ, maxDistance)){
+                continue;
+            }
+
+            int count = nodeCount[node];
+
+            if (count == 0){
+                stack[stackSize++] = nodeRight[node];
+                stack[stackSize++] = nodeFirst[node];
+                continue;
+            }
+
+            for (int i = nodeFirst[node]; i < nodeFirst[node] + count; i++){
+                float t = intersectTriangle(leafItems[i], ox, oy, oz, dx, dy, dz);
+                if (t > 0.0f && t < maxDistance){
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    //slab test against the box of the node, limited to the part of the ray before maxDistance
+    private static boolean intersectBox(float[] nodeBounds, int offset, float ox, float oy, float oz, float invDirX, float invDirY, float invDirZ,
+            float maxDistance){
+
+        float t1 = (nodeBounds[offset] - ox) * invDirX;
+        float t2 = (nodeBounds[offset + 3] - ox) * invDirX;
+        float tMin = Math.min(t1, t2);
+        float tMax = Math.max(t1, t2);
+
+        t1 = (nodeBounds[offset + 1] - oy) * invDirY;
+        t2 = (nodeBounds[offset + 4] - oy) * invDirY;
+        tMin = Math.max(tMin, Math.min(t1, t2));
+        tMax = Math.min(tMax, Math.max(t1, t2));
+
+        t1 = (nodeBounds[offset + 2] - oz) * invDirZ;
+        t2 = (nodeBounds[offset + 5] - oz) * invDirZ;
+        tMin = Math.max(tMin, Math.min(t1, t2));
+        tMax = Math.min(tMax, Math.max(t1, t2));
+
+        return tMax >= Math.max(tMin, 0.0f) && tMin <= maxDistance;
+    }
+
+    //Moller-Trumbore, both faces, returns the ray distance or -1
+    private float intersectTriangle(int triangle, float ox, float oy, float oz, float dx, float dy, float dz){
+
+        int offset = triangle * 9;
+        float v0x = triangleVertices[offset], v0y = triangleVertices[offset + 1], v0z = triangleVertices[offset + 2];
+        float e1x = triangleVertices[offset + 3] - v0x, e1y = triangleVertices[offset + 4] - v0y, e1z = triangleVertices[offset + 5] - v0z;
+        float e2x = triangleVertices[offset + 6] - v0x, e2y = triangleVertices[offset + 7] - v0y, e2z = triangleVertices[offset + 8] - v0z;
+
+        float px = dy * e2z - dz * e2y;
+        float py = dz * e2x - dx * e2z;
+        float pz = dx * e2y - dy * e2x;
+        float det = e1x * px + e1y * py + e1z * pz;
+
+        if (Math.abs(det) < 1e-12f){
+            return -1.0f;
+        }
+
+        float invDet = 1.0f / det;
+        float tx = ox - v0x, ty = oy - v0y, tz = oz - v0z;
+        float u = (tx * px + ty * py + tz * pz) * invDet;
+
+        if (u < 0.0f || u > 1.0f){
+            return -1.0f;
+        }
+
+        float qx = ty * e1z - tz * e1y;
+        float qy = tz * e1x - tx * e1z;
+        float qz = tx * e1y - ty * e1x;
+        float v = (dx * qx + dy * qy + dz * qz) * invDet;
+
+        if (v < 0.0f || u + v > 1.0f){
+            return -1.0f;
+        }
+
+        return (e2x * qx + e2y * qy + e2z * qz) * invDet;
+    }
+
+    //getters
+    public int getNumTargets() {
+        return targets.size();
+    }
+
+    public int getNumTriangles() {
+        return numTriangles;
+    }
+
+    //texels of one lightmap: world position and normal of the covered ones, then the baked radiance
+    private static class Target {
+
+        private final String entityId;
+        private final int size;
+        private final float[] positions;
+        private final float[] normals;
+        private final float[] radiance;
+        private final boolean[] covered;
+        private int numTexels;
+
+        Target(String entityId, int size){
+            this.entityId = entityId;
+            this.size = size;
+            positions = new float[size * size * 3];
+            normals = new float[size * size * 3];
+            radiance = new float[size * size * 3];
+            covered = new boolean[size * size];
+        }
+
+        //every texel whose center falls inside the triangle in lightmap space
+        void rasterize(float[] worldPositions, float[] worldNormals, float[] lightmapCoords, int i0, int i1, int i2){
+
+            float x0 = lightmapCoords[i0 * 2] * size, y0 = lightmapCoords[i0 * 2 + 1] * size;
+            float x1 = lightmapCoords[i1 * 2] * size, y1 = lightmapCoords[i1 * 2 + 1] * size;
+            float x2 = lightmapCoords[i2 * 2] * size, y2 = lightmapCoords[i2 * 2 + 1] * size;
+
+            float area = (x1 - x0) * (y2 - y0) - (x2 - x0) * (y1 - y0);
+            if (Math.abs(area) < 1e-12f){
+                return;
+            }
+
+            int minX = Math.max(0, (int) Math.floor(Math.min(x0, Math.min(x1, x2)) - 0.5f));
+            int maxX = Math.min(size - 1, (int) Math.ceil(Math.max(x0, Math.max(x1, x2)) - 0.5f));
+            int minY = Math.max(0, (int) Math.floor(Math.min(y0, Math.min(y1, y2)) - 0.5f));
+            int maxY = Math.min(size - 1, (int) Math.ceil(Math.max(y0, Math.max(y1, y2)) - 0.5f));
+
+            for (int y = minY; y <= maxY; y++){
+                for (int x = minX; x <= maxX; x++){
+
+                    float cx = x + 0.5f, cy = y + 0.5f;
+                    float b0 = ((x1 - cx) * (y2 - cy) - (x2 - cx) * (y1 - cy)) / area;
+                    float b1 = ((x2 - cx) * (y0 - cy) - (x0 - cx) * (y2 - cy)) / area;
+                    float b2 = 1.0f - b0 - b1;
+
+                    if (b0 < 0.0f || b1 < 0.0f || b2 < 0.0f){
+                        continue;
+                    }
+
+                    int texel = y * size + x;
+
+                    for (int k = 0; k < 3; k++){
+                        positions[texel * 3 + k] = b0 * worldPositions[i0 * 3 + k] + b1 * worldPositions[i1 * 3 + k]
+                                + b2 * worldPositions[i2 * 3 + k];
+                    }
+
+                    float nx = b0 * worldNormals[i0 * 3] + b1 * worldNormals[i1 * 3] + b2 * worldNormals[i2 * 3];
+                    float ny = b0 * worldNormals[i0 * 3 + 1] + b1 * worldNormals[i1 * 3 + 1] + b2 * worldNormals[i2 * 3 + 1];
+                    float nz = b0 * worldNormals[i0 * 3 + 2] + b1 * worldNormals[i1 * 3 + 2] + b2 * worldNormals[i2 * 3 + 2];
+                    float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+
+                    if (length == 0.0f){
+                        continue;
+                    }
+
+                    normals[texel * 3] = nx / length;
+                    normals[texel * 3 + 1] = ny / length;
+                    normals[texel * 3 + 2] = nz / length;
+
+                    if (!covered[texel]){
+                        covered[texel] = true;
+                        numTexels++;
+                    }
+                }
+            }
+        }
+
+        /*
+         * texels outside every triangle next to covered ones take the mean of their covered neighbours,
+         * one ring per pass, Consts.LIGHTMAP_PADDING rings keep the filtering from reading black at the chart edges
+         */
+        void dilate(){
+
+            boolean[] filled = covered.clone();
+
+            for (int pass = 0; pass < Consts.LIGHTMAP_PADDING; pass++){
+
+                boolean[] next = filled.clone();
+
+                for (int y = 0; y < size; y++){
+                    for (int x = 0; x < size; x++){
+
+                        int texel = y * size + x;
+                        if (filled[texel]){
+                            continue;
+                        }
+
+                        float r = 0.0f, g = 0.0f, b = 0.0f;
+                        int count = 0;
+
+                        for (int dy = -1; dy <= 1; dy++){
+                            for (int dx = -1; dx <= 1; dx++){
+                                int nx = x + dx, ny = y + dy;
+                                if (nx < 0 || ny < 0 || nx >= size || ny >= size || !filled[ny * size + nx]){
+                                    continue;
+                                }
+                                int neighbour = (ny * size + nx) * 3;
+                                r += radiance[neighbour];
+                                g += radiance[neighbour + 1];
+                                b += radiance[neighbour + 2];
+                                count++;
+                            }
+                        }
+
+                        if (count > 0){
+                            radiance[texel * 3] = r / count;
+                            radiance[texel * 3 + 1] = g / count;
+                            radiance[texel * 3 + 2] = b / count;
+                            next[texel] = true;
+                        }
+                    }
+                }
+
+                filled = next;
+            }
+        }
+    }
+
+    //texel rows of a lightmap, split until ROWS_PER_TASK rows are left
+    @SuppressWarnings("serial")
+    private class BakeTask extends RecursiveAction {
+
+        private final transient Target target;
+        private final int startRow;
+        private final int endRow;
+
+        BakeTask(Target target, int startRow, int endRow){
+            this.target = target;
+            this.startRow = startRow;
+            this.endRow = endRow;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (endRow - startRow > ROWS_PER_TASK){
+                int middle = (startRow + endRow) >>> 1;
+                invokeAll(new BakeTask(target, startRow, middle), new BakeTask(target, middle, endRow));
+                return;
+            }
+
+            int[] stack = new int[AabbTree.MAX_DEPTH * 2];
+            float[] hit = new float[1];
+            float[] indirect = new float[3];
+
+            for (int y = startRow; y < endRow; y++){
+
+                SplittableRandom random = new SplittableRandom(target.entityId.hashCode() * 31L + y);
+
+                for (int x = 0; x < size; x++){
+                    int texel = y * size + x;
+                    if (target.covered[texel]){
+                        bakeTexel(target, texel, random, stack, hit, indirect);
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,329 @@
+package blackjack.engine.scene;
+
+import org.tinylog.Logger;
+
+import blackjack.engine.Consts;
+import blackjack.engine.graph.MeshData;
+
+import java.util.*;
+
+/*
+ * Import stage run by ModelLoader on all the meshes of a model before the mesh optimization, it builds the
+ * second UV set used to sample the baked lightmaps (see LightmapBaker)
+ *
+ * 1. charts, triangles are grouped by the axis their normal is closest to (six directions) and the
+ *    groups are split in connected pieces (triangles sharing a vertex)
+ * 2. every chart is projected on the plane of its axis, which keeps the texel size the same across a
+ *    chart and never stretches a triangle by more than sqrt(3)
+ * 3. the charts of every mesh of the model are packed in rows in a single Consts.LIGHTMAP_SIZE atlas, so an
+ *    entity needs one lightmap, Consts.LIGHTMAP_PADDING texels are left around each chart for the filtering
+ *    and the scale is lowered until everything fits
+ * 4. vertices shared by several charts are duplicated, one copy per chart
+ *
+ * coordinates are in [0, 1], the same for every entity of the model (each entity gets its own layer)
+ * a model that does not fit at any reasonable scale is left without lightmap coordinates
+ */
+
+public class LightmapUnwrap {
+
+    //fraction of the atlas the first packing attempt aims to fill, and scale step of the next attempts
+    private static final float TARGET_FILL = 0.6f;
+    private static final float SCALE_STEP = 0.9f;
+    private static final int MAX_ATTEMPTS = 40;
+
+    private LightmapUnwrap(){
+
+    }
+
+    //returns false when the charts do not fit, the meshes are left untouched then
+    public static boolean unwrap(String modelId, List<MeshData> meshes){
+
+        List<Chart> charts = new ArrayList<>();
+        int[][] triangleCharts = new int[meshes.size()][];
+
+        for (int i = 0; i < meshes.size(); i++){
+            triangleCharts[i] = buildCharts(meshes.get(i), charts);
+        }
+
+        if (charts.isEmpty()){
+            return false;
+        }
+
+        double totalArea = 0.0;
+        for (Chart chart : charts){
+            totalArea += Math.max(chart.width * chart.height, 1e-8);
+        }
+
+        //texels per model unit
+        int size = Consts.LIGHTMAP_SIZE;
+        float scale = (float) Math.sqrt(TARGET_FILL * size * size / totalArea);
+        boolean packed = false;
+
+        for (int attempt = 0; attempt < MAX_ATTEMPTS && !packed; attempt++){
+            packed = pack(charts, scale, size);
+            if (!packed){
+                scale *= SCALE_STEP;
+            }
+        }
+
+        if (!packed){
+            Logger.warn("MODEL [{}] {} lightmap charts do not fit in a {} atlas, the model is not lightmapped",
+                    modelId, charts.size(), size);
+            return false;
+        }
+
+        for (int i = 0; i < meshes.size(); i++){
+            splitVertices(meshes.get(i), triangleCharts[i], charts, scale, size);
+        }
+
+        Logger.info("MODEL [{}] {} lightmap charts, {} texels per unit", modelId, charts.size(),
+                String.format("%.1f", scale));
+
+        return true;
+    }
+
+    //1 and 2, returns the chart of every triangle of the mesh
+    private static int[] buildCharts(MeshData meshData, List<Chart> charts){
+
+        float[] positions = meshData.getPositions();
+        int[] indices = meshData.getIndices();
+        int numTriangles = indices.length / 3;
+        int vertexCount = meshData.getVertexCount();
+
+        int[] axes = new int[numTriangles];
+        int[] parents = new int[numTriangles];
+
+        for (int t = 0; t < numTriangles; t++){
+            axes[t] = getAxis(positions, indices[t * 3], indices[t * 3 + 1], indices[t * 3 + 2]);
+            parents[t] = t;
+        }
+
+        //first triangle of every (vertex, axis) pair, triangles of the same axis around a vertex are joined
+        int[] firstTriangle = new int[vertexCount * 6];
+        Arrays.fill(firstTriangle, -1);
+
+        for (int t = 0; t < numTriangles; t++){
+            for (int k = 0; k < 3; k++){
+                int slot = indices[t * 3 + k] * 6 + axes[t];
+                if (firstTriangle[slot] < 0){
+                    firstTriangle[slot] = t;
+                }
+                else {
+                    union(parents, t, firstTriangle[slot]);
+                }
+            }
+        }
+
+        Map<Integer, Integer> rootCharts = new HashMap<>();
+        int[] triangleCharts = new int[numTriangles];
+
+        for (int t = 0; t < numTriangles; t++){
+
+            int root = find(parents, t);
+            Integer chartIndex = rootCharts.get(root);
+
+            if (chartIndex == null){
+                chartIndex = charts.size();
+                rootCharts.put(root, chartIndex);
+                charts.add(new Chart(axes[t]));
+            }
+
+            Chart chart = charts.get(chartIndex);
+            for (int k = 0; k < 3; k++){
+                int v = indices[t * 3 + k] * 3;
+                chart.include(projectU(positions, v, chart.axis), projectV(positions, v, chart.axis));
+            }
+
+            triangleCharts[t] = chartIndex;
+        }
+
+        return triangleCharts;
+    }
+
+    //0-5: +x, -x, +y, -y, +z, -z, degenerate triangles go with +x
+    private static int getAxis(float[] positions, int i0, int i1, int i2){
+
+        float e1x = positions[i1 * 3] - positions[i0 * 3];
+        float e1y = positions[i1 * 3 + 1] - positions[i0 * 3 + 1];
+        float e1z = positions[i1 * 3 + 2] - positions[i0 * 3 + 2];
+        float e2x = positions[i2 * 3] - positions[i0 * 3];
+        float e2y = positions[i2 * 3 + 1] - positions[i0 * 3 + 1];
+        float e2z = positions[i2 * 3 + 2] - positions[i0 * 3 + 2];
+
+        float nx = e1y * e2z - e1z * e2y;
+        float ny = e1z * e2x - e1x * e2z;
+        float nz = e1x * e2y - e1y * e2x;
+
+        float ax = Math.abs(nx), ay = Math.abs(ny), az = Math.abs(nz);
+
+        if (ax >= ay && ax >= az){
+            return nx >= 0.0f ? 0 : 1;
+        }
+        if (ay >= az){
+            return ny >= 0.0f ? 2 : 3;
+        }
+        return nz >= 0.0f ? 4 : 5;
+    }
+
+    //the two coordinates that are not the axis of the chart
+    private static float projectU(float[] positions, int v, int axis){
+        return positions[v + ((axis / 2 + 1) % 3)];
+    }
+
+    private static float projectV(float[] positions, int v, int axis){
+        return positions[v + ((axis / 2 + 2) % 3)];
+    }
+
+    private static int find(int[] parents, int t){
+        while (parents[t] != t){
+            parents[t] = parents[parents[t]];
+            t = parents[t];
+        }
+        return t;
+    }
+
+    private static void union(int[] parents, int a, int b){
+        int rootA = find(parents, a);
+        int rootB = find(parents, b);
+        if (rootA != rootB){
+            parents[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+        }
+    }
+
+    //3, rows filled left to right with the charts sorted by height, returns false when they overflow the atlas
+    private static boolean pack(List<Chart> charts, float scale, int size){
+
+        int padding = Consts.LIGHTMAP_PADDING;
+
+        for (Chart chart : charts){
+            chart.texelWidth = Math.max(1, (int) Math.ceil(chart.width * scale)) + 2 * padding;
+            chart.texelHeight = Math.max(1, (int) Math.ceil(chart.height * scale)) + 2 * padding;
+        }
+
+        List<Chart> sorted = new ArrayList<>(charts);
+        sorted.sort((a, b) -> Integer.compare(b.texelHeight, a.texelHeight));
+
+        int x = 0;
+        int y = 0;
+        int rowHeight = 0;
+
+        for (Chart chart : sorted){
+
+            if (chart.texelWidth > size){
+                return false;
+            }
+
+            if (x + chart.texelWidth > size){
+                x = 0;
+                y += rowHeight;
+                rowHeight = 0;
+            }
+
+            if (y + chart.texelHeight > size){
+                return false;
+            }
+
+            chart.x = x;
+            chart.y = y;
+            x += chart.texelWidth;
+            rowHeight = Math.max(rowHeight, chart.texelHeight);
+        }
+
+        return true;
+    }
+
+    //4, one vertex per (vertex, chart) pair, the attributes are copied and the lightmap coords computed
+    private static void splitVertices(MeshData meshData, int[] triangleCharts, List<Chart> charts,
+            float scale, int size){
+
+        float[] positions = meshData.getPositions();
+        float[] normals = meshData.getNormals();
+        float[] tangents = meshData.getTangents();
+        float[] bitangents = meshData.getBitangents();
+        float[] textCoords = meshData.getTextCoords();
+        int[] indices = meshData.getIndices();
+
+        Map<Long, Integer> newVertices = new HashMap<>();
+        int[] newIndices = new int[indices.length];
+        List<int[]> sources = new ArrayList<>();
+
+        for (int i = 0; i < indices.length; i++){
+
+            int chartIndex = triangleCharts[i / 3];
+            long key = ((long) indices[i] << 32) | chartIndex;
+            Integer vertex = newVertices.get(key);
+
+            if (vertex == null){
+                vertex = sources.size();
+                newVertices.put(key, vertex);
+                sources.add(new int[]{indices[i], chartIndex});
+            }
+
+            newIndices[i] = vertex;
+        }
+
+        int newVertexCount = sources.size();
+        float[] newPositions = new float[newVertexCount * 3];
+        float[] newNormals = new float[newVertexCount * 3];
+        float[] newTangents = new float[newVertexCount * 3];
+        float[] newBitangents = new float[newVertexCount * 3];
+        float[] newTextCoords = new float[newVertexCount * 2];
+        float[] lightmapCoords = new float[newVertexCount * 2];
+
+        int padding = Consts.LIGHTMAP_PADDING;
+
+        for (int i = 0; i < newVertexCount; i++){
+
+            int source = sources.get(i)[0];
+            Chart chart = charts.get(sources.get(i)[1]);
+
+            System.arraycopy(positions, source * 3, newPositions, i * 3, 3);
+            System.arraycopy(normals, source * 3, newNormals, i * 3, 3);
+            System.arraycopy(tangents, source * 3, newTangents, i * 3, 3);
+            System.arraycopy(bitangents, source * 3, newBitangents, i * 3, 3);
+            System.arraycopy(textCoords, source * 2, newTextCoords, i * 2, 2);
+
+            float u = (projectU(positions, source * 3, chart.axis) - chart.minU) * scale;
+            float v = (projectV(positions, source * 3, chart.axis) - chart.minV) * scale;
+            lightmapCoords[i * 2] = (chart.x + padding + u) / size;
+            lightmapCoords[i * 2 + 1] = (chart.y + padding + v) / size;
+        }
+
+        meshData.setVertices(newPositions, newNormals, newTangents, newBitangents, newTextCoords);
+        meshData.setLightmapCoords(lightmapCoords);
+        meshData.setIndices(newIndices);
+    }
+
+    private static class Chart {
+
+        private final int axis;
+
+        //bounds of the projected vertices, in model units
+        private float minU = Float.MAX_VALUE;
+        private float minV = Float.MAX_VALUE;
+        private float width;
+        private float height;
+        private float maxU = -Float.MAX_VALUE;
+        private float maxV = -Float.MAX_VALUE;
+
+        //place in the atlas, in texels, padding included
+        private int x;
+        private int y;
+        private int texelWidth;
+        private int texelHeight;
+
+        Chart(int axis){
+            this.axis = axis;
+        }
+
+        void include(float u, float v){
+            minU = Math.min(minU, u);
+            minV = Math.min(minV, v);
+            maxU = Math.max(maxU, u);
+            maxV = Math.max(maxV, v);
+            width = maxU - minU;
+            height = maxV - minV;
+        }
+    }
+
+}
@@ -0,0 +1,206 @@
+package blackjack.engine.scene;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.util.meshoptimizer.MeshoptVertexCacheStatistics;
+import org.tinylog.Logger;
+
+import blackjack.engine.Consts;
+import blackjack.engine.graph.MeshData;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.*;
+
+import static org.lwjgl.util.meshoptimizer.MeshOptimizer.*;
+
+/*
+ * Import stage run by ModelLoader on every mesh before it is uploaded, backed by meshoptimizer
+ *
+ * 1. vertex cache optimization, reorders the triangles so the post transform cache is reused
+ * 2. overdraw optimization, reorders triangle clusters so nearer ones tend to be drawn first
+ * 3. vertex fetch optimization, reorders the vertices in the order they are first used by the
+ *    indices (and drops unused ones), so the vertex data is read as linearly as possible
+ * 4. LOD generation, simplified index lists over the same vertices, each one with about
+ *    Consts.MESH_LOD_REDUCTION of the triangles of the previous one, as long as the
+ *    simplification error stays below Consts.MESH_LOD_TARGET_ERROR (relative to the mesh size)
+ *
+ * one instance is used per model, it accumulates the statistics of all its meshes for the report:
+ * ACMR (vertices transformed per triangle) and ATVR (vertices transformed per vertex) with a
+ * 16 entry cache, before and after, and the triangle count of each LOD
+ */
+
+public class MeshOptimization {
+
+    private static final int CACHE_SIZE = 16;
+    private static final float OVERDRAW_THRESHOLD = 1.05f;
+
+    private long trianglesBefore;
+    private long verticesBefore;
+    private long transformedBefore;
+    private long trianglesAfter;
+    private long verticesAfter;
+    private long transformedAfter;
+    private final long[] lodTriangles;
+
+    public MeshOptimization(){
+        lodTriangles = new long[Consts.MESH_LODS];
+    }
+
+    public void optimize(MeshData meshData){
+
+        int vertexCount = meshData.getVertexCount();
+        int[] indices = meshData.getIndices();
+        int indexCount = indices.length;
+
+        if (indexCount == 0 || vertexCount == 0){
+            return;
+        }
+
+        IntBuffer indexBuffer = MemoryUtil.memAllocInt(indexCount);
+        IntBuffer scratch = MemoryUtil.memAllocInt(indexCount);
+        FloatBuffer positionBuffer = MemoryUtil.memAllocFloat(meshData.getPositions().length);
+
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+
+            MeshoptVertexCacheStatistics statistics = MeshoptVertexCacheStatistics.malloc(stack);
+
+            indexBuffer.put(0, indices);
+            positionBuffer.put(0, meshData.getPositions());
+
+            meshopt_analyzeVertexCache(indexBuffer, vertexCount, CACHE_SIZE, 0, 0, statistics);
+            trianglesBefore += indexCount / 3;
+            verticesBefore += vertexCount;
+            transformedBefore += statistics.vertices_transformed();
+
+            //1 and 2, the overdraw pass keeps the cache efficiency within the threshold
+            meshopt_optimizeVertexCache(scratch, indexBuffer, vertexCount);
+            meshopt_optimizeOverdraw(indexBuffer, scratch, positionBuffer, vertexCount, 3 * Float.BYTES, OVERDRAW_THRESHOLD);
+
+            //3, remap[old vertex] = new vertex, or -1 for vertices no index points to
+            IntBuffer remapBuffer = MemoryUtil.memAllocInt(vertexCount);
+            int newVertexCount = (int) meshopt_optimizeVertexFetchRemap(remapBuffer, indexBuffer);
+            int[] remap = new int[vertexCount];
+            remapBuffer.get(0, remap);
+            MemoryUtil.memFree(remapBuffer);
+
+            remapVertices(meshData, remap, newVertexCount);
+
+            int[] optimized = new int[indexCount];
+            for (int i = 0; i < indexCount; i++){
+                optimized[i] = remap[indexBuffer.get(i)];
+            }
+            indexBuffer.put(0, optimized);
+            positionBuffer.clear();
+            positionBuffer.put(0, meshData.getPositions());
+
+            meshopt_analyzeVertexCache(indexBuffer, newVertexCount, CACHE_SIZE, 0, 0, statistics);
+            trianglesAfter += indexCount / 3;
+            verticesAfter += newVertexCount;
+            transformedAfter += statistics.vertices_transformed();
+
+            //4
+            List<int[]> lods = new ArrayList<>();
+            lods.add(optimized);
+            generateLods(lods, indexBuffer, scratch, positionBuffer, newVertexCount);
+
+            int[][] lodIndices = lods.toArray(new int[0][]);
+            meshData.setLodIndices(lodIndices);
+
+            for (int i = 0; i < lodIndices.length; i++){
+                lodTriangles[i] += lodIndices[i].length / 3;
+            }
+        }
+        finally {
+            MemoryUtil.memFree(indexBuffer);
+            MemoryUtil.memFree(scratch);
+            MemoryUtil.memFree(positionBuffer);
+        }
+    }
+
+    /*
+     * every level is simplified from the full mesh with a smaller target, which keeps the error from adding up
+     * generation stops once the simplifier cannot get meaningfully below the previous level within the error
+     */
+    private void generateLods(List<int[]> lods, IntBuffer indexBuffer, IntBuffer scratch, FloatBuffer positionBuffer, int vertexCount){
+
+        int indexCount = indexBuffer.remaining();
+        int previousCount = indexCount;
+
+        for (int level = 1; level < Consts.MESH_LODS; level++){
+
+            long targetCount = (long) (previousCount * Consts.MESH_LOD_REDUCTION) / 3 * 3;
+
+            if (targetCount < 3){
+                break;
+            }
+
+            int lodCount = (int) meshopt_simplify(scratch, indexBuffer, positionBuffer, vertexCount, 3 * Float.BYTES,
+                    targetCount, Consts.MESH_LOD_TARGET_ERROR, 0, null);
+
+            if (lodCount == 0 || lodCount > previousCount * Consts.MESH_LOD_MIN_GAIN){
+                break;
+            }
+
+            //the simplified triangles come in a random order, run the cache pass on them as well
+            IntBuffer lodBuffer = MemoryUtil.memAllocInt(lodCount);
+            IntBuffer simplified = scratch.slice(0, lodCount);
+            meshopt_optimizeVertexCache(lodBuffer, simplified, vertexCount);
+
+            int[] lod = new int[lodCount];
+            lodBuffer.get(0, lod);
+            MemoryUtil.memFree(lodBuffer);
+
+            lods.add(lod);
+            previousCount = lodCount;
+        }
+    }
+
+    private static void remapVertices(MeshData meshData, int[] remap, int newVertexCount){
+
+        if (meshData.getLightmapCoords() != null){
+            meshData.setLightmapCoords(remapAttribute(meshData.getLightmapCoords(), 2, remap, newVertexCount));
+        }
+
+        meshData.setVertices(
+            remapAttribute(meshData.getPositions(), 3, remap, newVertexCount),
+            remapAttribute(meshData.getNormals(), 3, remap, newVertexCount),
+            remapAttribute(meshData.getTangents(), 3, remap, newVertexCount),
+            remapAttribute(meshData.getBitangents(), 3, remap, newVertexCount),
+            remapAttribute(meshData.getTextCoords(), 2, remap, newVertexCount)
+        );
+    }
+
+    private static float[] remapAttribute(float[] data, int size, int[] remap, int newVertexCount){
+
+        float[] result = new float[newVertexCount * size];
+
+        for (int i = 0; i < remap.length; i++){
+
+            int target = remap[i];
+
+            if (target < 0){
+                continue;
+            }
+
+            System.arraycopy(data, i * size, result, target * size, size);
+        }
+
+        return result;
+    }
+
+    public void report(String modelId){
+
+        if (trianglesBefore == 0){
+            return;
+        }
+
+        Logger.info("MODEL [{}] ACMR {} -> {}, ATVR {} -> {}, triangles per LOD {}", modelId,
+                String.format("%.3f", (float) transformedBefore / trianglesBefore),
+                String.format("%.3f", (float) transformedAfter / trianglesAfter),
+                String.format("%.3f", (float) transformedBefore / verticesBefore),
+                String.format("%.3f", (float) transformedAfter / verticesAfter),
+                Arrays.toString(lodTriangles));
+    }
+
+}
@@ -0,0 +1,325 @@
+package blackjack.engine.scene;
+
+import org.joml.Vector3f;
+import org.joml.Vector4f;
+import org.tinylog.Logger;
+
+import blackjack.engine.Consts;
+import blackjack.engine.Utils;
+import blackjack.engine.graph.CookedMesh;
+import blackjack.engine.graph.Material;
+import blackjack.engine.graph.ModelData;
+import blackjack.engine.graph.VertexFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/*
+ * Cache of cooked models on disk, so Assimp and the mesh optimization only run the first time a model is loaded
+ *
+ * the key is a SHA-256 of the model file and the .mtl files next to it, the import flags, the vertex format,
+ * the settings of the import stages and FORMAT_VERSION, any change gives a new file
+ * the file holds the materials and, for every mesh, its AABB, LOD table, the positions and indices kept for
+ * picking and the vertex and index data already in their GPU layout
+ *
+ * on load the file is memory mapped and the vertex and index data of the meshes are slices of the mapping,
+ * so the upload to the GeometryArena reads straight from the file pages
+ * everything is written in native byte order, an invalid or foreign file is just treated as a miss
+ */
+
+public class ModelCache {
+
+    private static final int MAGIC = 0x424A4D43;
+    private static final int FORMAT_VERSION = 2;
+    private static final String EXTENSION = ".bjm";
+
+    private ModelCache(){
+
+    }
+
+    public static String computeKey(String modelPath, int flags, VertexFormat vertexFormat){
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+            String settings = FORMAT_VERSION + "|" + flags + "|" + vertexFormat + "|" + Consts.MESH_OPTIMIZATION + "|"
+                    + Consts.MESH_LODS + "|" + Consts.MESH_LOD_REDUCTION + "|" + Consts.MESH_LOD_TARGET_ERROR + "|"
+                    + Consts.MESH_LOD_MIN_GAIN + "|" + Consts.HALF_POSITION_MAX_ERROR + "|" + Consts.LIGHTMAPS + "|"
+                    + Consts.LIGHTMAP_SIZE + "|" + Consts.LIGHTMAP_PADDING;
+            digest.update(settings.getBytes(StandardCharsets.UTF_8));
+
+            Path path = Paths.get(modelPath);
+            digest.update(Files.readAllBytes(path));
+
+            //materials live in separate files for OBJ models
+            File[] materialFiles = path.toAbsolutePath().getParent().toFile()
+                    .listFiles((dir, name) -> name.toLowerCase().endsWith(".mtl"));
+
+            if (materialFiles != null){
+                Arrays.sort(materialFiles);
+                for (File materialFile : materialFiles){
+                    digest.update(materialFile.getName().getBytes(StandardCharsets.UTF_8));
+                    digest.update(Files.readAllBytes(materialFile.toPath()));
+                }
+            }
+
+            return HexFormat.of().formatHex(digest.digest());
+        }
+        catch (IOException | NoSuchAlgorithmException e) {
+            throw new RuntimeException("ERROR HASHING MODEL [" + modelPath + "]", e);
+        }
+    }
+
+    //returns null when there is no valid cooked file for the key
+    public static ModelData read(String key, String modelId){
+
+        Path path = getPath(key);
+
+        if (!Files.exists(path)){
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.nativeOrder());
+
+            if (mapped.getInt() != MAGIC || mapped.getInt() != FORMAT_VERSION){
+                return null;
+            }
+
+            int numMaterials = mapped.getInt();
+            List<Material> materialList = new ArrayList<>();
+
+            for (int i = 0; i < numMaterials; i++){
+                Material material = new Material();
+                material.setDiffusecolor(readVector4f(mapped));
+                material.setAmbientColor(readVector4f(mapped));
+                material.setSpecularColor(readVector4f(mapped));
+                material.setReflectance(mapped.getFloat());
+                material.setTexturePath(readString(mapped));
+                material.setNormalMapPath(readString(mapped));
+                materialList.add(material);
+            }
+
+            int numMeshes = mapped.getInt();
+            List<CookedMesh> meshList = new ArrayList<>();
+
+            for (int i = 0; i < numMeshes; i++){
+
+                int materialIdx = mapped.getInt();
+                int layout = mapped.getInt();
+                int vertexCount = mapped.getInt();
+                int indexType = mapped.getInt();
+                Vector3f aabbMin = readVector3f(mapped);
+                Vector3f aabbMax = readVector3f(mapped);
+
+                int numLods = mapped.getInt();
+                long[] lodIndexOffsets = new long[numLods];
+                int[] lodIndexCounts = new int[numLods];
+                for (int j = 0; j < numLods; j++){
+                    lodIndexOffsets[j] = mapped.getLong();
+                    lodIndexCounts[j] = mapped.getInt();
+                }
+
+                float[] positions = new float[mapped.getInt()];
+                int[] indices = new int[mapped.getInt()];
+                int vertexBytes = mapped.getInt();
+                int indexBytes = mapped.getInt();
+
+                mapped.asFloatBuffer().get(positions);
+                mapped.position(mapped.position() + positions.length * Float.BYTES);
+                mapped.asIntBuffer().get(indices);
+                mapped.position(mapped.position() + indices.length * Integer.BYTES);
+
+                ByteBuffer vertexData = slice(mapped, vertexBytes);
+                ByteBuffer indexData = slice(mapped, indexBytes);
+
+                meshList.add(new CookedMesh(materialIdx, layout, vertexCount, indexType, vertexData, indexData, false,
+                        lodIndexOffsets, lodIndexCounts, positions, indices, aabbMin, aabbMax));
+            }
+
+            return new ModelData(modelId, materialList, meshList);
+        }
+        catch (IOException | RuntimeException e) {
+            Logger.warn("IGNORING INVALID MODEL CACHE FILE [{}]: {}", path, e.getMessage());
+            return null;
+        }
+    }
+
+    public static void write(String key, ModelData modelData){
+
+        Path path = getPath(key);
+        Writer writer = new Writer();
+
+        writer.putInt(MAGIC);
+        writer.putInt(FORMAT_VERSION);
+
+        List<Material> materialList = modelData.getMaterialList();
+        writer.putInt(materialList.size());
+
+        for (Material material : materialList){
+            writer.putVector4f(material.getDiffusecolor());
+            writer.putVector4f(material.getAmbientColor());
+            writer.putVector4f(material.getSpecularColor());
+            writer.putFloat(material.getReflectance());
+            writer.putString(material.getTexturePath());
+            writer.putString(material.getNormalMapPath());
+        }
+
+        List<CookedMesh> meshList = modelData.getMeshList();
+        writer.putInt(meshList.size());
+
+        for (CookedMesh mesh : meshList){
+
+            writer.putInt(mesh.getMaterialIdx());
+            writer.putInt(mesh.getLayout());
+            writer.putInt(mesh.getVertexCount());
+            writer.putInt(mesh.getIndexType());
+            writer.putVector3f(mesh.getAabbMin());
+            writer.putVector3f(mesh.getAabbMax());
+
+            long[] lodIndexOffsets = mesh.getLodIndexOffsets();
+            int[] lodIndexCounts = mesh.getLodIndexCounts();
+            writer.putInt(lodIndexOffsets.length);
+            for (int j = 0; j < lodIndexOffsets.length; j++){
+                writer.putLong(lodIndexOffsets[j]);
+                writer.putInt(lodIndexCounts[j]);
+            }
+
+            writer.putInt(mesh.getPositions().length);
+            writer.putInt(mesh.getIndices().length);
+            writer.putInt(mesh.getVertexData().remaining());
+            writer.putInt(mesh.getIndexData().remaining());
+
+            for (float position : mesh.getPositions()){
+                writer.putFloat(position);
+            }
+            for (int index : mesh.getIndices()){
+                writer.putInt(index);
+            }
+
+            writer.putBytes(mesh.getVertexData());
+            writer.putBytes(mesh.getIndexData());
+        }
+
+        Utils.writeFileAtomically(path, writer.toArray());
+    }
+
+    private static Path getPath(String key){
+        return Paths.get(Consts.MODEL_CACHE_DIR, key + EXTENSION);
+    }
+
+    //next bytes of the buffer as a separate buffer, the position moves past them (4 byte aligned)
+    private static ByteBuffer slice(ByteBuffer buffer, int length){
+        ByteBuffer slice = buffer.slice(buffer.position(), length).order(ByteOrder.nativeOrder());
+        buffer.position(buffer.position() + align(length));
+        return slice;
+    }
+
+    private static int align(int length){
+        return (length + 3) & ~3;
+    }
+
+    private static Vector4f readVector4f(ByteBuffer buffer){
+        return new Vector4f(buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+    }
+
+    private static Vector3f readVector3f(ByteBuffer buffer){
+        return new Vector3f(buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+    }
+
+    private static String readString(ByteBuffer buffer){
+
+        int length = buffer.getInt();
+
+        if (length < 0){
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        buffer.position(buffer.position() + align(length) - length);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    //growable native order buffer, every field is 4 byte aligned
+    private static class Writer {
+
+        private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.nativeOrder());
+
+        private void ensure(int bytes){
+            if (buffer.remaining() < bytes){
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes))
+                        .order(ByteOrder.nativeOrder());
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+        }
+
+        void putInt(int value){
+            ensure(Integer.BYTES);
+            buffer.putInt(value);
+        }
+
+        void putLong(long value){
+            ensure(Long.BYTES);
+            buffer.putLong(value);
+        }
+
+        void putFloat(float value){
+            ensure(Float.BYTES);
+            buffer.putFloat(value);
+        }
+
+        void putVector4f(Vector4f vector){
+            putFloat(vector.x);
+            putFloat(vector.y);
+            putFloat(vector.z);
+            putFloat(vector.w);
+        }
+
+        void putVector3f(Vector3f vector){
+            putFloat(vector.x);
+            putFloat(vector.y);
+            putFloat(vector.z);
+        }
+
+        void putString(String value){
+
+            if (value == null){
+                putInt(-1);
+                return;
+            }
+
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            ensure(align(bytes.length));
+            buffer.put(bytes);
+            buffer.position(buffer.position() + align(bytes.length) - bytes.length);
+        }
+
+        void putBytes(ByteBuffer data){
+            int length = data.remaining();
+            ensure(align(length));
+            buffer.put(data.duplicate());
+            buffer.position(buffer.position() + align(length) - length);
+        }
+
+        byte[] toArray(){
+            return Arrays.copyOf(buffer.array(), buffer.position());
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+package blackjack.engine.scene;
+
+import org.tinylog.Logger;
+
+import blackjack.engine.Consts;
+import blackjack.engine.graph.GeometryArena;
+import blackjack.engine.graph.MaterialCache;
+import blackjack.engine.graph.Model;
+import blackjack.engine.graph.ModelData;
+import blackjack.engine.graph.TextureData;
+import blackjack.engine.graph.VertexFormat;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Loads several models at the same time
+ *
+ * the CPU part of every model (cache read or Assimp import, mesh processing and texture decoding)
+ * runs on a pool of worker threads, the finished data is queued and only the GPU upload is done
+ * on the GL thread, when it calls processUploads() or waitFor()
+ * submit() returns a future per model so callers can wait for just the models they need
+ */
+
+public class ModelImportPipeline {
+
+    private final MaterialCache materialCache;
+    private final GeometryArena geometryArena;
+    private final ExecutorService workers;
+    private final BlockingQueue<PendingUpload> pendingUploads;
+
+    public ModelImportPipeline(MaterialCache materialCache, GeometryArena geometryArena){
+
+        this.materialCache = materialCache;
+        this.geometryArena = geometryArena;
+        pendingUploads = new LinkedBlockingQueue<>();
+
+        AtomicInteger threadCount = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(Consts.MODEL_IMPORT_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "model-import-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public CompletableFuture<Model> submit(String modelId, String modelPath, VertexFormat vertexFormat){
+        return submit(modelId, modelPath, ModelLoader.DEFAULT_FLAGS, vertexFormat);
+    }
+
+    //the future completes on the GL thread once the model is uploaded
+    public CompletableFuture<Model> submit(String modelId, String modelPath, int flags, VertexFormat vertexFormat){
+
+        CompletableFuture<Model> future = new CompletableFuture<>();
+
+        workers.execute(() -> {
+            ModelData modelData = null;
+            try {
+                modelData = ModelLoader.loadModelData(modelId, modelPath, flags, vertexFormat);
+                //streamed textures are decoded by the TextureCache, the model does not wait for them
+                if (!Consts.TEXTURE_STREAMING){
+                    ModelLoader.loadTextureData(modelData);
+                }
+                pendingUploads.add(new PendingUpload(modelData, future));
+            }
+            //errors too (missing natives, out of memory), waitFor would poll forever on a future never completed
+            catch (Throwable t) {
+                if (modelData != null){
+                    modelData.getTextureDataList().forEach(TextureData::free);
+                }
+                Logger.error(t, "COULD NOT IMPORT MODEL [{}]", modelId);
+                future.completeExceptionally(t);
+            }
+        });
+
+        return future;
+    }
+
+    //uploads every model finished so far, GL thread only, returns how many were uploaded
+    public int processUploads(){
+
+        int uploaded = 0;
+        PendingUpload pendingUpload;
+
+        while ((pendingUpload = pendingUploads.poll()) != null){
+            upload(pendingUpload);
+            uploaded++;
+        }
+
+        return uploaded;
+    }
+
+    //keeps uploading finished models until all the given futures are done, GL thread only
+    public void waitFor(Collection<? extends Future<?>> futures){
+
+        try {
+            while (!allDone(futures)){
+                PendingUpload pendingUpload = pendingUploads.poll(1, TimeUnit.MILLISECONDS);
+                if (pendingUpload != null){
+                    upload(pendingUpload);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("INTERRUPTED WHILE WAITING FOR MODELS", e);
+        }
+    }
+
+    private void upload(PendingUpload pendingUpload){
+        try {
+            Model model = ModelLoader.uploadModel(pendingUpload.modelData, materialCache, geometryArena);
+            pendingUpload.future.complete(model);
+        }
+        catch (RuntimeException e) {
+            pendingUpload.modelData.getTextureDataList().forEach(TextureData::free);
+            pendingUpload.future.completeExceptionally(e);
+        }
+    }
+
+    private static boolean allDone(Collection<? extends Future<?>> futures){
+        for (Future<?> future : futures){
+            if (!future.isDone()){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //stops the workers, models still being imported are dropped
+    public void shutdown(){
+        workers.shutdownNow();
+
+        PendingUpload pendingUpload;
+        while ((pendingUpload = pendingUploads.poll()) != null){
+            pendingUpload.modelData.getTextureDataList().forEach(TextureData::free);
+            pendingUpload.future.cancel(false);
+        }
+
+        Logger.debug("MODEL IMPORT PIPELINE SHUT DOWN");
+    }
+
+    private record PendingUpload(ModelData modelData, CompletableFuture<Model> future) {
+    }
+
+}
@@ -8,6 +8,7 @@ import org.joml.Vector4f;
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.assimp.*;
 import org.lwjgl.system.MemoryStack;
+import org.tinylog.Logger;
 
 import blackjack.engine.Consts;
 import blackjack.engine.graph.*;
@@ -17,27 +18,51 @@ import java.nio.IntBuffer;
 import java.util.*;
 
 import static org.lwjgl.assimp.Assimp.*;
+import static org.lwjgl.system.MemoryUtil.*;
 
 
 public class ModelLoader {
 
+    public static final int DEFAULT_FLAGS =
+            aiProcess_JoinIdenticalVertices | aiProcess_Triangulate |
+            aiProcess_FixInfacingNormals | aiProcess_CalcTangentSpace |
+            aiProcess_LimitBoneWeights | aiProcess_GenBoundingBoxes |
+            aiProcess_PreTransformVertices;
+
     private ModelLoader(){
 
     }
 
-    public static Model loadModel(String modelId, String modelPath, TextureCache textureCache){
+    public static Model loadModel(String modelId, String modelPath, MaterialCache materialCache,
+            GeometryArena geometryArena){
+        return loadModel(modelId, modelPath, materialCache, geometryArena, VertexFormat.STANDARD);
+    }
 
-        return loadModel(
-            modelId, modelPath, textureCache,
-            aiProcess_JoinIdenticalVertices | aiProcess_Triangulate |
-            aiProcess_FixInfacingNormals | aiProcess_CalcTangentSpace |
-            aiProcess_LimitBoneWeights | aiProcess_GenBoundingBoxes |
-            aiProcess_PreTransformVertices
-        );
+    //the vertex format is chosen per model, see VertexFormat
+    public static Model loadModel(String modelId, String modelPath, MaterialCache materialCache,
+            GeometryArena geometryArena, VertexFormat vertexFormat){
+
+        return loadModel(modelId, modelPath, materialCache, geometryArena, DEFAULT_FLAGS, vertexFormat);
+    }
 
+    public static Model loadModel(String modelId, String modelPath, MaterialCache materialCache,
+            GeometryArena geometryArena, int flags){
+        return loadModel(modelId, modelPath, materialCache, geometryArena, flags, VertexFormat.STANDARD);
     }
 
-    public static Model loadModel(String modelId, String modelPath, TextureCache textureCache, int flags){
+    public static Model loadModel(String modelId, String modelPath, MaterialCache materialCache,
+            GeometryArena geometryArena, int flags, VertexFormat vertexFormat){
+        return uploadModel(loadModelData(modelId, modelPath, flags, vertexFormat), materialCache, geometryArena);
+    }
+
+    /*
+     * CPU part of the loading, does not need the GL context and can run on any thread
+     * the cooked result of the import is cached on disk (see ModelCache), later runs skip Assimp and
+     * the import stages and upload the meshes straight from the mapped cache file
+     */
+    public static ModelData loadModelData(String modelId, String modelPath, int flags, VertexFormat vertexFormat){
+
+        long start = System.nanoTime();
 
         //load file path and model         
         File file = new File(modelPath);
@@ -46,7 +71,88 @@ public class ModelLoader {
             throw new RuntimeException("MODEL PATH DOES NOT EXIST [" + modelPath + "]");
         }
 
-        String modelDir = file.getParent();
+        String cacheKey = Consts.MODEL_CACHE ? ModelCache.computeKey(modelPath, flags, vertexFormat) : null;
+        ModelData modelData = cacheKey != null ? ModelCache.read(cacheKey, modelId) : null;
+        boolean cached = modelData != null;
+
+        if (!cached){
+            modelData = importModel(modelId, modelPath, flags, vertexFormat);
+
+            if (cacheKey != null){
+                ModelCache.write(cacheKey, modelData);
+            }
+        }
+
+        Logger.info("MODEL [{}] loaded in {} ms ({})", modelId, (System.nanoTime() - start) / 1_000_000,
+                cached ? "warm, from cache" : "cold, imported");
+
+        return modelData;
+    }
+
+    //decodes the textures of the materials, also CPU only, the pixels are kept in the model data until the upload
+    public static void loadTextureData(ModelData modelData){
+
+        Set<String> paths = new LinkedHashSet<>();
+
+        for (Material material : modelData.getMaterialList()){
+            if (material.getTexturePath() != null){
+                paths.add(material.getTexturePath());
+            }
+            if (material.getNormalMapPath() != null){
+                paths.add(material.getNormalMapPath());
+            }
+        }
+
+        for (String path : paths){
+            modelData.getTextureDataList().add(TextureData.load(path));
+        }
+    }
+
+    //GL part of the loading, must run on the thread that owns the context
+    public static Model uploadModel(ModelData modelData, MaterialCache materialCache, GeometryArena geometryArena){
+
+        String modelId = modelData.getModelId();
+        TextureCache textureCache = materialCache.getTextureCache();
+
+        //textures are not part of the cooked data, the ones already decoded skip the file read
+        for (TextureData textureData : modelData.getTextureDataList()){
+            if (Consts.TEXTURE_STREAMING){
+                textureCache.streamTexture(textureData, null);
+            }
+            else {
+                textureCache.createTexture(textureData);
+                textureData.free();
+            }
+        }
+        modelData.getTextureDataList().clear();
+
+        //identical materials of other models share their id and textures
+        for (Material material : modelData.getMaterialList()){
+            materialCache.acquire(material);
+        }
+
+        Model model = modelData.upload(geometryArena);
+
+        long gpuBytes = 0;
+        long standardGpuBytes = 0;
+
+        for (Material material : model.getMaterialList()){
+            for (Mesh mesh : material.getMeshList()){
+                gpuBytes += mesh.getGpuBytes();
+                standardGpuBytes += mesh.getStandardGpuBytes();
+            }
+        }
+
+        Logger.info("MODEL [{}] {} bytes on GPU, {} bytes saved over the standard vertex format",
+                modelId, gpuBytes, standardGpuBytes - gpuBytes);
+
+        return model;
+    }
+
+    //runs Assimp and the import stages, the result only lives in CPU memory
+    private static ModelData importModel(String modelId, String modelPath, int flags, VertexFormat vertexFormat){
+
+        String modelDir = new File(modelPath).getParent();
 
         AIScene aiScene = aiImportFile(modelPath, flags);
 
@@ -65,7 +171,7 @@ public class ModelLoader {
         for (int i = 0; i < numMaterials; i++){
             
             AIMaterial aiMaterial = AIMaterial.create(aiScene.mMaterials().get(i));
-            materialList.add(processMaterial(aiMaterial, modelDir, textureCache));
+            materialList.add(processMaterial(aiMaterial, modelDir));
 
         }
 
@@ -77,36 +183,58 @@ public class ModelLoader {
          */
         int numMeshes = aiScene.mNumMeshes();
         PointerBuffer aiMeshes = aiScene.mMeshes();
-        Material defaultMaterial = new Material();
+        List<MeshData> meshDataList = new ArrayList<>();
+        int[] materialIndices = new int[numMeshes];
+        boolean usesDefaultMaterial = false;
 
         for (int i = 0; i < numMeshes; i++){
 
             AIMesh aiMesh = AIMesh.create(aiMeshes.get(i));
-            Mesh mesh = processMesh(aiMesh);
             int materialIdx = aiMesh.mMaterialIndex();
 
-            Material material;
-            
-            if (materialIdx >= 0 && materialIdx < materialList.size()){
-                material = materialList.get(materialIdx);
-            }
-            else{
-                material = defaultMaterial;
+            //meshes without a valid material use a default one, added after the others
+            if (materialIdx < 0 || materialIdx >= numMaterials){
+                materialIdx = numMaterials;
+                usesDefaultMaterial = true;
             }
 
-            material.getMeshList().add(mesh);
+            materialIndices[i] = materialIdx;
+            meshDataList.add(processMesh(aiMesh));
         }
 
-        if (!defaultMaterial.getMeshList().isEmpty()){
-            materialList.add(defaultMaterial);
+        if (usesDefaultMaterial){
+            materialList.add(new Material());
         }
 
-        return new Model(modelId, materialList);
-    }
+        aiReleaseImport(aiScene);
+
+        //the lightmap charts of all the meshes share one atlas, so this stage runs on the whole model
+        if (Consts.LIGHTMAPS){
+            LightmapUnwrap.unwrap(modelId, meshDataList);
+        }
+
+        List<CookedMesh> meshList = new ArrayList<>();
+        MeshOptimization meshOptimization = Consts.MESH_OPTIMIZATION ? new MeshOptimization() : null;
 
+        for (int i = 0; i < numMeshes; i++){
 
+            MeshData meshData = meshDataList.get(i);
 
-    private static Material processMaterial(AIMaterial aiMaterial, String modelDir, TextureCache textureCache){
+            if (meshOptimization != null){
+                meshOptimization.optimize(meshData);
+            }
+
+            meshList.add(CookedMesh.cook(meshData, materialIndices[i], vertexFormat));
+        }
+
+        if (meshOptimization != null){
+            meshOptimization.report(modelId);
+        }
+
+        return new ModelData(modelId, materialList, meshList);
+    }
+
+    private static Material processMaterial(AIMaterial aiMaterial, String modelDir){
 
         Material material = new Material();
 
@@ -156,7 +284,6 @@ public class ModelLoader {
             if (texturePath != null && texturePath.length() > 0){
 
                 material.setTexturePath(modelDir + File.separator + new File(texturePath).getName());
-                textureCache.createTexture(material.getTexturePath());
                 material.setDiffusecolor(Consts.DEFAULT_COLOR);
 
             }
@@ -170,14 +297,13 @@ public class ModelLoader {
 
             if (normalMapPath != null && normalMapPath.length() > 0) {
                 material.setNormalMapPath(modelDir + File.separator + new File(normalMapPath).getName());
-                textureCache.createTexture(material.getNormalMapPath());
             }
 
             return material;
         }
     }
 
-    private static Mesh processMesh(AIMesh aiMesh){
+    private static MeshData processMesh(AIMesh aiMesh){
 
         float[] vertices = processVertices(aiMesh);
         float[] normals = processNormals(aiMesh);
@@ -198,44 +324,52 @@ public class ModelLoader {
         Vector3f aabbMin = new Vector3f(aabb.mMin().x(), aabb.mMin().y(), aabb.mMin().z());
         Vector3f aabbMax = new Vector3f(aabb.mMax().x(), aabb.mMax().y(), aabb.mMax().z());
 
-        return new Mesh(vertices, normals, tangents, bitangents, textCoords, indices, aabbMin, aabbMax);
+        return new MeshData(vertices, normals, tangents, bitangents, textCoords, indices, aabbMin, aabbMax);
     }
 
-    /*the process verts, textCoords and indices just invoke the 
-    * corresponding method over over the AIMesh instance that 
-    * returns the desired data and store it into an array */
+    /*
+     * the process methods read the Assimp arrays straight from native memory: vec3 attributes are
+     * bulk copied into the float arrays and indices and texture coords are read in a single pass over
+     * the native structs, without creating an AIVector3D or AIFace object per element
+     * the arrays are still needed since the mesh optimization remaps them and the vertex format
+     * interleaves them before the upload
+     */
     private static int[] processIndices(AIMesh aiMesh){
 
-        List<Integer> indices = new ArrayList<>();
         int numFaces = aiMesh.mNumFaces();
-        AIFace.Buffer aiFaces = aiMesh.mFaces();
+        long faces = aiMesh.mFaces().address();
+
+        //after aiProcess_Triangulate every face is a triangle, otherwise count them first
+        int numIndices;
+        if (aiMesh.mPrimitiveTypes() == aiPrimitiveType_TRIANGLE){
+            numIndices = numFaces * 3;
+        }
+        else {
+            numIndices = 0;
+            for (int i = 0; i < numFaces; i++){
+                numIndices += memGetInt(faces + (long) i * AIFace.SIZEOF + AIFace.MNUMINDICES);
+            }
+        }
+
+        int[] indices = new int[numIndices];
+        int pos = 0;
 
         for (int i = 0; i < numFaces; i++){
 
-            AIFace aiFace = aiFaces.get(i);
-            IntBuffer buffer = aiFace.mIndices();
+            long face = faces + (long) i * AIFace.SIZEOF;
+            int count = memGetInt(face + AIFace.MNUMINDICES);
+            long faceIndices = memGetAddress(face + AIFace.MINDICES);
 
-            while (buffer.remaining() > 0){
-                indices.add(buffer.get());
+            for (int j = 0; j < count; j++){
+                indices[pos++] = memGetInt(faceIndices + (long) j * Integer.BYTES);
             }
         }
 
-        return indices.stream().mapToInt(Integer::intValue).toArray();
+        return indices;
     }
 
     private static float[] processNormals(AIMesh aiMesh){
-
-        AIVector3D.Buffer buffer = aiMesh.mNormals();
-        float[] data = new float[buffer.remaining() * 3];
-        int pos = 0;
-
-        while (buffer.remaining() > 0){
-            AIVector3D normal = buffer.get();
-            data[pos++] = normal.x();
-            data[pos++] = normal.y();
-            data[pos++] = normal.z();
-        }
-        return data;
+        return copyVectors(aiMesh.mNormals());
     }
 
     private static float[] processTextCoords(AIMesh aiMesh){
@@ -246,48 +380,27 @@ public class ModelLoader {
             return new float[]{};
         }
 
-        float[] data = new float[buffer.remaining() * 2];
-        int pos = 0;
-
-        while (buffer.remaining() > 0){
-
-            AIVector3D textCoord = buffer.get();
-            data[pos++] = textCoord.x();
-            data[pos++] = 1 - textCoord.y();
+        //only x and y of each vec3, the v coord is flipped
+        int count = buffer.remaining();
+        long address = buffer.address();
+        float[] data = new float[count * 2];
 
+        for (int i = 0; i < count; i++){
+            long textCoord = address + (long) i * AIVector3D.SIZEOF;
+            data[i * 2] = memGetFloat(textCoord + AIVector3D.X);
+            data[i * 2 + 1] = 1 - memGetFloat(textCoord + AIVector3D.Y);
         }
 
         return data;
     }
 
     private static float[] processVertices(AIMesh aiMesh){
-
-        AIVector3D.Buffer buffer = aiMesh.mVertices();
-        float[] data = new float[buffer.remaining() * 3];
-        int pos = 0;
-
-        while (buffer.remaining() > 0){
-
-            AIVector3D textCoord = buffer.get();
-            data[pos++] = textCoord.x();
-            data[pos++] = textCoord.y();
-            data[pos++] = textCoord.z();
-
-        }
-        
-        return data;
+        return copyVectors(aiMesh.mVertices());
     }
 
     private static float[] processBitangents(AIMesh aiMesh, float[] normals){
-        AIVector3D.Buffer buffer = aiMesh.mBitangents();
-        float[] data = new float[buffer.remaining() * 3];
-        int pos = 0;
-        while (buffer.remaining() > 0) {
-            AIVector3D aiBitangent = buffer.get();
-            data[pos++] = aiBitangent.x();
-            data[pos++] = aiBitangent.y();
-            data[pos++] = aiBitangent.z();
-        }
+
+        float[] data = copyVectors(aiMesh.mBitangents());
 
         // Assimp may not calculate tangents with models that do not have texture coordinates. Just create empty values
         if (data.length == 0) {
@@ -298,15 +411,7 @@ public class ModelLoader {
 
     private static float[] processTangents(AIMesh aiMesh, float[] normals) {
 
-        AIVector3D.Buffer buffer = aiMesh.mTangents();
-        float[] data = new float[buffer.remaining() * 3];
-        int pos = 0;
-        while (buffer.remaining() > 0) {
-            AIVector3D aiTangent = buffer.get();
-            data[pos++] = aiTangent.x();
-            data[pos++] = aiTangent.y();
-            data[pos++] = aiTangent.z();
-        }
+        float[] data = copyVectors(aiMesh.mTangents());
 
         // Assimp may not calculate tangents with models that do not have texture coordinates. Just create empty values
         if (data.length == 0) {
@@ -314,4 +419,17 @@ public class ModelLoader {
         }
         return data;
     }
+
+    //AIVector3D is three packed floats, so the whole array is copied at once
+    private static float[] copyVectors(AIVector3D.Buffer buffer){
+
+        if (buffer == null){
+            return new float[]{};
+        }
+
+        float[] data = new float[buffer.remaining() * 3];
+        memFloatBuffer(buffer.address(), data.length).get(data);
+
+        return data;
+    }
 }
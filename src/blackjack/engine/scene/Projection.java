@@ -9,6 +9,9 @@ public class Projection {
     private Matrix4f projMatrix;
     private Matrix4f invProjMatrix;
 
+    //incremented each time the projection matrix changes
+    private int version;
+
     public Projection(int width, int height){
         
         projMatrix = new Matrix4f();
@@ -21,6 +24,7 @@ public class Projection {
         float aspecRatio = (float) width / (float) height;
         projMatrix.setPerspective(Consts.FOV, aspecRatio, Consts.Z_NEAR, Consts.Z_FAR);
         invProjMatrix.set(projMatrix).invert();
+        version++;
     }
 
     //getters
@@ -32,4 +36,8 @@ public class Projection {
         return invProjMatrix;
     }
 
+    public int getVersion() {
+        return version;
+    }
+
 }
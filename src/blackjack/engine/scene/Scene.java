@@ -7,6 +7,10 @@ import blackjack.engine.IGuiInstance;
 
 //hold a reference for SceneLights to render lights
 
+import blackjack.engine.graph.GeometryArena;
+import blackjack.engine.graph.Lightmaps;
+import blackjack.engine.graph.Material;
+import blackjack.engine.graph.MaterialCache;
 import blackjack.engine.graph.Model;
 import blackjack.engine.graph.TextureCache;
 import blackjack.engine.scene.lights.SceneLights;
@@ -16,19 +20,32 @@ import java.util.*;
 public class Scene {
 
     private Map<String, Model> modelMap;
+    private List<Model> modelList;
     private Projection projection;
     private TextureCache textureCache;
+    private MaterialCache materialCache;
+    private GeometryArena geometryArena;
+    private Lightmaps lightmaps;
     private Camera camera;
     private IGuiInstance guiInstance;
     private SceneLights sceneLights;
     private Entity selectedEntity;
+    private EntityBVH entityBVH;
+    //see getVersion, renderRequests lets the app logic mark the frame dirty for changes the scene cannot see
+    private int renderRequests;
+    private boolean interpolating;
 
     public Scene(int width, int height){
         
         modelMap = new HashMap<>();
+        modelList = new ArrayList<>();
         projection = new Projection(width, height);
         textureCache = new TextureCache();
+        materialCache = new MaterialCache(textureCache);
+        geometryArena = new GeometryArena();
+        lightmaps = new Lightmaps();
         camera = new Camera();
+        entityBVH = new EntityBVH();
     }
 
     public void addEntity(Entity entity){
@@ -41,11 +58,49 @@ public class Scene {
         }
 
         model.getEntitiesList().add(entity);
-    
+        //no blend from the origin on the frames before the next update
+        entity.storePreviousTransform();
+
+        //only selectable entities can be picked, the rest stay out of the hierarchy
+        if (entity.isSelectable()){
+            entityBVH.add(entity, model);
+        }
     }
 
     public void addModel(Model model){
-        modelMap.put(model.getId(), model);
+        Model previous = modelMap.put(model.getId(), model);
+
+        //the list mirrors the map so renderers can walk the models without creating iterators
+        if (previous != null){
+            modelList.remove(previous);
+        }
+        modelList.add(model);
+    }
+
+    //unload a model and its entities, the space of its meshes in the geometry arena is packed again
+    public void removeModel(String modelId){
+
+        Model model = modelMap.remove(modelId);
+
+        if (model == null){
+            return;
+        }
+
+        modelList.remove(model);
+        for (Entity entity : model.getEntitiesList()){
+            entityBVH.remove(entity);
+            if (entity == selectedEntity){
+                selectedEntity = null;
+            }
+        }
+
+        //the textures stay cached until the VRAM budget needs them gone
+        for (Material material : model.getMaterialList()){
+            materialCache.release(material.getMaterialId());
+        }
+
+        model.cleanup();
+        geometryArena.defragment();
     }
 
     //update projection matrix when the window is resized so it scales to the new size
@@ -53,9 +108,68 @@ public class Scene {
         projection.updateProjMatrix(width, height);
     }
 
+    //start of a fixed update, the transforms of the entities become the previous state of the interpolation
+    public void storePreviousTransforms(){
+        for (int i = 0; i < modelList.size(); i++){
+            List<Entity> entities = modelList.get(i).getEntitiesList();
+            for (int j = 0; j < entities.size(); j++){
+                entities.get(j).storePreviousTransform();
+            }
+        }
+    }
+
+    //model matrices of the frame, alpha of the way between the last two updates (see Entity.interpolate)
+    public void interpolate(float alpha){
+        interpolating = false;
+        for (int i = 0; i < modelList.size(); i++){
+            List<Entity> entities = modelList.get(i).getEntitiesList();
+            for (int j = 0; j < entities.size(); j++){
+                interpolating |= entities.get(j).interpolate(alpha);
+            }
+        }
+    }
+
+    //the next frame has to be drawn even if nothing the scene tracks changed (see Engine.run)
+    public void requestRender(){
+        renderRequests++;
+    }
+
+    /*
+     * changes whenever something drawn changes: camera, projection, lights, models, entities, selection
+     * or a requestRender call, the game loop compares it with the one of the last frame to skip unchanged frames
+     */
+    public long getVersion(){
+
+        long hash = 31L * camera.getVersion() + projection.getVersion();
+        hash = 31 * hash + renderRequests;
+        hash = 31 * hash + System.identityHashCode(selectedEntity);
+
+        if (sceneLights != null){
+            hash = 31 * hash + sceneLights.getVersion();
+        }
+
+        hash = 31 * hash + modelList.size();
+        for (int i = 0; i < modelList.size(); i++){
+
+            Model model = modelList.get(i);
+            List<Entity> entities = model.getEntitiesList();
+            hash = 31 * hash + System.identityHashCode(model);
+            hash = 31 * hash + entities.size();
+
+            for (int j = 0; j < entities.size(); j++){
+                hash = 31 * hash + entities.get(j).getVersion();
+            }
+        }
+
+        return hash;
+    }
+
     //free resources
     public void cleanup(){
         modelMap.values().forEach(Model::cleanup);
+        geometryArena.cleanup();
+        materialCache.cleanup();
+        lightmaps.cleanup();
     }
 
     //getters and setters
@@ -63,6 +177,10 @@ public class Scene {
         return modelMap;
     }
 
+    public List<Model> getModelList() {
+        return modelList;
+    }
+
     public Projection getProjection() {
         return projection;
     }
@@ -71,6 +189,18 @@ public class Scene {
         return textureCache;
     }
 
+    public MaterialCache getMaterialCache() {
+        return materialCache;
+    }
+
+    public GeometryArena getGeometryArena() {
+        return geometryArena;
+    }
+
+    public Lightmaps getLightmaps() {
+        return lightmaps;
+    }
+
     public Camera getCamera() {
         return camera;
     }
@@ -87,6 +217,15 @@ public class Scene {
         return sceneLights;
     }
 
+    public EntityBVH getEntityBVH() {
+        return entityBVH;
+    }
+
+    //whether the last frame drew entities between two updates, the next frames are different then
+    public boolean isInterpolating() {
+        return interpolating;
+    }
+
     public Entity getSelectedEntity() {
         return selectedEntity;
     }
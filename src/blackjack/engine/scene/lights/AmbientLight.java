@@ -8,6 +8,9 @@ public class AmbientLight {
     private Vector3f color;
     private float intensity;
 
+    //incremented on every change so renderers know when the light data has to be re-uploaded
+    private int version;
+
     public AmbientLight(float intensity, Vector3f color){
         this.intensity = intensity;
         this.color = color;
@@ -26,15 +29,26 @@ public class AmbientLight {
         return intensity;
     }
 
+    public int getVersion() {
+        return version;
+    }
+
     public void setColor(Vector3f color) {
         this.color = color;
+        version++;
     }
 
     public void setColor(float r, float g, float b){
-        color.set(r, g, b);
+        if (!color.equals(r, g, b)){
+            color.set(r, g, b);
+            version++;
+        }
     }
 
     public void setIntensity(float intensity) {
-        this.intensity = intensity;
+        if (this.intensity != intensity){
+            this.intensity = intensity;
+            version++;
+        }
     }
 }
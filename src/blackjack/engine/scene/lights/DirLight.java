@@ -13,6 +13,9 @@ public class DirLight {
     private Vector3f direction;
     private float intensity;
 
+    //incremented on every change so renderers know when the light data has to be re-uploaded
+    private int version;
+
     public DirLight(Vector3f color, Vector3f direction, float intensity){
         this.color = color;
         this.direction = direction;
@@ -32,24 +35,39 @@ public class DirLight {
         return intensity;
     }
 
+    public int getVersion() {
+        return version;
+    }
+
     public void setColor(Vector3f color) {
         this.color = color;
+        version++;
     }
 
     public void setColor(float r, float g, float b){
-        color.set(r, g, b);
+        if (!color.equals(r, g, b)){
+            color.set(r, g, b);
+            version++;
+        }
     }
 
     public void setDirection(Vector3f direction) {
         this.direction = direction;
+        version++;
     }
 
     public void setIntensity(float intensity) {
-        this.intensity = intensity;
+        if (this.intensity != intensity){
+            this.intensity = intensity;
+            version++;
+        }
     }
 
     public void setPosition(float x, float y, float z){
-        direction.set(x, y, z);
+        if (!direction.equals(x, y, z)){
+            direction.set(x, y, z);
+            version++;
+        }
     }
 
 }
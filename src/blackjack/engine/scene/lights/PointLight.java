@@ -14,6 +14,12 @@ public class PointLight {
     private float intensity;
     private Vector3f position;
 
+    //a baked light is part of the lightmaps (see LightmapBaker), lightmapped entities do not shade it again
+    private boolean baked;
+
+    //incremented on every change so renderers know when the light data has to be re-uploaded
+    private int version;
+
     public PointLight(Vector3f color, Vector3f position, float intensity){
         
         attenuation = new Attenuation(0, 0, 1);
@@ -39,20 +45,46 @@ public class PointLight {
         return position;
     }
 
+    public boolean isBaked() {
+        return baked;
+    }
+
+    //attenuation can be edited on its own, so its changes are folded into the light version
+    public int getVersion() {
+        return 31 * version + attenuation.getVersion();
+    }
+
     public void setAttenuation(Attenuation attenuation){
         this.attenuation = attenuation;
+        version++;
+    }
+
+    public void setBaked(boolean baked) {
+        if (this.baked != baked){
+            this.baked = baked;
+            version++;
+        }
     }
 
     public void setColor(float r, float g, float b) {
-        color.set(r, g, b);
+        if (!color.equals(r, g, b)){
+            color.set(r, g, b);
+            version++;
+        }
     }
 
     public void setIntensity(float intensity) {
-        this.intensity = intensity;
+        if (this.intensity != intensity){
+            this.intensity = intensity;
+            version++;
+        }
     }
 
     public void setPosition(float x, float y, float z) {
-        position.set(x, y, z);
+        if (!position.equals(x, y, z)){
+            position.set(x, y, z);
+            version++;
+        }
     }
 
     /* Attenuation model
@@ -66,6 +98,8 @@ public class PointLight {
         private float exponent;
         private float linear;
 
+        private int version;
+
         public Attenuation(float constant, float linear, float exponent){
             this.constant = constant;
             this.linear = linear;
@@ -85,16 +119,23 @@ public class PointLight {
             return linear;
         }
 
+        public int getVersion() {
+            return version;
+        }
+
         public void setConstant(float constant) {
             this.constant = constant;
+            version++;
         }
 
         public void setExponent(float exponent) {
             this.exponent = exponent;
+            version++;
         }
 
         public void setLinear(float linear) {
             this.linear = linear;
+            version++;
         }
     }
 
@@ -39,6 +39,33 @@ public class SceneLights {
         return spotLights;
     }
 
+    /*
+     * summary of the state of every light, it changes whenever a light is edited, added or removed
+     * renderers compare it with the value of the previous frame to skip re-uploading unchanged light data
+     */
+    public long getVersion() {
+
+        long hash = 31L * ambientLight.getVersion() + dirLight.getVersion();
+
+        int numPointLights = pointLights.size();
+        hash = 31 * hash + numPointLights;
+        for (int i = 0; i < numPointLights; i++){
+            PointLight pointLight = pointLights.get(i);
+            hash = 31 * hash + System.identityHashCode(pointLight);
+            hash = 31 * hash + pointLight.getVersion();
+        }
+
+        int numSpotLights = spotLights.size();
+        hash = 31 * hash + numSpotLights;
+        for (int i = 0; i < numSpotLights; i++){
+            SpotLight spotLight = spotLights.get(i);
+            hash = 31 * hash + System.identityHashCode(spotLight);
+            hash = 31 * hash + spotLight.getVersion();
+        }
+
+        return hash;
+    }
+
     public void setSpotLights(List<SpotLight> spotLights) {
         this.spotLights = spotLights;
     }
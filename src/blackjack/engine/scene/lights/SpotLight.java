@@ -14,6 +14,9 @@ public class SpotLight {
     private float cutOffAngle;
     private PointLight pointLight;
 
+    //incremented on every change so renderers know when the light data has to be re-uploaded
+    private int version;
+
     public SpotLight(PointLight pointLight, Vector3f coneDirection, float cutOffAngle){
         this.pointLight = pointLight;
         this.coneDirection = coneDirection;
@@ -39,20 +42,35 @@ public class SpotLight {
         return pointLight;
     }
 
+    //the point light can be edited on its own, so its changes are folded into the spot light version
+    public int getVersion() {
+        return 31 * version + pointLight.getVersion();
+    }
+
     public void setConeDirection(Vector3f coneDirection) {
         this.coneDirection = coneDirection;
+        version++;
     }
     public void setConeDirection(float x, float y ,float z) {
-        coneDirection.set(x, y, z);
+        if (!coneDirection.equals(x, y, z)){
+            coneDirection.set(x, y, z);
+            version++;
+        }
     }
 
     public void setCutOffAngle(float cutOffAngle) {
+        float newCutOff = (float) Math.cos(Math.toRadians(cutOffAngle));
         this.cutOffAngle = cutOffAngle;
-        cutOff = (float) Math.cos(Math.toRadians(cutOffAngle));
+
+        if (cutOff != newCutOff){
+            cutOff = newCutOff;
+            version++;
+        }
     }
     
     public void setPointLight(PointLight pointLight) {
         this.pointLight = pointLight;
+        version++;
     }
 
     
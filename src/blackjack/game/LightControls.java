@@ -13,6 +13,8 @@ import imgui.*;
 import imgui.flag.ImGuiCond;
 import org.joml.*;
 import blackjack.engine.*;
+import blackjack.engine.graph.RenderStats;
+import blackjack.engine.graph.TextureCache;
 import blackjack.engine.scene.Scene;
 import blackjack.engine.scene.lights.*;
 
@@ -40,7 +42,15 @@ public class LightControls implements IGuiInstance{
     private float[] spotLightY;
     private float[] spotLightZ; 
 
-    public LightControls(Scene scene) {
+    private RenderStats renderStats;
+    private TextureCache textureCache;
+    private FramePacer framePacer;
+
+    public LightControls(Scene scene, RenderStats renderStats, FramePacer framePacer) {
+        this.renderStats = renderStats;
+        this.framePacer = framePacer;
+        this.textureCache = scene.getTextureCache();
+
         SceneLights sceneLights = scene.getSceneLights();
         AmbientLight ambientLight = sceneLights.getAmbientLight();
         Vector3f color = ambientLight.getColor();
@@ -124,6 +134,35 @@ public class LightControls implements IGuiInstance{
             ImGui.sliderFloat("Dir Light Intensity", dirLightIntensity, 0.0f, 1.0f, "%.2f");
         }
 
+        if (ImGui.collapsingHeader("Render stats")) {
+            ImGui.text("Draw calls: " + renderStats.getDrawCalls());
+            ImGui.text("Instances drawn: " + renderStats.getInstancesDrawn());
+            ImGui.text("Uniform buffer uploads: " + renderStats.getBufferUploads());
+            ImGui.text("State changes: " + renderStats.getStateChanges()
+                    + " (avoided: " + renderStats.getStateChangesAvoided() + ")");
+            ImGui.text("Culled entities: " + renderStats.getCulledEntities()
+                    + ", culled meshes: " + renderStats.getCulledMeshes());
+            ImGui.text("Shadow map redraws: " + renderStats.getShadowMapRedraws()
+                    + " (total: " + renderStats.getTotalShadowMapRedraws() + ")");
+            ImGui.text("Textures streaming: " + textureCache.getStreamingQueueDepth()
+                    + ", texture memory: " + textureCache.getResidentBytes() / 1024 + " KB");
+            ImGui.text("Texture cache hits: " + textureCache.getHits() + ", misses: " + textureCache.getMisses()
+                    + ", evictions: " + textureCache.getEvictions());
+        }
+
+        if (ImGui.collapsingHeader("Frame pacing")) {
+            ImGui.text(String.format("Frame time: %.2f ms, jitter: %.3f ms", framePacer.getFrameTimeMillis(),
+                    framePacer.getJitterMillis()));
+            if (framePacer.isCpuTimeSupported()){
+                ImGui.text(String.format("Loop CPU time: %.2f ms per frame (%.0f%% of wall time)",
+                        framePacer.getCpuTimeMillis(), framePacer.getCpuLoad() * 100.0f));
+            }
+            ImGui.text(String.format("Spin threshold: %.2f ms, waiting parked: %.0f%%",
+                    framePacer.getSpinThresholdMillis(), framePacer.getParkedRatio() * 100.0f));
+            ImGui.text(String.format("Frames rendered: %d, skipped: %d (%.0f%%)", framePacer.getFramesRendered(),
+                    framePacer.getFramesSkipped(), framePacer.getSkippedRatio() * 100.0f));
+        }
+
         ImGui.end();
         ImGui.endFrame();
         ImGui.render();
@@ -55,22 +55,42 @@ public class Main implements IAppLogic {
         entityLoader.loadEntities(scene);
 
         //Light control 
+        //without baked lightmaps the baked lights are left out, they would light the scene dynamically instead
+        SceneLights sceneLights = createSceneLights(scene.getLightmaps().getNumLightmaps() > 0);
+        scene.setSceneLights(sceneLights);
+        
+        lightControls = new LightControls(scene, render.getRenderStats(), window.getFramePacer());
+        scene.setGuiInstance(lightControls);
+    }
+
+    /*
+     * lights of the table scene, also read by tools/LightmapBakerTool, the first point and spot lights are the
+     * ones edited from the GUI, the baked lights come after them and must not change without baking again
+     * bakedLights adds those, the baker always wants them and the game only when it found their lightmaps
+     */
+    public static SceneLights createSceneLights(boolean bakedLights){
+
         SceneLights sceneLights = new SceneLights();
         sceneLights.getAmbientLight().setIntensity(0.3f);
         DirLight dirLight = sceneLights.getDirLight();
         dirLight.setPosition(1, 1, 0);
         dirLight.setIntensity(1.0f);
-        scene.setSceneLights(sceneLights);
-        
+
         sceneLights.getPointLights().add(new PointLight(new Vector3f(1, 1, 1),
                 new Vector3f(0, 0, -1.4f), 1.0f));
-        
+
         Vector3f coneDir = new Vector3f(0, 0, -1);
         sceneLights.getSpotLights().add(new SpotLight(new PointLight(new Vector3f(1, 1, 1),
                 new Vector3f(0, 0, -1.4f), 0.0f), coneDir, 140.0f));
-        
-        lightControls = new LightControls(scene);
-        scene.setGuiInstance(lightControls);
+
+        //warm ceiling lamp over the table, its light (direct and bounced) is in the lightmaps of the static entities
+        if (bakedLights){
+            PointLight ceilingLight = new PointLight(new Vector3f(1.0f, 0.9f, 0.75f), new Vector3f(0, 2.5f, -1.0f), 4.0f);
+            ceilingLight.setBaked(true);
+            sceneLights.getPointLights().add(ceilingLight);
+        }
+
+        return sceneLights;
     }
 
     @Override
@@ -133,8 +153,8 @@ public class Main implements IAppLogic {
         SceneLights sceneLights = scene.getSceneLights();
         DirLight dirLight = sceneLights.getDirLight();
         double angRad = Math.toRadians(lightAngle);
-        dirLight.getDirection().x = (float) Math.sin(angRad);
-        dirLight.getDirection().y = (float) Math.cos(angRad);
+        //go through the setter so the light is only re-uploaded when the angle actually changes
+        dirLight.setPosition((float) Math.sin(angRad), (float) Math.cos(angRad), dirLight.getDirection().z);
     }
 
     @Override
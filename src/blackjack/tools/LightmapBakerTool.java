@@ -0,0 +1,67 @@
+package blackjack.tools;
+
+import blackjack.engine.Consts;
+import blackjack.engine.graph.ModelData;
+import blackjack.engine.scene.Entity;
+import blackjack.engine.scene.EntityLoader;
+import blackjack.engine.scene.LightmapBaker;
+import blackjack.engine.scene.ModelLoader;
+import blackjack.game.Main;
+
+/*
+ * Offline baker of the lightmaps of the static entities, runs headless (no window nor GL context)
+ *
+ * the models are loaded the same way as the game does (same cache key, so the same lightmap coordinates),
+ * the entities and lights come from EntityLoader and Main, and LightmapBaker writes one .hdr file per
+ * static entity to Consts.LIGHTMAP_DIR, picked up by Lightmaps on the next start
+ * it has to run again when a static model, a static entity or a baked light changes
+ *
+ * usage: LightmapBakerTool [--threads N]
+ * the threads default to Consts.LIGHTMAP_BAKE_THREADS (every core)
+ */
+
+public class LightmapBakerTool {
+
+    private LightmapBakerTool(){
+
+    }
+
+    public static void main(String[] args){
+
+        int threads = Consts.LIGHTMAP_BAKE_THREADS;
+
+        for (int i = 0; i < args.length; i++){
+            if (args[i].equals("--threads") && i + 1 < args.length){
+                threads = Integer.parseInt(args[++i]);
+            }
+        }
+
+        if (!Consts.LIGHTMAPS){
+            System.out.println("lightmaps are disabled (Consts.LIGHTMAPS), nothing to bake");
+            return;
+        }
+
+        long start = System.nanoTime();
+
+        ModelData chairModel = ModelLoader.loadModelData(EntityLoader.CHAIR_MODEL_ID, EntityLoader.CHAIR_MODEL_PATH,
+                ModelLoader.DEFAULT_FLAGS, EntityLoader.STATIC_VERTEX_FORMAT);
+        ModelData tableModel = ModelLoader.loadModelData(EntityLoader.TABLE_MODEL_ID, EntityLoader.TABLE_MODEL_PATH,
+                ModelLoader.DEFAULT_FLAGS, EntityLoader.STATIC_VERTEX_FORMAT);
+
+        Entity chairEntity = EntityLoader.createChairEntity();
+        Entity tableEntity = EntityLoader.createTableEntity();
+        chairEntity.updateModelMatrix();
+        tableEntity.updateModelMatrix();
+
+        LightmapBaker baker = new LightmapBaker(Main.createSceneLights(true), threads);
+        baker.addInstance(chairEntity.getId(), chairModel, chairEntity.getModelMatrix(), true);
+        baker.addInstance(tableEntity.getId(), tableModel, tableEntity.getModelMatrix(), true);
+
+        int written = baker.bake();
+
+        System.out.printf("%d of %d lightmaps written to %s (%dx%d, %d samples, %d bounces, %d threads) in %d ms%n",
+                written, baker.getNumTargets(), Consts.LIGHTMAP_DIR, Consts.LIGHTMAP_SIZE, Consts.LIGHTMAP_SIZE,
+                Consts.LIGHTMAP_SAMPLES, Consts.LIGHTMAP_BOUNCES, threads, (System.nanoTime() - start) / 1_000_000);
+    }
+
+}
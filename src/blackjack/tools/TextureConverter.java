@@ -0,0 +1,211 @@
+package blackjack.tools;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.util.ktx.ktxBasisParams;
+import org.lwjgl.util.ktx.ktxTexture;
+import org.lwjgl.util.ktx.ktxTexture2;
+import org.lwjgl.util.ktx.ktxTextureCreateInfo;
+
+import blackjack.engine.graph.TextureData;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static org.lwjgl.stb.STBImage.*;
+import static org.lwjgl.stb.STBImageResize.*;
+import static org.lwjgl.util.ktx.KTX.*;
+
+/*
+ * Offline converter from the PNG/JPG textures of the models to KTX2 files
+ *
+ * every image gets a .ktx2 file next to it with its full mip chain, Basis compressed so it can be
+ * transcoded at load time to whatever block format the GPU has (see TextureData)
+ * color maps use ETC1S, which is the smallest, normal maps use UASTC since ETC1S breaks their vectors
+ * the engine picks up the .ktx2 file on its own, the original image stays as the fallback
+ *
+ * usage: TextureConverter [directory] [--force]
+ * the directory defaults to resources/models, files already newer than their image are skipped
+ * unless --force is given
+ */
+
+public class TextureConverter {
+
+    //VK_FORMAT_R8G8B8A8_UNORM, same data as the GL_RGBA textures of the engine
+    private static final int VK_FORMAT_R8G8B8A8_UNORM = 37;
+    private static final int ETC1S_QUALITY = 128;
+    private static final int UASTC_ZSTD_LEVEL = 18;
+
+    private TextureConverter(){
+
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        Path root = Paths.get("resources/models");
+        boolean force = false;
+
+        for (String arg : args){
+            if (arg.equals("--force")){
+                force = true;
+            }
+            else {
+                root = Paths.get(arg);
+            }
+        }
+
+        List<Path> images;
+        try (Stream<Path> files = Files.walk(root)) {
+            images = files.filter(TextureConverter::isImage).sorted().toList();
+        }
+
+        long totalRgbaBytes = 0;
+        long totalBcBytes = 0;
+        int converted = 0;
+
+        for (Path image : images){
+
+            Path ktxPath = Paths.get(TextureData.getKtxPath(image.toString()));
+
+            if (!force && Files.exists(ktxPath)
+                    && Files.getLastModifiedTime(ktxPath).compareTo(Files.getLastModifiedTime(image)) >= 0){
+                System.out.println("up to date  " + ktxPath);
+                continue;
+            }
+
+            long start = System.nanoTime();
+            int[] size = convert(image, ktxPath);
+
+            //VRAM with the mip chain: RGBA8 is 4 bytes per texel, BC7 is 1
+            long texels = (long) size[0] * size[1] * 4 / 3;
+            totalRgbaBytes += texels * 4;
+            totalBcBytes += texels;
+            converted++;
+
+            System.out.printf("converted   %s (%dx%d, %d levels) %d -> %d bytes on disk in %d ms%n", ktxPath,
+                    size[0], size[1], size[2], Files.size(image), Files.size(ktxPath),
+                    (System.nanoTime() - start) / 1_000_000);
+        }
+
+        System.out.printf("%d textures converted, VRAM %d KB as RGBA8 -> %d KB as BC7%n", converted,
+                totalRgbaBytes / 1024, totalBcBytes / 1024);
+    }
+
+    private static boolean isImage(Path path){
+        String name = path.getFileName().toString().toLowerCase();
+        return name.endsWith(".png") || name.endsWith(".jpg") || name.endsWith(".jpeg");
+    }
+
+    //returns width, height and number of levels
+    private static int[] convert(Path image, Path ktxPath){
+
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+
+            IntBuffer w = stack.mallocInt(1);
+            IntBuffer h = stack.mallocInt(1);
+            IntBuffer channels = stack.mallocInt(1);
+
+            ByteBuffer pixels = stbi_load(image.toString(), w, h, channels, 4);
+            if (pixels == null){
+                throw new RuntimeException("IMAGE FILE [" + image + "] NOT LOADED: " + stbi_failure_reason());
+            }
+
+            int width = w.get(0);
+            int height = h.get(0);
+            int numLevels = 32 - Integer.numberOfLeadingZeros(Math.max(width, height));
+
+            ktxTextureCreateInfo createInfo = ktxTextureCreateInfo.calloc(stack)
+                    .vkFormat(VK_FORMAT_R8G8B8A8_UNORM)
+                    .baseWidth(width)
+                    .baseHeight(height)
+                    .baseDepth(1)
+                    .numDimensions(2)
+                    .numLevels(numLevels)
+                    .numLayers(1)
+                    .numFaces(1)
+                    .isArray(false)
+                    .generateMipmaps(false);
+
+            PointerBuffer pointer = stack.mallocPointer(1);
+            check(ktxTexture2_Create(createInfo, KTX_TEXTURE_CREATE_ALLOC_STORAGE, pointer), image);
+
+            ktxTexture2 texture = ktxTexture2.create(pointer.get(0));
+            ktxTexture baseTexture = ktxTexture.create(texture.address());
+
+            try {
+                //each level is the previous one downscaled by half
+                ByteBuffer level = pixels;
+                int levelWidth = width;
+                int levelHeight = height;
+
+                for (int i = 0; i < numLevels; i++){
+
+                    if (i > 0){
+                        int nextWidth = Math.max(1, levelWidth / 2);
+                        int nextHeight = Math.max(1, levelHeight / 2);
+                        ByteBuffer next = MemoryUtil.memAlloc(nextWidth * nextHeight * 4);
+
+                        stbir_resize_uint8_linear(level, levelWidth, levelHeight, 0, next, nextWidth, nextHeight, 0,
+                                STBIR_RGBA);
+
+                        if (level != pixels){
+                            MemoryUtil.memFree(level);
+                        }
+
+                        level = next;
+                        levelWidth = nextWidth;
+                        levelHeight = nextHeight;
+                    }
+
+                    check(ktxTexture_SetImageFromMemory(baseTexture, i, 0, 0, level), image);
+                }
+
+                if (level != pixels){
+                    MemoryUtil.memFree(level);
+                }
+
+                boolean normalMap = image.getFileName().toString().toLowerCase().contains("normal");
+
+                ktxBasisParams params = ktxBasisParams.calloc(stack)
+                        .structSize(ktxBasisParams.SIZEOF)
+                        .threadCount(Runtime.getRuntime().availableProcessors())
+                        .uastc(normalMap)
+                        .normalMap(normalMap);
+
+                if (normalMap){
+                    params.uastcFlags(KTX_PACK_UASTC_LEVEL_DEFAULT);
+                }
+                else {
+                    params.compressionLevel(KTX_ETC1S_DEFAULT_COMPRESSION_LEVEL).qualityLevel(ETC1S_QUALITY);
+                }
+
+                check(ktxTexture2_CompressBasisEx(texture, params), image);
+
+                //UASTC is not supercompressed by Basis itself
+                if (normalMap){
+                    check(ktxTexture2_DeflateZstd(texture, UASTC_ZSTD_LEVEL), image);
+                }
+
+                check(ktxWriteToNamedFile(baseTexture, ktxPath.toString()), image);
+            }
+            finally {
+                ktxTexture_Destroy(baseTexture);
+                stbi_image_free(pixels);
+            }
+
+            return new int[]{width, height, numLevels};
+        }
+    }
+
+    private static void check(int result, Path image){
+        if (result != KTX_SUCCESS){
+            throw new RuntimeException("COULD NOT CONVERT [" + image + "]: " + ktxErrorString(result));
+        }
+    }
+
+}
@@ -0,0 +1,332 @@
+package blackjack.engine.graph;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ * Checks LightClusters.assign against a brute force version: every light is tested against every cluster
+ *
+ * - every light of a cluster must touch the view space AABB of the cluster (same box as in the header of LightClusters)
+ * - a light must be in every cluster holding a point of its sphere, points are sampled on a grid inside the
+ *   sphere, unless the cluster is full and only holds lights that come before it
+ * - clusters keep their lights in light order, never more than maxLightsPerCluster
+ * - the serial and the parallel (parallelThreshold 1) assignments give the same result
+ *
+ * the lights are random, with a pile of lights at one spot to overflow its cluster, lights behind the camera,
+ * one crossing the camera plane and one with no radius
+ *
+ * there is no test framework in lib/, it runs as a program and exits with an AssertionError on failure:
+ *     java --enable-preview -cp "bin:lib/*" blackjack.engine.graph.LightClustersTest
+ */
+
+public class LightClustersTest {
+
+    private static final int GRID_X = 16;
+    private static final int GRID_Y = 9;
+    private static final int GRID_Z = 24;
+    private static final float Z_NEAR = 0.1f;
+    private static final float Z_FAR = 100.0f;
+    private static final int MAX_LIGHTS_PER_CLUSTER = 8;
+
+    private static final float FOV = (float) Math.toRadians(60);
+    private static final float ASPECT = 16.0f / 9.0f;
+
+    //light indices: one crossing the camera plane, lights piled at one spot (more than a cluster holds),
+    //random ones, some behind the camera and one without radius
+    private static final int CROSSING_LIGHT = 0;
+    private static final int FIRST_PILED_LIGHT = 1;
+    private static final int NUM_PILED_LIGHTS = MAX_LIGHTS_PER_CLUSTER * 2;
+    private static final int FIRST_RANDOM_LIGHT = FIRST_PILED_LIGHT + NUM_PILED_LIGHTS;
+    private static final int NUM_RANDOM_LIGHTS = 300;
+    private static final int FIRST_BEHIND_LIGHT = FIRST_RANDOM_LIGHT + NUM_RANDOM_LIGHTS;
+    private static final int NUM_BEHIND_LIGHTS = 3;
+    private static final int NO_RADIUS_LIGHT = FIRST_BEHIND_LIGHT + NUM_BEHIND_LIGHTS;
+    private static final int NUM_LIGHTS = NO_RADIUS_LIGHT + 1;
+
+    private static final float[] PILE_POSITION = {0.3f, 0.2f, -12};
+    //sampled points per axis of the box around a sphere
+    private static final int SAMPLES = 7;
+    //sampled points this close to a tile or slice border are skipped, rounding decides where they fall
+    private static final float BORDER_EPSILON = 1e-4f;
+
+    public static void main(String[] args){
+
+        float scaleY = 1.0f / (float) Math.tan(FOV / 2);
+        float scaleX = scaleY / ASPECT;
+
+        float[] spheres = createLights();
+
+        LightClusters serial = new LightClusters(GRID_X, GRID_Y, GRID_Z, Z_NEAR, Z_FAR, MAX_LIGHTS_PER_CLUSTER,
+                Integer.MAX_VALUE);
+        serial.setProjection(scaleX, scaleY);
+        serial.assign(spheres, NUM_LIGHTS);
+
+        LightClusters parallel = new LightClusters(GRID_X, GRID_Y, GRID_Z, Z_NEAR, Z_FAR, MAX_LIGHTS_PER_CLUSTER, 1);
+        parallel.setProjection(scaleX, scaleY);
+        parallel.assign(spheres, NUM_LIGHTS);
+
+        float[] sliceDepths = new float[GRID_Z + 1];
+        for (int z = 0; z <= GRID_Z; z++){
+            sliceDepths[z] = Z_NEAR * (float) Math.pow(Z_FAR / Z_NEAR, (double) z / GRID_Z);
+        }
+
+        checkClusters(serial, spheres, NUM_LIGHTS, sliceDepths, scaleX, scaleY);
+        checkSampledPoints(serial, spheres, NUM_LIGHTS, sliceDepths, scaleX, scaleY);
+        checkSame(serial, parallel);
+        checkOverflow(serial, sliceDepths, scaleX, scaleY);
+        checkNotAssigned(serial, NO_RADIUS_LIGHT, "with no radius");
+        for (int light = FIRST_BEHIND_LIGHT; light < FIRST_BEHIND_LIGHT + NUM_BEHIND_LIGHTS; light++){
+            checkNotAssigned(serial, light, "behind the camera");
+        }
+        checkCameraCrossing(serial, spheres);
+
+        System.out.println("light clusters match the brute force assignment (" + NUM_LIGHTS + " lights, "
+                + serial.getNumLightIndices() + " light indices)");
+    }
+
+    //x, y, z, radius in view space, in the order of the light index constants
+    private static float[] createLights(){
+
+        Random random = new Random(42);
+        float[] spheres = new float[NUM_LIGHTS * 4];
+
+        setLight(spheres, CROSSING_LIGHT, 0, 0, 1, 2);
+
+        for (int light = FIRST_PILED_LIGHT; light < FIRST_PILED_LIGHT + NUM_PILED_LIGHTS; light++){
+            setLight(spheres, light, PILE_POSITION[0], PILE_POSITION[1], PILE_POSITION[2], 0.05f);
+        }
+
+        for (int light = FIRST_RANDOM_LIGHT; light < FIRST_RANDOM_LIGHT + NUM_RANDOM_LIGHTS; light++){
+            float depth = 0.5f + random.nextFloat() * 60;
+            float halfWidth = depth / (1.0f / (float) Math.tan(FOV / 2) / ASPECT);
+            float halfHeight = depth * (float) Math.tan(FOV / 2);
+            //a bit wider than the frustum so some lights only reach in from the sides
+            setLight(spheres, light, (random.nextFloat() * 2 - 1) * halfWidth * 1.2f,
+                    (random.nextFloat() * 2 - 1) * halfHeight * 1.2f, -depth, 0.2f + random.nextFloat() * 5);
+        }
+
+        setLight(spheres, FIRST_BEHIND_LIGHT, 0, 0, 5, 2);
+        setLight(spheres, FIRST_BEHIND_LIGHT + 1, 3, -1, 0.5f, 0.4f);
+        setLight(spheres, FIRST_BEHIND_LIGHT + 2, 0, 0, 200, 50);
+        setLight(spheres, NO_RADIUS_LIGHT, 0, 0, -5, 0);
+
+        return spheres;
+    }
+
+    private static void setLight(float[] spheres, int light, float x, float y, float z, float radius){
+        spheres[light * 4] = x;
+        spheres[light * 4 + 1] = y;
+        spheres[light * 4 + 2] = z;
+        spheres[light * 4 + 3] = radius;
+    }
+
+    //offsets, counts, light order and the sphere against AABB test, for every cluster
+    private static void checkClusters(LightClusters clusters, float[] spheres, int numLights, float[] sliceDepths,
+            float scaleX, float scaleY){
+
+        int[] lightIndices = clusters.getLightIndices();
+        int expectedOffset = 0;
+
+        for (int z = 0; z < GRID_Z; z++){
+            for (int y = 0; y < GRID_Y; y++){
+                for (int x = 0; x < GRID_X; x++){
+
+                    int cluster = clusters.getClusterIndex(x, y, z);
+                    int offset = clusters.getClusterOffset(cluster);
+                    int count = clusters.getClusterCount(cluster);
+                    float[] bounds = getBounds(x, y, z, sliceDepths, scaleX, scaleY);
+
+                    check(offset == expectedOffset, "cluster " + cluster + " at offset " + offset
+                            + ", expected " + expectedOffset);
+                    check(count <= MAX_LIGHTS_PER_CLUSTER, "cluster " + cluster + " holds " + count + " lights");
+
+                    for (int i = 0; i < count; i++){
+                        int light = lightIndices[offset + i];
+                        check(light >= 0 && light < numLights, "cluster " + cluster + " holds light " + light);
+                        check(i == 0 || light > lightIndices[offset + i - 1], "cluster " + cluster
+                                + " lights out of order");
+                        check(intersects(bounds, spheres, light), "light " + light + " in cluster " + cluster
+                                + " does not touch its AABB");
+                    }
+
+                    expectedOffset += count;
+                }
+            }
+        }
+
+        check(expectedOffset == clusters.getNumLightIndices(), "light indices count " + clusters.getNumLightIndices()
+                + ", expected " + expectedOffset);
+    }
+
+    //every point of a sphere inside the frustum puts the light in the cluster of the point
+    private static void checkSampledPoints(LightClusters clusters, float[] spheres, int numLights,
+            float[] sliceDepths, float scaleX, float scaleY){
+
+        for (int light = 0; light < numLights; light++){
+
+            float radius = spheres[light * 4 + 3];
+
+            for (int i = 0; i < SAMPLES; i++){
+                for (int j = 0; j < SAMPLES; j++){
+                    for (int k = 0; k < SAMPLES; k++){
+
+                        float dx = radius * (2.0f * i / (SAMPLES - 1) - 1);
+                        float dy = radius * (2.0f * j / (SAMPLES - 1) - 1);
+                        float dz = radius * (2.0f * k / (SAMPLES - 1) - 1);
+
+                        if (dx * dx + dy * dy + dz * dz > radius * radius){
+                            continue;
+                        }
+
+                        int cluster = getCluster(clusters, spheres[light * 4] + dx, spheres[light * 4 + 1] + dy,
+                                spheres[light * 4 + 2] + dz, sliceDepths, scaleX, scaleY);
+
+                        if (cluster >= 0){
+                            checkHolds(clusters, cluster, light);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    //the light is in the cluster, or the cluster is full of lights that come before it
+    private static void checkHolds(LightClusters clusters, int cluster, int light){
+
+        int[] lightIndices = clusters.getLightIndices();
+        int offset = clusters.getClusterOffset(cluster);
+        int count = clusters.getClusterCount(cluster);
+
+        for (int i = 0; i < count; i++){
+            if (lightIndices[offset + i] == light){
+                return;
+            }
+        }
+
+        check(count == MAX_LIGHTS_PER_CLUSTER && lightIndices[offset + count - 1] < light,
+                "light " + light + " missing from cluster " + cluster + " (" + count + " lights)");
+    }
+
+    private static void checkSame(LightClusters serial, LightClusters parallel){
+
+        check(Arrays.equals(serial.getClusterData(), parallel.getClusterData()),
+                "parallel cluster offsets and counts differ from the serial ones");
+        check(Arrays.equals(serial.getLightIndices(), 0, serial.getNumLightIndices(),
+                parallel.getLightIndices(), 0, parallel.getNumLightIndices()),
+                "parallel light indices differ from the serial ones");
+    }
+
+    //the cluster of the piled lights keeps the first ones only, they come before the random lights
+    private static void checkOverflow(LightClusters clusters, float[] sliceDepths, float scaleX, float scaleY){
+
+        int cluster = getCluster(clusters, PILE_POSITION[0], PILE_POSITION[1], PILE_POSITION[2], sliceDepths,
+                scaleX, scaleY);
+        check(cluster >= 0, "piled lights outside of the grid");
+
+        int[] lightIndices = clusters.getLightIndices();
+        int offset = clusters.getClusterOffset(cluster);
+        int count = clusters.getClusterCount(cluster);
+
+        check(count == MAX_LIGHTS_PER_CLUSTER, "cluster of the piled lights holds " + count + " lights");
+
+        for (int i = 0; i < count; i++){
+            check(lightIndices[offset + i] == FIRST_PILED_LIGHT + i, "cluster of the piled lights holds light "
+                    + lightIndices[offset + i] + " at " + i);
+        }
+    }
+
+    private static void checkNotAssigned(LightClusters clusters, int light, String what){
+
+        int[] lightIndices = clusters.getLightIndices();
+
+        for (int i = 0; i < clusters.getNumLightIndices(); i++){
+            check(lightIndices[i] != light, "light " + light + " " + what + " was assigned");
+        }
+    }
+
+    //centered behind the camera, its sphere still reaches the first slices, it is the first light so never dropped
+    private static void checkCameraCrossing(LightClusters clusters, float[] spheres){
+
+        check(spheres[CROSSING_LIGHT * 4 + 2] > 0 && spheres[CROSSING_LIGHT * 4 + 2] < spheres[CROSSING_LIGHT * 4 + 3],
+                "light " + CROSSING_LIGHT + " does not cross the camera plane");
+
+        int cluster = clusters.getClusterIndex(GRID_X / 2, GRID_Y / 2, 0);
+        int offset = clusters.getClusterOffset(cluster);
+
+        check(clusters.getClusterCount(cluster) > 0 && clusters.getLightIndices()[offset] == CROSSING_LIGHT,
+                "light crossing the camera plane missing from the first slice");
+    }
+
+    //cluster holding a view space point, -1 outside of the grid or too close to a border
+    private static int getCluster(LightClusters clusters, float x, float y, float z, float[] sliceDepths,
+            float scaleX, float scaleY){
+
+        float depth = -z;
+        if (depth < Z_NEAR || depth > Z_FAR){
+            return -1;
+        }
+
+        float tileX = (x * scaleX / depth + 1.0f) * 0.5f * GRID_X;
+        float tileY = (y * scaleY / depth + 1.0f) * 0.5f * GRID_Y;
+        if (tileX < 0 || tileX >= GRID_X || tileY < 0 || tileY >= GRID_Y || nearBorder(tileX) || nearBorder(tileY)){
+            return -1;
+        }
+
+        for (int slice = 0; slice < GRID_Z; slice++){
+            if (depth < sliceDepths[slice + 1]){
+                if (Math.abs(depth - sliceDepths[slice]) < BORDER_EPSILON * depth
+                        || Math.abs(depth - sliceDepths[slice + 1]) < BORDER_EPSILON * depth){
+                    return -1;
+                }
+                return clusters.getClusterIndex((int) tileX, (int) tileY, slice);
+            }
+        }
+
+        return -1;
+    }
+
+    private static boolean nearBorder(float tile){
+        return Math.abs(tile - Math.round(tile)) < BORDER_EPSILON;
+    }
+
+    //view space AABB of the cluster: minX, minY, minZ, maxX, maxY, maxZ
+    private static float[] getBounds(int x, int y, int z, float[] sliceDepths, float scaleX, float scaleY){
+
+        float near = sliceDepths[z];
+        float far = sliceDepths[z + 1];
+
+        float ndcMinX = -1.0f + 2.0f * x / GRID_X;
+        float ndcMaxX = -1.0f + 2.0f * (x + 1) / GRID_X;
+        float ndcMinY = -1.0f + 2.0f * y / GRID_Y;
+        float ndcMaxY = -1.0f + 2.0f * (y + 1) / GRID_Y;
+
+        return new float[]{
+                Math.min(ndcMinX * near, ndcMinX * far) / scaleX,
+                Math.min(ndcMinY * near, ndcMinY * far) / scaleY,
+                -far,
+                Math.max(ndcMaxX * near, ndcMaxX * far) / scaleX,
+                Math.max(ndcMaxY * near, ndcMaxY * far) / scaleY,
+                -near
+        };
+    }
+
+    private static boolean intersects(float[] bounds, float[] spheres, int light){
+
+        float x = spheres[light * 4];
+        float y = spheres[light * 4 + 1];
+        float z = spheres[light * 4 + 2];
+        float radius = spheres[light * 4 + 3];
+
+        float dx = Math.max(Math.max(bounds[0] - x, 0.0f), x - bounds[3]);
+        float dy = Math.max(Math.max(bounds[1] - y, 0.0f), y - bounds[4]);
+        float dz = Math.max(Math.max(bounds[2] - z, 0.0f), z - bounds[5]);
+
+        return dx * dx + dy * dy + dz * dz <= radius * radius;
+    }
+
+    private static void check(boolean condition, String message){
+        if (!condition){
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package blackjack.engine.graph;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joml.Vector3f;
+
+import imgui.ImGui;
+import imgui.flag.ImGuiCond;
+
+import blackjack.engine.Consts;
+import blackjack.engine.IGuiInstance;
+import blackjack.engine.Window;
+import blackjack.engine.scene.Entity;
+import blackjack.engine.scene.ModelLoader;
+import blackjack.engine.scene.Scene;
+import blackjack.engine.scene.lights.PointLight;
+import blackjack.engine.scene.lights.SceneLights;
+import blackjack.engine.scene.lights.SpotLight;
+
+/*
+ * Regression test for the render path garbage: renders frames of a small scene and a static GUI window
+ * through StubGL and fails if the frame (Render.renderScene, GuiRender.buildGui and GuiRender.render)
+ * allocates any heap memory once warmed up, measured with the thread allocation counter
+ *
+ * every frame moves the camera, a dynamic entity and a light, so the culling, the instance and
+ * light uploads and the shadow redraws all run inside the measured frames
+ * the scene stays under CULLING_PARALLEL_THRESHOLD, the parallel culling is not covered
+ *
+ * there is no test framework in lib/, it runs as a program from the repository root (shaders are
+ * loaded from resources/) and exits with an AssertionError on failure:
+ *     java --enable-preview -cp "bin:lib/*:<lwjgl and imgui natives of the platform>" blackjack.engine.graph.RenderAllocationTest
+ */
+
+public class RenderAllocationTest {
+
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final int GRID_SIZE = 8;
+    //stub frames are cheap, a long warmup lets the JIT reach its final code before measuring
+    private static final int WARMUP_FRAMES = 2000;
+    private static final int MEASURED_FRAMES = 1000;
+    /*
+     * a tier change of the JIT in the middle of a round can allocate a few hundred bytes once (VM side strings,
+     * with no allocation site in the frame), so an allocating round is measured again
+     * garbage created by the render path shows in every round
+     */
+    private static final int MAX_ROUNDS = 5;
+    //streamed textures finish on background threads, the warmup waits for them up to this long
+    private static final long STREAMING_TIMEOUT_MS = 10_000;
+
+    public static void main(String[] args){
+
+        StubGL.install();
+
+        Scene scene = createScene();
+        SceneRender sceneRender = new SceneRender();
+        ShadowRender shadowRender = Consts.SHADOWS ? new ShadowRender() : null;
+        GuiRender guiRender = new GuiRender(WIDTH, HEIGHT);
+        scene.setGuiInstance(new StaticGui());
+
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threadMXBean)
+                || !threadMXBean.isThreadAllocatedMemorySupported()){
+            throw new AssertionError("thread allocation counters not supported by this JVM");
+        }
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        //buffers grow and textures become resident during the first frames
+        long streamingDeadline = System.currentTimeMillis() + STREAMING_TIMEOUT_MS;
+        int frame = 0;
+        while (frame < WARMUP_FRAMES || scene.getTextureCache().getStreamingQueueDepth() > 0){
+            if (System.currentTimeMillis() > streamingDeadline){
+                throw new AssertionError("textures still streaming after " + STREAMING_TIMEOUT_MS + " ms");
+            }
+            renderFrame(scene, sceneRender, shadowRender, guiRender, frame++);
+        }
+
+        long allocatedBytes = 0;
+        int round = 0;
+
+        do {
+            long startBytes = threadMXBean.getCurrentThreadAllocatedBytes();
+
+            for (int i = 0; i < MEASURED_FRAMES; i++){
+                renderFrame(scene, sceneRender, shadowRender, guiRender, frame++);
+            }
+
+            allocatedBytes = threadMXBean.getCurrentThreadAllocatedBytes() - startBytes;
+            round++;
+        } while (allocatedBytes > 0 && round < MAX_ROUNDS);
+
+        sceneRender.cleanup();
+        guiRender.cleanup();
+        if (shadowRender != null){
+            shadowRender.cleanup();
+        }
+        scene.cleanup();
+
+        if (allocatedBytes > 0){
+            throw new AssertionError("render path allocated " + allocatedBytes + " bytes in " + MEASURED_FRAMES
+                    + " frames, in each of " + MAX_ROUNDS + " rounds");
+        }
+
+        System.out.println("render path allocated 0 bytes in " + MEASURED_FRAMES + " frames (round " + round + ")");
+    }
+
+    //one fixed update followed by a draw, with everything the frame does kept allocation free
+    private static void renderFrame(Scene scene, SceneRender sceneRender, ShadowRender shadowRender, GuiRender guiRender,
+            int frame){
+
+        scene.storePreviousTransforms();
+
+        float time = frame * 0.01f;
+
+        scene.getCamera().addRotation(0, 0.002f);
+        scene.getCamera().moveForward((frame & 64) == 0 ? 0.05f : -0.05f);
+
+        Entity mover = scene.getModelList().get(0).getEntitiesList().get(0);
+        mover.setPosition((float) Math.sin(time) * 4, 1, (float) Math.cos(time) * 4);
+        mover.updateModelMatrix();
+
+        //an edited light every few frames, its data is uploaded again and the static shadows are redrawn
+        if (frame % 30 == 0){
+            scene.getSceneLights().getPointLights().get(0).setIntensity(1 + (frame % 60) * 0.01f);
+        }
+
+        Render.renderScene(scene, sceneRender, shadowRender, WIDTH, HEIGHT, 0.5f);
+        guiRender.buildGui(scene);
+        guiRender.render(scene);
+    }
+
+    private static Scene createScene(){
+
+        Scene scene = new Scene(WIDTH, HEIGHT);
+
+        SceneLights sceneLights = new SceneLights();
+        sceneLights.getPointLights().add(new PointLight(new Vector3f(1, 1, 1), new Vector3f(0, 3, 0), 1));
+        PointLight spotPointLight = new PointLight(new Vector3f(1, 0.8f, 0.6f), new Vector3f(4, 4, 4), 1);
+        sceneLights.getSpotLights().add(new SpotLight(spotPointLight, new Vector3f(-1, -1, -1), 30));
+        scene.setSceneLights(sceneLights);
+
+        List<Material> materialList = new ArrayList<>();
+        materialList.add(new Material());
+        List<CookedMesh> meshList = new ArrayList<>();
+        meshList.add(CookedMesh.cook(createCube(), 0, VertexFormat.COMPACT));
+
+        scene.addModel(ModelLoader.uploadModel(new ModelData("cube", materialList, meshList),
+                scene.getMaterialCache(), scene.getGeometryArena()));
+
+        for (int x = 0; x < GRID_SIZE; x++){
+            for (int z = 0; z < GRID_SIZE; z++){
+                Entity entity = new Entity("cube-" + x + "-" + z, "cube", true);
+                entity.setPosition((x - GRID_SIZE / 2) * 3, 0, (z - GRID_SIZE / 2) * 3);
+                //the first one is moved every frame (see renderFrame)
+                entity.setDynamic(x == 0 && z == 0);
+                entity.updateModelMatrix();
+                scene.addEntity(entity);
+            }
+        }
+
+        return scene;
+    }
+
+    //unit cube, four vertices per face so every face keeps its own normal
+    private static MeshData createCube(){
+
+        float[][] faceNormals = {{1, 0, 0}, {-1, 0, 0}, {0, 1, 0}, {0, -1, 0}, {0, 0, 1}, {0, 0, -1}};
+        float[][] faceTangents = {{0, 0, -1}, {0, 0, 1}, {1, 0, 0}, {1, 0, 0}, {1, 0, 0}, {-1, 0, 0}};
+        float[][] corners = {{-1, -1}, {1, -1}, {1, 1}, {-1, 1}};
+
+        float[] positions = new float[24 * 3];
+        float[] normals = new float[24 * 3];
+        float[] tangents = new float[24 * 3];
+        float[] bitangents = new float[24 * 3];
+        float[] textCoords = new float[24 * 2];
+        int[] indices = new int[36];
+
+        for (int face = 0; face < 6; face++){
+
+            Vector3f normal = new Vector3f(faceNormals[face]);
+            Vector3f tangent = new Vector3f(faceTangents[face]);
+            Vector3f bitangent = new Vector3f(normal).cross(tangent);
+
+            for (int corner = 0; corner < 4; corner++){
+
+                int vertex = face * 4 + corner;
+                float u = corners[corner][0];
+                float v = corners[corner][1];
+
+                Vector3f position = new Vector3f(normal).fma(u, tangent).fma(v, bitangent).mul(0.5f);
+                put(positions, vertex, position);
+                put(normals, vertex, normal);
+                put(tangents, vertex, tangent);
+                put(bitangents, vertex, bitangent);
+                textCoords[vertex * 2] = (u + 1) * 0.5f;
+                textCoords[vertex * 2 + 1] = (v + 1) * 0.5f;
+            }
+
+            int[] faceIndices = {0, 1, 2, 2, 3, 0};
+            for (int i = 0; i < 6; i++){
+                indices[face * 6 + i] = face * 4 + faceIndices[i];
+            }
+        }
+
+        return new MeshData(positions, normals, tangents, bitangents, textCoords, indices,
+                new Vector3f(-0.5f), new Vector3f(0.5f));
+    }
+
+    private static void put(float[] array, int vertex, Vector3f value){
+        array[vertex * 3] = value.x;
+        array[vertex * 3 + 1] = value.y;
+        array[vertex * 3 + 2] = value.z;
+    }
+
+    //one fixed window with constant text, the GUI part of the frame is then the same every frame
+    private static class StaticGui implements IGuiInstance {
+
+        @Override
+        public void drawGui(){
+            ImGui.newFrame();
+            ImGui.setNextWindowPos(0, 0, ImGuiCond.Always);
+            ImGui.setNextWindowSize(300, 100);
+
+            ImGui.begin("Allocation test");
+            ImGui.text("static text");
+            ImGui.separator();
+            ImGui.text("more static text");
+            ImGui.end();
+
+            ImGui.endFrame();
+            ImGui.render();
+        }
+
+        @Override
+        public boolean handleGuiInput(Scene scene, Window window){
+            return false;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package blackjack.engine.graph;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.system.Callback;
+import org.lwjgl.system.CallbackI;
+import org.lwjgl.system.Configuration;
+import org.lwjgl.system.FunctionProvider;
+import org.lwjgl.system.libffi.FFICIF;
+import org.lwjgl.system.libffi.FFIType;
+
+import static org.lwjgl.system.APIUtil.apiCreateCIF;
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.system.Pointer.POINTER_SIZE;
+import static org.lwjgl.system.libffi.LibFFI.*;
+
+/*
+ * OpenGL without a driver or a window, for tests that only run the engine side of the render path
+ * every GL entry point resolves to a native closure, most of them do nothing and return 0, the few
+ * the engine reads results from answer with something plausible (object names, compile and link status,
+ * mapped memory, signaled fences), enough for GL.createCapabilities() to report a 4.6 core context
+ *
+ * the closures are created once in install() and never allocate when called
+ */
+
+final class StubGL implements FunctionProvider {
+
+    private static final int GL_VERSION = 0x1F02;
+    private static final int GL_MAJOR_VERSION = 0x821B;
+    private static final int GL_MINOR_VERSION = 0x821C;
+    private static final int GL_CONTEXT_PROFILE_MASK = 0x9126;
+    private static final int GL_CONTEXT_CORE_PROFILE_BIT = 0x1;
+    private static final int GL_INFO_LOG_LENGTH = 0x8B84;
+    private static final int GL_PROGRAM_BINARY_LENGTH = 0x8741;
+    private static final int GL_FRAMEBUFFER_COMPLETE = 0x8CD5;
+    private static final int GL_ALREADY_SIGNALED = 0x911A;
+
+    private static StubGL instance;
+
+    private final Map<String, Function> functions;
+    private final Function noop;
+
+    private final ByteBuffer versionString;
+    private final ByteBuffer emptyString;
+
+    //memory handed out by the map calls, shared by every mapping since nothing reads it back
+    private long mapped;
+    private long mappedSize;
+
+    private int nextName;
+    private int nextUniformLocation;
+
+    private StubGL(){
+
+        functions = new HashMap<>();
+
+        versionString = memASCII("4.6.0 stub");
+        emptyString = memASCII("");
+
+        noop = new Function(cif(ffi_type_sint64), (ret, _) -> memPutLong(ret, 0));
+
+        add(cif(ffi_type_pointer, ffi_type_uint32), "glGetString", (ret, args) ->
+                memPutAddress(ret, intArg(args, 0) == GL_VERSION ? memAddress(versionString) : memAddress(emptyString)));
+        add(cif(ffi_type_pointer, ffi_type_uint32, ffi_type_uint32), "glGetStringi", (ret, _) ->
+                memPutAddress(ret, memAddress(emptyString)));
+
+        add(cif(ffi_type_void, ffi_type_uint32, ffi_type_pointer), "glGetIntegerv", (_, args) ->
+                memPutInt(pointerArg(args, 1), integer(intArg(args, 0))));
+
+        add(cif(ffi_type_void, ffi_type_sint32, ffi_type_pointer), (_, args) -> genNames(intArg(args, 0), pointerArg(args, 1)),
+                "glGenBuffers", "glGenTextures", "glGenVertexArrays", "glGenFramebuffers", "glGenRenderbuffers",
+                "glGenQueries", "glGenSamplers", "glCreateBuffers", "glCreateVertexArrays", "glCreateFramebuffers");
+        add(cif(ffi_type_void, ffi_type_uint32, ffi_type_sint32, ffi_type_pointer), "glCreateTextures", (_, args) ->
+                genNames(intArg(args, 1), pointerArg(args, 2)));
+
+        add(cif(ffi_type_uint32), "glCreateProgram", (ret, _) -> memPutLong(ret, ++nextName));
+        add(cif(ffi_type_uint32, ffi_type_uint32), "glCreateShader", (ret, _) -> memPutLong(ret, ++nextName));
+
+        //everything compiles, links and validates, with no log and no binary to cache
+        add(cif(ffi_type_void, ffi_type_uint32, ffi_type_uint32, ffi_type_pointer), (_, args) -> {
+            int pname = intArg(args, 1);
+            memPutInt(pointerArg(args, 2), pname == GL_INFO_LOG_LENGTH || pname == GL_PROGRAM_BINARY_LENGTH ? 0 : 1);
+        }, "glGetShaderiv", "glGetProgramiv");
+
+        add(cif(ffi_type_sint32, ffi_type_uint32, ffi_type_pointer), "glGetUniformLocation", (ret, _) ->
+                memPutLong(ret, ++nextUniformLocation));
+
+        add(cif(ffi_type_pointer, ffi_type_uint32, ffi_type_sint64, ffi_type_sint64, ffi_type_uint32), (ret, args) ->
+                memPutAddress(ret, map(longArg(args, 2))), "glMapBufferRange", "glMapNamedBufferRange");
+        add(cif(ffi_type_uint32, ffi_type_uint32), (ret, _) -> memPutLong(ret, 1), "glUnmapBuffer", "glUnmapNamedBuffer");
+
+        add(cif(ffi_type_pointer, ffi_type_uint32, ffi_type_uint32), "glFenceSync", (ret, _) -> memPutAddress(ret, 1));
+        add(cif(ffi_type_uint32, ffi_type_pointer, ffi_type_uint32, ffi_type_uint64), "glClientWaitSync", (ret, _) ->
+                memPutLong(ret, GL_ALREADY_SIGNALED));
+
+        add(cif(ffi_type_uint32, ffi_type_uint32), (ret, _) -> memPutLong(ret, GL_FRAMEBUFFER_COMPLETE),
+                "glCheckFramebufferStatus", "glCheckNamedFramebufferStatus");
+    }
+
+    //makes the stub the current GL context of the calling thread, must run before anything touches GL
+    static void install(){
+
+        if (instance != null){
+            return;
+        }
+
+        //otherwise loading the GL class goes looking for the system OpenGL library
+        Configuration.OPENGL_EXPLICIT_INIT.set(true);
+
+        instance = new StubGL();
+        GL.create(instance);
+        GL.createCapabilities();
+    }
+
+    @Override
+    public long getFunctionAddress(ByteBuffer functionName){
+        return functions.getOrDefault(memASCII(memAddress(functionName)), noop).address();
+    }
+
+    @Override
+    public long getFunctionAddress(CharSequence functionName){
+        return functions.getOrDefault(functionName.toString(), noop).address();
+    }
+
+    private int integer(int pname){
+        return switch (pname){
+            case GL_MAJOR_VERSION -> 4;
+            case GL_MINOR_VERSION -> 6;
+            case GL_CONTEXT_PROFILE_MASK -> GL_CONTEXT_CORE_PROFILE_BIT;
+            default -> 0;
+        };
+    }
+
+    private void genNames(int count, long names){
+        for (int i = 0; i < count; i++){
+            memPutInt(names + (long) i * Integer.BYTES, ++nextName);
+        }
+    }
+
+    private long map(long length){
+        if (length > mappedSize){
+            mapped = nmemRealloc(mapped, length);
+            mappedSize = length;
+        }
+        return mapped;
+    }
+
+    private void add(FFICIF cif, String name, Handler handler){
+        functions.put(name, new Function(cif, handler));
+    }
+
+    private void add(FFICIF cif, Handler handler, String... names){
+        Function function = new Function(cif, handler);
+        for (String name : names){
+            functions.put(name, function);
+        }
+    }
+
+    private static FFICIF cif(FFIType returnType, FFIType... argumentTypes){
+        return apiCreateCIF(FFI_DEFAULT_ABI, returnType, argumentTypes);
+    }
+
+    //args points to an array of pointers, one per argument, each to the argument value
+    private static int intArg(long args, int index){
+        return memGetInt(memGetAddress(args + (long) index * POINTER_SIZE));
+    }
+
+    private static long longArg(long args, int index){
+        return memGetLong(memGetAddress(args + (long) index * POINTER_SIZE));
+    }
+
+    private static long pointerArg(long args, int index){
+        return memGetAddress(memGetAddress(args + (long) index * POINTER_SIZE));
+    }
+
+    //body of a stubbed function, integer return values are widened to 64 bits by libffi so they are written as longs
+    @FunctionalInterface
+    private interface Handler {
+        void call(long ret, long args);
+    }
+
+    private static final class Function extends Callback implements CallbackI {
+
+        private final FFICIF cif;
+        private final Handler handler;
+
+        Function(FFICIF cif, Handler handler){
+            super(cif);
+            this.cif = cif;
+            this.handler = handler;
+        }
+
+        @Override
+        public FFICIF getCallInterface(){
+            return cif;
+        }
+
+        @Override
+        public void callback(long ret, long args){
+            handler.call(ret, args);
+        }
+    }
+}